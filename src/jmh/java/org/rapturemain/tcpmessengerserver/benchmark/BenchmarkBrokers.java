@@ -0,0 +1,79 @@
+package org.rapturemain.tcpmessengerserver.benchmark;
+
+import org.rapturemain.tcpmessengerserver.messagebroker.*;
+import org.rapturemain.tcpmessengerserver.metrics.MessengerMetrics;
+import org.rapturemain.tcpmessengerserver.metrics.MessengerMetricsImpl;
+
+final class BenchmarkBrokers {
+
+    private static final int SUBSCRIBER_QUEUE_CAPACITY = 10000;
+    private static final int RING_CAPACITY = 65536;
+    private static final long PARALLELISM_THRESHOLD = 4096;
+    private static final int HISTORY_SIZE = 50;
+    private static final long HISTORY_MAX_AGE_SECONDS = 600;
+    private static final long PAYLOAD_BUFFER_POOL_MAX_BYTES = 16777216;
+
+    private BenchmarkBrokers() {
+
+    }
+
+    // Same defaults as application.properties, started the way Spring would
+    static MessageBroker create(String broker) {
+        return create(broker, new MessengerMetricsImpl(), createHistory());
+    }
+
+    static RecentHistory createHistory() {
+        return new RecentHistoryImpl(HISTORY_SIZE, HISTORY_MAX_AGE_SECONDS);
+    }
+
+    static SlowConsumerPolicy createSlowConsumerPolicy(MessengerMetrics messengerMetrics) {
+        return new SlowConsumerPolicyImpl("drop-oldest", messengerMetrics);
+    }
+
+    static MessageBroker create(String broker, MessengerMetrics messengerMetrics, RecentHistory recentHistory) {
+        return create(broker, messengerMetrics, recentHistory, createSlowConsumerPolicy(messengerMetrics));
+    }
+
+    static MessageBroker create(String broker, MessengerMetrics messengerMetrics, RecentHistory recentHistory,
+                                SlowConsumerPolicy slowConsumerPolicy) {
+        PayloadBufferPool payloadBufferPool = new PayloadBufferPool(PAYLOAD_BUFFER_POOL_MAX_BYTES, false);
+        switch (broker) {
+            case "queue":
+                return createQueue(PARALLELISM_THRESHOLD, 0, messengerMetrics, recentHistory, slowConsumerPolicy, payloadBufferPool);
+            case "ring":
+                RingMessageBrokerImpl ringBroker = new RingMessageBrokerImpl(RING_CAPACITY, SUBSCRIBER_QUEUE_CAPACITY, slowConsumerPolicy, messengerMetrics, recentHistory);
+                ringBroker.start();
+                return ringBroker;
+            case "sharded":
+                ShardedMessageBrokerImpl shardedBroker = new ShardedMessageBrokerImpl(0, SUBSCRIBER_QUEUE_CAPACITY, slowConsumerPolicy, messengerMetrics, recentHistory, payloadBufferPool);
+                shardedBroker.start();
+                return shardedBroker;
+            default:
+                throw new IllegalArgumentException("Unknown broker [" + broker + "]");
+        }
+    }
+
+    static MessageBrokerImpl createQueue(long parallelismThreshold, int fanOutThreads) {
+        MessengerMetrics messengerMetrics = new MessengerMetricsImpl();
+        return createQueue(parallelismThreshold, fanOutThreads, messengerMetrics, createHistory(), createSlowConsumerPolicy(messengerMetrics),
+                new PayloadBufferPool(PAYLOAD_BUFFER_POOL_MAX_BYTES, false));
+    }
+
+    private static MessageBrokerImpl createQueue(long parallelismThreshold, int fanOutThreads, MessengerMetrics messengerMetrics,
+                                                 RecentHistory recentHistory, SlowConsumerPolicy slowConsumerPolicy, PayloadBufferPool payloadBufferPool) {
+        MessageBrokerImpl queueBroker = new MessageBrokerImpl(parallelismThreshold, fanOutThreads, SUBSCRIBER_QUEUE_CAPACITY, slowConsumerPolicy,
+                messengerMetrics, recentHistory, payloadBufferPool);
+        queueBroker.start();
+        return queueBroker;
+    }
+
+    static void stop(MessageBroker broker) {
+        if (broker instanceof MessageBrokerImpl) {
+            ((MessageBrokerImpl) broker).stop();
+        } else if (broker instanceof RingMessageBrokerImpl) {
+            ((RingMessageBrokerImpl) broker).stop();
+        } else if (broker instanceof ShardedMessageBrokerImpl) {
+            ((ShardedMessageBrokerImpl) broker).stop();
+        }
+    }
+}
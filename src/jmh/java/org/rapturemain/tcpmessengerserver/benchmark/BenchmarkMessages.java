@@ -0,0 +1,39 @@
+package org.rapturemain.tcpmessengerserver.benchmark;
+
+import org.rapturemain.tcpmessengermessageframework.message.base.StringEntry;
+import org.rapturemain.tcpmessengermessageframework.message.base.TimestampEntry;
+import org.rapturemain.tcpmessengermessageframework.message.messages.Message;
+import org.rapturemain.tcpmessengermessageframework.message.messages.chat.SimpleChatMessage;
+import org.rapturemain.tcpmessengermessageframework.message.messages.system.PingRequest;
+import org.rapturemain.tcpmessengermessageframework.message.messages.system.RegistrationRequestMessage;
+
+import java.time.Instant;
+
+final class BenchmarkMessages {
+
+    private BenchmarkMessages() {
+
+    }
+
+    static Message<?> create(String type) {
+        switch (type) {
+            case "chat":
+                return chatMessage();
+            case "ping":
+                return new PingRequest();
+            case "registration":
+                return RegistrationRequestMessage.builder()
+                        .name(new StringEntry("benchmark-user"))
+                        .build();
+            default:
+                throw new IllegalArgumentException("Unknown message type [" + type + "]");
+        }
+    }
+
+    static Message<?> chatMessage() {
+        SimpleChatMessage message = new SimpleChatMessage();
+        message.setSenderName(new StringEntry("benchmark-user"));
+        message.setTimestamp(new TimestampEntry(Instant.now().toEpochMilli()));
+        return message;
+    }
+}
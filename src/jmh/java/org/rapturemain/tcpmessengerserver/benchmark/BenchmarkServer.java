@@ -0,0 +1,71 @@
+package org.rapturemain.tcpmessengerserver.benchmark;
+
+import org.rapturemain.tcpmessengerserver.chatlog.DisabledChatLogImpl;
+import org.rapturemain.tcpmessengerserver.connection.*;
+import org.rapturemain.tcpmessengerserver.loopback.LoopbackLink;
+import org.rapturemain.tcpmessengerserver.loopback.LoopbackTransport;
+import org.rapturemain.tcpmessengerserver.messagebroker.MessageBroker;
+import org.rapturemain.tcpmessengerserver.messagebroker.MessageEncoderDecoderImpl;
+import org.rapturemain.tcpmessengerserver.messagebroker.RecentHistory;
+import org.rapturemain.tcpmessengerserver.messagebroker.SlowConsumerPolicy;
+import org.rapturemain.tcpmessengerserver.metrics.MessengerMetrics;
+import org.rapturemain.tcpmessengerserver.metrics.MessengerMetricsImpl;
+import org.rapturemain.tcpmessengerserver.user.NameVerifierImpl;
+import org.rapturemain.tcpmessengerserver.user.UserInfoVerifierImpl;
+
+/**
+ * The blocking transport with everything behind it, wired the way Spring would with the defaults of
+ * application.properties, and reached over loopback connections instead of a server socket.
+ */
+final class BenchmarkServer {
+
+    private static final long KEEPALIVE_IDLE_SECONDS = 15;
+    private static final long KEEPALIVE_TIMEOUT_SECONDS = 15;
+    private static final long WRITE_TIMEOUT_MILLIS = 10000;
+
+    private final MessageBroker messageBroker;
+    private final AsyncUpdateNotifierImpl asyncUpdateNotifier;
+    private final SocketStateVerifierImpl socketStateVerifier;
+    private final ConnectionHandlerImpl connectionHandler;
+    private final MessageEncoderDecoderImpl messageEncoderDecoder;
+    private final LoopbackTransport transport;
+
+    BenchmarkServer(String broker, LoopbackLink link) {
+        MessengerMetrics messengerMetrics = new MessengerMetricsImpl();
+        RecentHistory recentHistory = BenchmarkBrokers.createHistory();
+        SlowConsumerPolicy slowConsumerPolicy = BenchmarkBrokers.createSlowConsumerPolicy(messengerMetrics);
+        messageBroker = BenchmarkBrokers.create(broker, messengerMetrics, recentHistory, slowConsumerPolicy);
+
+        UserInfoVerifierImpl userInfoVerifier = new UserInfoVerifierImpl(new NameVerifierImpl());
+        userInfoVerifier.start();
+        SocketRegistrationService socketRegistrationService = new SocketRegistrationServiceImpl(userInfoVerifier, messageBroker);
+
+        messageEncoderDecoder = new MessageEncoderDecoderImpl(messengerMetrics);
+        messageEncoderDecoder.start();
+        asyncUpdateNotifier = new AsyncUpdateNotifierImpl(messengerMetrics, "platform", 0);
+        socketStateVerifier = new SocketStateVerifierImpl(KEEPALIVE_IDLE_SECONDS, KEEPALIVE_TIMEOUT_SECONDS);
+        socketStateVerifier.start();
+
+        connectionHandler = new ConnectionHandlerImpl(asyncUpdateNotifier, messageBroker, messageEncoderDecoder,
+                new ConnectionMessageHandlerImpl(socketRegistrationService, messengerMetrics, new DisabledChatLogImpl()),
+                new SocketConfigurerImpl(true, 0), socketStateVerifier, messengerMetrics, slowConsumerPolicy, "platform", WRITE_TIMEOUT_MILLIS);
+        connectionHandler.start();
+        transport = new LoopbackTransport(connectionHandler, link);
+    }
+
+    LoopbackTransport getTransport() {
+        return transport;
+    }
+
+    // Clients use the server's codec, it is thread safe
+    MessageEncoderDecoderImpl getMessageEncoderDecoder() {
+        return messageEncoderDecoder;
+    }
+
+    void stop() {
+        connectionHandler.stop();
+        socketStateVerifier.stop();
+        asyncUpdateNotifier.stop();
+        BenchmarkBrokers.stop(messageBroker);
+    }
+}
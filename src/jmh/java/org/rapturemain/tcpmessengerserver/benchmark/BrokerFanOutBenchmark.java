@@ -0,0 +1,65 @@
+package org.rapturemain.tcpmessengerserver.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import org.rapturemain.tcpmessengermessageframework.message.messages.Message;
+import org.rapturemain.tcpmessengerserver.messagebroker.MessageBroker;
+import org.rapturemain.tcpmessengerserver.messagebroker.MessagePublisher;
+import org.rapturemain.tcpmessengerserver.messagebroker.MessageSubscriber;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One operation is a broadcast that has reached every subscriber, so deliveries per second are
+ * the score multiplied by the subscriber count.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BrokerFanOutBenchmark {
+
+    @Param({"queue", "ring", "sharded"})
+    private String broker;
+
+    @Param({"10", "1000", "10000"})
+    private int subscribers;
+
+    private final AtomicInteger pendingDeliveries = new AtomicInteger();
+    private final Message<?> message = BenchmarkMessages.chatMessage();
+
+    private MessageBroker messageBroker;
+    private MessagePublisher publisher;
+
+    @Setup
+    public void setUp() {
+        messageBroker = BenchmarkBrokers.create(broker);
+        publisher = messageBroker.registerPublisher();
+        for (int i = 0; i < subscribers; i++) {
+            MessageSubscriber subscriber = messageBroker.registerSubscriber();
+            // Consumes on the delivering thread, which is the cheapest consumer a transport can be
+            subscriber.setUpdateListener(() -> {
+                while (subscriber.pollMessage() != null) {
+                    pendingDeliveries.decrementAndGet();
+                }
+            });
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        BenchmarkBrokers.stop(messageBroker);
+    }
+
+    @Benchmark
+    public void broadcast() {
+        pendingDeliveries.set(subscribers);
+        publisher.publishMessage(message);
+        // Yield rather than spin, the broker threads may share the core with this one
+        while (pendingDeliveries.get() > 0) {
+            Thread.yield();
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package org.rapturemain.tcpmessengerserver.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import org.rapturemain.tcpmessengermessageframework.message.messages.Message;
+import org.rapturemain.tcpmessengerserver.messagebroker.MessageBroker;
+import org.rapturemain.tcpmessengerserver.messagebroker.MessagePublisher;
+import org.rapturemain.tcpmessengerserver.messagebroker.MessageSubscriber;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A burst of messages read from one connection at once, published one by one against published as a single batch.
+ * One operation is a burst that has reached every subscriber.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BurstPublishBenchmark {
+
+    @Param({"queue", "ring", "sharded"})
+    private String broker;
+
+    @Param({"1", "16", "64"})
+    private int burst;
+
+    @Param({"100"})
+    private int subscribers;
+
+    private final AtomicInteger pendingDeliveries = new AtomicInteger();
+    private final List<Message<?>> messages = new ArrayList<>();
+
+    private MessageBroker messageBroker;
+    private MessagePublisher publisher;
+
+    @Setup
+    public void setUp() {
+        messageBroker = BenchmarkBrokers.create(broker);
+        publisher = messageBroker.registerPublisher();
+        for (int i = 0; i < subscribers; i++) {
+            MessageSubscriber subscriber = messageBroker.registerSubscriber();
+            subscriber.setUpdateListener(() -> {
+                while (subscriber.pollMessage() != null) {
+                    pendingDeliveries.decrementAndGet();
+                }
+            });
+        }
+        for (int i = 0; i < burst; i++) {
+            messages.add(BenchmarkMessages.chatMessage());
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        BenchmarkBrokers.stop(messageBroker);
+    }
+
+    @Benchmark
+    public void perMessage() {
+        pendingDeliveries.set(subscribers * burst);
+        for (Message<?> message : messages) {
+            publisher.publishMessage(message);
+        }
+        awaitDeliveries();
+    }
+
+    @Benchmark
+    public void batched() {
+        pendingDeliveries.set(subscribers * burst);
+        publisher.publishMessagesNoWait(messages);
+        awaitDeliveries();
+    }
+
+    private void awaitDeliveries() {
+        while (pendingDeliveries.get() > 0) {
+            Thread.yield();
+        }
+    }
+}
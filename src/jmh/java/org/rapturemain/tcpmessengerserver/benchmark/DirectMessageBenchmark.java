@@ -0,0 +1,89 @@
+package org.rapturemain.tcpmessengerserver.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import org.rapturemain.tcpmessengermessageframework.message.messages.Message;
+import org.rapturemain.tcpmessengerserver.connection.SocketRegistrationServiceImpl;
+import org.rapturemain.tcpmessengerserver.messagebroker.MessageBroker;
+import org.rapturemain.tcpmessengerserver.messagebroker.MessagePublisher;
+import org.rapturemain.tcpmessengerserver.messagebroker.MessageSubscriber;
+import org.rapturemain.tcpmessengerserver.user.Name;
+import org.rapturemain.tcpmessengerserver.user.NameVerifierImpl;
+import org.rapturemain.tcpmessengerserver.user.User;
+import org.rapturemain.tcpmessengerserver.user.UserInfoVerifierImpl;
+
+import java.net.Socket;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Routing a private message by recipient name with many registered users.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DirectMessageBenchmark {
+
+    @Param({"queue", "ring", "sharded"})
+    private String broker;
+
+    @Param({"100000"})
+    private int registeredNames;
+
+    private final Message<?> message = BenchmarkMessages.chatMessage();
+
+    private MessageBroker messageBroker;
+    private MessagePublisher publisher;
+    private SocketRegistrationServiceImpl socketRegistrationService;
+    private String[] names;
+    private int next = 0;
+
+    @Setup
+    public void setUp() {
+        UserInfoVerifierImpl userInfoVerifier = new UserInfoVerifierImpl(new NameVerifierImpl());
+        userInfoVerifier.start();
+        messageBroker = BenchmarkBrokers.create(broker);
+        socketRegistrationService = new SocketRegistrationServiceImpl(userInfoVerifier, messageBroker);
+        publisher = messageBroker.registerPublisher();
+
+        names = new String[registeredNames];
+        for (int i = 0; i < registeredNames; i++) {
+            names[i] = "user-" + i;
+            MessageSubscriber subscriber = messageBroker.registerSubscriber();
+            subscriber.setUpdateListener(() -> {
+                while (subscriber.pollMessage() != null) {
+                    // drain
+                }
+            });
+            socketRegistrationService.register(new Socket(), User.builder()
+                    .name(new Name(names[i]))
+                    .build(), subscriber);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        BenchmarkBrokers.stop(messageBroker);
+    }
+
+    @Benchmark
+    public MessageSubscriber lookup() {
+        return socketRegistrationService.getSubscriberForName(nextName());
+    }
+
+    // Waits for the enqueue so the broker cannot fall behind the benchmark thread
+    @Benchmark
+    public Object route() throws ExecutionException, InterruptedException {
+        MessageSubscriber recipient = socketRegistrationService.getSubscriberForName(nextName());
+        return publisher.publishToSubscriber(message, recipient).get();
+    }
+
+    private String nextName() {
+        if (++next == names.length) {
+            next = 0;
+        }
+        return names[next];
+    }
+}
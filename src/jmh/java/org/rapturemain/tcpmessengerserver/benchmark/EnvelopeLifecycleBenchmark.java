@@ -0,0 +1,58 @@
+package org.rapturemain.tcpmessengerserver.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import org.rapturemain.tcpmessengermessageframework.message.messages.Message;
+import org.rapturemain.tcpmessengerserver.messagebroker.MessageEncoderDecoderImpl;
+import org.rapturemain.tcpmessengerserver.messagebroker.MessageEnvelope;
+import org.rapturemain.tcpmessengerserver.messagebroker.PayloadBufferPool;
+import org.rapturemain.tcpmessengerserver.metrics.MessengerMetricsImpl;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One broadcast's envelope from publishing to the last recipient's write: wrapped, referenced by every
+ * subscriber, encoded once and released by each of them. Run with {@code -prof gc} to compare allocation.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EnvelopeLifecycleBenchmark {
+
+    @Param({"true", "false"})
+    private boolean pooled;
+
+    @Param({"chat", "registration"})
+    private String messageType;
+
+    @Param({"100"})
+    private int subscribers;
+
+    private MessageEncoderDecoderImpl messageEncoderDecoder;
+    private PayloadBufferPool payloadBufferPool;
+    private Message<?> message;
+
+    @Setup
+    public void setUp() {
+        messageEncoderDecoder = new MessageEncoderDecoderImpl(new MessengerMetricsImpl());
+        messageEncoderDecoder.start();
+        payloadBufferPool = new PayloadBufferPool(pooled ? 16777216 : 0, false);
+        message = BenchmarkMessages.create(messageType);
+    }
+
+    @Benchmark
+    public int broadcast() throws IOException {
+        MessageEnvelope envelope = payloadBufferPool.wrap(message);
+        envelope.retain(subscribers);
+        envelope.release();
+        int written = 0;
+        for (int i = 0; i < subscribers; i++) {
+            written += envelope.wrapEncoded(messageEncoderDecoder).remaining();
+            envelope.release();
+        }
+        return written;
+    }
+}
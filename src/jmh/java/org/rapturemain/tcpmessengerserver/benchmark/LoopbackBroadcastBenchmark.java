@@ -0,0 +1,129 @@
+package org.rapturemain.tcpmessengerserver.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import org.rapturemain.tcpmessengermessageframework.message.base.StringEntry;
+import org.rapturemain.tcpmessengermessageframework.message.messages.Message;
+import org.rapturemain.tcpmessengermessageframework.message.messages.chat.ChatMessage;
+import org.rapturemain.tcpmessengermessageframework.message.messages.system.RegistrationRequestMessage;
+import org.rapturemain.tcpmessengermessageframework.message.messages.system.RegistrationResponseMessage;
+import org.rapturemain.tcpmessengerserver.loopback.LoopbackLink;
+import org.rapturemain.tcpmessengerserver.loopback.LoopbackSocket;
+import org.rapturemain.tcpmessengerserver.messagebroker.ByteBufferMessageEncoderDecoder;
+import org.rapturemain.tcpmessengerserver.utils.ByteBufferOutputStream;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A chat message from one client until every connected client has read it, through the blocking transport,
+ * registration and the broker, over in-memory loopback connections instead of TCP.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LoopbackBroadcastBenchmark {
+
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    @Param({"queue", "ring", "sharded"})
+    private String broker;
+
+    @Param({"100", "1000"})
+    private int clients;
+
+    @Param({"0", "200"})
+    private long latencyMicros;
+
+    private final AtomicInteger pendingDeliveries = new AtomicInteger();
+    private final List<LoopbackSocket> sockets = new ArrayList<>();
+
+    private BenchmarkServer server;
+    private OutputStream sender;
+    private byte[] chatMessage;
+
+    @Setup
+    public void setUp() throws IOException, InterruptedException {
+        server = new BenchmarkServer(broker, LoopbackLink.builder()
+                .latency(Duration.ofNanos(TimeUnit.MICROSECONDS.toNanos(latencyMicros)))
+                .build());
+        ByteBufferMessageEncoderDecoder messageEncoderDecoder = server.getMessageEncoderDecoder();
+
+        CountDownLatch registered = new CountDownLatch(clients);
+        for (int i = 0; i < clients; i++) {
+            LoopbackSocket socket = server.getTransport().connect();
+            sockets.add(socket);
+            Thread reader = new Thread(() -> read(socket, messageEncoderDecoder, registered), "loopback-client-" + i);
+            reader.setDaemon(true);
+            reader.start();
+            socket.getOutputStream().write(encode(messageEncoderDecoder, RegistrationRequestMessage.builder()
+                    .name(new StringEntry("client-" + i))
+                    .build()));
+        }
+        if (!registered.await(1, TimeUnit.MINUTES)) {
+            throw new IllegalStateException("Clients did not register in time");
+        }
+
+        sender = sockets.get(0).getOutputStream();
+        chatMessage = encode(messageEncoderDecoder, BenchmarkMessages.chatMessage());
+    }
+
+    @TearDown
+    public void tearDown() {
+        for (LoopbackSocket socket : sockets) {
+            socket.close();
+        }
+        server.stop();
+    }
+
+    @Benchmark
+    public void broadcast() throws IOException {
+        pendingDeliveries.set(clients);
+        sender.write(chatMessage);
+        while (pendingDeliveries.get() > 0) {
+            Thread.yield();
+        }
+    }
+
+    private void read(LoopbackSocket socket, ByteBufferMessageEncoderDecoder messageEncoderDecoder, CountDownLatch registered) {
+        ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        try {
+            InputStream in = socket.getInputStream();
+            int read;
+            while ((read = in.read(buffer.array(), buffer.position(), buffer.remaining())) >= 0) {
+                buffer.position(buffer.position() + read);
+                buffer.flip();
+                Message<?> message;
+                while ((message = messageEncoderDecoder.decode(buffer)) != null) {
+                    if (message instanceof ChatMessage) {
+                        pendingDeliveries.decrementAndGet();
+                    } else if (message instanceof RegistrationResponseMessage) {
+                        registered.countDown();
+                    }
+                }
+                buffer.compact();
+            }
+        } catch (IOException e) {
+            // Closed on tear down
+        }
+    }
+
+    private static byte[] encode(ByteBufferMessageEncoderDecoder messageEncoderDecoder, Message<?> message) throws IOException {
+        ByteBufferOutputStream outputStream = new ByteBufferOutputStream(512);
+        messageEncoderDecoder.encode(message, outputStream);
+        ByteBuffer buffer = outputStream.getBuffer();
+        byte[] encoded = new byte[buffer.position()];
+        System.arraycopy(buffer.array(), 0, encoded, 0, encoded.length);
+        return encoded;
+    }
+}
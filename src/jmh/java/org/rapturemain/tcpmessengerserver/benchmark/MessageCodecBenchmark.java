@@ -0,0 +1,58 @@
+package org.rapturemain.tcpmessengerserver.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import org.rapturemain.tcpmessengermessageframework.message.messages.Message;
+import org.rapturemain.tcpmessengerserver.messagebroker.MessageEncoderDecoderImpl;
+import org.rapturemain.tcpmessengerserver.metrics.MessengerMetricsImpl;
+import org.rapturemain.tcpmessengerserver.utils.ByteBufferOutputStream;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Run with {@code -prof gc} to see the allocation rate per message.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MessageCodecBenchmark {
+
+    @Param({"chat", "ping", "registration"})
+    private String messageType;
+
+    private MessageEncoderDecoderImpl messageEncoderDecoder;
+    private Message<?> message;
+    private ByteBufferOutputStream outputStream;
+    private ByteBuffer encoded;
+
+    @Setup
+    public void setUp() throws IOException {
+        messageEncoderDecoder = new MessageEncoderDecoderImpl(new MessengerMetricsImpl());
+        messageEncoderDecoder.start();
+        message = BenchmarkMessages.create(messageType);
+
+        outputStream = new ByteBufferOutputStream(512);
+        messageEncoderDecoder.encode(message, outputStream);
+        ByteBuffer buffer = outputStream.getBuffer();
+        encoded = ByteBuffer.allocate(buffer.position());
+        encoded.put(buffer.array(), 0, buffer.position());
+        encoded.flip();
+    }
+
+    @Benchmark
+    public ByteBuffer encode() throws IOException {
+        outputStream.getBuffer().clear();
+        messageEncoderDecoder.encode(message, outputStream);
+        return outputStream.getBuffer();
+    }
+
+    @Benchmark
+    public Message<?> decode() throws IOException {
+        encoded.rewind();
+        return messageEncoderDecoder.decode(encoded);
+    }
+}
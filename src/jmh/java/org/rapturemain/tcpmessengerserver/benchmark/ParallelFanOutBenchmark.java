@@ -0,0 +1,66 @@
+package org.rapturemain.tcpmessengerserver.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import org.rapturemain.tcpmessengermessageframework.message.messages.Message;
+import org.rapturemain.tcpmessengerserver.messagebroker.MessageBroker;
+import org.rapturemain.tcpmessengerserver.messagebroker.MessagePublisher;
+import org.rapturemain.tcpmessengerserver.messagebroker.MessageSubscriber;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * {@link BrokerFanOutBenchmark} for the "queue" broker across fan-out pool sizes. A threshold of
+ * {@link Long#MAX_VALUE} never splits a broadcast and is the sequential baseline.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ParallelFanOutBenchmark {
+
+    @Param({"1", "2", "4", "8"})
+    private int fanOutThreads;
+
+    @Param({"1024", "4096", "9223372036854775807"})
+    private long parallelismThreshold;
+
+    @Param({"10000", "50000"})
+    private int subscribers;
+
+    private final AtomicInteger pendingDeliveries = new AtomicInteger();
+    private final Message<?> message = BenchmarkMessages.chatMessage();
+
+    private MessageBroker messageBroker;
+    private MessagePublisher publisher;
+
+    @Setup
+    public void setUp() {
+        messageBroker = BenchmarkBrokers.createQueue(parallelismThreshold, fanOutThreads);
+        publisher = messageBroker.registerPublisher();
+        for (int i = 0; i < subscribers; i++) {
+            MessageSubscriber subscriber = messageBroker.registerSubscriber();
+            subscriber.setUpdateListener(() -> {
+                while (subscriber.pollMessage() != null) {
+                    pendingDeliveries.decrementAndGet();
+                }
+            });
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        BenchmarkBrokers.stop(messageBroker);
+    }
+
+    @Benchmark
+    public void broadcast() {
+        pendingDeliveries.set(subscribers);
+        publisher.publishMessage(message);
+        while (pendingDeliveries.get() > 0) {
+            Thread.yield();
+        }
+    }
+}
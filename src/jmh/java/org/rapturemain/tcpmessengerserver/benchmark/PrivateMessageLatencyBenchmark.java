@@ -0,0 +1,94 @@
+package org.rapturemain.tcpmessengerserver.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import org.rapturemain.tcpmessengermessageframework.message.messages.Message;
+import org.rapturemain.tcpmessengermessageframework.message.messages.system.PingRequest;
+import org.rapturemain.tcpmessengerserver.messagebroker.MessageBroker;
+import org.rapturemain.tcpmessengerserver.messagebroker.MessagePublisher;
+import org.rapturemain.tcpmessengerserver.messagebroker.MessageSubscriber;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Latency of {@code publishToSubscriber} until delivery while another thread keeps broadcasting.
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PrivateMessageLatencyBenchmark {
+
+    // Broadcasts the target has not seen yet, keeps the broadcaster from flooding the broker
+    private static final int MAX_BROADCASTS_IN_FLIGHT = 64;
+
+    @Param({"queue", "ring", "sharded"})
+    private String broker;
+
+    @Param({"100", "1000"})
+    private int subscribers;
+
+    private final AtomicInteger broadcastsInFlight = new AtomicInteger();
+    private final Message<?> broadcastMessage = BenchmarkMessages.chatMessage();
+
+    private volatile Message<?> awaitedMessage;
+
+    private MessageBroker messageBroker;
+    private MessagePublisher publisher;
+    private MessageSubscriber target;
+
+    @Setup
+    public void setUp() {
+        messageBroker = BenchmarkBrokers.create(broker);
+        publisher = messageBroker.registerPublisher();
+        for (int i = 1; i < subscribers; i++) {
+            MessageSubscriber subscriber = messageBroker.registerSubscriber();
+            subscriber.setUpdateListener(() -> {
+                while (subscriber.pollMessage() != null) {
+                    // drain
+                }
+            });
+        }
+        target = messageBroker.registerSubscriber();
+        target.setUpdateListener(() -> {
+            Message<?> message;
+            while ((message = target.pollMessage()) != null) {
+                if (message == awaitedMessage) {
+                    awaitedMessage = null;
+                } else {
+                    broadcastsInFlight.decrementAndGet();
+                }
+            }
+        });
+    }
+
+    @TearDown
+    public void tearDown() {
+        BenchmarkBrokers.stop(messageBroker);
+    }
+
+    @Benchmark
+    @Group("privateUnderBroadcast")
+    @GroupThreads(1)
+    public void broadcast() {
+        while (broadcastsInFlight.get() >= MAX_BROADCASTS_IN_FLIGHT) {
+            Thread.yield();
+        }
+        broadcastsInFlight.incrementAndGet();
+        publisher.publishMessage(broadcastMessage);
+    }
+
+    @Benchmark
+    @Group("privateUnderBroadcast")
+    @GroupThreads(1)
+    public void publishToSubscriber() {
+        Message<?> message = new PingRequest();
+        awaitedMessage = message;
+        publisher.publishToSubscriber(message, target);
+        while (awaitedMessage != null) {
+            Thread.yield();
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package org.rapturemain.tcpmessengerserver.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import org.rapturemain.tcpmessengerserver.connection.SocketRegistrationServiceImpl;
+import org.rapturemain.tcpmessengerserver.messagebroker.MessageBroker;
+import org.rapturemain.tcpmessengerserver.user.Name;
+import org.rapturemain.tcpmessengerserver.user.NameVerifierImpl;
+import org.rapturemain.tcpmessengerserver.user.User;
+import org.rapturemain.tcpmessengerserver.user.UserInfoVerifierImpl;
+
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of registry lookups by socket. The message path reads the user from its {@code ConnectionSession} instead.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SocketRegistrationBenchmark {
+
+    @Param({"100", "10000"})
+    private int registeredSockets;
+
+    private MessageBroker messageBroker;
+    private SocketRegistrationServiceImpl socketRegistrationService;
+    private Socket[] sockets;
+    private int next = 0;
+
+    @Setup
+    public void setUp() {
+        UserInfoVerifierImpl userInfoVerifier = new UserInfoVerifierImpl(new NameVerifierImpl());
+        userInfoVerifier.start();
+        messageBroker = BenchmarkBrokers.create("queue");
+        socketRegistrationService = new SocketRegistrationServiceImpl(userInfoVerifier, messageBroker);
+
+        sockets = new Socket[registeredSockets];
+        for (int i = 0; i < registeredSockets; i++) {
+            sockets[i] = new Socket();
+            socketRegistrationService.register(sockets[i], User.builder()
+                    .name(new Name("user-" + i))
+                    .build(), messageBroker.registerSubscriber());
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        BenchmarkBrokers.stop(messageBroker);
+    }
+
+    @Benchmark
+    public boolean isRegistered() {
+        return socketRegistrationService.isRegistered(nextSocket());
+    }
+
+    @Benchmark
+    public User getUserForSocket() {
+        return socketRegistrationService.getUserForSocket(nextSocket());
+    }
+
+    private Socket nextSocket() {
+        if (++next == sockets.length) {
+            next = 0;
+        }
+        return sockets[next];
+    }
+}
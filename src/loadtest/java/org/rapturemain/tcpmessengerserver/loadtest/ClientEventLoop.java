@@ -0,0 +1,298 @@
+package org.rapturemain.tcpmessengerserver.loadtest;
+
+import org.rapturemain.tcpmessengermessageframework.message.base.StringEntry;
+import org.rapturemain.tcpmessengermessageframework.message.base.TimestampEntry;
+import org.rapturemain.tcpmessengermessageframework.message.messages.Message;
+import org.rapturemain.tcpmessengermessageframework.message.messages.chat.ChatMessage;
+import org.rapturemain.tcpmessengermessageframework.message.messages.chat.SimpleChatMessage;
+import org.rapturemain.tcpmessengermessageframework.message.messages.system.ConnectionResetMessage;
+import org.rapturemain.tcpmessengermessageframework.message.messages.system.PingRequest;
+import org.rapturemain.tcpmessengermessageframework.message.messages.system.RegistrationRequestMessage;
+import org.rapturemain.tcpmessengermessageframework.message.messages.system.RegistrationResponseMessage;
+import org.rapturemain.tcpmessengerserver.messagebroker.ByteBufferMessageEncoderDecoder;
+import org.rapturemain.tcpmessengerserver.utils.ByteBufferOutputStream;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Drives a share of the simulated clients on one selector, the client side counterpart of the server's reactor.
+ */
+final class ClientEventLoop implements Runnable {
+
+    private static final long IDLE_SELECT_MILLIS = 100;
+    private static final int MAX_GATHER_BUFFERS = 64;
+    // Keeps listen-only clients under the server's 30 second read timeout
+    private static final long KEEP_ALIVE_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+    private final Selector selector;
+    private final ByteBufferMessageEncoderDecoder messageEncoderDecoder;
+    private final LoadStatistics statistics;
+    private final Map<String, Integer> senderIndexes;
+    private final AtomicLongArray[] senderSendTimes;
+    private final long sendIntervalNanos;
+
+    private final ConcurrentLinkedQueue<SimulatedClient> pendingClients = new ConcurrentLinkedQueue<>();
+    private final List<SimulatedClient> senders = new ArrayList<>();
+    private final ByteBufferOutputStream encodeBuffer = new ByteBufferOutputStream(512);
+    private final ByteBuffer[] gatherBuffers = new ByteBuffer[MAX_GATHER_BUFFERS];
+
+    private long lastKeepAliveNanos = System.nanoTime();
+
+    private volatile long trafficStartNanos = 0;
+    private volatile boolean stopped = false;
+
+    ClientEventLoop(ByteBufferMessageEncoderDecoder messageEncoderDecoder, LoadStatistics statistics,
+                    Map<String, Integer> senderIndexes, AtomicLongArray[] senderSendTimes, long sendIntervalNanos) throws IOException {
+        this.selector = Selector.open();
+        this.messageEncoderDecoder = messageEncoderDecoder;
+        this.statistics = statistics;
+        this.senderIndexes = senderIndexes;
+        this.senderSendTimes = senderSendTimes;
+        this.sendIntervalNanos = sendIntervalNanos;
+    }
+
+    void register(SimulatedClient client) {
+        pendingClients.add(client);
+        selector.wakeup();
+    }
+
+    void startTraffic(long startNanos) {
+        trafficStartNanos = startNanos;
+        selector.wakeup();
+    }
+
+    void stop() {
+        stopped = true;
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (!stopped) {
+                sendKeepAlives();
+                long timeoutMillis = sendDueMessages();
+                selector.select(timeoutMillis);
+                registerPendingClients();
+                handleSelectedKeys();
+            }
+        } catch (IOException e) {
+            System.err.println("Client event loop failed: " + e);
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                close((SimulatedClient) key.attachment());
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                // do nothing
+            }
+        }
+    }
+
+    private void registerPendingClients() {
+        SimulatedClient client;
+        while ((client = pendingClients.poll()) != null) {
+            try {
+                client.getChannel().register(selector, SelectionKey.OP_READ, client);
+                write(client, RegistrationRequestMessage.builder()
+                        .name(new StringEntry(client.getName()))
+                        .build());
+                if (client.isSender()) {
+                    senders.add(client);
+                }
+            } catch (IOException e) {
+                close(client);
+            }
+        }
+    }
+
+    private void handleSelectedKeys() {
+        Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+        while (keys.hasNext()) {
+            SelectionKey key = keys.next();
+            keys.remove();
+            SimulatedClient client = (SimulatedClient) key.attachment();
+            try {
+                if (key.isValid() && key.isReadable()) {
+                    handleInput(client);
+                }
+                if (key.isValid() && key.isWritable()) {
+                    flush(client);
+                }
+            } catch (IOException e) {
+                close(client);
+            }
+        }
+    }
+
+    private void sendKeepAlives() {
+        long now = System.nanoTime();
+        if (now - lastKeepAliveNanos < KEEP_ALIVE_NANOS) {
+            return;
+        }
+        lastKeepAliveNanos = now;
+
+        List<SimulatedClient> clients = new ArrayList<>();
+        for (SelectionKey key : selector.keys()) {
+            clients.add((SimulatedClient) key.attachment());
+        }
+        for (SimulatedClient client : clients) {
+            try {
+                write(client, new PingRequest());
+            } catch (IOException e) {
+                close(client);
+            }
+        }
+    }
+
+    /**
+     * @return milliseconds until the next message is due
+     */
+    private long sendDueMessages() throws IOException {
+        long start = trafficStartNanos;
+        if (start == 0 || senders.isEmpty()) {
+            return IDLE_SELECT_MILLIS;
+        }
+
+        long now = System.nanoTime();
+        long nextSend = now + TimeUnit.MILLISECONDS.toNanos(IDLE_SELECT_MILLIS);
+        for (SimulatedClient sender : senders) {
+            AtomicLongArray sendTimes = Objects.requireNonNull(sender.getSendTimes());
+            // Senders are spread over the send interval instead of all firing at once
+            long offset = sender.getSenderIndex() * sendIntervalNanos / senderSendTimes.length;
+            while (sender.getSent() < sendTimes.length()) {
+                long intended = start + offset + sender.getSent() * sendIntervalNanos;
+                if (intended > now) {
+                    nextSend = Math.min(nextSend, intended);
+                    break;
+                }
+                // Latency counts from the intended send time, so a stalled generator or server can not hide its delay
+                sendTimes.set(sender.getSent(), intended);
+                sender.setSent(sender.getSent() + 1);
+                write(sender, chatMessage());
+                statistics.getSent().increment();
+            }
+        }
+        return Math.max(1, TimeUnit.NANOSECONDS.toMillis(nextSend - now));
+    }
+
+    private Message<?> chatMessage() {
+        SimpleChatMessage message = new SimpleChatMessage();
+        message.setTimestamp(new TimestampEntry(Instant.now().toEpochMilli()));
+        return message;
+    }
+
+    private void handleInput(SimulatedClient client) throws IOException {
+        if (client.getChannel().read(client.getReadBuffer()) < 0) {
+            throw new EOFException();
+        }
+        long now = System.nanoTime();
+
+        ByteBuffer buffer = client.getReadBuffer();
+        buffer.flip();
+        try {
+            Message<?> message;
+            while ((message = messageEncoderDecoder.decode(buffer)) != null) {
+                handleMessage(client, message, now);
+            }
+        } finally {
+            client.compactReadBuffer();
+        }
+    }
+
+    private void handleMessage(SimulatedClient client, Message<?> message, long now) throws IOException {
+        if (message instanceof ChatMessage) {
+            statistics.getReceived().increment();
+            recordLatency(client, (ChatMessage<?>) message, now);
+        } else if (message instanceof RegistrationResponseMessage) {
+            statistics.getRegistered().increment();
+        } else if (message instanceof ConnectionResetMessage) {
+            throw new EOFException("Server reset the connection");
+        }
+    }
+
+    private void recordLatency(SimulatedClient client, ChatMessage<?> message, long now) {
+        StringEntry senderName = message.getSenderName();
+        Integer senderIndex = senderName == null ? null : senderIndexes.get(senderName.getString());
+        if (senderIndex == null) {
+            return;
+        }
+        int sequence = client.getReceivedFromSenders()[senderIndex]++;
+        AtomicLongArray sendTimes = senderSendTimes[senderIndex];
+        if (sequence >= sendTimes.length()) {
+            return;
+        }
+        long sentAt = sendTimes.get(sequence);
+        if (sentAt == 0) {
+            return;
+        }
+        long micros = TimeUnit.NANOSECONDS.toMicros(Math.max(0, now - sentAt));
+        statistics.getLatency().recordValue(Math.min(micros, LoadStatistics.MAX_LATENCY_MICROS));
+    }
+
+    private void write(SimulatedClient client, Message<?> message) throws IOException {
+        encodeBuffer.getBuffer().clear();
+        messageEncoderDecoder.encode(message, encodeBuffer);
+        ByteBuffer encoded = encodeBuffer.getBuffer();
+        client.getPendingWrites().add(ByteBuffer.wrap(Arrays.copyOf(encoded.array(), encoded.position())));
+        flush(client);
+    }
+
+    private void flush(SimulatedClient client) throws IOException {
+        ArrayDeque<ByteBuffer> pendingWrites = client.getPendingWrites();
+        while (!pendingWrites.isEmpty()) {
+            int count = 0;
+            for (ByteBuffer buffer : pendingWrites) {
+                if (count == gatherBuffers.length) {
+                    break;
+                }
+                gatherBuffers[count++] = buffer;
+            }
+            client.getChannel().write(gatherBuffers, 0, count);
+            boolean socketFull = gatherBuffers[count - 1].hasRemaining();
+            Arrays.fill(gatherBuffers, 0, count, null);
+
+            while (!pendingWrites.isEmpty() && !pendingWrites.peekFirst().hasRemaining()) {
+                pendingWrites.pollFirst();
+            }
+            if (socketFull) {
+                break;
+            }
+        }
+
+        SelectionKey key = client.getChannel().keyFor(selector);
+        if (key != null && key.isValid()) {
+            key.interestOps(pendingWrites.isEmpty() ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }
+    }
+
+    private void close(SimulatedClient client) {
+        if (!client.getChannel().isOpen()) {
+            return;
+        }
+        SelectionKey key = client.getChannel().keyFor(selector);
+        if (key != null) {
+            key.cancel();
+        }
+        senders.remove(client);
+        try {
+            client.getChannel().close();
+        } catch (IOException e) {
+            // do nothing
+        }
+        statistics.getConnected().decrement();
+        if (!stopped) {
+            statistics.getDisconnected().increment();
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package org.rapturemain.tcpmessengerserver.loadtest;
+
+import org.rapturemain.tcpmessengermessageframework.message.base.StringEntry;
+import org.rapturemain.tcpmessengermessageframework.message.base.TimestampEntry;
+import org.rapturemain.tcpmessengermessageframework.message.messages.Message;
+import org.rapturemain.tcpmessengermessageframework.message.messages.chat.ChatMessage;
+import org.rapturemain.tcpmessengermessageframework.message.messages.chat.SimpleChatMessage;
+import org.rapturemain.tcpmessengermessageframework.message.messages.system.RegistrationRequestMessage;
+import org.rapturemain.tcpmessengermessageframework.message.messages.system.RegistrationResponseMessage;
+import org.rapturemain.tcpmessengerserver.messagebroker.ByteBufferMessageEncoderDecoder;
+import org.rapturemain.tcpmessengerserver.utils.ByteBufferOutputStream;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Blocking client of the cluster harness, counting the chat messages it receives per sender.
+ */
+final class ClusterClient implements AutoCloseable {
+
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    private final String name;
+    private final Socket socket;
+    private final OutputStream out;
+    private final ByteBufferMessageEncoderDecoder messageEncoderDecoder;
+    private final ByteBufferOutputStream encodeBuffer = new ByteBufferOutputStream(512);
+    private final CompletableFuture<Boolean> registration = new CompletableFuture<>();
+    private final ConcurrentHashMap<String, AtomicInteger> receivedBySender = new ConcurrentHashMap<>();
+    private final Thread reader;
+
+    ClusterClient(String name, int port, ByteBufferMessageEncoderDecoder messageEncoderDecoder) throws IOException {
+        this.name = name;
+        this.socket = new Socket("localhost", port);
+        this.socket.setTcpNoDelay(true);
+        this.out = socket.getOutputStream();
+        this.messageEncoderDecoder = messageEncoderDecoder;
+        this.reader = new Thread(this::read, "cluster-client-" + name);
+        this.reader.setDaemon(true);
+        this.reader.start();
+    }
+
+    /**
+     * @return false if the server refused the name
+     */
+    boolean register(long timeoutMillis) throws IOException, InterruptedException, ExecutionException, TimeoutException {
+        write(RegistrationRequestMessage.builder()
+                .name(new StringEntry(name))
+                .build());
+        return registration.get(timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    void sendChat() throws IOException {
+        SimpleChatMessage message = new SimpleChatMessage();
+        message.setTimestamp(new TimestampEntry(System.currentTimeMillis()));
+        write(message);
+    }
+
+    int getReceivedFrom(String sender) {
+        AtomicInteger received = receivedBySender.get(sender);
+        return received == null ? 0 : received.get();
+    }
+
+    Map<String, AtomicInteger> getReceivedBySender() {
+        return receivedBySender;
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+
+    private synchronized void write(Message<?> message) throws IOException {
+        encodeBuffer.getBuffer().clear();
+        messageEncoderDecoder.encode(message, encodeBuffer);
+        out.write(encodeBuffer.getBuffer().array(), 0, encodeBuffer.getBuffer().position());
+        out.flush();
+    }
+
+    private void read() {
+        ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        try {
+            InputStream in = socket.getInputStream();
+            int read;
+            while ((read = in.read(buffer.array(), buffer.position(), buffer.remaining())) >= 0) {
+                buffer.position(buffer.position() + read);
+                buffer.flip();
+                Message<?> message;
+                while ((message = messageEncoderDecoder.decode(buffer)) != null) {
+                    handleMessage(message);
+                }
+                buffer.compact();
+            }
+        } catch (IOException e) {
+            // Closed by the harness
+        } finally {
+            registration.complete(false);
+        }
+    }
+
+    private void handleMessage(Message<?> message) {
+        if (message instanceof RegistrationResponseMessage) {
+            // Only a successful response carries the registered name
+            registration.complete(((RegistrationResponseMessage) message).getName() != null);
+        } else if (message instanceof ChatMessage) {
+            StringEntry sender = ((ChatMessage<?>) message).getSenderName();
+            if (sender != null) {
+                receivedBySender.computeIfAbsent(sender.getString(), s -> new AtomicInteger()).incrementAndGet();
+            }
+        }
+    }
+}
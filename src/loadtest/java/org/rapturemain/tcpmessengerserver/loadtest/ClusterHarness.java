@@ -0,0 +1,225 @@
+package org.rapturemain.tcpmessengerserver.loadtest;
+
+import org.rapturemain.tcpmessengerserver.messagebroker.MessageEncoderDecoderImpl;
+import org.rapturemain.tcpmessengerserver.metrics.MessengerMetricsImpl;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Starts a cluster of three server processes on localhost and checks it from the outside: names are unique
+ * across nodes and are free again once released, and every chat message reaches the users of every node exactly once, its sender included.
+ */
+public class ClusterHarness {
+
+    private static final int NODES = 3;
+    private static final String SERVER_MAIN_CLASS = "org.rapturemain.tcpmessengerserver.TcpMessengerServerApplication";
+    private static final long STARTUP_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(60);
+    private static final long RESPONSE_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(5);
+    private static final long DELIVERY_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(30);
+
+    private final Map<String, String> options;
+    private final int port;
+    private final int clusterPort;
+    private final int messages;
+    private final Path logDirectory = Paths.get("target", "cluster-harness");
+    private final List<Process> nodes = new ArrayList<>();
+    private final MessageEncoderDecoderImpl messageEncoderDecoder = new MessageEncoderDecoderImpl(new MessengerMetricsImpl());
+    private int failures = 0;
+
+    public ClusterHarness(Map<String, String> options) {
+        this.options = options;
+        this.port = Integer.parseInt(options.getOrDefault("port", "25565"));
+        this.clusterPort = Integer.parseInt(options.getOrDefault("cluster-port", "25575"));
+        this.messages = Integer.parseInt(options.getOrDefault("messages", "1000"));
+        messageEncoderDecoder.start();
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            if (!arg.startsWith("--") || !arg.contains("=")) {
+                throw new IllegalArgumentException("Expected --option=value, got [" + arg + "]");
+            }
+            int separator = arg.indexOf('=');
+            options.put(arg.substring(2, separator), arg.substring(separator + 1));
+        }
+        ClusterHarness harness = new ClusterHarness(options);
+        int failures;
+        try {
+            failures = harness.run();
+        } finally {
+            harness.stopNodes();
+        }
+        System.out.println(failures == 0 ? "All cluster checks passed" : failures + " cluster checks failed");
+        System.exit(failures == 0 ? 0 : 1);
+    }
+
+    public int run() throws Exception {
+        startNodes();
+        awaitNodes();
+
+        List<ClusterClient> clients = new ArrayList<>();
+        for (int i = 0; i < NODES; i++) {
+            ClusterClient client = new ClusterClient("user-" + i, port + i, messageEncoderDecoder);
+            clients.add(client);
+            check("user-" + i + " registers on node " + (i + 1), client.register(RESPONSE_TIMEOUT_MILLIS));
+        }
+
+        // Every node is the owner of some of these, so both the local and the remote claim path are covered
+        for (int i = 0; i < NODES; i++) {
+            int other = (i + 1) % NODES;
+            try (ClusterClient duplicate = new ClusterClient("user-" + i, port + other, messageEncoderDecoder)) {
+                check("user-" + i + " is refused on node " + (other + 1), !duplicate.register(RESPONSE_TIMEOUT_MILLIS));
+            }
+        }
+
+        long start = System.nanoTime();
+        for (int m = 0; m < messages; m++) {
+            for (ClusterClient client : clients) {
+                client.sendChat();
+            }
+        }
+        boolean delivered = awaitDelivery(clients);
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        check(String.format("%d messages per user reach every user exactly once (%d ms)", messages, elapsedMillis), delivered);
+
+        clients.get(0).close();
+        check("user-0 can register on node 2 after disconnecting", awaitRegistration("user-0", port + 1));
+
+        for (ClusterClient client : clients) {
+            client.close();
+        }
+        return failures;
+    }
+
+    private void startNodes() throws IOException {
+        Files.createDirectories(logDirectory);
+        String javaBinary = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+        for (int i = 0; i < NODES; i++) {
+            StringBuilder peers = new StringBuilder();
+            for (int peer = 0; peer < NODES; peer++) {
+                if (peer != i) {
+                    peers.append(peers.length() == 0 ? "" : ",").append(peer + 1).append("@localhost:").append(clusterPort + peer);
+                }
+            }
+            List<String> command = new ArrayList<>(List.of(javaBinary, "-cp", System.getProperty("java.class.path"), SERVER_MAIN_CLASS,
+                    "--messenger.port=" + (port + i),
+                    "--messenger.transport=" + options.getOrDefault("transport", "blocking"),
+                    "--messenger.broker=" + options.getOrDefault("broker", "queue"),
+                    "--messenger.cluster.enabled=true",
+                    "--messenger.cluster.node-id=" + (i + 1),
+                    "--messenger.cluster.port=" + (clusterPort + i),
+                    "--messenger.cluster.peers=" + peers));
+            Path log = logDirectory.resolve("node-" + (i + 1) + ".log");
+            nodes.add(new ProcessBuilder(command)
+                    .redirectErrorStream(true)
+                    .redirectOutput(log.toFile())
+                    .start());
+            System.out.printf("Started node %d on port %d, cluster port %d, log %s%n", i + 1, port + i, clusterPort + i, log);
+        }
+    }
+
+    private void awaitNodes() throws IOException, InterruptedException {
+        long deadline = System.currentTimeMillis() + STARTUP_TIMEOUT_MILLIS;
+        for (int i = 0; i < NODES; i++) {
+            Path log = logDirectory.resolve("node-" + (i + 1) + ".log");
+            // Up once it accepts clients and reached every peer
+            while (!acceptsConnections(port + i) || countLines(log, "Connected to cluster node") < NODES - 1) {
+                if (!nodes.get(i).isAlive()) {
+                    throw new IllegalStateException("Node " + (i + 1) + " exited, see " + log);
+                }
+                if (System.currentTimeMillis() > deadline) {
+                    throw new IllegalStateException("Node " + (i + 1) + " did not start in time, see " + log);
+                }
+                TimeUnit.MILLISECONDS.sleep(200);
+            }
+        }
+        System.out.println("All nodes are up and connected");
+    }
+
+    private boolean awaitDelivery(List<ClusterClient> clients) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + DELIVERY_TIMEOUT_MILLIS;
+        while (true) {
+            boolean complete = true;
+            for (int i = 0; i < NODES; i++) {
+                for (int sender = 0; sender < NODES; sender++) {
+                    int received = clients.get(i).getReceivedFrom("user-" + sender);
+                    if (received > messages) {
+                        System.out.printf("user-%d received %d messages from user-%d%n", i, received, sender);
+                        return false;
+                    }
+                    complete &= received == messages;
+                }
+            }
+            if (complete) {
+                return true;
+            }
+            if (System.currentTimeMillis() > deadline) {
+                for (int i = 0; i < NODES; i++) {
+                    System.out.printf("user-%d received %s%n", i, clients.get(i).getReceivedBySender());
+                }
+                return false;
+            }
+            TimeUnit.MILLISECONDS.sleep(10);
+        }
+    }
+
+    private boolean awaitRegistration(String name, int port) throws Exception {
+        // The release reaches the owner shortly after the disconnect
+        long deadline = System.currentTimeMillis() + RESPONSE_TIMEOUT_MILLIS;
+        do {
+            try (ClusterClient client = new ClusterClient(name, port, messageEncoderDecoder)) {
+                if (client.register(RESPONSE_TIMEOUT_MILLIS)) {
+                    return true;
+                }
+            }
+            TimeUnit.MILLISECONDS.sleep(100);
+        } while (System.currentTimeMillis() < deadline);
+        return false;
+    }
+
+    private void check(String description, boolean passed) {
+        System.out.printf("%s %s%n", passed ? "PASS" : "FAIL", description);
+        if (!passed) {
+            failures++;
+        }
+    }
+
+    private void stopNodes() throws InterruptedException {
+        for (Process node : nodes) {
+            node.destroy();
+        }
+        for (Process node : nodes) {
+            if (!node.waitFor(10, TimeUnit.SECONDS)) {
+                node.destroyForcibly();
+            }
+        }
+    }
+
+    private static boolean acceptsConnections(int port) {
+        try {
+            new Socket("localhost", port).close();
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static long countLines(Path file, String text) throws IOException {
+        if (!Files.exists(file)) {
+            return 0;
+        }
+        try (var lines = Files.lines(file)) {
+            return lines.filter(line -> line.contains(text)).count();
+        }
+    }
+}
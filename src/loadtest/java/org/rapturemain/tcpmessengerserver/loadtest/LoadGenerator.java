@@ -0,0 +1,171 @@
+package org.rapturemain.tcpmessengerserver.loadtest;
+
+import org.HdrHistogram.Histogram;
+import org.rapturemain.tcpmessengerserver.messagebroker.MessageEncoderDecoderImpl;
+import org.rapturemain.tcpmessengerserver.metrics.MessengerMetricsImpl;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.SocketChannel;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Opens many simulated clients against a running server, registers them and makes a few of them chat
+ * at a fixed total rate. Every broadcast is timed from its intended send time to its receipt by each recipient.
+ */
+public class LoadGenerator {
+
+    private static final long REGISTRATION_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(30);
+
+    private final LoadGeneratorOptions options;
+    private final LoadStatistics statistics = new LoadStatistics();
+    private final ClientEventLoop[] eventLoops;
+    private final ConcurrentHashMap<String, Integer> senderIndexes = new ConcurrentHashMap<>();
+    private final AtomicLongArray[] senderSendTimes;
+
+    public LoadGenerator(LoadGeneratorOptions options) throws IOException {
+        this.options = options;
+
+        double ratePerSender = options.getRate() / options.getSenders();
+        long sendIntervalNanos = (long) (TimeUnit.SECONDS.toNanos(1) / ratePerSender);
+        int messagesPerSender = (int) Math.ceil(ratePerSender * options.getDurationSeconds()) + 1;
+        this.senderSendTimes = new AtomicLongArray[options.getSenders()];
+        for (int i = 0; i < senderSendTimes.length; i++) {
+            senderSendTimes[i] = new AtomicLongArray(messagesPerSender);
+        }
+
+        MessageEncoderDecoderImpl messageEncoderDecoder = new MessageEncoderDecoderImpl(new MessengerMetricsImpl());
+        messageEncoderDecoder.start();
+        this.eventLoops = new ClientEventLoop[options.getThreads()];
+        for (int i = 0; i < eventLoops.length; i++) {
+            eventLoops[i] = new ClientEventLoop(messageEncoderDecoder, statistics, senderIndexes, senderSendTimes, sendIntervalNanos);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        new LoadGenerator(LoadGeneratorOptions.parse(args)).run();
+    }
+
+    public void run() throws InterruptedException, IOException {
+        for (int i = 0; i < eventLoops.length; i++) {
+            new Thread(eventLoops[i], "load-loop-" + i).start();
+        }
+        try {
+            connectClients();
+            awaitRegistration();
+            ServerMetricsReader metricsReader = options.getMetricsPort() > 0 ? new ServerMetricsReader(options.getHost(), options.getMetricsPort()) : null;
+            Map<String, Long> before = metricsReader != null ? metricsReader.readSettled() : null;
+            runTraffic();
+            if (metricsReader != null) {
+                printSocketWrites(before, metricsReader.readSettled());
+            }
+        } finally {
+            for (ClientEventLoop eventLoop : eventLoops) {
+                eventLoop.stop();
+            }
+        }
+    }
+
+    private void connectClients() throws InterruptedException {
+        InetSocketAddress address = new InetSocketAddress(options.getHost(), options.getPort());
+        long connectIntervalNanos = TimeUnit.SECONDS.toNanos(1) / options.getConnectRate();
+        long start = System.nanoTime();
+        int failed = 0;
+
+        for (int i = 0; i < options.getClients(); i++) {
+            long due = start + i * connectIntervalNanos;
+            long wait = due - System.nanoTime();
+            if (wait > 0) {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            }
+
+            String name = "load-" + i;
+            boolean sender = i < options.getSenders();
+            try {
+                SocketChannel channel = SocketChannel.open(address);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                channel.configureBlocking(false);
+                if (sender) {
+                    senderIndexes.put(name, i);
+                }
+                SimulatedClient client = new SimulatedClient(name, channel, sender ? i : -1, sender ? senderSendTimes[i] : null, options.getSenders());
+                statistics.getConnected().increment();
+                eventLoops[i % eventLoops.length].register(client);
+            } catch (IOException e) {
+                failed++;
+            }
+        }
+        System.out.printf("Connected %d clients in %d ms, %d failed%n",
+                statistics.getConnected().sum(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), failed);
+    }
+
+    private void awaitRegistration() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + REGISTRATION_TIMEOUT_MILLIS;
+        while (statistics.getRegistered().sum() < statistics.getConnected().sum() && System.currentTimeMillis() < deadline) {
+            TimeUnit.MILLISECONDS.sleep(100);
+        }
+        System.out.printf("Registered %d of %d clients%n", statistics.getRegistered().sum(), statistics.getConnected().sum());
+    }
+
+    private void runTraffic() throws InterruptedException {
+        ServerProcessSampler serverSampler = options.getServerPid() > 0 ? new ServerProcessSampler(options.getServerPid()) : null;
+        Histogram total = new Histogram(LoadStatistics.MAX_LATENCY_MICROS, 3);
+        Histogram interval = null;
+
+        long start = System.nanoTime();
+        for (ClientEventLoop eventLoop : eventLoops) {
+            eventLoop.startTraffic(start);
+        }
+
+        long lastSent = 0;
+        long lastReceived = 0;
+        for (int second = 1; second <= options.getDurationSeconds(); second++) {
+            long wait = start + TimeUnit.SECONDS.toNanos(second) - System.nanoTime();
+            if (wait > 0) {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            }
+
+            interval = statistics.getLatency().getIntervalHistogram(interval);
+            total.add(interval);
+            long sent = statistics.getSent().sum();
+            long received = statistics.getReceived().sum();
+
+            StringBuilder line = new StringBuilder(String.format(
+                    "%4ds connected %6d sent %7d/s received %9d/s latency ms p50 %8.2f p99 %8.2f p999 %8.2f max %8.2f",
+                    second, statistics.getConnected().sum(), sent - lastSent, received - lastReceived,
+                    millis(interval.getValueAtPercentile(50)), millis(interval.getValueAtPercentile(99)),
+                    millis(interval.getValueAtPercentile(99.9)), millis(interval.getMaxValue())));
+            if (serverSampler != null) {
+                line.append(String.format(" server cpu %6.1f%% rss %6d MB",
+                        serverSampler.sampleCpuPercent(), serverSampler.sampleResidentBytes() / (1024 * 1024)));
+            }
+            System.out.println(line);
+
+            lastSent = sent;
+            lastReceived = received;
+        }
+
+        System.out.printf("Sent %d, received %d, %d clients disconnected by the server%n",
+                statistics.getSent().sum(), statistics.getReceived().sum(), statistics.getDisconnected().sum());
+        System.out.printf("Latency ms p50 %.2f p99 %.2f p999 %.2f max %.2f%n",
+                millis(total.getValueAtPercentile(50)), millis(total.getValueAtPercentile(99)),
+                millis(total.getValueAtPercentile(99.9)), millis(total.getMaxValue()));
+        total.outputPercentileDistribution(System.out, 1000.0);
+    }
+
+    // Write and writev calls on client sockets, the syscalls the server spent on delivering the run's messages
+    private static void printSocketWrites(Map<String, Long> before, Map<String, Long> after) {
+        long writes = after.get(ServerMetricsReader.SOCKET_WRITES) - before.get(ServerMetricsReader.SOCKET_WRITES);
+        long delivered = after.get(ServerMetricsReader.MESSAGES_OUT) - before.get(ServerMetricsReader.MESSAGES_OUT);
+        System.out.printf("Server socket writes %d for %d delivered messages, %.3f per message%n",
+                writes, delivered, delivered == 0 ? 0.0 : writes / (double) delivered);
+    }
+
+    private static double millis(long micros) {
+        return micros / 1000.0;
+    }
+}
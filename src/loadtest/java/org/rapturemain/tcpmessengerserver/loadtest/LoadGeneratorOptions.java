@@ -0,0 +1,52 @@
+package org.rapturemain.tcpmessengerserver.loadtest;
+
+import lombok.Builder;
+import lombok.Value;
+
+import java.util.HashMap;
+import java.util.Map;
+
+@Value
+@Builder
+public class LoadGeneratorOptions {
+
+    String host;
+    int port;
+    int clients;
+    int senders;
+    double rate;
+    int durationSeconds;
+    int connectRate;
+    int threads;
+    long serverPid;
+    int metricsPort;
+
+    public static LoadGeneratorOptions parse(String[] args) {
+        Map<String, String> values = new HashMap<>();
+        for (String arg : args) {
+            if (!arg.startsWith("--") || !arg.contains("=")) {
+                throw new IllegalArgumentException("Expected --option=value, got [" + arg + "]");
+            }
+            int separator = arg.indexOf('=');
+            values.put(arg.substring(2, separator), arg.substring(separator + 1));
+        }
+
+        LoadGeneratorOptions options = LoadGeneratorOptions.builder()
+                .host(values.getOrDefault("host", "localhost"))
+                .port(Integer.parseInt(values.getOrDefault("port", "25565")))
+                .clients(Integer.parseInt(values.getOrDefault("clients", "1000")))
+                .senders(Integer.parseInt(values.getOrDefault("senders", "10")))
+                .rate(Double.parseDouble(values.getOrDefault("rate", "100")))
+                .durationSeconds(Integer.parseInt(values.getOrDefault("duration", "60")))
+                .connectRate(Integer.parseInt(values.getOrDefault("connect-rate", "500")))
+                .threads(Integer.parseInt(values.getOrDefault("threads", String.valueOf(Runtime.getRuntime().availableProcessors()))))
+                .serverPid(Long.parseLong(values.getOrDefault("server-pid", "0")))
+                .metricsPort(Integer.parseInt(values.getOrDefault("metrics-port", "0")))
+                .build();
+
+        if (options.senders <= 0 || options.senders > options.clients) {
+            throw new IllegalArgumentException("Senders must be between 1 and the client count");
+        }
+        return options;
+    }
+}
@@ -0,0 +1,22 @@
+package org.rapturemain.tcpmessengerserver.loadtest;
+
+import lombok.Getter;
+import org.HdrHistogram.Recorder;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+@Getter
+final class LoadStatistics {
+
+    private final LongAdder connected = new LongAdder();
+    private final LongAdder registered = new LongAdder();
+    private final LongAdder disconnected = new LongAdder();
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder received = new LongAdder();
+
+    static final long MAX_LATENCY_MICROS = TimeUnit.MINUTES.toMicros(1);
+
+    // Send to receive latency of broadcasts, in microseconds
+    private final Recorder latency = new Recorder(MAX_LATENCY_MICROS, 3);
+}
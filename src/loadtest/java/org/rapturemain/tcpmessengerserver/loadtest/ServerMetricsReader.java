@@ -0,0 +1,60 @@
+package org.rapturemain.tcpmessengerserver.loadtest;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Totals from the server's plain-text {@code /metrics} endpoint, for a server started with {@code messenger.metrics.port}.
+ */
+final class ServerMetricsReader {
+
+    static final String MESSAGES_OUT = "messenger_messages_out_total";
+    static final String SOCKET_WRITES = "messenger_socket_writes_total";
+
+    private static final int SETTLE_ATTEMPTS = 10;
+
+    private final URL url;
+
+    ServerMetricsReader(String host, int port) throws IOException {
+        this.url = new URL("http", host, port, "/metrics");
+    }
+
+    Map<String, Long> read() throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        try (InputStream input = connection.getInputStream()) {
+            Map<String, Long> totals = new HashMap<>();
+            for (String line : new String(input.readAllBytes(), StandardCharsets.UTF_8).split("\n")) {
+                int separator = line.lastIndexOf(' ');
+                String name = line.substring(0, Math.max(0, separator));
+                if (name.endsWith("_total")) {
+                    totals.put(name, Long.parseLong(line.substring(separator + 1)));
+                }
+            }
+            return totals;
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * The server samples its metrics once a second, waits until a sample no longer shows messages going out.
+     */
+    Map<String, Long> readSettled() throws IOException, InterruptedException {
+        Map<String, Long> previous = read();
+        for (int i = 0; i < SETTLE_ATTEMPTS; i++) {
+            TimeUnit.MILLISECONDS.sleep(1100);
+            Map<String, Long> current = read();
+            if (current.get(MESSAGES_OUT).equals(previous.get(MESSAGES_OUT))) {
+                return current;
+            }
+            previous = current;
+        }
+        return previous;
+    }
+}
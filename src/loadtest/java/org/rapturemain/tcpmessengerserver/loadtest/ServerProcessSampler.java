@@ -0,0 +1,61 @@
+package org.rapturemain.tcpmessengerserver.loadtest;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+
+/**
+ * CPU and resident memory of the server process, for a server running in its own JVM.
+ */
+final class ServerProcessSampler {
+
+    private final ProcessHandle process;
+    private final Path status;
+
+    private Duration lastCpu;
+    private long lastSampleNanos;
+
+    ServerProcessSampler(long pid) {
+        this.process = ProcessHandle.of(pid)
+                .orElseThrow(() -> new IllegalArgumentException("No server process with pid " + pid));
+        this.status = Path.of("/proc", String.valueOf(pid), "status");
+        this.lastCpu = cpuTime();
+        this.lastSampleNanos = System.nanoTime();
+    }
+
+    /**
+     * @return CPU used since the previous sample, in percent of one core
+     */
+    double sampleCpuPercent() {
+        Duration cpu = cpuTime();
+        long now = System.nanoTime();
+        double percent = 100.0 * cpu.minus(lastCpu).toNanos() / Math.max(1, now - lastSampleNanos);
+        lastCpu = cpu;
+        lastSampleNanos = now;
+        return percent;
+    }
+
+    /**
+     * @return resident set size in bytes, -1 where /proc is not available
+     */
+    long sampleResidentBytes() {
+        try {
+            List<String> lines = Files.readAllLines(status);
+            for (String line : lines) {
+                if (line.startsWith("VmRSS:")) {
+                    String[] parts = line.trim().split("\\s+");
+                    return Long.parseLong(parts[1]) * 1024;
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            // fall through
+        }
+        return -1;
+    }
+
+    private Duration cpuTime() {
+        return process.info().totalCpuDuration().orElse(Duration.ZERO);
+    }
+}
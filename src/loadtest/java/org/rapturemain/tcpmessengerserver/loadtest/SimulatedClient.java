@@ -0,0 +1,62 @@
+package org.rapturemain.tcpmessengerserver.loadtest;
+
+import lombok.Getter;
+import lombok.Setter;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+@Getter
+final class SimulatedClient {
+
+    private static final int INITIAL_BUFFER_SIZE = 4096;
+    private static final int MAX_BUFFER_SIZE = 1 << 20;
+
+    private final String name;
+    private final SocketChannel channel;
+    private final int senderIndex;
+    private final ArrayDeque<ByteBuffer> pendingWrites = new ArrayDeque<>();
+
+    // Intended send time of every message of this client, indexed by its sequence, null for listen-only clients
+    @Nullable
+    private final AtomicLongArray sendTimes;
+
+    // Messages received so far from every sender, by sender index. Senders deliver in order, so this is
+    // the sequence of the next message expected from each of them
+    private final int[] receivedFromSenders;
+
+    private ByteBuffer readBuffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+
+    @Setter
+    private int sent = 0;
+
+    SimulatedClient(String name, SocketChannel channel, int senderIndex, @Nullable AtomicLongArray sendTimes, int senderCount) {
+        this.name = name;
+        this.channel = channel;
+        this.senderIndex = senderIndex;
+        this.sendTimes = sendTimes;
+        this.receivedFromSenders = new int[senderCount];
+    }
+
+    boolean isSender() {
+        return sendTimes != null;
+    }
+
+    void compactReadBuffer() throws IOException {
+        readBuffer.compact();
+        if (readBuffer.hasRemaining()) {
+            return;
+        }
+        if (readBuffer.capacity() >= MAX_BUFFER_SIZE) {
+            throw new IOException("Message exceeds " + MAX_BUFFER_SIZE + " bytes");
+        }
+        ByteBuffer grown = ByteBuffer.allocate(Math.min(readBuffer.capacity() * 2, MAX_BUFFER_SIZE));
+        readBuffer.flip();
+        grown.put(readBuffer);
+        readBuffer = grown;
+    }
+}
@@ -0,0 +1,25 @@
+package org.rapturemain.tcpmessengerserver.chatlog;
+
+import org.jetbrains.annotations.NotNull;
+import org.rapturemain.tcpmessengermessageframework.message.messages.Message;
+import org.rapturemain.tcpmessengerserver.messagebroker.MessagePublisher;
+import org.rapturemain.tcpmessengerserver.messagebroker.MessageSubscriber;
+
+import java.util.concurrent.Future;
+
+public interface ChatLog {
+
+    long NO_SEQUENCE = -1;
+
+    // Never blocks, the message is persisted in the background
+    void append(@NotNull Message<?> message);
+
+    long getFirstSequence();
+
+    long getLastSequence();
+
+    // Oldest first, completes with the number of messages replayed
+    Future<Integer> replay(long fromSequence, int maxMessages, @NotNull MessagePublisher publisher, @NotNull MessageSubscriber subscriber);
+
+    Future<Integer> replaySince(long timestampMillis, int maxMessages, @NotNull MessagePublisher publisher, @NotNull MessageSubscriber subscriber);
+}
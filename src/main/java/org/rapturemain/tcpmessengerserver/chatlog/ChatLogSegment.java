@@ -0,0 +1,278 @@
+package org.rapturemain.tcpmessengerserver.chatlog;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.CRC32C;
+
+/**
+ * One memory-mapped file of the chat log. Records are laid out back to back as
+ * {@code int length, int checksum, long sequence, long timestamp, frame}, where length counts the frame bytes
+ * and the CRC-32C checksum covers everything after it. A zero length marks the end, the file is preallocated
+ * and zero filled.
+ */
+@Slf4j
+final class ChatLogSegment {
+
+    static final int RECORD_HEADER_SIZE = Integer.BYTES + Integer.BYTES + Long.BYTES + Long.BYTES;
+
+    private static final int CHECKSUM_OFFSET = Integer.BYTES;
+    private static final int SEQUENCE_OFFSET = CHECKSUM_OFFSET + Integer.BYTES;
+    private static final int TIMESTAMP_OFFSET = SEQUENCE_OFFSET + Long.BYTES;
+
+    private static final String FILE_SUFFIX = ".log";
+    private static final int INDEX_INTERVAL = 64;
+
+    @Getter
+    private final Path path;
+    @Getter
+    private final long baseSequence;
+
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    private final ByteBuffer writeView;
+    private final CRC32C writeChecksum = new CRC32C();
+
+    // Guarded by this
+    private long[] indexSequences = new long[16];
+    private long[] indexTimestamps = new long[16];
+    private int[] indexPositions = new int[16];
+    private int indexSize = 0;
+
+    @Getter
+    private volatile int writePosition = 0;
+    @Getter
+    private volatile long lastSequence;
+    @Getter
+    private volatile long lastTimestamp = Long.MIN_VALUE;
+
+    private ChatLogSegment(Path path, long baseSequence, FileChannel channel, MappedByteBuffer buffer) {
+        this.path = path;
+        this.baseSequence = baseSequence;
+        this.channel = channel;
+        this.buffer = buffer;
+        this.writeView = buffer.duplicate();
+        this.lastSequence = baseSequence - 1;
+    }
+
+    @NotNull
+    static ChatLogSegment create(@NotNull Path directory, long baseSequence, int size) throws IOException {
+        Path path = directory.resolve(fileName(baseSequence));
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        return new ChatLogSegment(path, baseSequence, channel, channel.map(FileChannel.MapMode.READ_WRITE, 0, size));
+    }
+
+    @NotNull
+    static ChatLogSegment open(@NotNull Path path) throws IOException {
+        long baseSequence = parseBaseSequence(path);
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        ChatLogSegment segment = new ChatLogSegment(path, baseSequence, channel, channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size()));
+        segment.recover();
+        return segment;
+    }
+
+    static boolean isSegmentFile(@NotNull Path path) {
+        String name = path.getFileName().toString();
+        return name.endsWith(FILE_SUFFIX) && name.length() == 20 + FILE_SUFFIX.length();
+    }
+
+    static long parseBaseSequence(@NotNull Path path) {
+        String name = path.getFileName().toString();
+        return Long.parseLong(name.substring(0, name.length() - FILE_SUFFIX.length()));
+    }
+
+    private static String fileName(long baseSequence) {
+        return String.format("%020d%s", baseSequence, FILE_SUFFIX);
+    }
+
+    // Keeps every record up to the first one that is torn, out of order or fails its checksum
+    private void recover() {
+        int position = 0;
+        long expectedSequence = baseSequence;
+        while (position + RECORD_HEADER_SIZE <= buffer.capacity()) {
+            int length = buffer.getInt(position);
+            if (length == 0) {
+                return;
+            }
+            if (length < 0 || position + RECORD_HEADER_SIZE + length > buffer.capacity()
+                    || buffer.getLong(position + SEQUENCE_OFFSET) != expectedSequence
+                    || buffer.getInt(position + CHECKSUM_OFFSET) != checksum(writeChecksum, writeView, position, length)) {
+                break;
+            }
+            long timestamp = buffer.getLong(position + TIMESTAMP_OFFSET);
+            onAppended(expectedSequence, timestamp, position, position + RECORD_HEADER_SIZE + length);
+            position += RECORD_HEADER_SIZE + length;
+            expectedSequence++;
+        }
+        if (position + RECORD_HEADER_SIZE <= buffer.capacity()) {
+            log.warn("Chat log segment {} is damaged after sequence {}, dropping the rest of it", path, lastSequence);
+        }
+        truncate(position);
+    }
+
+    // Zeroes the rest, otherwise records appended from here on could run into an older record that still checks out
+    private void truncate(int position) {
+        byte[] zeros = new byte[Math.min(64 * 1024, Math.max(1, buffer.capacity() - position))];
+        writeView.limit(writeView.capacity()).position(position);
+        while (writeView.hasRemaining()) {
+            writeView.put(zeros, 0, Math.min(zeros.length, writeView.remaining()));
+        }
+        buffer.force();
+    }
+
+    private static int checksum(CRC32C checksum, ByteBuffer view, int position, int length) {
+        checksum.reset();
+        view.limit(position + RECORD_HEADER_SIZE + length).position(position + SEQUENCE_OFFSET);
+        checksum.update(view);
+        view.limit(view.capacity());
+        return (int) checksum.getValue();
+    }
+
+    // False if the record does not fit into the rest of the segment
+    boolean append(long sequence, long timestamp, @NotNull ByteBuffer frame) {
+        int position = writePosition;
+        int length = frame.remaining();
+        if (position + RECORD_HEADER_SIZE + length > buffer.capacity()) {
+            return false;
+        }
+        writeView.limit(writeView.capacity()).position(position + SEQUENCE_OFFSET);
+        writeView.putLong(sequence).putLong(timestamp).put(frame);
+        buffer.putInt(position + CHECKSUM_OFFSET, checksum(writeChecksum, writeView, position, length));
+        // Length goes last, a record is only visible once it is complete
+        buffer.putInt(position, length);
+        onAppended(sequence, timestamp, position, position + RECORD_HEADER_SIZE + length);
+        return true;
+    }
+
+    boolean isEmpty() {
+        return writePosition == 0;
+    }
+
+    boolean fits(int frameLength) {
+        return RECORD_HEADER_SIZE + frameLength <= buffer.capacity();
+    }
+
+    void force() {
+        buffer.force();
+    }
+
+    void close() throws IOException {
+        channel.close();
+    }
+
+    void delete() throws IOException {
+        close();
+        // Replays still reading keep their mapping, it outlives the file
+        Files.deleteIfExists(path);
+    }
+
+    int positionOfSequence(long sequence) {
+        int position;
+        synchronized (this) {
+            int index = lastIndexAtMost(indexSequences, sequence);
+            position = index < 0 ? 0 : indexPositions[index];
+        }
+        return scanForward(position, sequence, true);
+    }
+
+    int positionOfTimestamp(long timestampMillis) {
+        int position;
+        synchronized (this) {
+            int index = lastIndexAtMost(indexTimestamps, timestampMillis - 1);
+            position = index < 0 ? 0 : indexPositions[index];
+        }
+        return scanForward(position, timestampMillis, false);
+    }
+
+    @NotNull
+    Reader reader(int position) {
+        return new Reader(buffer.duplicate(), position);
+    }
+
+    private int scanForward(int position, long target, boolean bySequence) {
+        int end = writePosition;
+        while (position < end) {
+            long value = buffer.getLong(position + (bySequence ? SEQUENCE_OFFSET : TIMESTAMP_OFFSET));
+            if (value >= target) {
+                return position;
+            }
+            position += RECORD_HEADER_SIZE + buffer.getInt(position);
+        }
+        return end;
+    }
+
+    // Caller holds the monitor
+    private int lastIndexAtMost(long[] values, long value) {
+        int index = Arrays.binarySearch(values, 0, indexSize, value);
+        if (index >= 0) {
+            return index;
+        }
+        return -index - 2;
+    }
+
+    private void onAppended(long sequence, long timestamp, int position, int end) {
+        if ((sequence - baseSequence) % INDEX_INTERVAL == 0) {
+            synchronized (this) {
+                if (indexSize == indexSequences.length) {
+                    indexSequences = Arrays.copyOf(indexSequences, indexSize * 2);
+                    indexTimestamps = Arrays.copyOf(indexTimestamps, indexSize * 2);
+                    indexPositions = Arrays.copyOf(indexPositions, indexSize * 2);
+                }
+                indexSequences[indexSize] = sequence;
+                // Kept non-decreasing for the binary search even if the clock steps back
+                indexTimestamps[indexSize] = indexSize == 0 ? timestamp : Math.max(timestamp, indexTimestamps[indexSize - 1]);
+                indexPositions[indexSize] = position;
+                indexSize++;
+            }
+        }
+        lastSequence = sequence;
+        lastTimestamp = timestamp;
+        writePosition = end;
+    }
+
+    final class Reader {
+
+        private final ByteBuffer view;
+        private final CRC32C checksum = new CRC32C();
+        private int position;
+
+        private Reader(ByteBuffer view, int position) {
+            this.view = view;
+            this.position = position;
+        }
+
+        boolean hasNext() {
+            return position < writePosition;
+        }
+
+        long sequence() {
+            return view.getLong(position + SEQUENCE_OFFSET);
+        }
+
+        boolean isIntact() {
+            return view.getInt(position + CHECKSUM_OFFSET) == checksum(checksum, view, position, view.getInt(position));
+        }
+
+        @NotNull
+        ByteBuffer frame() {
+            int length = view.getInt(position);
+            view.limit(position + RECORD_HEADER_SIZE + length).position(position + RECORD_HEADER_SIZE);
+            return view;
+        }
+
+        void advance() {
+            int length = view.getInt(position);
+            position += RECORD_HEADER_SIZE + length;
+            view.limit(view.capacity());
+        }
+    }
+}
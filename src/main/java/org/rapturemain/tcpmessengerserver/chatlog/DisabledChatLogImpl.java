@@ -0,0 +1,41 @@
+package org.rapturemain.tcpmessengerserver.chatlog;
+
+import org.jetbrains.annotations.NotNull;
+import org.rapturemain.tcpmessengermessageframework.message.messages.Message;
+import org.rapturemain.tcpmessengerserver.messagebroker.MessagePublisher;
+import org.rapturemain.tcpmessengerserver.messagebroker.MessageSubscriber;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+
+@Component
+@ConditionalOnProperty(name = "messenger.chat-log", havingValue = "none", matchIfMissing = true)
+public class DisabledChatLogImpl implements ChatLog {
+
+    @Override
+    public void append(@NotNull Message<?> message) {
+
+    }
+
+    @Override
+    public long getFirstSequence() {
+        return NO_SEQUENCE;
+    }
+
+    @Override
+    public long getLastSequence() {
+        return NO_SEQUENCE;
+    }
+
+    @Override
+    public Future<Integer> replay(long fromSequence, int maxMessages, @NotNull MessagePublisher publisher, @NotNull MessageSubscriber subscriber) {
+        return CompletableFuture.completedFuture(0);
+    }
+
+    @Override
+    public Future<Integer> replaySince(long timestampMillis, int maxMessages, @NotNull MessagePublisher publisher, @NotNull MessageSubscriber subscriber) {
+        return CompletableFuture.completedFuture(0);
+    }
+}
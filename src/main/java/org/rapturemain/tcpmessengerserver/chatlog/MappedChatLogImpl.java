@@ -0,0 +1,291 @@
+package org.rapturemain.tcpmessengerserver.chatlog;
+
+import lombok.extern.slf4j.Slf4j;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.rapturemain.tcpmessengermessageframework.message.messages.Message;
+import org.rapturemain.tcpmessengerserver.messagebroker.ByteBufferMessageEncoderDecoder;
+import org.rapturemain.tcpmessengerserver.messagebroker.MessagePublisher;
+import org.rapturemain.tcpmessengerserver.messagebroker.MessageSubscriber;
+import org.rapturemain.tcpmessengerserver.utils.ByteBufferOutputStream;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ToIntFunction;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Appends chat messages to segmented memory-mapped files on a dedicated writer thread, publishing only enqueues.
+ */
+@Component
+@ConditionalOnProperty(name = "messenger.chat-log", havingValue = "mapped")
+@Slf4j
+public final class MappedChatLogImpl implements ChatLog {
+
+    private static final int WRITE_BATCH_SIZE = 1024;
+    private static final long IDLE_WAIT_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final int REPLAY_BATCH_SIZE = 256;
+    private static final long DROP_WARNING_INTERVAL_MILLIS = 1000;
+
+    private final Path directory;
+    private final int segmentSize;
+    private final int retainedSegments;
+    private final long fsyncIntervalNanos;
+    private final ByteBufferMessageEncoderDecoder messageEncoderDecoder;
+
+    private final ArrayBlockingQueue<Message<?>> pending;
+    private final LongAdder dropped = new LongAdder();
+    private final AtomicLong lastDropWarning = new AtomicLong();
+
+    // Added and removed by the writer, read by replays
+    private final ConcurrentSkipListMap<Long, ChatLogSegment> segments = new ConcurrentSkipListMap<>();
+
+    private final ExecutorService writerExecutor = Executors.newSingleThreadExecutor();
+    private final ExecutorService replayExecutor = Executors.newSingleThreadExecutor();
+
+    private final ByteBufferOutputStream encodeBuffer = new ByteBufferOutputStream(512);
+    private long nextSequence;
+
+    private volatile ChatLogSegment active;
+    private volatile boolean stopped = false;
+
+    @Autowired
+    public MappedChatLogImpl(@Value("${messenger.chat-log.directory:chat-log}") String directory,
+                             @Value("${messenger.chat-log.segment-size:67108864}") int segmentSize,
+                             @Value("${messenger.chat-log.retained-segments:16}") int retainedSegments,
+                             @Value("${messenger.chat-log.fsync-interval-ms:10}") long fsyncIntervalMillis,
+                             @Value("${messenger.chat-log.queue-capacity:65536}") int queueCapacity,
+                             ByteBufferMessageEncoderDecoder messageEncoderDecoder) {
+        this.directory = Paths.get(directory);
+        this.segmentSize = segmentSize;
+        this.retainedSegments = Math.max(1, retainedSegments);
+        this.fsyncIntervalNanos = TimeUnit.MILLISECONDS.toNanos(fsyncIntervalMillis);
+        this.pending = new ArrayBlockingQueue<>(queueCapacity);
+        this.messageEncoderDecoder = messageEncoderDecoder;
+    }
+
+    @PostConstruct
+    public void start() throws IOException {
+        Files.createDirectories(directory);
+        for (Path path : listSegmentFiles()) {
+            ChatLogSegment segment = ChatLogSegment.open(path);
+            segments.put(segment.getBaseSequence(), segment);
+        }
+        if (segments.isEmpty()) {
+            ChatLogSegment segment = ChatLogSegment.create(directory, 0, segmentSize);
+            segments.put(segment.getBaseSequence(), segment);
+        }
+        active = segments.lastEntry().getValue();
+        nextSequence = active.getLastSequence() + 1;
+
+        writerExecutor.execute(this::runWriter);
+        log.info("Chat log opened in {}, {} segments, next sequence {}", directory.toAbsolutePath(), segments.size(), nextSequence);
+    }
+
+    @PreDestroy
+    public void stop() throws InterruptedException {
+        stopped = true;
+        writerExecutor.shutdown();
+        replayExecutor.shutdownNow();
+        writerExecutor.awaitTermination(5, TimeUnit.SECONDS);
+        for (ChatLogSegment segment : segments.values()) {
+            try {
+                segment.close();
+            } catch (IOException e) {
+                log.warn("Could not close chat log segment {}", segment.getPath(), e);
+            }
+        }
+    }
+
+    @Override
+    public void append(@NotNull Message<?> message) {
+        if (!pending.offer(message)) {
+            dropped.increment();
+            long now = System.currentTimeMillis();
+            long last = lastDropWarning.get();
+            if (now - last >= DROP_WARNING_INTERVAL_MILLIS && lastDropWarning.compareAndSet(last, now)) {
+                log.warn("Chat log is not keeping up, {} messages not logged so far", dropped.sum());
+            }
+        }
+    }
+
+    @Override
+    public long getFirstSequence() {
+        ChatLogSegment first = segments.firstEntry().getValue();
+        return first.isEmpty() ? NO_SEQUENCE : first.getBaseSequence();
+    }
+
+    @Override
+    public long getLastSequence() {
+        long last = active.getLastSequence();
+        return last < 0 ? NO_SEQUENCE : last;
+    }
+
+    @Override
+    public Future<Integer> replay(long fromSequence, int maxMessages, @NotNull MessagePublisher publisher, @NotNull MessageSubscriber subscriber) {
+        return replayExecutor.submit(() -> {
+            Long startKey = segments.floorKey(fromSequence);
+            if (startKey == null) {
+                return stream(segments.firstKey(), segment -> 0, maxMessages, publisher, subscriber);
+            }
+            return stream(startKey, segment -> segment.positionOfSequence(fromSequence), maxMessages, publisher, subscriber);
+        });
+    }
+
+    @Override
+    public Future<Integer> replaySince(long timestampMillis, int maxMessages, @NotNull MessagePublisher publisher, @NotNull MessageSubscriber subscriber) {
+        return replayExecutor.submit(() -> {
+            for (ChatLogSegment segment : segments.values()) {
+                if (!segment.isEmpty() && segment.getLastTimestamp() >= timestampMillis) {
+                    return stream(segment.getBaseSequence(), s -> s.positionOfTimestamp(timestampMillis), maxMessages, publisher, subscriber);
+                }
+            }
+            return 0;
+        });
+    }
+
+    private int stream(long startKey, ToIntFunction<ChatLogSegment> startPosition, int maxMessages,
+                       MessagePublisher publisher, MessageSubscriber subscriber) throws IOException, ExecutionException, InterruptedException {
+        // Messages logged while replaying are not part of the replay, otherwise it could go on forever
+        long lastSequence = getLastSequence();
+        int replayed = 0;
+        Future<?> lastPublish = null;
+        boolean first = true;
+        for (ChatLogSegment segment : segments.tailMap(startKey, true).values()) {
+            ChatLogSegment.Reader reader = segment.reader(first ? startPosition.applyAsInt(segment) : 0);
+            first = false;
+            while (reader.hasNext()) {
+                long sequence = reader.sequence();
+                if (sequence > lastSequence || replayed >= maxMessages) {
+                    return awaitReplayed(lastPublish, replayed);
+                }
+                Message<?> message = reader.isIntact() ? decode(reader.frame()) : null;
+                if (message == null) {
+                    log.warn("Chat log record {} in {} is corrupted, replay stopped", sequence, segment.getPath());
+                    return awaitReplayed(lastPublish, replayed);
+                }
+                reader.advance();
+                lastPublish = publisher.publishToSubscriber(message, subscriber);
+                if (++replayed % REPLAY_BATCH_SIZE == 0) {
+                    lastPublish.get();
+                }
+            }
+        }
+        return awaitReplayed(lastPublish, replayed);
+    }
+
+    @Nullable
+    private Message<?> decode(ByteBuffer frame) {
+        try {
+            return messageEncoderDecoder.decode(frame);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private int awaitReplayed(Future<?> lastPublish, int replayed) throws ExecutionException, InterruptedException {
+        if (lastPublish != null) {
+            lastPublish.get();
+        }
+        return replayed;
+    }
+
+    private void runWriter() {
+        ArrayList<Message<?>> batch = new ArrayList<>(WRITE_BATCH_SIZE);
+        long lastForce = System.nanoTime();
+        boolean dirty = false;
+        while (!stopped || !pending.isEmpty()) {
+            try {
+                long wait = dirty ? Math.max(0, lastForce + fsyncIntervalNanos - System.nanoTime()) : IDLE_WAIT_NANOS;
+                Message<?> message = pending.poll(wait, TimeUnit.NANOSECONDS);
+                if (message != null) {
+                    batch.add(message);
+                    pending.drainTo(batch, WRITE_BATCH_SIZE - 1);
+                    for (Message<?> m : batch) {
+                        dirty |= write(m);
+                    }
+                    batch.clear();
+                }
+                // Group commit: one force covers everything written since the previous one
+                if (dirty && System.nanoTime() - lastForce >= fsyncIntervalNanos) {
+                    active.force();
+                    dirty = false;
+                    lastForce = System.nanoTime();
+                }
+            } catch (InterruptedException e) {
+                break;
+            } catch (IOException e) {
+                log.error("Chat log segment could not be created, logging stopped", e);
+                return;
+            }
+        }
+        active.force();
+    }
+
+    private boolean write(Message<?> message) throws IOException {
+        ByteBuffer frame;
+        try {
+            encodeBuffer.getBuffer().clear();
+            messageEncoderDecoder.encode(message, encodeBuffer);
+            frame = encodeBuffer.getBuffer();
+            frame.flip();
+        } catch (IOException e) {
+            log.warn("Could not encode message for the chat log", e);
+            return false;
+        }
+        if (!active.fits(frame.remaining())) {
+            log.warn("Message of {} bytes does not fit into a chat log segment, not logged", frame.remaining());
+            return false;
+        }
+        long timestamp = System.currentTimeMillis();
+        if (!active.append(nextSequence, timestamp, frame)) {
+            rollOver();
+            active.append(nextSequence, timestamp, frame);
+        }
+        nextSequence++;
+        return true;
+    }
+
+    private void rollOver() throws IOException {
+        ChatLogSegment previous = active;
+        previous.force();
+        ChatLogSegment segment = ChatLogSegment.create(directory, nextSequence, segmentSize);
+        segments.put(segment.getBaseSequence(), segment);
+        active = segment;
+        previous.close();
+
+        while (segments.size() > retainedSegments) {
+            Map.Entry<Long, ChatLogSegment> oldest = segments.pollFirstEntry();
+            try {
+                oldest.getValue().delete();
+            } catch (IOException e) {
+                log.warn("Could not delete chat log segment {}", oldest.getValue().getPath(), e);
+            }
+        }
+        log.debug("Chat log rolled over to segment {}", segment.getPath());
+    }
+
+    private List<Path> listSegmentFiles() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(ChatLogSegment::isSegmentFile)
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+    }
+}
@@ -0,0 +1,25 @@
+package org.rapturemain.tcpmessengerserver.cluster;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.concurrent.CompletableFuture;
+
+public interface ClusterBridge {
+
+    int getNodeId();
+
+    // The node deciding whether a name is taken, the same on every node of the cluster
+    int ownerOf(@NotNull String name);
+
+    // Never blocks. REFUSED if the name is taken or the owner does not answer in time, UNREACHABLE right away
+    // while the link to the owner is down or too busy
+    @NotNull
+    CompletableFuture<NameClaimResult> claimName(int ownerNode, @NotNull String name);
+
+    boolean isReachable(int node);
+
+    void releaseName(int ownerNode, @NotNull String name);
+
+    void setNameClaimListener(@Nullable NameClaimListener listener);
+}
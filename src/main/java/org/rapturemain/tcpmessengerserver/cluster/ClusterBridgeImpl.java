@@ -0,0 +1,390 @@
+package org.rapturemain.tcpmessengerserver.cluster;
+
+import lombok.extern.slf4j.Slf4j;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.rapturemain.tcpmessengermessageframework.message.messages.Message;
+import org.rapturemain.tcpmessengermessageframework.message.messages.system.ConnectionResetMessage;
+import org.rapturemain.tcpmessengerserver.messagebroker.ByteBufferMessageEncoderDecoder;
+import org.rapturemain.tcpmessengerserver.messagebroker.MessageBroker;
+import org.rapturemain.tcpmessengerserver.messagebroker.MessageEnvelope;
+import org.rapturemain.tcpmessengerserver.messagebroker.MessagePublisher;
+import org.rapturemain.tcpmessengerserver.messagebroker.MessageSubscriber;
+import org.rapturemain.tcpmessengerserver.utils.ByteBufferOutputStream;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Every local broadcast is picked up by a regular subscriber and sent to the peers in batches. Received batches are
+ * published by a publisher that subscriber ignores, so they are never sent on again.
+ */
+@Component
+@ConditionalOnProperty(name = "messenger.cluster.enabled", havingValue = "true")
+@Slf4j
+public class ClusterBridgeImpl implements ClusterBridge {
+
+    private static final int MAX_BATCH_BYTES = 64 * 1024;
+    private static final int MAX_BATCH_MESSAGES = 1024;
+    private static final int INPUT_BUFFER_SIZE = 64 * 1024;
+
+    private final int nodeId;
+    private final int port;
+    // Sorted, the same on every node
+    private final int[] members;
+    private final Map<Integer, PeerLink> links = new HashMap<>();
+    private final MessageBroker messageBroker;
+    private final ByteBufferMessageEncoderDecoder messageEncoderDecoder;
+    // Sequences start over with every run of a node, peers tell runs apart by this
+    private final long epoch = System.currentTimeMillis();
+
+    private final ExecutorService senderExecutor = Executors.newSingleThreadExecutor();
+    private final ExecutorService acceptorExecutor = Executors.newSingleThreadExecutor();
+    private final ExecutorService inboundExecutor = Executors.newCachedThreadPool();
+    private final AtomicBoolean sendScheduled = new AtomicBoolean(false);
+    private final ConcurrentHashMap<Integer, Socket> inboundSockets = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Integer, OriginState> origins = new ConcurrentHashMap<>();
+
+    private final ByteBufferOutputStream batchBuffer = new ByteBufferOutputStream(MAX_BATCH_BYTES + 4096);
+    private long nextSequence = 0;
+
+    private volatile MessageSubscriber subscriber;
+    private volatile MessagePublisher publisher;
+    private volatile NameClaimListener nameClaimListener;
+    private volatile ServerSocket serverSocket;
+    private volatile boolean stopped = false;
+
+    @Autowired
+    public ClusterBridgeImpl(@Value("${messenger.cluster.node-id:1}") int nodeId,
+                             @Value("${messenger.cluster.port:25575}") int port,
+                             @Value("${messenger.cluster.peers:}") String peers,
+                             @Value("${messenger.cluster.claim-timeout-ms:2000}") long claimTimeoutMillis,
+                             MessageBroker messageBroker,
+                             ByteBufferMessageEncoderDecoder messageEncoderDecoder) {
+        this.nodeId = nodeId;
+        this.port = port;
+        this.messageBroker = messageBroker;
+        this.messageEncoderDecoder = messageEncoderDecoder;
+
+        for (ClusterPeer peer : ClusterPeer.parseList(peers)) {
+            if (peer.getNodeId() == nodeId || links.containsKey(peer.getNodeId())) {
+                throw new IllegalArgumentException("Cluster node id " + peer.getNodeId() + " is used more than once");
+            }
+            links.put(peer.getNodeId(), new PeerLink(peer, nodeId, claimTimeoutMillis, this::reclaimNames));
+        }
+        this.members = new int[links.size() + 1];
+        int i = 0;
+        members[i++] = nodeId;
+        for (int peerId : links.keySet()) {
+            members[i++] = peerId;
+        }
+        Arrays.sort(members);
+    }
+
+    @PostConstruct
+    public void start() throws IOException {
+        subscribe();
+        serverSocket = new ServerSocket();
+        serverSocket.bind(new InetSocketAddress(port));
+        acceptorExecutor.execute(this::accept);
+        for (PeerLink link : links.values()) {
+            link.start();
+        }
+        log.info("Cluster node {} listening for peers on port {}, members {}", nodeId, port, Arrays.toString(members));
+    }
+
+    @PreDestroy
+    public void stop() {
+        stopped = true;
+        for (PeerLink link : links.values()) {
+            link.stop();
+        }
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            log.error("Could not close cluster server socket", e);
+        }
+        for (Socket socket : inboundSockets.values()) {
+            closeQuietly(socket);
+        }
+        acceptorExecutor.shutdown();
+        inboundExecutor.shutdownNow();
+        senderExecutor.shutdown();
+    }
+
+    @Override
+    public int getNodeId() {
+        return nodeId;
+    }
+
+    @Override
+    public int ownerOf(@NotNull String name) {
+        return members[Math.floorMod(name.hashCode(), members.length)];
+    }
+
+    @Override
+    @NotNull
+    public CompletableFuture<NameClaimResult> claimName(int ownerNode, @NotNull String name) {
+        PeerLink link = links.get(ownerNode);
+        if (link == null) {
+            return CompletableFuture.completedFuture(NameClaimResult.REFUSED);
+        }
+        return link.claim(name);
+    }
+
+    @Override
+    public boolean isReachable(int node) {
+        PeerLink link = links.get(node);
+        return link != null && link.isConnected();
+    }
+
+    @Override
+    public void releaseName(int ownerNode, @NotNull String name) {
+        PeerLink link = links.get(ownerNode);
+        if (link == null) {
+            return;
+        }
+        try {
+            link.send(ClusterProtocol.release(name));
+        } catch (IOException e) {
+            log.warn("Could not encode release of name {}", name, e);
+        }
+    }
+
+    @Override
+    public void setNameClaimListener(@Nullable NameClaimListener listener) {
+        this.nameClaimListener = listener;
+    }
+
+    private void subscribe() {
+        MessageSubscriber subscriber = messageBroker.registerSubscriber();
+        publisher = messageBroker.registerPublisher(subscriber);
+        this.subscriber = subscriber;
+        subscriber.setUpdateListener(this::scheduleSend);
+    }
+
+    private void scheduleSend() {
+        if (!sendScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            senderExecutor.execute(this::sendPending);
+        } catch (RejectedExecutionException e) {
+            sendScheduled.set(false);
+        }
+    }
+
+    private void sendPending() {
+        sendScheduled.set(false);
+        int count = 0;
+        MessageEnvelope envelope;
+        while ((envelope = subscriber.pollEnvelope()) != null) {
+            if (envelope.getMessage() instanceof ConnectionResetMessage) {
+                envelope.release();
+                resubscribe();
+                continue;
+            }
+            try {
+                byte[] encoded = envelope.getEncoded(messageEncoderDecoder);
+                if (count == 0) {
+                    ClusterProtocol.startBatch(batchBuffer, nodeId, epoch);
+                }
+                batchBuffer.write(encoded, 0, envelope.getEncodedLength());
+            } catch (IOException e) {
+                log.warn("Could not encode message for the cluster", e);
+                continue;
+            } finally {
+                envelope.release();
+            }
+            if (++count == MAX_BATCH_MESSAGES || batchBuffer.getBuffer().position() >= MAX_BATCH_BYTES) {
+                sendBatch(count);
+                count = 0;
+            }
+        }
+        if (count > 0) {
+            sendBatch(count);
+        }
+    }
+
+    private void sendBatch(int count) {
+        byte[] packet = ClusterProtocol.finishBatch(batchBuffer, nextSequence, count);
+        nextSequence += count;
+        for (PeerLink link : links.values()) {
+            link.send(packet);
+        }
+    }
+
+    private void resubscribe() {
+        log.warn("Cluster bridge fell behind the local broker and was disconnected, subscribing again");
+        MessageSubscriber previous = subscriber;
+        MessagePublisher previousPublisher = publisher;
+        subscribe();
+        previous.unregister();
+        previousPublisher.unregister();
+    }
+
+    private void accept() {
+        while (!stopped) {
+            Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (IOException e) {
+                if (!stopped) {
+                    log.error("Error while accepting cluster connection", e);
+                }
+                continue;
+            }
+            inboundExecutor.execute(() -> handleInbound(socket));
+        }
+    }
+
+    private void handleInbound(Socket socket) {
+        int node = -1;
+        try (socket) {
+            socket.setTcpNoDelay(true);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), INPUT_BUFFER_SIZE));
+            OutputStream out = socket.getOutputStream();
+
+            ByteBuffer hello = ClusterProtocol.readPacket(in);
+            if (hello.get() != ClusterProtocol.HELLO) {
+                throw new IOException("Cluster connection did not start with HELLO");
+            }
+            int helloNode = hello.getInt();
+            if (!links.containsKey(helloNode)) {
+                throw new IOException("Node " + helloNode + " is not a member of this cluster");
+            }
+            node = helloNode;
+            Socket previous = inboundSockets.put(node, socket);
+            if (previous != null) {
+                closeQuietly(previous);
+            }
+            log.info("Cluster node {} connected from {}", node, socket.getRemoteSocketAddress());
+
+            while (!stopped) {
+                ByteBuffer packet = ClusterProtocol.readPacket(in);
+                byte type = packet.get();
+                switch (type) {
+                    case ClusterProtocol.BATCH:
+                        receiveBatch(packet);
+                        break;
+                    case ClusterProtocol.CLAIM:
+                        long requestId = packet.getLong();
+                        String claimed = ClusterProtocol.readUTF(packet);
+                        NameClaimListener listener = nameClaimListener;
+                        boolean granted = listener != null && listener.onClaim(node, claimed);
+                        out.write(ClusterProtocol.claimResult(requestId, granted, claimed));
+                        break;
+                    case ClusterProtocol.RELEASE:
+                        String released = ClusterProtocol.readUTF(packet);
+                        if (nameClaimListener != null) {
+                            nameClaimListener.onRelease(node, released);
+                        }
+                        break;
+                    default:
+                        throw new IOException("Unknown cluster packet type " + type);
+                }
+            }
+        } catch (IOException e) {
+            if (!stopped) {
+                log.info("Cluster node {} disconnected: {}", node, e.getMessage());
+            }
+        } finally {
+            // A newer connection of the same node keeps its names
+            if (node >= 0 && inboundSockets.remove(node, socket) && nameClaimListener != null) {
+                nameClaimListener.onNodeLost(node);
+            }
+        }
+    }
+
+    private void receiveBatch(ByteBuffer packet) throws IOException {
+        int origin = packet.getInt();
+        long originEpoch = packet.getLong();
+        long firstSequence = packet.getLong();
+        int count = packet.getInt();
+        if (origin == nodeId) {
+            return;
+        }
+
+        List<Message<?>> messages = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            Message<?> message = messageEncoderDecoder.decode(packet);
+            if (message == null) {
+                throw new IOException("Truncated cluster batch from node " + origin);
+            }
+            messages.add(message);
+        }
+
+        OriginState state = origins.computeIfAbsent(origin, o -> new OriginState());
+        // Held until the batch is published, so a batch arriving over two links at once is published once
+        synchronized (state) {
+            int delivered = state.delivered(originEpoch, firstSequence, count);
+            if (delivered == count) {
+                return;
+            }
+            // Holding off the next batch until the broker took this one pushes back on the sending node
+            try {
+                publisher.publishMessages(messages.subList(delivered, count)).get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while publishing cluster batch", e);
+            } catch (ExecutionException e) {
+                log.warn("Could not publish cluster batch from node {}", origin, e.getCause());
+                return;
+            }
+            state.commit(originEpoch, firstSequence + count - 1);
+        }
+    }
+
+    private void reclaimNames(PeerLink link) {
+        NameClaimListener listener = nameClaimListener;
+        if (listener != null) {
+            listener.onOwnerReachable(link.getPeer().getNodeId());
+        }
+    }
+
+    private void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            log.debug("Could not close cluster connection", e);
+        }
+    }
+
+    private static final class OriginState {
+
+        private long epoch = Long.MIN_VALUE;
+        private long lastSequence = -1;
+
+        synchronized int delivered(long batchEpoch, long firstSequence, int count) {
+            if (batchEpoch < epoch) {
+                // Left over from a run of the node that has restarted since
+                return count;
+            }
+            long last = batchEpoch == epoch ? lastSequence : -1;
+            return (int) Math.max(0, Math.min(count, last - firstSequence + 1));
+        }
+
+        synchronized void commit(long batchEpoch, long batchLastSequence) {
+            if (batchEpoch != epoch) {
+                epoch = batchEpoch;
+                lastSequence = -1;
+            }
+            lastSequence = Math.max(lastSequence, batchLastSequence);
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package org.rapturemain.tcpmessengerserver.cluster;
+
+import lombok.extern.slf4j.Slf4j;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.rapturemain.tcpmessengerserver.user.Name;
+import org.rapturemain.tcpmessengerserver.user.NameUnavailableException;
+import org.rapturemain.tcpmessengerserver.user.NameVerifier;
+import org.rapturemain.tcpmessengerserver.user.UniqueConstraintException;
+import org.rapturemain.tcpmessengerserver.user.Verifier;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * Keeps names unique across the cluster. Every name has an owner node, chosen by hash, whose registry decides. A name
+ * is taken locally first, and while the owner is unreachable it is kept for now and claimed once the owner is back.
+ */
+@Component
+@ConditionalOnProperty(name = "messenger.cluster.enabled", havingValue = "true")
+@Slf4j
+public class ClusterNameVerifierImpl extends Verifier<Name> implements NameVerifier, NameClaimListener {
+
+    private final ClusterBridge clusterBridge;
+
+    // Names of local users owned by another node, including the ones the owner has not confirmed yet
+    private final Set<Name> claimedRemotely = ConcurrentHashMap.newKeySet();
+    // Names this node owns that users of other nodes hold, by node
+    private final ConcurrentHashMap<String, Integer> grantedClaims = new ConcurrentHashMap<>();
+
+    private volatile Consumer<Name> nameLostListener;
+
+    @Autowired
+    public ClusterNameVerifierImpl(ClusterBridge clusterBridge) {
+        this.clusterBridge = clusterBridge;
+    }
+
+    @PostConstruct
+    public void start() {
+        clusterBridge.setNameClaimListener(this);
+    }
+
+    @Override
+    @NotNull
+    public CompletableFuture<Boolean> registerName(Name name) {
+        try {
+            register(name);
+        } catch (UniqueConstraintException e) {
+            return CompletableFuture.completedFuture(false);
+        }
+        int owner = clusterBridge.ownerOf(name.getName());
+        if (owner == clusterBridge.getNodeId()) {
+            return CompletableFuture.completedFuture(true);
+        }
+        return clusterBridge.claimName(owner, name.getName()).thenApply(result -> {
+            switch (result) {
+                case GRANTED:
+                    claimedRemotely.add(name);
+                    return true;
+                case UNREACHABLE:
+                    claimedRemotely.add(name);
+                    log.info("Cluster node {} is unreachable, name {} is taken until it can confirm", owner, name.getName());
+                    // The link may have come back before the name was added, and claimed everything else already
+                    if (clusterBridge.isReachable(owner)) {
+                        confirmClaim(owner, name);
+                    }
+                    return true;
+                default:
+                    unregister(name);
+                    return false;
+            }
+        });
+    }
+
+    @Override
+    public void unregisterName(Name name) {
+        // Released at the owner before the name is free here, a new claim from this node cannot overtake it
+        if (claimedRemotely.remove(name)) {
+            clusterBridge.releaseName(clusterBridge.ownerOf(name.getName()), name.getName());
+        }
+        unregister(name);
+    }
+
+    @Override
+    public void reserveName(Name name) throws NameUnavailableException {
+        try {
+            register(name);
+        } catch (UniqueConstraintException e) {
+            throw new NameUnavailableException(name.getName());
+        }
+    }
+
+    @Override
+    public void setNameLostListener(@Nullable Consumer<Name> listener) {
+        this.nameLostListener = listener;
+    }
+
+    @Override
+    public boolean onClaim(int node, @NotNull String name) {
+        Integer holder = grantedClaims.get(name);
+        if (holder != null) {
+            return holder == node;
+        }
+        try {
+            register(new Name(name));
+        } catch (UniqueConstraintException e) {
+            return false;
+        }
+        grantedClaims.put(name, node);
+        return true;
+    }
+
+    @Override
+    public void onRelease(int node, @NotNull String name) {
+        if (grantedClaims.remove(name, node)) {
+            unregister(new Name(name));
+        }
+    }
+
+    @Override
+    public void onNodeLost(int node) {
+        int released = 0;
+        for (Map.Entry<String, Integer> claim : grantedClaims.entrySet()) {
+            if (claim.getValue() == node && grantedClaims.remove(claim.getKey(), node)) {
+                unregister(new Name(claim.getKey()));
+                released++;
+            }
+        }
+        if (released > 0) {
+            log.info("Released {} names held by cluster node {}", released, node);
+        }
+    }
+
+    @Override
+    public void onOwnerReachable(int ownerNode) {
+        for (Name name : claimedRemotely) {
+            if (clusterBridge.ownerOf(name.getName()) == ownerNode) {
+                confirmClaim(ownerNode, name);
+            }
+        }
+    }
+
+    private void confirmClaim(int owner, Name name) {
+        clusterBridge.claimName(owner, name.getName()).thenAccept(result -> {
+            switch (result) {
+                case GRANTED:
+                    if (!claimedRemotely.contains(name)) {
+                        // Its user left while the claim was on the way
+                        clusterBridge.releaseName(owner, name.getName());
+                    }
+                    break;
+                case REFUSED:
+                    // The owner's holder came first. Not released at the owner, the name is not ours there
+                    if (claimedRemotely.remove(name)) {
+                        log.warn("Name {} was given away by cluster node {} while it was unreachable, the local user loses it", name.getName(), owner);
+                        Consumer<Name> listener = nameLostListener;
+                        if (listener != null) {
+                            listener.accept(name);
+                        }
+                    }
+                    break;
+                default:
+                    break;
+            }
+        });
+    }
+}
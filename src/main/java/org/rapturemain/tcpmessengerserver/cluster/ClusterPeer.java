@@ -0,0 +1,36 @@
+package org.rapturemain.tcpmessengerserver.cluster;
+
+import lombok.Value;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.List;
+
+@Value
+public class ClusterPeer {
+
+    int nodeId;
+    String host;
+    int port;
+
+    // Comma separated nodeId@host:port
+    @NotNull
+    public static List<ClusterPeer> parseList(@NotNull String peers) {
+        List<ClusterPeer> result = new ArrayList<>();
+        for (String peer : peers.split(",")) {
+            peer = peer.trim();
+            if (peer.isEmpty()) {
+                continue;
+            }
+            int at = peer.indexOf('@');
+            int colon = peer.lastIndexOf(':');
+            if (at <= 0 || colon < at) {
+                throw new IllegalArgumentException("Cluster peer '" + peer + "' is not nodeId@host:port");
+            }
+            result.add(new ClusterPeer(Integer.parseInt(peer.substring(0, at)),
+                    peer.substring(at + 1, colon),
+                    Integer.parseInt(peer.substring(colon + 1))));
+        }
+        return result;
+    }
+}
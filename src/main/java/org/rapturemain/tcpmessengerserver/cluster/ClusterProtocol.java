@@ -0,0 +1,121 @@
+package org.rapturemain.tcpmessengerserver.cluster;
+
+import org.jetbrains.annotations.NotNull;
+import org.rapturemain.tcpmessengerserver.utils.ByteBufferInputStream;
+import org.rapturemain.tcpmessengerserver.utils.ByteBufferOutputStream;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Inter-node wire format. Every packet is {@code int length, byte type, payload}, the length counting type and payload.
+ * A node connects to each peer and starts with HELLO. Everything but CLAIM_RESULT flows from the connecting node
+ * to the accepting one.
+ */
+final class ClusterProtocol {
+
+    // int nodeId
+    static final byte HELLO = 1;
+    // int originNode, long originEpoch, long firstSequence, int count, then count encoded message frames
+    static final byte BATCH = 2;
+    // long requestId, UTF name
+    static final byte CLAIM = 3;
+    // long requestId, boolean granted, UTF name
+    static final byte CLAIM_RESULT = 4;
+    // UTF name
+    static final byte RELEASE = 5;
+
+    static final int MAX_PACKET_SIZE = 16 * 1024 * 1024;
+
+    private static final int LENGTH_SIZE = Integer.BYTES;
+    private static final int FIRST_SEQUENCE_OFFSET = LENGTH_SIZE + 1 + Integer.BYTES + Long.BYTES;
+    private static final int COUNT_OFFSET = FIRST_SEQUENCE_OFFSET + Long.BYTES;
+
+    private ClusterProtocol() {
+    }
+
+    static byte @NotNull [] hello(int nodeId) throws IOException {
+        ByteBufferOutputStream bytes = start(HELLO, 16);
+        new DataOutputStream(bytes).writeInt(nodeId);
+        return finish(bytes);
+    }
+
+    static byte @NotNull [] claim(long requestId, @NotNull String name) throws IOException {
+        ByteBufferOutputStream bytes = start(CLAIM, 64);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeLong(requestId);
+        out.writeUTF(name);
+        return finish(bytes);
+    }
+
+    static byte @NotNull [] claimResult(long requestId, boolean granted, @NotNull String name) throws IOException {
+        ByteBufferOutputStream bytes = start(CLAIM_RESULT, 64);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeLong(requestId);
+        out.writeBoolean(granted);
+        out.writeUTF(name);
+        return finish(bytes);
+    }
+
+    static byte @NotNull [] release(@NotNull String name) throws IOException {
+        ByteBufferOutputStream bytes = start(RELEASE, 64);
+        new DataOutputStream(bytes).writeUTF(name);
+        return finish(bytes);
+    }
+
+    static void startBatch(@NotNull ByteBufferOutputStream bytes, int originNode, long originEpoch) throws IOException {
+        bytes.getBuffer().clear();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(0);
+        out.writeByte(BATCH);
+        out.writeInt(originNode);
+        out.writeLong(originEpoch);
+        out.writeLong(0);
+        out.writeInt(0);
+    }
+
+    static byte @NotNull [] finishBatch(@NotNull ByteBufferOutputStream bytes, long firstSequence, int count) {
+        ByteBuffer buffer = bytes.getBuffer();
+        buffer.putLong(FIRST_SEQUENCE_OFFSET, firstSequence);
+        buffer.putInt(COUNT_OFFSET, count);
+        return finish(bytes);
+    }
+
+    static byte typeOf(byte @NotNull [] packet) {
+        return packet[LENGTH_SIZE];
+    }
+
+    // Blocks for the next packet, returned without its length and positioned at the type
+    @NotNull
+    static ByteBuffer readPacket(@NotNull DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length <= 0 || length > MAX_PACKET_SIZE) {
+            throw new IOException("Invalid cluster packet length " + length);
+        }
+        byte[] packet = new byte[length];
+        in.readFully(packet);
+        return ByteBuffer.wrap(packet);
+    }
+
+    @NotNull
+    static String readUTF(@NotNull ByteBuffer packet) throws IOException {
+        return new DataInputStream(new ByteBufferInputStream(packet)).readUTF();
+    }
+
+    private static ByteBufferOutputStream start(byte type, int capacity) throws IOException {
+        ByteBufferOutputStream bytes = new ByteBufferOutputStream(capacity);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(0);
+        out.writeByte(type);
+        return bytes;
+    }
+
+    private static byte[] finish(ByteBufferOutputStream bytes) {
+        ByteBuffer buffer = bytes.getBuffer();
+        buffer.putInt(0, buffer.position() - LENGTH_SIZE);
+        return Arrays.copyOf(buffer.array(), buffer.position());
+    }
+}
@@ -0,0 +1,16 @@
+package org.rapturemain.tcpmessengerserver.cluster;
+
+import org.jetbrains.annotations.NotNull;
+
+public interface NameClaimListener {
+
+    boolean onClaim(int node, @NotNull String name);
+
+    void onRelease(int node, @NotNull String name);
+
+    // The node's link went down, whatever it held is released
+    void onNodeLost(int node);
+
+    // The link to the owner came back, names this node holds there are claimed again
+    void onOwnerReachable(int ownerNode);
+}
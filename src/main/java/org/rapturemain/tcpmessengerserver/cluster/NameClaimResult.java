@@ -0,0 +1,9 @@
+package org.rapturemain.tcpmessengerserver.cluster;
+
+public enum NameClaimResult {
+    GRANTED,
+    // Taken at the owner, or the owner did not answer in time
+    REFUSED,
+    // The link to the owner is down, nobody decided
+    UNREACHABLE
+}
@@ -0,0 +1,232 @@
+package org.rapturemain.tcpmessengerserver.cluster;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Outbound connection to one peer node, reconnecting with backoff. While the peer is down new packets are dropped,
+ * the ones not flushed before go out on the next connection.
+ */
+@Slf4j
+final class PeerLink {
+
+    private static final int QUEUE_CAPACITY = 4096;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int CONNECT_TIMEOUT_MILLIS = 1000;
+    private static final long MIN_RECONNECT_DELAY_MILLIS = 100;
+    private static final long MAX_RECONNECT_DELAY_MILLIS = 5000;
+    private static final long IDLE_POLL_MILLIS = 100;
+
+    @Getter
+    private final ClusterPeer peer;
+    private final int localNodeId;
+    private final long claimTimeoutMillis;
+    // Runs on the link thread once the peer accepted the connection, and once a queue that turned a claim away drained
+    private final Consumer<PeerLink> onReachable;
+
+    private final LinkedBlockingDeque<byte[]> pending = new LinkedBlockingDeque<>(QUEUE_CAPACITY);
+    private final ConcurrentHashMap<Long, CompletableFuture<NameClaimResult>> pendingClaims = new ConcurrentHashMap<>();
+    private final AtomicLong nextRequestId = new AtomicLong();
+    private final AtomicBoolean claimDropped = new AtomicBoolean();
+    @Getter
+    private final LongAdder dropped = new LongAdder();
+
+    private final ExecutorService executor = Executors.newFixedThreadPool(2);
+
+    @Getter
+    private volatile boolean connected = false;
+    private volatile boolean stopped = false;
+    private volatile Socket socket;
+
+    PeerLink(@NotNull ClusterPeer peer, int localNodeId, long claimTimeoutMillis, @NotNull Consumer<PeerLink> onReachable) {
+        this.peer = peer;
+        this.localNodeId = localNodeId;
+        this.claimTimeoutMillis = claimTimeoutMillis;
+        this.onReachable = onReachable;
+    }
+
+    void start() {
+        executor.execute(this::run);
+    }
+
+    void stop() {
+        stopped = true;
+        closeSocket();
+        executor.shutdownNow();
+    }
+
+    // False if the packet was dropped because the peer is down or not keeping up
+    boolean send(byte @NotNull [] packet) {
+        if (!connected || !pending.offer(packet)) {
+            dropped.increment();
+            return false;
+        }
+        return true;
+    }
+
+    // Never blocks, a claim the link cannot queue is UNREACHABLE and one not answered in time REFUSED
+    @NotNull
+    CompletableFuture<NameClaimResult> claim(@NotNull String name) {
+        if (!connected) {
+            return CompletableFuture.completedFuture(NameClaimResult.UNREACHABLE);
+        }
+        long requestId = nextRequestId.incrementAndGet();
+        CompletableFuture<NameClaimResult> result = new CompletableFuture<>();
+        pendingClaims.put(requestId, result);
+        try {
+            if (!send(ClusterProtocol.claim(requestId, name))) {
+                if (connected) {
+                    claimDropped.set(true);
+                }
+                result.complete(NameClaimResult.UNREACHABLE);
+            }
+        } catch (IOException e) {
+            result.completeExceptionally(e);
+        }
+        return result.orTimeout(claimTimeoutMillis, TimeUnit.MILLISECONDS)
+                .whenComplete((claimed, e) -> pendingClaims.remove(requestId))
+                .exceptionally(e -> NameClaimResult.REFUSED);
+    }
+
+    private void run() {
+        long reconnectDelay = MIN_RECONNECT_DELAY_MILLIS;
+        while (!stopped) {
+            try (Socket s = new Socket()) {
+                s.connect(new InetSocketAddress(peer.getHost(), peer.getPort()), CONNECT_TIMEOUT_MILLIS);
+                s.setTcpNoDelay(true);
+                socket = s;
+                OutputStream out = new BufferedOutputStream(s.getOutputStream(), BUFFER_SIZE);
+                out.write(ClusterProtocol.hello(localNodeId));
+                out.flush();
+
+                connected = true;
+                reconnectDelay = MIN_RECONNECT_DELAY_MILLIS;
+                log.info("Connected to cluster node {} at {}:{}", peer.getNodeId(), peer.getHost(), peer.getPort());
+
+                executor.execute(() -> readResults(s));
+                claimDropped.set(false);
+                onReachable.accept(this);
+                writePending(s, out);
+            } catch (IOException e) {
+                if (connected) {
+                    log.warn("Lost cluster node {}: {}", peer.getNodeId(), e.getMessage());
+                } else {
+                    log.debug("Cannot connect to cluster node {}: {}", peer.getNodeId(), e.getMessage());
+                }
+            } catch (InterruptedException e) {
+                break;
+            } finally {
+                connected = false;
+                // Claims are failed below and made again once the peer is back, everything else waits for it
+                pending.removeIf(packet -> ClusterProtocol.typeOf(packet) == ClusterProtocol.CLAIM);
+                failPendingClaims();
+            }
+
+            try {
+                TimeUnit.MILLISECONDS.sleep(reconnectDelay);
+            } catch (InterruptedException e) {
+                break;
+            }
+            reconnectDelay = Math.min(reconnectDelay * 2, MAX_RECONNECT_DELAY_MILLIS);
+        }
+    }
+
+    private void writePending(Socket s, OutputStream out) throws IOException, InterruptedException {
+        ArrayList<byte[]> unflushed = new ArrayList<>();
+        try {
+            while (!stopped) {
+                byte[] packet = pending.poll(IDLE_POLL_MILLIS, TimeUnit.MILLISECONDS);
+                if (packet == null) {
+                    if (s.isClosed()) {
+                        throw new IOException("Connection closed");
+                    }
+                    continue;
+                }
+                do {
+                    unflushed.add(packet);
+                    out.write(packet);
+                } while ((packet = pending.poll()) != null);
+                out.flush();
+                unflushed.clear();
+                if (pending.isEmpty() && claimDropped.compareAndSet(true, false)) {
+                    onReachable.accept(this);
+                }
+            }
+        } catch (IOException e) {
+            // Back in front of what is still queued, in order. The peer skips batches it has seen already
+            for (int i = unflushed.size() - 1; i >= 0; i--) {
+                if (!pending.offerFirst(unflushed.get(i))) {
+                    dropped.increment();
+                }
+            }
+            throw e;
+        }
+    }
+
+    private void readResults(Socket s) {
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+            while (!stopped) {
+                ByteBuffer packet = ClusterProtocol.readPacket(in);
+                byte type = packet.get();
+                if (type != ClusterProtocol.CLAIM_RESULT) {
+                    throw new IOException("Unexpected cluster packet type " + type);
+                }
+                long requestId = packet.getLong();
+                boolean granted = packet.get() != 0;
+                String name = ClusterProtocol.readUTF(packet);
+                CompletableFuture<NameClaimResult> claim = pendingClaims.remove(requestId);
+                if (claim != null) {
+                    claim.complete(granted ? NameClaimResult.GRANTED : NameClaimResult.REFUSED);
+                } else if (granted) {
+                    // Granted after the claim timed out, nobody here holds the name
+                    send(ClusterProtocol.release(name));
+                }
+            }
+        } catch (IOException e) {
+            log.debug("Cluster node {} link reader stopped: {}", peer.getNodeId(), e.getMessage());
+        } finally {
+            closeSocket(s);
+        }
+    }
+
+    private void failPendingClaims() {
+        for (Map.Entry<Long, CompletableFuture<NameClaimResult>> entry : pendingClaims.entrySet()) {
+            if (pendingClaims.remove(entry.getKey(), entry.getValue())) {
+                entry.getValue().complete(NameClaimResult.UNREACHABLE);
+            }
+        }
+    }
+
+    private void closeSocket() {
+        Socket s = socket;
+        if (s != null) {
+            closeSocket(s);
+        }
+    }
+
+    private void closeSocket(Socket s) {
+        try {
+            s.close();
+        } catch (IOException e) {
+            log.debug("Could not close cluster link to node {}", peer.getNodeId(), e);
+        }
+    }
+}
@@ -3,9 +3,7 @@ package org.rapturemain.tcpmessengerserver.connection;
 import org.jetbrains.annotations.NotNull;
 import org.rapturemain.tcpmessengerserver.messagebroker.MessageSubscriber;
 
-import java.io.InputStream;
-
 public interface AsyncUpdateNotifier {
-    @NotNull UpdateNotifierContext subscribeForUpdates(InputStream socketIS, MessageSubscriber subscriber);
+    @NotNull UpdateNotifierContext subscribeForUpdates(@NotNull MessageSubscriber subscriber, @NotNull Runnable onUpdate);
     void unsubscribeForUpdates(@NotNull UpdateNotifierContext context);
 }
@@ -3,59 +3,36 @@ package org.rapturemain.tcpmessengerserver.connection;
 import lombok.extern.slf4j.Slf4j;
 import org.jetbrains.annotations.NotNull;
 import org.rapturemain.tcpmessengerserver.messagebroker.MessageSubscriber;
-import org.rapturemain.tcpmessengerserver.utils.DefaultWrapper;
+import org.rapturemain.tcpmessengerserver.metrics.MessengerMetrics;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.stereotype.Component;
 
-import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
-import java.io.IOException;
-import java.io.InputStream;
-import java.util.concurrent.ConcurrentLinkedDeque;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.atomic.AtomicBoolean;
 
+/**
+ * Runs the update of a subscriber on an output thread, coalesced so that a connection takes at most one at a time.
+ * A connection blocked in a write keeps its platform thread until the write deadline, others wait for a free one.
+ */
 @Component
+@ConditionalOnProperty(name = "messenger.transport", havingValue = "blocking", matchIfMissing = true)
 @Slf4j
 public class AsyncUpdateNotifierImpl implements AsyncUpdateNotifier {
 
-    private static final int THREAD_COUNT = 1;
+    private final ExecutorService executor;
 
-    private final ExecutorService executor = Executors.newFixedThreadPool(THREAD_COUNT);
+    private final MessengerMetrics messengerMetrics;
 
-
-    ConcurrentLinkedDeque<DefaultWrapper<UpdateNotifierContext>> contexts = new ConcurrentLinkedDeque<>();
-
-    @PostConstruct
-    public void start() {
-        for (int i = 0; i < THREAD_COUNT; i++) {
-            executor.execute(() -> {
-                while (!executor.isShutdown()) {
-                    try {
-                        TimeUnit.MICROSECONDS.sleep(10);
-                    } catch (InterruptedException e) {
-                        // do nothing
-                    }
-
-                    DefaultWrapper<UpdateNotifierContext> wrapper = contexts.poll();
-
-                    if (wrapper == null) {
-                        continue;
-                    }
-
-                    UpdateNotifierContext context = wrapper.getData();
-
-                    if (!context.getIsWorking().get() && (subscriberReady(context) || socketReady(context))) {
-                        synchronized (context.getIsWorking()) {
-                            context.getIsWorking().notifyAll();
-                        }
-                    }
-
-                    contexts.add(wrapper);
-                }
-            });
-        }
+    @Autowired
+    public AsyncUpdateNotifierImpl(MessengerMetrics messengerMetrics,
+                                   @Value("${messenger.connection.threads:platform}") String connectionThreads,
+                                   @Value("${messenger.connection.output-threads:0}") int outputThreads) {
+        this.messengerMetrics = messengerMetrics;
+        this.executor = ConnectionThreads.outputExecutor(connectionThreads, outputThreads);
     }
 
     @PreDestroy
@@ -65,13 +42,18 @@ public class AsyncUpdateNotifierImpl implements AsyncUpdateNotifier {
 
     @Override
     @NotNull
-    public UpdateNotifierContext subscribeForUpdates(InputStream socketIS, MessageSubscriber subscriber) {
+    public UpdateNotifierContext subscribeForUpdates(@NotNull MessageSubscriber subscriber, @NotNull Runnable onUpdate) {
         UpdateNotifierContext updateNotifierContext = UpdateNotifierContext.builder()
-                .socketInputStream(socketIS)
                 .subscriber(subscriber)
-                .isWorking(new AtomicBoolean(false))
+                .onUpdate(onUpdate)
+                .updateScheduled(new AtomicBoolean(false))
                 .build();
-        contexts.add(new DefaultWrapper<>(updateNotifierContext));
+        subscriber.setUpdateListener(() -> scheduleUpdate(updateNotifierContext));
+
+        // Messages published before the listener was set would not signal it
+        if (subscriber.peekMessage() != null) {
+            scheduleUpdate(updateNotifierContext);
+        }
 
         log.debug("Context subscribed");
 
@@ -80,20 +62,23 @@ public class AsyncUpdateNotifierImpl implements AsyncUpdateNotifier {
 
     @Override
     public void unsubscribeForUpdates(@NotNull UpdateNotifierContext context) {
-        contexts.remove(new DefaultWrapper<>(context));
+        context.getSubscriber().setUpdateListener(null);
         log.debug("Context unsubscribed");
     }
 
-    private boolean subscriberReady(@NotNull UpdateNotifierContext context) {
-        return context.getSubscriber().peekMessage() != null;
-    }
-
-    private boolean socketReady(@NotNull UpdateNotifierContext context) {
+    private void scheduleUpdate(@NotNull UpdateNotifierContext context) {
+        if (!context.getUpdateScheduled().compareAndSet(false, true)) {
+            return;
+        }
+        long scheduledTime = System.nanoTime();
         try {
-            return context.getSocketInputStream().available() > 0;
-        } catch (IOException e) {
-            return false;
+            executor.execute(() -> {
+                messengerMetrics.recordNotifierLag(System.nanoTime() - scheduledTime);
+                context.getUpdateScheduled().set(false);
+                context.getOnUpdate().run();
+            });
+        } catch (RejectedExecutionException e) {
+            context.getUpdateScheduled().set(false);
         }
-
     }
 }
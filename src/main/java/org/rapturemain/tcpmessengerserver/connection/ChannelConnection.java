@@ -0,0 +1,104 @@
+package org.rapturemain.tcpmessengerserver.connection;
+
+import lombok.AccessLevel;
+import lombok.Getter;
+import lombok.Setter;
+import org.rapturemain.tcpmessengerserver.messagebroker.ByteBufferMessageEncoderDecoder;
+import org.rapturemain.tcpmessengerserver.messagebroker.MessageEnvelope;
+import org.rapturemain.tcpmessengerserver.messagebroker.MessagePublisher;
+import org.rapturemain.tcpmessengerserver.messagebroker.MessageSubscriber;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+@Getter
+final class ChannelConnection {
+
+    static final int MAX_GATHER_BUFFERS = 64;
+
+    private final SocketChannel channel;
+    private final Socket socket;
+    private final MessagePublisher publisher;
+    private final MessageSubscriber subscriber;
+    private final ConnectionSession session;
+
+    private final FrameBuffer frameBuffer = new FrameBuffer();
+    private final ArrayDeque<ByteBuffer> pendingWrites = new ArrayDeque<>();
+    // Same order as pendingWrites, each buffer wraps its envelope's encoded bytes, which stay referenced until written
+    @Getter(AccessLevel.NONE)
+    private final ArrayDeque<MessageEnvelope> pendingEnvelopes = new ArrayDeque<>();
+    private final ByteBuffer[] gatherBuffers = new ByteBuffer[MAX_GATHER_BUFFERS];
+    private final AtomicBoolean updateScheduled = new AtomicBoolean(false);
+
+    @Setter
+    private IdleTracker idleTracker;
+
+    @Setter
+    private volatile long updateScheduledTime;
+
+    ChannelConnection(SocketChannel channel, MessagePublisher publisher, MessageSubscriber subscriber) {
+        this.channel = channel;
+        this.socket = channel.socket();
+        this.publisher = publisher;
+        this.subscriber = subscriber;
+        this.session = new ConnectionSession(socket, publisher, subscriber);
+    }
+
+    void addPendingWrite(MessageEnvelope envelope, ByteBufferMessageEncoderDecoder encoder) throws IOException {
+        ByteBuffer buffer;
+        try {
+            buffer = envelope.wrapEncoded(encoder);
+        } catch (IOException | RuntimeException e) {
+            envelope.release();
+            throw e;
+        }
+        pendingWrites.add(buffer);
+        pendingEnvelopes.add(envelope);
+    }
+
+    // The head may be partially written and stays first
+    void addPendingWritesAfterHead(List<MessageEnvelope> envelopes, ByteBufferMessageEncoderDecoder encoder) throws IOException {
+        ByteBuffer[] buffers = new ByteBuffer[envelopes.size()];
+        try {
+            for (int i = 0; i < buffers.length; i++) {
+                buffers[i] = envelopes.get(i).wrapEncoded(encoder);
+            }
+        } catch (IOException | RuntimeException e) {
+            envelopes.forEach(MessageEnvelope::release);
+            throw e;
+        }
+        ByteBuffer headBuffer = pendingWrites.pollFirst();
+        MessageEnvelope headEnvelope = pendingEnvelopes.pollFirst();
+        for (int i = buffers.length - 1; i >= 0; i--) {
+            pendingWrites.addFirst(buffers[i]);
+            pendingEnvelopes.addFirst(envelopes.get(i));
+        }
+        if (headBuffer != null) {
+            pendingWrites.addFirst(headBuffer);
+            pendingEnvelopes.addFirst(headEnvelope);
+        }
+    }
+
+    int removeWrittenBuffers() {
+        int removed = 0;
+        while (!pendingWrites.isEmpty() && !pendingWrites.peekFirst().hasRemaining()) {
+            pendingWrites.pollFirst();
+            pendingEnvelopes.pollFirst().release();
+            removed++;
+        }
+        return removed;
+    }
+
+    void discardPendingWrites() {
+        pendingWrites.clear();
+        MessageEnvelope envelope;
+        while ((envelope = pendingEnvelopes.poll()) != null) {
+            envelope.release();
+        }
+    }
+}
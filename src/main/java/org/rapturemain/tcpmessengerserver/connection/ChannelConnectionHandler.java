@@ -0,0 +1,7 @@
+package org.rapturemain.tcpmessengerserver.connection;
+
+import java.nio.channels.SocketChannel;
+
+public interface ChannelConnectionHandler {
+    void handleConnection(SocketChannel channel);
+}
@@ -0,0 +1,71 @@
+package org.rapturemain.tcpmessengerserver.connection;
+
+import lombok.extern.slf4j.Slf4j;
+import org.rapturemain.tcpmessengerserver.messagebroker.ByteBufferMessageEncoderDecoder;
+import org.rapturemain.tcpmessengerserver.messagebroker.MessageBroker;
+import org.rapturemain.tcpmessengerserver.metrics.MessengerMetrics;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+@Component
+@ConditionalOnProperty(name = "messenger.transport", havingValue = "reactor")
+@Slf4j
+public class ChannelConnectionHandlerImpl implements ChannelConnectionHandler {
+
+    private final ChannelEventLoop[] eventLoops;
+    private final ExecutorService executor;
+
+    private final AtomicInteger nextEventLoop = new AtomicInteger();
+
+    @Autowired
+    public ChannelConnectionHandlerImpl(MessageBroker messageBroker,
+                                        ByteBufferMessageEncoderDecoder messageEncoderDecoder,
+                                        ConnectionMessageHandler connectionMessageHandler,
+                                        SocketConfigurer socketConfigurer,
+                                        SocketStateVerifier socketStateVerifier,
+                                        MessengerMetrics messengerMetrics,
+                                        @Value("${messenger.reactor.threads:0}") int threadCount) throws IOException {
+        if (threadCount <= 0) {
+            threadCount = Runtime.getRuntime().availableProcessors();
+        }
+        this.eventLoops = new ChannelEventLoop[threadCount];
+        for (int i = 0; i < threadCount; i++) {
+            eventLoops[i] = new ChannelEventLoop(messageBroker, messageEncoderDecoder, connectionMessageHandler, socketConfigurer, socketStateVerifier, messengerMetrics);
+        }
+        this.executor = Executors.newFixedThreadPool(threadCount);
+    }
+
+    @PostConstruct
+    public void start() {
+        for (ChannelEventLoop eventLoop : eventLoops) {
+            executor.execute(eventLoop);
+        }
+        log.info("Started {} event loops", eventLoops.length);
+    }
+
+    @PreDestroy
+    public void stop() {
+        for (ChannelEventLoop eventLoop : eventLoops) {
+            eventLoop.stop();
+        }
+        executor.shutdown();
+    }
+
+    @Override
+    public void handleConnection(SocketChannel channel) {
+        Socket socket = channel.socket();
+        log.info("Handling connection {}, {}", socket.getInetAddress(), socket.getPort());
+        eventLoops[Math.floorMod(nextEventLoop.getAndIncrement(), eventLoops.length)].register(channel);
+    }
+}
@@ -0,0 +1,362 @@
+package org.rapturemain.tcpmessengerserver.connection;
+
+import lombok.extern.slf4j.Slf4j;
+import org.rapturemain.tcpmessengermessageframework.message.messages.Message;
+import org.rapturemain.tcpmessengermessageframework.message.messages.MessageFormatException;
+import org.rapturemain.tcpmessengermessageframework.message.messages.system.ConnectionResetMessage;
+import org.rapturemain.tcpmessengerserver.messagebroker.ByteBufferMessageEncoderDecoder;
+import org.rapturemain.tcpmessengerserver.messagebroker.MessageBroker;
+import org.rapturemain.tcpmessengerserver.messagebroker.MessageEnvelope;
+import org.rapturemain.tcpmessengerserver.messagebroker.MessagePublisher;
+import org.rapturemain.tcpmessengerserver.messagebroker.MessageSubscriber;
+import org.rapturemain.tcpmessengerserver.metrics.MessengerMetrics;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+@Slf4j
+final class ChannelEventLoop implements Runnable {
+
+    private final Selector selector;
+    private final MessageBroker messageBroker;
+    private final ByteBufferMessageEncoderDecoder messageEncoderDecoder;
+    private final ConnectionMessageHandler connectionMessageHandler;
+    private final SocketConfigurer socketConfigurer;
+    private final SocketStateVerifier socketStateVerifier;
+    private final MessengerMetrics messengerMetrics;
+
+    private final MessageEnvelope connectionResetEnvelope = new MessageEnvelope(new ConnectionResetMessage());
+
+    private final ConcurrentLinkedQueue<SocketChannel> pendingChannels = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<ChannelConnection> updatedConnections = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<ChannelConnection> timedOutConnections = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean wakeupPending = new AtomicBoolean(false);
+
+    private volatile boolean stopped = false;
+
+    ChannelEventLoop(MessageBroker messageBroker, ByteBufferMessageEncoderDecoder messageEncoderDecoder, ConnectionMessageHandler connectionMessageHandler, SocketConfigurer socketConfigurer,
+                     SocketStateVerifier socketStateVerifier, MessengerMetrics messengerMetrics) throws IOException {
+        this.selector = Selector.open();
+        this.messageBroker = messageBroker;
+        this.messageEncoderDecoder = messageEncoderDecoder;
+        this.connectionMessageHandler = connectionMessageHandler;
+        this.socketConfigurer = socketConfigurer;
+        this.socketStateVerifier = socketStateVerifier;
+        this.messengerMetrics = messengerMetrics;
+    }
+
+    void register(SocketChannel channel) {
+        pendingChannels.add(channel);
+        selector.wakeup();
+    }
+
+    private void scheduleUpdate(ChannelConnection connection) {
+        if (!connection.getUpdateScheduled().compareAndSet(false, true)) {
+            return;
+        }
+        connection.setUpdateScheduledTime(System.nanoTime());
+        updatedConnections.add(connection);
+        // One wakeup serves every connection updated before the loop gets to run
+        if (wakeupPending.compareAndSet(false, true)) {
+            selector.wakeup();
+        }
+    }
+
+    private void closeLater(ChannelConnection connection) {
+        timedOutConnections.add(connection);
+        selector.wakeup();
+    }
+
+    void stop() {
+        stopped = true;
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        while (!stopped) {
+            try {
+                selector.select();
+            } catch (IOException e) {
+                log.error("Event loop failed to select", e);
+                break;
+            }
+
+            wakeupPending.set(false);
+
+            registerPendingChannels();
+            handleSelectedKeys();
+            handleUpdatedConnections();
+            closeTimedOutConnections();
+        }
+
+        for (SelectionKey key : new ArrayList<>(selector.keys())) {
+            if (key.attachment() instanceof ChannelConnection) {
+                close((ChannelConnection) key.attachment());
+            }
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            log.error("Could not close selector", e);
+        }
+    }
+
+    private void registerPendingChannels() {
+        SocketChannel channel;
+        while ((channel = pendingChannels.poll()) != null) {
+            try {
+                channel.configureBlocking(false);
+                socketConfigurer.configure(channel.socket());
+            } catch (IOException e) {
+                Socket socket = channel.socket();
+                log.error("Client [address {}, port {}] attempted connection, but failed to configure channel", socket.getInetAddress(), socket.getPort(), e);
+                closeChannel(channel);
+                continue;
+            }
+
+            MessagePublisher publisher = messageBroker.registerPublisher();
+            MessageSubscriber subscriber = messageBroker.registerHeldSubscriber();
+            ChannelConnection connection = new ChannelConnection(channel, publisher, subscriber);
+
+            try {
+                channel.register(selector, SelectionKey.OP_READ, connection);
+            } catch (IOException e) {
+                Socket socket = channel.socket();
+                log.error("Client [address {}, port {}] attempted connection, but failed to register channel", socket.getInetAddress(), socket.getPort(), e);
+                subscriber.unregister();
+                publisher.unregister();
+                closeChannel(channel);
+                continue;
+            }
+
+            messengerMetrics.connectionOpened(subscriber, connection.getSocket().getInetAddress() + ":" + connection.getSocket().getPort());
+            connection.setIdleTracker(socketStateVerifier.track(connection.getSession(), () -> closeLater(connection)));
+            subscriber.setUpdateListener(() -> scheduleUpdate(connection));
+            connectionMessageHandler.onConnected(connection.getSession());
+            scheduleUpdate(connection);
+        }
+    }
+
+    private void handleSelectedKeys() {
+        Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+        while (iterator.hasNext()) {
+            SelectionKey key = iterator.next();
+            iterator.remove();
+
+            ChannelConnection connection = (ChannelConnection) key.attachment();
+            try {
+                if (key.isValid() && key.isReadable()) {
+                    handleInput(connection);
+                }
+                if (key.isValid() && key.isWritable() && flushOutput(connection)) {
+                    handleOutput(connection);
+                }
+            } catch (MessageFormatException e) {
+                log.info("Client [address {}, port {}] sent wrong message, closing connection", connection.getSocket().getInetAddress(), connection.getSocket().getPort());
+                close(connection);
+            } catch (IOException e) {
+                log.info("Client [address {}, port {}] unavailable, closing connection", connection.getSocket().getInetAddress(), connection.getSocket().getPort());
+                log.debug("Client [address {}, port {}] unavailable", connection.getSocket().getInetAddress(), connection.getSocket().getPort(), e);
+                close(connection);
+            } catch (ConnectionResetException e) {
+                log.info("Client [address {}, port {}] closed connection", connection.getSocket().getInetAddress(), connection.getSocket().getPort());
+                close(connection);
+            }
+        }
+    }
+
+    private void handleUpdatedConnections() {
+        ChannelConnection connection;
+        while ((connection = updatedConnections.poll()) != null) {
+            messengerMetrics.recordNotifierLag(System.nanoTime() - connection.getUpdateScheduledTime());
+            connection.getUpdateScheduled().set(false);
+            SelectionKey key = connection.getChannel().keyFor(selector);
+            if (key == null || !key.isValid()) {
+                continue;
+            }
+            try {
+                handleOutput(connection);
+            } catch (IOException e) {
+                log.info("Client [address {}, port {}] unavailable, closing connection", connection.getSocket().getInetAddress(), connection.getSocket().getPort());
+                log.debug("Client [address {}, port {}] unavailable", connection.getSocket().getInetAddress(), connection.getSocket().getPort(), e);
+                close(connection);
+            }
+        }
+    }
+
+    private void closeTimedOutConnections() {
+        ChannelConnection connection;
+        while ((connection = timedOutConnections.poll()) != null) {
+            SelectionKey key = connection.getChannel().keyFor(selector);
+            if (key != null && key.isValid()) {
+                close(connection);
+            }
+        }
+    }
+
+    private void handleInput(ChannelConnection connection) throws IOException, ConnectionResetException {
+        FrameBuffer frameBuffer = connection.getFrameBuffer();
+        if (connection.getChannel().read(frameBuffer.getBuffer()) < 0) {
+            throw new EOFException();
+        }
+        connection.getIdleTracker().onActivity();
+
+        ByteBuffer buffer = frameBuffer.flip();
+        try {
+            Message<?> message;
+            while ((message = messageEncoderDecoder.decode(buffer)) != null) {
+                connectionMessageHandler.handleMessage(connection.getSession(), message);
+            }
+            connectionMessageHandler.onReadComplete(connection.getSession());
+        } finally {
+            frameBuffer.compact();
+        }
+    }
+
+    private void handleOutput(ChannelConnection connection) throws IOException {
+        // Socket is not keeping up, leave the rest of the messages in the subscriber queue
+        if (!connection.getPendingWrites().isEmpty()) {
+            queueControlAhead(connection);
+            return;
+        }
+
+        MessageEnvelope envelope;
+        while ((envelope = connection.getSubscriber().pollEnvelope()) != null) {
+            recordControlDelay(envelope);
+            if (envelope.getMessage() instanceof ConnectionResetMessage) {
+                // Broker gave up on this subscriber, close sends the reset itself
+                envelope.release();
+                log.info("Client [address {}, port {}] is not keeping up, closing connection", connection.getSocket().getInetAddress(), connection.getSocket().getPort());
+                close(connection);
+                return;
+            }
+            connection.addPendingWrite(envelope, messageEncoderDecoder);
+        }
+        if (!connection.getPendingWrites().isEmpty()) {
+            flushOutput(connection);
+        }
+    }
+
+    private void queueControlAhead(ChannelConnection connection) throws IOException {
+        MessageSubscriber subscriber = connection.getSubscriber();
+        ArrayList<MessageEnvelope> control = null;
+        Message<?> next;
+        while ((next = subscriber.peekMessage()) != null && MessageEnvelope.isControl(next)) {
+            MessageEnvelope envelope = subscriber.pollEnvelope();
+            recordControlDelay(envelope);
+            if (envelope.getMessage() instanceof ConnectionResetMessage) {
+                envelope.release();
+                if (control != null) {
+                    control.forEach(MessageEnvelope::release);
+                }
+                log.info("Client [address {}, port {}] is not keeping up, closing connection", connection.getSocket().getInetAddress(), connection.getSocket().getPort());
+                close(connection);
+                return;
+            }
+            if (control == null) {
+                control = new ArrayList<>();
+            }
+            control.add(envelope);
+        }
+        if (control == null) {
+            return;
+        }
+        connection.addPendingWritesAfterHead(control, messageEncoderDecoder);
+    }
+
+    private void recordControlDelay(MessageEnvelope envelope) {
+        if (envelope.isControl()) {
+            messengerMetrics.recordControlDelay(System.nanoTime() - envelope.getPublishedNanos());
+        }
+    }
+
+    private boolean flushOutput(ChannelConnection connection) throws IOException {
+        boolean flushed = writePending(connection);
+
+        SelectionKey key = connection.getChannel().keyFor(selector);
+        if (!flushed) {
+            key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+            return false;
+        }
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+        return true;
+    }
+
+    // True if nothing is left pending, only frames written in full count as sent
+    private boolean writePending(ChannelConnection connection) throws IOException {
+        ArrayDeque<ByteBuffer> pendingWrites = connection.getPendingWrites();
+        ByteBuffer[] gatherBuffers = connection.getGatherBuffers();
+
+        while (!pendingWrites.isEmpty()) {
+            int count = 0;
+            for (ByteBuffer buffer : pendingWrites) {
+                if (count == gatherBuffers.length) {
+                    break;
+                }
+                gatherBuffers[count++] = buffer;
+            }
+
+            connection.getChannel().write(gatherBuffers, 0, count);
+            messengerMetrics.socketWritten();
+            boolean socketFull = gatherBuffers[count - 1].hasRemaining();
+            Arrays.fill(gatherBuffers, 0, count, null);
+
+            messengerMetrics.messagesSent(connection.removeWrittenBuffers());
+            if (socketFull) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void close(ChannelConnection connection) {
+        connection.getIdleTracker().cancel();
+        connection.getSubscriber().setUpdateListener(null);
+
+        // First, try to tell client about connection reset
+        try {
+            MessageEnvelope envelope;
+            while ((envelope = connection.getSubscriber().pollEnvelope()) != null) {
+                connection.addPendingWrite(envelope, messageEncoderDecoder);
+            }
+            connection.addPendingWrite(connectionResetEnvelope, messageEncoderDecoder);
+            writePending(connection);
+        } catch (Exception e) {
+            // do nothing
+        }
+        connection.discardPendingWrites();
+        connection.getFrameBuffer().release();
+
+        connectionMessageHandler.onDisconnected(connection.getSession());
+
+        messengerMetrics.connectionClosed(connection.getSubscriber());
+        connection.getSubscriber().unregister();
+        connection.getPublisher().unregister();
+
+        SelectionKey key = connection.getChannel().keyFor(selector);
+        if (key != null) {
+            key.cancel();
+        }
+        closeChannel(connection.getChannel());
+    }
+
+    private void closeChannel(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            log.error("Could not close connection, socket {}:{}", channel.socket().getInetAddress(), channel.socket().getPort(), e);
+        }
+    }
+}
@@ -1,117 +1,199 @@
 package org.rapturemain.tcpmessengerserver.connection;
 
 import lombok.extern.slf4j.Slf4j;
-import org.rapturemain.tcpmessengermessageframework.message.MessageEncoderDecoder;
-import org.rapturemain.tcpmessengermessageframework.message.base.BooleanEntry;
-import org.rapturemain.tcpmessengermessageframework.message.base.StringEntry;
-import org.rapturemain.tcpmessengermessageframework.message.base.TimestampEntry;
 import org.rapturemain.tcpmessengermessageframework.message.messages.Message;
 import org.rapturemain.tcpmessengermessageframework.message.messages.MessageFormatException;
-import org.rapturemain.tcpmessengermessageframework.message.messages.chat.ChatMessage;
-import org.rapturemain.tcpmessengermessageframework.message.messages.system.*;
+import org.rapturemain.tcpmessengermessageframework.message.messages.system.ConnectionResetMessage;
+import org.rapturemain.tcpmessengerserver.messagebroker.ByteBufferMessageEncoderDecoder;
 import org.rapturemain.tcpmessengerserver.messagebroker.MessageBroker;
+import org.rapturemain.tcpmessengerserver.messagebroker.MessageEnvelope;
 import org.rapturemain.tcpmessengerserver.messagebroker.MessagePublisher;
 import org.rapturemain.tcpmessengerserver.messagebroker.MessageSubscriber;
-import org.rapturemain.tcpmessengerserver.user.Name;
-import org.rapturemain.tcpmessengerserver.user.User;
+import org.rapturemain.tcpmessengerserver.messagebroker.SlowConsumerPolicy;
+import org.rapturemain.tcpmessengerserver.metrics.MessengerMetrics;
+import org.rapturemain.tcpmessengerserver.utils.ByteBufferOutputStream;
+import org.rapturemain.tcpmessengerserver.utils.ConcurrentArrayQueue;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.stereotype.Component;
 
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
-import java.io.IOException;
-import java.io.InputStream;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.*;
 import java.net.Socket;
-import java.net.SocketTimeoutException;
-import java.time.Instant;
-import java.util.Calendar;
+import java.nio.ByteBuffer;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
 @Component
+@ConditionalOnProperty(name = "messenger.transport", havingValue = "blocking", matchIfMissing = true)
 @Slf4j
 public class ConnectionHandlerImpl implements ConnectionHandler {
 
+    // Bounds the bytes taken off the queue but not written yet, the rest waits under the slow consumer policy
+    private static final int MAX_GATHER_SIZE = 64 * 1024;
+    private static final int MAX_POOLED_GATHER_SIZE = 2 * MAX_GATHER_SIZE;
+    private static final int POOLED_GATHER_BUFFERS = 64;
+    private static final long MAX_WATCHDOG_PERIOD_MILLIS = 1000;
+
+    private final MessageEnvelope connectionResetEnvelope = new MessageEnvelope(new ConnectionResetMessage());
+
     private final AsyncUpdateNotifier asyncUpdateNotifier;
     private final MessageBroker messageBroker;
-    private final MessageEncoderDecoder messageEncoderDecoder;
-    private final SocketRegistrationService socketRegistrationService;
+    private final ByteBufferMessageEncoderDecoder messageEncoderDecoder;
+    private final ConnectionMessageHandler connectionMessageHandler;
+    private final SocketConfigurer socketConfigurer;
+    private final SocketStateVerifier socketStateVerifier;
+    private final MessengerMetrics messengerMetrics;
+    private final SlowConsumerPolicy slowConsumerPolicy;
+    private final long writeTimeoutMillis;
+    private final Executor connectionExecutor;
+
+    private final ScheduledExecutorService writeWatchdog = Executors.newSingleThreadScheduledExecutor();
+    private final Set<WriteTracker> writeTrackers = ConcurrentHashMap.newKeySet();
+
+    private final ConcurrentArrayQueue<ByteBufferOutputStream> gatherBuffers = new ConcurrentArrayQueue<>(POOLED_GATHER_BUFFERS);
 
     @Autowired
-    public ConnectionHandlerImpl(AsyncUpdateNotifier asyncUpdateNotifier, MessageBroker messageBroker, MessageEncoderDecoder messageEncoderDecoder, SocketRegistrationService socketRegistrationService) {
+    public ConnectionHandlerImpl(AsyncUpdateNotifier asyncUpdateNotifier,
+                                 MessageBroker messageBroker,
+                                 ByteBufferMessageEncoderDecoder messageEncoderDecoder,
+                                 ConnectionMessageHandler connectionMessageHandler,
+                                 SocketConfigurer socketConfigurer,
+                                 SocketStateVerifier socketStateVerifier,
+                                 MessengerMetrics messengerMetrics,
+                                 SlowConsumerPolicy slowConsumerPolicy,
+                                 @Value("${messenger.connection.threads:platform}") String connectionThreads,
+                                 @Value("${messenger.connection.write-timeout-ms:10000}") long writeTimeoutMillis) {
         this.asyncUpdateNotifier = asyncUpdateNotifier;
         this.messageBroker = messageBroker;
         this.messageEncoderDecoder = messageEncoderDecoder;
-        this.socketRegistrationService = socketRegistrationService;
+        this.connectionMessageHandler = connectionMessageHandler;
+        this.socketConfigurer = socketConfigurer;
+        this.socketStateVerifier = socketStateVerifier;
+        this.messengerMetrics = messengerMetrics;
+        this.slowConsumerPolicy = slowConsumerPolicy;
+        this.writeTimeoutMillis = writeTimeoutMillis;
+        this.connectionExecutor = ConnectionThreads.connectionExecutor(connectionThreads);
+    }
+
+    @PostConstruct
+    public void start() {
+        if (writeTimeoutMillis > 0) {
+            long period = Math.max(1, Math.min(writeTimeoutMillis / 4, MAX_WATCHDOG_PERIOD_MILLIS));
+            writeWatchdog.scheduleAtFixedRate(this::checkWrites, period, period, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @PreDestroy
+    public void stop() {
+        writeWatchdog.shutdownNow();
     }
 
     @Override
     public void handleConnection(Socket socket) {
         log.info("Handling connection {}, {}", socket.getInetAddress(), socket.getPort());
-        new Thread(() -> handleConnectionInternal(socket)).start();
+        connectionExecutor.execute(() -> handleConnectionInternal(socket));
+    }
+
+    private void checkWrites() {
+        try {
+            long now = System.nanoTime();
+            long timeoutNanos = TimeUnit.MILLISECONDS.toNanos(writeTimeoutMillis);
+            for (WriteTracker tracker : writeTrackers) {
+                if (tracker.checkStalled(now, timeoutNanos)) {
+                    Socket socket = tracker.session.getSocket();
+                    log.info("Client [address {}, port {}] has not taken output for {} ms, closing connection", socket.getInetAddress(), socket.getPort(), writeTimeoutMillis);
+                    slowConsumerPolicy.onStalled();
+                    closeSocket(socket);
+                }
+            }
+        } catch (RuntimeException e) {
+            // An exception would cancel the periodic task
+            log.error("Write deadline check failed", e);
+        }
     }
 
     private void handleConnectionInternal(Socket socket) {
         InputStream socketIS;
-        DataInputStream dis;
-        DataOutputStream dos;
+        OutputStream socketOS;
 
         try {
-            socket.setSoTimeout((int) TimeUnit.SECONDS.toMillis(30));
+            socketConfigurer.configure(socket);
             socketIS = socket.getInputStream();
-            dis = new DataInputStream(socketIS);
-            dos = new DataOutputStream(socket.getOutputStream());
+            socketOS = socket.getOutputStream();
         } catch (IOException e) {
             log.error("Client [address {}, port {}] attempted connection, but failed to get Input/Output streams", socket.getInetAddress(), socket.getPort(), e);
             return;
         }
 
         MessagePublisher publisher = messageBroker.registerPublisher();
-        MessageSubscriber subscriber = messageBroker.registerSubscriber();
-        UpdateNotifierContext unc = asyncUpdateNotifier.subscribeForUpdates(socketIS, subscriber);
+        MessageSubscriber subscriber = messageBroker.registerHeldSubscriber();
+        ConnectionSession session = new ConnectionSession(socket, publisher, subscriber);
+        messengerMetrics.connectionOpened(subscriber, socket.getInetAddress() + ":" + socket.getPort());
+        WriteTracker writeTracker = new WriteTracker(session);
+        writeTrackers.add(writeTracker);
+        ConnectionState state = new ConnectionState(() -> handleOutputUpdate(writeTracker, socketOS), () -> closeConnection(writeTracker, socketOS));
+        UpdateNotifierContext unc = asyncUpdateNotifier.subscribeForUpdates(subscriber, state::requestDrain);
+        // Ends the read below like a client EOF would, the reset is still sent on the way out
+        IdleTracker idleTracker = socketStateVerifier.track(session, () -> shutdownInput(socket));
 
-        onUserConnected(publisher);
+        connectionMessageHandler.onConnected(session);
 
+        FrameBuffer frameBuffer = new FrameBuffer();
         try {
             while (true) {
-                synchronized (unc.getIsWorking()) {
-                    try {
-                        unc.getIsWorking().wait();
-                    } catch (InterruptedException e) {
-                        // do nothing
-                    }
-                    unc.getIsWorking().set(true);
-
-                    handleInput(socket, dis, publisher, subscriber);
-                    handleOutput(subscriber, dos);
-
-                    unc.getIsWorking().set(false);
-                }
+                handleInput(session, socketIS, frameBuffer, idleTracker);
             }
         } catch (MessageFormatException e) {
             log.info("Client [address {}, port {}] sent wrong message, closing connection", socket.getInetAddress(), socket.getPort());
-        } catch (SocketTimeoutException e) {
-            log.info("Client [address {}, port {}] timed out, closing connection", socket.getInetAddress(), socket.getPort());
         } catch (IOException e) {
             log.info("Client [address {}, port {}] unavailable, closing connection", socket.getInetAddress(), socket.getPort());
             log.debug("Client [address {}, port {}] unavailable", socket.getInetAddress(), socket.getPort(), e);
         } catch (ConnectionResetException e) {
             log.info("Client [address {}, port {}] closed connection", socket.getInetAddress(), socket.getPort());
         } finally {
-            // First, try to tell client about connection reset
-            try {
-                publisher.publishToSubscriber(new ConnectionResetMessage(), subscriber).get();
-                handleOutput(subscriber, dos);
-            } catch (Exception e) {
-                // do nothing
-            }
+            frameBuffer.release();
+            idleTracker.cancel();
+            asyncUpdateNotifier.unsubscribeForUpdates(unc);
+            state.close();
+        }
+    }
 
-            onUserDisconnected(socket, publisher);
+    // Runs once, after the last drain of the connection's output has finished, on a thread of the connection
+    private void closeConnection(WriteTracker writeTracker, OutputStream socketOS) {
+        ConnectionSession session = writeTracker.session;
+        Socket socket = session.getSocket();
+        MessagePublisher publisher = session.getPublisher();
+        MessageSubscriber subscriber = session.getSubscriber();
 
-            socketRegistrationService.unregister(socket);
-            asyncUpdateNotifier.unsubscribeForUpdates(unc);
-            subscriber.unregister();
-            publisher.unregister();
+        // First, try to tell client about connection reset
+        // Written after whatever is still queued, the control lane would put it ahead
+        try {
+            if (!handleOutput(writeTracker, socketOS)) {
+                writeTracker.onWriteStarted();
+                try {
+                    socketOS.write(connectionResetEnvelope.getEncoded(messageEncoderDecoder), 0, connectionResetEnvelope.getEncodedLength());
+                    messengerMetrics.socketWritten();
+                } finally {
+                    writeTracker.onWriteFinished();
+                }
+            }
+        } catch (Exception e) {
+            // do nothing
         }
+        writeTrackers.remove(writeTracker);
+
+        connectionMessageHandler.onDisconnected(session);
+
+        messengerMetrics.connectionClosed(subscriber);
+        subscriber.unregister();
+        publisher.unregister();
 
         try {
             socket.close();
@@ -120,117 +202,120 @@ public class ConnectionHandlerImpl implements ConnectionHandler {
         }
     }
 
-    private void handleInput(Socket socket, DataInputStream dis, MessagePublisher publisher, MessageSubscriber subscriber) throws IOException, ConnectionResetException {
-        Message<?> message;
-        while ((message = messageEncoderDecoder.decode(dis)) != null) {
-            if (!socketRegistrationService.isRegistered(socket)) {
-                handleFirstRegistrationAndResponse(socket, message, publisher, subscriber);
-                continue;
-            }
-            if (message instanceof SystemMessage) {
-                handleSystemMessage((SystemMessage<?>) message);
-                continue;
-            }
-            if (message instanceof ChatMessage) {
-                ChatMessage<?> chatMessage = (ChatMessage<?>) message;
-                chatMessage.setSenderName(new StringEntry(socketRegistrationService.getUserForSocket(socket).getName().getName()));
-                chatMessage.setTimestamp(new TimestampEntry(Calendar.getInstance().getTimeInMillis()));
-            }
-            publisher.publishMessage(message);
+    private void handleInput(ConnectionSession session, InputStream socketIS, FrameBuffer frameBuffer, IdleTracker idleTracker) throws IOException, ConnectionResetException {
+        ByteBuffer buffer = frameBuffer.getBuffer();
+        int read = socketIS.read(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+        if (read < 0) {
+            throw new EOFException();
         }
-    }
+        idleTracker.onActivity();
+        buffer.position(buffer.position() + read);
 
-    private void handleSystemMessage(SystemMessage<?> message) throws ConnectionResetException {
-        handleConnectionReset(message);
+        frameBuffer.flip();
+        try {
+            Message<?> message;
+            while ((message = messageEncoderDecoder.decode(buffer)) != null) {
+                connectionMessageHandler.handleMessage(session, message);
+            }
+            connectionMessageHandler.onReadComplete(session);
+        } finally {
+            frameBuffer.compact();
+        }
     }
 
-    private void handleConnectionReset(SystemMessage<?> message) throws ConnectionResetException {
-        if (message instanceof ConnectionResetMessage) {
-            throw new ConnectionResetException();
+    private void handleOutputUpdate(WriteTracker writeTracker, OutputStream outputStream) {
+        Socket socket = writeTracker.session.getSocket();
+        try {
+            if (handleOutput(writeTracker, outputStream)) {
+                log.info("Client [address {}, port {}] is not keeping up, closing connection", socket.getInetAddress(), socket.getPort());
+                closeSocket(socket);
+            }
+        } catch (IOException e) {
+            log.debug("Client [address {}, port {}] unavailable for output", socket.getInetAddress(), socket.getPort(), e);
+            closeSocket(socket);
         }
     }
 
-    private boolean isIgnoredWhenRegistration(Message<?> message) {
-        return message instanceof PingRequest ||
-                message instanceof PingResponse;
-    }
+    private boolean handleOutput(WriteTracker writeTracker, OutputStream outputStream) throws IOException {
+        ConnectionSession session = writeTracker.session;
+        ByteBufferOutputStream gatherBuffer = acquireGatherBuffer();
 
-    private void handleFirstRegistrationAndResponse(Socket socket, Message<?> message, MessagePublisher publisher, MessageSubscriber subscriber) throws ConnectionResetException {
+        boolean reset = false;
+        int sent = 0;
         try {
-            if (handleFirstRegistration(socket, message)) {
-                publisher.publishToSubscriber(RegistrationResponseMessage.builder()
-                        .success(new BooleanEntry(true))
-                        .name(new StringEntry(socketRegistrationService.getUserForSocket(socket).getName().getName()))
-                        .timestamp(new TimestampEntry(Instant.now().toEpochMilli()))
-                        .build(), subscriber);
-                onUserRegistered(socket, publisher);
+            MessageEnvelope envelope;
+            while ((envelope = session.getSubscriber().pollEnvelope()) != null) {
+                if (envelope.isControl()) {
+                    messengerMetrics.recordControlDelay(System.nanoTime() - envelope.getPublishedNanos());
+                }
+                gather(gatherBuffer, envelope);
+                sent++;
+                if (envelope.getMessage() instanceof ConnectionResetMessage) {
+                    reset = true;
+                    break;
+                }
+                if (gatherBuffer.getBuffer().position() >= MAX_GATHER_SIZE) {
+                    writeGathered(gatherBuffer, outputStream, writeTracker);
+                }
             }
-        } catch (UnregisteredException e) {
-            publisher.publishToSubscriber(RegistrationResponseMessage.builder()
-                    .success(new BooleanEntry(false))
-                    .message(new StringEntry("Connection not registered"))
-                    .build(), subscriber);
-        } catch (SocketRegistrationException e) {
-            publisher.publishToSubscriber(RegistrationResponseMessage.builder()
-                    .success(new BooleanEntry(false))
-                    .message(new StringEntry("Credentials not available"))
-                    .build(), subscriber);
+            writeGathered(gatherBuffer, outputStream, writeTracker);
+        } finally {
+            releaseGatherBuffer(gatherBuffer);
         }
+        messengerMetrics.messagesSent(sent);
+        return reset;
     }
 
-    private boolean handleFirstRegistration(Socket socket, Message<?> message) throws UnregisteredException, SocketRegistrationException, ConnectionResetException {
-        if (isIgnoredWhenRegistration(message)) {
-            return false;
-        }
-        if (message instanceof SystemMessage<?>) {
-            handleConnectionReset((SystemMessage<?>) message);
-        }
-        if (!(message instanceof RegistrationRequestMessage)) {
-            throw new UnregisteredException();
-        }
-        handleRegistrationMessage(socket, (RegistrationRequestMessage) message);
-        return true;
+    private ByteBufferOutputStream acquireGatherBuffer() {
+        ByteBufferOutputStream gatherBuffer = gatherBuffers.poll();
+        return gatherBuffer != null ? gatherBuffer : new ByteBufferOutputStream(MAX_GATHER_SIZE);
     }
 
-    private void handleRegistrationMessage(Socket socket, RegistrationRequestMessage message) throws SocketRegistrationException {
-        if (message.getName() == null || message.getName().getString() == null || message.getName().getString().equals("")) {
-            throw new SocketRegistrationException();
+    private void releaseGatherBuffer(ByteBufferOutputStream gatherBuffer) {
+        ByteBuffer buffer = gatherBuffer.getBuffer();
+        if (buffer.capacity() > MAX_POOLED_GATHER_SIZE) {
+            return;
         }
-        User user = User.builder()
-                .name(new Name(message.getName().getString()))
-                .build();
-        socketRegistrationService.register(socket, user);
+        buffer.clear();
+        gatherBuffers.offer(gatherBuffer);
     }
 
-    private void handleOutput(MessageSubscriber subscriber, DataOutputStream dataOutputStream) throws IOException {
-        Message<?> message;
-        while ((message = subscriber.pollMessage()) != null) {
-            messageEncoderDecoder.encode(message, dataOutputStream);
+    private void gather(ByteBufferOutputStream gatherBuffer, MessageEnvelope envelope) throws IOException {
+        try {
+            gatherBuffer.write(envelope.getEncoded(messageEncoderDecoder), 0, envelope.getEncodedLength());
+        } finally {
+            envelope.release();
         }
-        dataOutputStream.flush();
     }
 
-    private void onUserConnected(MessagePublisher publisher) {
-        publisher.publishMessage(UserConnectedMessage.builder()
-                .timestamp(new TimestampEntry(Instant.now().toEpochMilli()))
-                .build());
+    private void shutdownInput(Socket socket) {
+        try {
+            socket.shutdownInput();
+        } catch (IOException e) {
+            closeSocket(socket);
+        }
     }
 
-    private void onUserRegistered(Socket socket, MessagePublisher publisher) {
-        publisher.publishMessage(UserRegisteredMessage.builder()
-                .name(new StringEntry(socketRegistrationService.getUserForSocket(socket).getName().getName()))
-                .timestamp(new TimestampEntry(Instant.now().toEpochMilli()))
-                .build());
+    private void closeSocket(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // do nothing
+        }
     }
 
-    private void onUserDisconnected(Socket socket, MessagePublisher publisher) {
-        StringEntry name = null;
-        if (socketRegistrationService.isRegistered(socket)) {
-            name = new StringEntry(socketRegistrationService.getUserForSocket(socket).getName().getName());
+    private void writeGathered(ByteBufferOutputStream gatherBuffer, OutputStream outputStream, WriteTracker writeTracker) throws IOException {
+        ByteBuffer buffer = gatherBuffer.getBuffer();
+        if (buffer.position() == 0) {
+            return;
+        }
+        writeTracker.onWriteStarted();
+        try {
+            outputStream.write(buffer.array(), 0, buffer.position());
+            messengerMetrics.socketWritten();
+        } finally {
+            writeTracker.onWriteFinished();
         }
-        publisher.publishMessage(UserDisconnectedMessage.builder()
-                .name(name)
-                .timestamp(new TimestampEntry(Instant.now().toEpochMilli()))
-                .build());
+        buffer.clear();
     }
-}
\ No newline at end of file
+}
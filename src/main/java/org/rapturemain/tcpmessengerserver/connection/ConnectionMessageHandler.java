@@ -0,0 +1,21 @@
+package org.rapturemain.tcpmessengerserver.connection;
+
+import org.rapturemain.tcpmessengermessageframework.message.messages.Message;
+
+public interface ConnectionMessageHandler {
+
+    void onConnected(ConnectionSession session);
+
+    void handleMessage(ConnectionSession session, Message<?> message) throws ConnectionResetException;
+
+    // Called after every message decoded by one read has been handled, publishes what they held back
+    void onReadComplete(ConnectionSession session);
+
+    void onDisconnected(ConnectionSession session);
+
+    void joinTopic(ConnectionSession session, String topic);
+
+    void leaveTopic(ConnectionSession session);
+
+    boolean sendDirectMessage(ConnectionSession session, String recipientName, Message<?> message);
+}
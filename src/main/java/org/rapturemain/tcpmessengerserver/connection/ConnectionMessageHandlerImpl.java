@@ -0,0 +1,319 @@
+package org.rapturemain.tcpmessengerserver.connection;
+
+import lombok.extern.slf4j.Slf4j;
+import org.rapturemain.tcpmessengermessageframework.message.base.BooleanEntry;
+import org.rapturemain.tcpmessengermessageframework.message.base.StringEntry;
+import org.rapturemain.tcpmessengermessageframework.message.base.TimestampEntry;
+import org.rapturemain.tcpmessengermessageframework.message.messages.Message;
+import org.rapturemain.tcpmessengermessageframework.message.messages.chat.ChatMessage;
+import org.rapturemain.tcpmessengermessageframework.message.messages.chat.SimpleChatMessage;
+import org.rapturemain.tcpmessengermessageframework.message.messages.system.*;
+import org.rapturemain.tcpmessengerserver.chatlog.ChatLog;
+import org.rapturemain.tcpmessengerserver.messagebroker.MessagePublisher;
+import org.rapturemain.tcpmessengerserver.messagebroker.MessageSubscriber;
+import org.rapturemain.tcpmessengerserver.metrics.MessengerMetrics;
+import org.rapturemain.tcpmessengerserver.user.Name;
+import org.rapturemain.tcpmessengerserver.user.User;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+
+@Component
+@Slf4j
+public class ConnectionMessageHandlerImpl implements ConnectionMessageHandler {
+
+    private static final String JOIN_COMMAND = "/join";
+    private static final String LEAVE_COMMAND = "/leave";
+    private static final String MESSAGE_COMMAND = "/msg";
+    private static final String REPLAY_COMMAND = "/replay";
+    private static final int MAX_REPLAYED_MESSAGES = 1000;
+
+    private final SocketRegistrationService socketRegistrationService;
+    private final MessengerMetrics messengerMetrics;
+    private final ChatLog chatLog;
+
+    @Autowired
+    public ConnectionMessageHandlerImpl(SocketRegistrationService socketRegistrationService, MessengerMetrics messengerMetrics,
+                                        ChatLog chatLog) {
+        this.socketRegistrationService = socketRegistrationService;
+        this.messengerMetrics = messengerMetrics;
+        this.chatLog = chatLog;
+    }
+
+    @Override
+    public void onConnected(ConnectionSession session) {
+        session.getPublisher().publishMessageNoWait(UserConnectedMessage.builder()
+                .timestamp(new TimestampEntry(System.currentTimeMillis()))
+                .build());
+    }
+
+    @Override
+    public void handleMessage(ConnectionSession session, Message<?> message) throws ConnectionResetException {
+        messengerMetrics.messageReceived();
+        if (!session.isRegistered()) {
+            handleFirstRegistrationAndResponse(session, message);
+            return;
+        }
+        if (message instanceof SystemMessage) {
+            handleSystemMessage((SystemMessage<?>) message);
+            return;
+        }
+        if (message instanceof ChatMessage) {
+            if (handleCommand(session, message)) {
+                return;
+            }
+            ChatMessage<?> chatMessage = (ChatMessage<?>) message;
+            stamp(session, chatMessage);
+            String topic = session.getTopic();
+            if (topic == null) {
+                // Only public broadcasts are logged, a replay goes to whoever asks for it
+                chatLog.append(chatMessage);
+            } else {
+                flushBroadcasts(session);
+                session.getPublisher().publishToTopic(topic, message);
+                return;
+            }
+        }
+        session.getPendingBroadcasts().add(message);
+    }
+
+    @Override
+    public void onReadComplete(ConnectionSession session) {
+        flushBroadcasts(session);
+    }
+
+    @Override
+    public void onDisconnected(ConnectionSession session) {
+        // Seen by a registration completing from now on, which then unregisters itself
+        session.onDisconnected();
+        flushBroadcasts(session);
+        session.getPublisher().publishMessageNoWait(UserDisconnectedMessage.builder()
+                .name(session.getSenderName())
+                .timestamp(new TimestampEntry(System.currentTimeMillis()))
+                .build());
+
+        if (session.isRegistered()) {
+            socketRegistrationService.unregister(session.getSocket());
+        }
+    }
+
+    @Override
+    public void joinTopic(ConnectionSession session, String topic) {
+        String current = session.getTopic();
+        if (topic.equals(current)) {
+            return;
+        }
+        if (current != null) {
+            session.getSubscriber().leaveTopic(current);
+        }
+        session.getSubscriber().joinTopic(topic);
+        session.setTopic(topic);
+    }
+
+    @Override
+    public void leaveTopic(ConnectionSession session) {
+        String current = session.getTopic();
+        if (current == null) {
+            return;
+        }
+        session.getSubscriber().leaveTopic(current);
+        session.setTopic(null);
+    }
+
+    @Override
+    public boolean sendDirectMessage(ConnectionSession session, String recipientName, Message<?> message) {
+        if (!session.isRegistered()) {
+            return false;
+        }
+        MessageSubscriber recipient = socketRegistrationService.getSubscriberForName(recipientName);
+        if (recipient == null) {
+            return false;
+        }
+        if (message instanceof ChatMessage) {
+            stamp(session, (ChatMessage<?>) message);
+        }
+        session.getPublisher().publishToSubscriber(message, recipient);
+        return true;
+    }
+
+    private void flushBroadcasts(ConnectionSession session) {
+        List<Message<?>> pending = session.getPendingBroadcasts();
+        if (pending.isEmpty()) {
+            return;
+        }
+        if (pending.size() == 1) {
+            session.getPublisher().publishMessageNoWait(pending.get(0));
+        } else {
+            session.getPublisher().publishMessagesNoWait(pending);
+        }
+        pending.clear();
+    }
+
+    private static void stamp(ConnectionSession session, ChatMessage<?> message) {
+        message.setSenderName(session.getSenderName());
+        message.setTimestamp(new TimestampEntry(System.currentTimeMillis()));
+    }
+
+    private boolean handleCommand(ConnectionSession session, Message<?> message) {
+        if (!(message instanceof SimpleChatMessage)) {
+            return false;
+        }
+        StringEntry text = ((SimpleChatMessage) message).getMessage();
+        if (text == null || text.getString() == null || !text.getString().startsWith("/")) {
+            return false;
+        }
+        String[] words = text.getString().trim().split("\\s+", 2);
+        switch (words[0]) {
+            case JOIN_COMMAND:
+                if (words.length < 2) {
+                    log.debug("Client [address {}, port {}] sent {} without a room", session.getSocket().getInetAddress(), session.getSocket().getPort(), JOIN_COMMAND);
+                    return true;
+                }
+                flushBroadcasts(session);
+                joinTopic(session, words[1]);
+                return true;
+            case LEAVE_COMMAND:
+                flushBroadcasts(session);
+                leaveTopic(session);
+                return true;
+            case MESSAGE_COMMAND:
+                String[] arguments = words.length < 2 ? new String[0] : words[1].split("\\s+", 2);
+                if (arguments.length < 2) {
+                    log.debug("Client [address {}, port {}] sent {} without a recipient and text", session.getSocket().getInetAddress(), session.getSocket().getPort(), MESSAGE_COMMAND);
+                    return true;
+                }
+                flushBroadcasts(session);
+                ((SimpleChatMessage) message).setMessage(new StringEntry(arguments[1]));
+                if (!sendDirectMessage(session, arguments[0], message)) {
+                    log.debug("Client [address {}, port {}] sent a message to unknown user {}", session.getSocket().getInetAddress(), session.getSocket().getPort(), arguments[0]);
+                }
+                return true;
+            case REPLAY_COMMAND:
+                int count = words.length < 2 ? 0 : parseCount(words[1]);
+                if (count <= 0) {
+                    log.debug("Client [address {}, port {}] sent {} without a message count", session.getSocket().getInetAddress(), session.getSocket().getPort(), REPLAY_COMMAND);
+                    return true;
+                }
+                replay(session, Math.min(count, MAX_REPLAYED_MESSAGES));
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private void replay(ConnectionSession session, int count) {
+        long last = chatLog.getLastSequence();
+        if (last == ChatLog.NO_SEQUENCE) {
+            return;
+        }
+        chatLog.replay(Math.max(0, last - count + 1), count, session.getPublisher(), session.getSubscriber());
+    }
+
+    private static int parseCount(String count) {
+        try {
+            return Integer.parseInt(count);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private void handleSystemMessage(SystemMessage<?> message) throws ConnectionResetException {
+        handleConnectionReset(message);
+    }
+
+    private void handleConnectionReset(SystemMessage<?> message) throws ConnectionResetException {
+        if (message instanceof ConnectionResetMessage) {
+            throw new ConnectionResetException();
+        }
+    }
+
+    private boolean isIgnoredWhenRegistration(Message<?> message) {
+        return message instanceof PingRequest ||
+                message instanceof PingResponse;
+    }
+
+    private void handleFirstRegistrationAndResponse(ConnectionSession session, Message<?> message) throws ConnectionResetException {
+        MessagePublisher publisher = session.getPublisher();
+        MessageSubscriber subscriber = session.getSubscriber();
+        try {
+            handleFirstRegistration(session, message);
+        } catch (UnregisteredException e) {
+            publisher.publishToSubscriber(RegistrationResponseMessage.builder()
+                    .success(new BooleanEntry(false))
+                    .message(new StringEntry("Connection not registered"))
+                    .build(), subscriber);
+        } catch (SocketRegistrationException e) {
+            publishCredentialsNotAvailable(session);
+        }
+    }
+
+    private void handleFirstRegistration(ConnectionSession session, Message<?> message) throws UnregisteredException, SocketRegistrationException, ConnectionResetException {
+        if (message instanceof SystemMessage<?>) {
+            handleConnectionReset((SystemMessage<?>) message);
+        }
+        if (isIgnoredWhenRegistration(message)) {
+            return;
+        }
+        if (session.isRegistering()) {
+            log.debug("Client [address {}, port {}] sent a message while its registration is pending, dropped", session.getSocket().getInetAddress(), session.getSocket().getPort());
+            return;
+        }
+        if (!(message instanceof RegistrationRequestMessage)) {
+            throw new UnregisteredException();
+        }
+        handleRegistrationMessage(session, (RegistrationRequestMessage) message);
+    }
+
+    private void handleRegistrationMessage(ConnectionSession session, RegistrationRequestMessage message) throws SocketRegistrationException {
+        if (message.getName() == null || message.getName().getString() == null || message.getName().getString().equals("")) {
+            throw new SocketRegistrationException();
+        }
+        User user = User.builder()
+                .name(new Name(message.getName().getString()))
+                .build();
+        session.setRegistering(true);
+        socketRegistrationService.register(session.getSocket(), user, session.getSubscriber())
+                .whenComplete((registered, e) -> {
+                    if (e != null) {
+                        log.warn("Client [address {}, port {}] registration failed", session.getSocket().getInetAddress(), session.getSocket().getPort(), e);
+                    }
+                    completeRegistration(session, user, e == null && registered);
+                });
+    }
+
+    private void completeRegistration(ConnectionSession session, User user, boolean registered) {
+        if (!registered) {
+            session.setRegistering(false);
+            publishCredentialsNotAvailable(session);
+            return;
+        }
+        session.onRegistered(user);
+        if (session.isDisconnected()) {
+            // Gone while the name was claimed, onDisconnected may not have seen it registered
+            socketRegistrationService.unregister(session.getSocket());
+            return;
+        }
+        RegistrationResponseMessage response = RegistrationResponseMessage.builder()
+                .success(new BooleanEntry(true))
+                .name(session.getSenderName())
+                .timestamp(new TimestampEntry(System.currentTimeMillis()))
+                .build();
+        session.getPublisher().admitSubscriber(response, session.getSubscriber());
+        onUserRegistered(session);
+    }
+
+    private void publishCredentialsNotAvailable(ConnectionSession session) {
+        session.getPublisher().publishToSubscriber(RegistrationResponseMessage.builder()
+                .success(new BooleanEntry(false))
+                .message(new StringEntry("Credentials not available"))
+                .build(), session.getSubscriber());
+    }
+
+    private void onUserRegistered(ConnectionSession session) {
+        session.getPublisher().publishMessageNoWait(UserRegisteredMessage.builder()
+                .name(session.getSenderName())
+                .timestamp(new TimestampEntry(System.currentTimeMillis()))
+                .build());
+    }
+}
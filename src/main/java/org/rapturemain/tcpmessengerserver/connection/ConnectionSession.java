@@ -0,0 +1,73 @@
+package org.rapturemain.tcpmessengerserver.connection;
+
+import lombok.AccessLevel;
+import lombok.Getter;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.rapturemain.tcpmessengermessageframework.message.base.StringEntry;
+import org.rapturemain.tcpmessengermessageframework.message.messages.Message;
+import org.rapturemain.tcpmessengerserver.messagebroker.MessagePublisher;
+import org.rapturemain.tcpmessengerserver.messagebroker.MessageSubscriber;
+import org.rapturemain.tcpmessengerserver.user.User;
+
+import java.net.Socket;
+import java.util.ArrayList;
+
+@Getter
+public final class ConnectionSession {
+
+    private final Socket socket;
+    private final MessagePublisher publisher;
+    private final MessageSubscriber subscriber;
+
+    // Written by the connection's input thread, may be read by others
+    @Nullable
+    private volatile User user;
+    @Nullable
+    private volatile StringEntry senderName;
+    @Nullable
+    private volatile String topic;
+    @Getter(AccessLevel.NONE)
+    private volatile boolean registering;
+    @Getter(AccessLevel.NONE)
+    private volatile boolean disconnected;
+
+    // Broadcasts of the current read pass, owned by the connection's input thread
+    @Getter(AccessLevel.PACKAGE)
+    private final ArrayList<Message<?>> pendingBroadcasts = new ArrayList<>();
+
+    public ConnectionSession(@NotNull Socket socket, @NotNull MessagePublisher publisher, @NotNull MessageSubscriber subscriber) {
+        this.socket = socket;
+        this.publisher = publisher;
+        this.subscriber = subscriber;
+    }
+
+    public boolean isRegistered() {
+        return user != null;
+    }
+
+    void onRegistered(@NotNull User user) {
+        this.senderName = new StringEntry(user.getName().getName());
+        this.user = user;
+    }
+
+    void setTopic(@Nullable String topic) {
+        this.topic = topic;
+    }
+
+    boolean isRegistering() {
+        return registering;
+    }
+
+    void setRegistering(boolean registering) {
+        this.registering = registering;
+    }
+
+    boolean isDisconnected() {
+        return disconnected;
+    }
+
+    void onDisconnected() {
+        this.disconnected = true;
+    }
+}
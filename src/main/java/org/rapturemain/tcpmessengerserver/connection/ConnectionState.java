@@ -0,0 +1,90 @@
+package org.rapturemain.tcpmessengerserver.connection;
+
+import lombok.extern.slf4j.Slf4j;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Lifecycle of a blocking transport connection, kept without locks. At most one thread drains at a time, a drain
+ * requested meanwhile is run by that thread before it lets go, and the close action runs exactly once, on whichever
+ * thread leaves the connection last.
+ */
+@Slf4j
+final class ConnectionState {
+
+    private static final int DRAINING = 1;
+    // Output arrived while draining, the draining thread goes round once more
+    private static final int PENDING = 1 << 1;
+    // Input has ended, the connection closes as soon as no thread drains it
+    private static final int CLOSING = 1 << 2;
+    private static final int CLOSED = 1 << 3;
+
+    private final AtomicInteger state = new AtomicInteger();
+    private final Runnable drain;
+    private final Runnable closeAction;
+
+    ConnectionState(@NotNull Runnable drain, @NotNull Runnable closeAction) {
+        this.drain = drain;
+        this.closeAction = closeAction;
+    }
+
+    void requestDrain() {
+        while (true) {
+            int s = state.get();
+            if ((s & CLOSING) != 0) {
+                return;
+            }
+            if ((s & DRAINING) == 0) {
+                if (state.compareAndSet(s, DRAINING)) {
+                    break;
+                }
+            } else if ((s & PENDING) != 0 || state.compareAndSet(s, s | PENDING)) {
+                return;
+            }
+        }
+        do {
+            try {
+                drain.run();
+            } catch (RuntimeException e) {
+                // Letting go must not be skipped, the connection could never close otherwise
+                log.error("Connection output failed", e);
+            }
+        } while (keepDraining());
+    }
+
+    void close() {
+        while (true) {
+            int s = state.get();
+            if ((s & CLOSING) != 0) {
+                return;
+            }
+            if ((s & DRAINING) != 0) {
+                if (state.compareAndSet(s, s | CLOSING)) {
+                    return;
+                }
+            } else if (state.compareAndSet(s, CLOSING | CLOSED)) {
+                closeAction.run();
+                return;
+            }
+        }
+    }
+
+    private boolean keepDraining() {
+        while (true) {
+            int s = state.get();
+            if ((s & CLOSING) != 0) {
+                state.set(CLOSING | CLOSED);
+                closeAction.run();
+                return false;
+            }
+            if ((s & PENDING) != 0) {
+                if (state.compareAndSet(s, DRAINING)) {
+                    return true;
+                }
+            } else if (state.compareAndSet(s, 0)) {
+                return false;
+            }
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package org.rapturemain.tcpmessengerserver.connection;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Threads of the blocking transport, platform or virtual as set by {@code messenger.connection.threads}.
+ */
+final class ConnectionThreads {
+
+    static final String PLATFORM = "platform";
+    static final String VIRTUAL = "virtual";
+
+    private ConnectionThreads() {
+
+    }
+
+    @NotNull
+    static Executor connectionExecutor(@NotNull String connectionThreads) {
+        if (PLATFORM.equals(connectionThreads)) {
+            return task -> new Thread(task).start();
+        }
+        return virtualThreadPerTask(connectionThreads);
+    }
+
+    // At most outputThreads platform threads, or a virtual thread per task
+    @NotNull
+    static ExecutorService outputExecutor(@NotNull String connectionThreads, int outputThreads) {
+        if (PLATFORM.equals(connectionThreads)) {
+            return Executors.newFixedThreadPool(outputThreads > 0 ? outputThreads : Runtime.getRuntime().availableProcessors());
+        }
+        return virtualThreadPerTask(connectionThreads);
+    }
+
+    private static ExecutorService virtualThreadPerTask(String connectionThreads) {
+        if (!VIRTUAL.equals(connectionThreads)) {
+            throw new IllegalArgumentException("Unknown connection threads mode [" + connectionThreads + "], expected platform or virtual");
+        }
+        // Looked up reflectively so that the default Java 11 build still compiles
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Virtual connection threads require Java 21 or newer, see the virtual-threads build profile", e);
+        }
+    }
+}
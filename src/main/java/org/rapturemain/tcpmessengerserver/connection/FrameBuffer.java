@@ -0,0 +1,98 @@
+package org.rapturemain.tcpmessengerserver.connection;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.rapturemain.tcpmessengerserver.messagebroker.ByteBufferMessageEncoderDecoder;
+import org.rapturemain.tcpmessengerserver.utils.ConcurrentArrayQueue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Per-connection read buffer, taken from a shared pool only while it holds bytes so that idle connections hold none.
+ */
+final class FrameBuffer {
+
+    static final int INITIAL_SIZE = 4096;
+    static final int MAX_SIZE = ByteBufferMessageEncoderDecoder.MAX_FRAME_SIZE;
+    private static final int POOLED_BYTES_PER_SIZE = 4 << 20;
+
+    private static final List<ConcurrentArrayQueue<ByteBuffer>> POOLS = createPools();
+
+    @Nullable
+    private ByteBuffer buffer;
+
+    @NotNull
+    ByteBuffer getBuffer() {
+        if (buffer == null) {
+            buffer = acquire(INITIAL_SIZE);
+        }
+        return buffer;
+    }
+
+    @NotNull
+    ByteBuffer flip() {
+        ByteBuffer flipped = getBuffer();
+        flipped.flip();
+        return flipped;
+    }
+
+    void compact() throws IOException {
+        ByteBuffer compacted = getBuffer();
+        compacted.compact();
+        if (compacted.position() == 0) {
+            release();
+            return;
+        }
+        if (compacted.hasRemaining()) {
+            return;
+        }
+        if (compacted.capacity() >= MAX_SIZE) {
+            throw new IOException("Message exceeds " + MAX_SIZE + " bytes");
+        }
+        ByteBuffer grown = acquire(compacted.capacity() * 2);
+        compacted.flip();
+        grown.put(compacted);
+        buffer = grown;
+        giveBack(compacted);
+    }
+
+    void release() {
+        if (buffer != null) {
+            giveBack(buffer);
+            buffer = null;
+        }
+    }
+
+    static int pooledCount(int size) {
+        return POOLS.get(sizeClass(size)).size();
+    }
+
+    @NotNull
+    private static ByteBuffer acquire(int size) {
+        ByteBuffer pooled = POOLS.get(sizeClass(size)).poll();
+        if (pooled == null) {
+            return ByteBuffer.allocate(size);
+        }
+        pooled.clear();
+        return pooled;
+    }
+
+    private static void giveBack(@NotNull ByteBuffer buffer) {
+        POOLS.get(sizeClass(buffer.capacity())).offer(buffer);
+    }
+
+    private static int sizeClass(int size) {
+        return Integer.numberOfTrailingZeros(size / INITIAL_SIZE);
+    }
+
+    private static List<ConcurrentArrayQueue<ByteBuffer>> createPools() {
+        List<ConcurrentArrayQueue<ByteBuffer>> pools = new ArrayList<>();
+        for (int size = INITIAL_SIZE; size <= MAX_SIZE; size <<= 1) {
+            pools.add(new ConcurrentArrayQueue<>(Math.max(1, POOLED_BYTES_PER_SIZE / size)));
+        }
+        return pools;
+    }
+}
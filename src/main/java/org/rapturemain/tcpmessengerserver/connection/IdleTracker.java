@@ -0,0 +1,41 @@
+package org.rapturemain.tcpmessengerserver.connection;
+
+import java.util.function.LongSupplier;
+
+public final class IdleTracker {
+
+    final ConnectionSession session;
+    final Runnable closeAction;
+    private final LongSupplier clock;
+
+    private volatile long lastActivityNanos;
+    private volatile boolean cancelled = false;
+
+    // Owned by the wheel thread
+    long pingedAtNanos;
+    boolean pinged = false;
+    long remainingRounds;
+
+    IdleTracker(ConnectionSession session, Runnable closeAction, LongSupplier clock) {
+        this.session = session;
+        this.closeAction = closeAction;
+        this.clock = clock;
+        this.lastActivityNanos = clock.getAsLong();
+    }
+
+    public void onActivity() {
+        lastActivityNanos = clock.getAsLong();
+    }
+
+    public void cancel() {
+        cancelled = true;
+    }
+
+    long getLastActivityNanos() {
+        return lastActivityNanos;
+    }
+
+    boolean isCancelled() {
+        return cancelled;
+    }
+}
@@ -0,0 +1,8 @@
+package org.rapturemain.tcpmessengerserver.connection;
+
+import java.io.IOException;
+import java.net.Socket;
+
+public interface SocketConfigurer {
+    void configure(Socket socket) throws IOException;
+}
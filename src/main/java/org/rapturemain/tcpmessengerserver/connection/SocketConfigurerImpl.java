@@ -0,0 +1,31 @@
+package org.rapturemain.tcpmessengerserver.connection;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.net.Socket;
+
+@Component
+public class SocketConfigurerImpl implements SocketConfigurer {
+
+    private final boolean tcpNoDelay;
+    private final int sendBufferSize;
+
+    @Autowired
+    public SocketConfigurerImpl(@Value("${messenger.socket.tcp-no-delay:true}") boolean tcpNoDelay,
+                                @Value("${messenger.socket.send-buffer-size:0}") int sendBufferSize) {
+        this.tcpNoDelay = tcpNoDelay;
+        this.sendBufferSize = sendBufferSize;
+    }
+
+    @Override
+    public void configure(Socket socket) throws IOException {
+        // Output is already coalesced per connection, Nagle would only delay it further
+        socket.setTcpNoDelay(tcpNoDelay);
+        if (sendBufferSize > 0) {
+            socket.setSendBufferSize(sendBufferSize);
+        }
+    }
+}
@@ -1,15 +1,26 @@
 package org.rapturemain.tcpmessengerserver.connection;
 
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.rapturemain.tcpmessengerserver.messagebroker.MessageSubscriber;
 import org.rapturemain.tcpmessengerserver.user.User;
 
 import java.net.Socket;
+import java.util.concurrent.CompletableFuture;
 
 public interface SocketRegistrationService {
-    void register(Socket socket, User user) throws SocketRegistrationException;
+    // Completes with false if the name is taken, possibly on another thread once the cluster decided
+    @NotNull
+    CompletableFuture<Boolean> register(Socket socket, User user, MessageSubscriber subscriber);
 
     void unregister(Socket socket);
 
     User getUserForSocket(Socket socket);
 
     boolean isRegistered(Socket socket);
+
+    @Nullable
+    MessageSubscriber getSubscriberForName(String name);
+
+    int getRegisteredCount();
 }
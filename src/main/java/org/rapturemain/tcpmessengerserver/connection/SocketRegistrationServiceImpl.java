@@ -1,62 +1,85 @@
 package org.rapturemain.tcpmessengerserver.connection;
 
-import org.rapturemain.tcpmessengerserver.user.NameUnavailableException;
+import lombok.extern.slf4j.Slf4j;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.rapturemain.tcpmessengermessageframework.message.messages.system.ConnectionResetMessage;
+import org.rapturemain.tcpmessengerserver.messagebroker.MessageBroker;
+import org.rapturemain.tcpmessengerserver.messagebroker.MessagePublisher;
+import org.rapturemain.tcpmessengerserver.messagebroker.MessageSubscriber;
+import org.rapturemain.tcpmessengerserver.user.Name;
 import org.rapturemain.tcpmessengerserver.user.User;
 import org.rapturemain.tcpmessengerserver.user.UserInfoVerifier;
 import org.rapturemain.tcpmessengerserver.utils.DefaultWrapper;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PostConstruct;
 import java.net.Socket;
 import java.util.NoSuchElementException;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 
 @Component
+@Slf4j
 public class SocketRegistrationServiceImpl implements SocketRegistrationService {
 
     private final UserInfoVerifier userInfoVerifier;
+    private final MessageBroker messageBroker;
 
     private final ConcurrentHashMap<DefaultWrapper<Socket>, User> sockets = new ConcurrentHashMap<>();
+    // Kept in step with the name verifier, an entry exists exactly while its name is taken
+    private final ConcurrentHashMap<String, MessageSubscriber> subscribersByName = new ConcurrentHashMap<>();
+
+    private volatile MessagePublisher publisher;
 
     @Autowired
-    public SocketRegistrationServiceImpl(UserInfoVerifier userInfoVerifier) {
+    public SocketRegistrationServiceImpl(UserInfoVerifier userInfoVerifier, MessageBroker messageBroker) {
         this.userInfoVerifier = userInfoVerifier;
+        this.messageBroker = messageBroker;
     }
 
-    @Override
-    public void register(Socket socket, User user) throws SocketRegistrationException {
-        DefaultWrapper<Socket> wrapper = new DefaultWrapper<>(socket);
-
-        try {
-            userInfoVerifier.registerUser(user);
-        } catch (NameUnavailableException e) {
-            throw new SocketRegistrationException();
-        }
+    @PostConstruct
+    public void start() {
+        publisher = messageBroker.registerPublisher();
+        userInfoVerifier.setNameLostListener(this::onNameLost);
+    }
 
-        User oldUser = sockets.put(wrapper, user);
+    @Override
+    @NotNull
+    public CompletableFuture<Boolean> register(Socket socket, User user, MessageSubscriber subscriber) {
+        return userInfoVerifier.registerUser(user).thenApply(registered -> {
+            if (!registered) {
+                return false;
+            }
+            subscribersByName.put(user.getName().getName(), subscriber);
+            User oldUser = sockets.put(new DefaultWrapper<>(socket), user);
 
-        if (oldUser != null) {
-            userInfoVerifier.unregisterUser(oldUser);
-        }
+            if (oldUser != null) {
+                subscribersByName.remove(oldUser.getName().getName());
+                userInfoVerifier.unregisterUser(oldUser);
+            }
+            return true;
+        });
     }
 
     @Override
     public void unregister(Socket socket) {
-        DefaultWrapper<Socket> wrapper = new DefaultWrapper<>(socket);
-        if (!sockets.containsKey(wrapper)) {
-            return;
+        User user = sockets.remove(new DefaultWrapper<>(socket));
+        if (user != null) {
+            // Before releasing the name, otherwise this could drop the entry of whoever takes it next
+            subscribersByName.remove(user.getName().getName());
+            userInfoVerifier.unregisterUser(user);
         }
-        userInfoVerifier.unregisterUser(sockets.get(wrapper));
-        sockets.remove(wrapper);
     }
 
     @Override
     public User getUserForSocket(Socket socket) {
-        DefaultWrapper<Socket> wrapper = new DefaultWrapper<>(socket);
-        if (!sockets.containsKey(wrapper)) {
+        User user = sockets.get(new DefaultWrapper<>(socket));
+        if (user == null) {
             throw new NoSuchElementException();
         }
-        return sockets.get(wrapper);
+        return user;
     }
 
     @Override
@@ -64,4 +87,24 @@ public class SocketRegistrationServiceImpl implements SocketRegistrationService
         DefaultWrapper<Socket> wrapper = new DefaultWrapper<>(socket);
         return sockets.containsKey(wrapper);
     }
+
+    @Override
+    @Nullable
+    public MessageSubscriber getSubscriberForName(String name) {
+        return subscribersByName.get(name);
+    }
+
+    @Override
+    public int getRegisteredCount() {
+        return sockets.size();
+    }
+
+    private void onNameLost(Name name) {
+        MessageSubscriber subscriber = subscribersByName.get(name.getName());
+        if (subscriber == null) {
+            return;
+        }
+        log.info("User {} lost its name to another cluster node, closing connection", name.getName());
+        publisher.publishToSubscriber(new ConnectionResetMessage(), subscriber);
+    }
 }
@@ -1,6 +1,10 @@
 package org.rapturemain.tcpmessengerserver.connection;
 
+import org.jetbrains.annotations.NotNull;
+
 public interface SocketStateVerifier {
 
-    void verifySockets();
+    // closeAction runs on the verifier thread if nothing is read before the ping deadline
+    @NotNull
+    IdleTracker track(@NotNull ConnectionSession session, @NotNull Runnable closeAction);
 }
@@ -1,58 +1,148 @@
 package org.rapturemain.tcpmessengerserver.connection;
 
+import lombok.extern.slf4j.Slf4j;
+import org.jetbrains.annotations.NotNull;
 import org.rapturemain.tcpmessengermessageframework.message.messages.system.PingRequest;
-import org.rapturemain.tcpmessengerserver.messagebroker.MessageBroker;
-import org.rapturemain.tcpmessengerserver.messagebroker.MessagePublisher;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
 import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
-import java.util.concurrent.ExecutorService;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
 
+/**
+ * Pings connections that went quiet and closes those that stay quiet, using a hashed timing wheel.
+ */
 @Component
+@Slf4j
 public class SocketStateVerifierImpl implements SocketStateVerifier {
 
-    private static final int RETRY_RATE = 15;
+    static final long TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(250);
+    static final int WHEEL_SIZE = 256;
 
-    private final MessageBroker messageBroker;
+    private final long idleNanos;
+    private final long pingTimeoutNanos;
+    private final LongSupplier clock;
 
-    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+    private final ConcurrentLinkedQueue<IdleTracker> pendingTrackers = new ConcurrentLinkedQueue<>();
 
-    private MessagePublisher publisher;
-    private volatile boolean stopped = false;
+    // Owned by the wheel thread
+    private final WheelSlot[] wheel = new WheelSlot[WHEEL_SIZE];
+    private ArrayList<IdleTracker> spareTrackers = new ArrayList<>();
+    private final long startNanos;
+    private long currentTick = 0;
 
     @Autowired
-    public SocketStateVerifierImpl(MessageBroker messageBroker) {
-        this.messageBroker = messageBroker;
+    public SocketStateVerifierImpl(@Value("${messenger.keepalive.idle-seconds:15}") long idleSeconds,
+                                   @Value("${messenger.keepalive.timeout-seconds:15}") long timeoutSeconds) {
+        this(TimeUnit.SECONDS.toNanos(idleSeconds), TimeUnit.SECONDS.toNanos(timeoutSeconds), System::nanoTime);
+    }
+
+    SocketStateVerifierImpl(long idleNanos, long pingTimeoutNanos, @NotNull LongSupplier clock) {
+        this.idleNanos = idleNanos;
+        this.pingTimeoutNanos = pingTimeoutNanos;
+        this.clock = clock;
+        this.startNanos = clock.getAsLong();
+        for (int i = 0; i < WHEEL_SIZE; i++) {
+            wheel[i] = new WheelSlot();
+        }
     }
 
     @PostConstruct
     public void start() {
-        publisher = messageBroker.registerPublisher();
-        executor.execute(() -> {
-            while (!stopped) {
-                try {
-                    TimeUnit.SECONDS.sleep(RETRY_RATE);
-                } catch (InterruptedException e) {
-                    // do nothing
-                }
-
-                verifySockets();
-            }
-        });
+        executor.scheduleAtFixedRate(this::tick, TICK_NANOS, TICK_NANOS, TimeUnit.NANOSECONDS);
     }
 
     @PreDestroy
     public void stop() {
-        stopped = true;
-        publisher.unregister();
+        executor.shutdownNow();
     }
 
     @Override
-    public void verifySockets() {
-        publisher.publishMessage(new PingRequest());
+    @NotNull
+    public IdleTracker track(@NotNull ConnectionSession session, @NotNull Runnable closeAction) {
+        IdleTracker tracker = new IdleTracker(session, closeAction, clock);
+        pendingTrackers.add(tracker);
+        return tracker;
+    }
+
+    void tick() {
+        try {
+            IdleTracker tracker;
+            while ((tracker = pendingTrackers.poll()) != null) {
+                schedule(tracker, tracker.getLastActivityNanos() + idleNanos);
+            }
+            long targetTick = (clock.getAsLong() - startNanos) / TICK_NANOS;
+            while (currentTick < targetTick) {
+                currentTick++;
+                expireSlot((int) (currentTick & (WHEEL_SIZE - 1)));
+            }
+        } catch (RuntimeException e) {
+            // An exception would cancel the periodic task
+            log.error("Keepalive tick failed", e);
+        }
+    }
+
+    private void expireSlot(int index) {
+        WheelSlot slot = wheel[index];
+        ArrayList<IdleTracker> expiring = slot.trackers;
+        slot.trackers = spareTrackers;
+        long now = clock.getAsLong();
+        for (IdleTracker tracker : expiring) {
+            if (tracker.isCancelled()) {
+                continue;
+            }
+            if (tracker.remainingRounds > 0) {
+                tracker.remainingRounds--;
+                slot.trackers.add(tracker);
+                continue;
+            }
+            check(tracker, now);
+        }
+        expiring.clear();
+        spareTrackers = expiring;
+    }
+
+    private void check(IdleTracker tracker, long now) {
+        long lastActivity = tracker.getLastActivityNanos();
+        if (tracker.pinged) {
+            if (lastActivity - tracker.pingedAtNanos > 0) {
+                tracker.pinged = false;
+                schedule(tracker, lastActivity + idleNanos);
+                return;
+            }
+            Socket socket = tracker.session.getSocket();
+            log.info("Client [address {}, port {}] did not answer a ping in time, closing connection", socket.getInetAddress(), socket.getPort());
+            tracker.cancel();
+            tracker.closeAction.run();
+            return;
+        }
+        if (now - lastActivity < idleNanos) {
+            schedule(tracker, lastActivity + idleNanos);
+            return;
+        }
+        tracker.pinged = true;
+        tracker.pingedAtNanos = now;
+        tracker.session.getPublisher().publishToSubscriber(new PingRequest(), tracker.session.getSubscriber());
+        schedule(tracker, now + pingTimeoutNanos);
+    }
+
+    private void schedule(IdleTracker tracker, long deadlineNanos) {
+        long deadlineTick = (deadlineNanos - startNanos + TICK_NANOS - 1) / TICK_NANOS;
+        long ticks = Math.max(1, deadlineTick - currentTick);
+        tracker.remainingRounds = (ticks - 1) / WHEEL_SIZE;
+        wheel[(int) ((currentTick + ticks) & (WHEEL_SIZE - 1))].trackers.add(tracker);
+    }
+
+    private static final class WheelSlot {
+        private ArrayList<IdleTracker> trackers = new ArrayList<>();
     }
 }
@@ -0,0 +1,40 @@
+package org.rapturemain.tcpmessengerserver.connection;
+
+/**
+ * Write deadline of one blocking transport connection, checked by the watchdog of {@link ConnectionHandlerImpl}.
+ */
+final class WriteTracker {
+
+    private static final long NOT_WRITING = 0;
+
+    final ConnectionSession session;
+
+    private volatile long writeStartedNanos = NOT_WRITING;
+
+    // Owned by the watchdog, the write it already reported as stalled
+    private long reportedWriteNanos = NOT_WRITING;
+
+    WriteTracker(ConnectionSession session) {
+        this.session = session;
+    }
+
+    void onWriteStarted() {
+        // 0 is taken by NOT_WRITING, being off by a nanosecond does not matter
+        long now = System.nanoTime();
+        writeStartedNanos = now == NOT_WRITING ? 1 : now;
+    }
+
+    void onWriteFinished() {
+        writeStartedNanos = NOT_WRITING;
+    }
+
+    // True once per write running longer than timeoutNanos
+    boolean checkStalled(long now, long timeoutNanos) {
+        long started = writeStartedNanos;
+        if (started == NOT_WRITING || now - started < timeoutNanos || started == reportedWriteNanos) {
+            return false;
+        }
+        reportedWriteNanos = started;
+        return true;
+    }
+}
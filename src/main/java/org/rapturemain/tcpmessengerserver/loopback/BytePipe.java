@@ -0,0 +1,207 @@
+package org.rapturemain.tcpmessengerserver.loopback;
+
+import java.io.IOException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * One direction of a loopback connection, bytes become readable after the link's bandwidth and latency.
+ */
+final class BytePipe {
+
+    private final int capacity;
+    private final long latencyNanos;
+    private final long bytesPerSecond;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition readable = lock.newCondition();
+    private final Condition writable = lock.newCondition();
+
+    // Guarded by lock
+    private final ArrayDeque<Chunk> chunks = new ArrayDeque<>();
+    private int buffered = 0;
+    private long transmittedNanos = Long.MIN_VALUE;
+    private boolean writeShutdown = false;
+    private boolean readShutdown = false;
+    private boolean readClosed = false;
+
+    BytePipe(LoopbackLink link) {
+        this.capacity = link.getBufferSize();
+        this.latencyNanos = link.getLatency().toNanos();
+        this.bytesPerSecond = link.getBytesPerSecond();
+    }
+
+    void write(byte[] bytes, int offset, int length) throws IOException {
+        lock.lock();
+        try {
+            while (length > 0) {
+                if (writeShutdown) {
+                    throw new SocketException("Socket output is shutdown");
+                }
+                if (readClosed) {
+                    throw new SocketException("Connection reset");
+                }
+                if (readShutdown) {
+                    return;
+                }
+                if (buffered == capacity) {
+                    writable.await();
+                    continue;
+                }
+                int count = Math.min(length, capacity - buffered);
+                byte[] data = new byte[count];
+                System.arraycopy(bytes, offset, data, 0, count);
+                chunks.add(new Chunk(data, arrivalNanos(count)));
+                buffered += count;
+                offset += count;
+                length -= count;
+                readable.signalAll();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SocketException("Interrupted while writing");
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int read(byte[] bytes, int offset, int length, int timeoutMillis) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+        lock.lock();
+        try {
+            long deadline = timeoutMillis > 0 ? System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis) : 0;
+            while (true) {
+                if (readClosed) {
+                    throw new SocketException("Socket closed");
+                }
+                if (readShutdown) {
+                    return -1;
+                }
+                long now = System.nanoTime();
+                Chunk head = chunks.peek();
+                if (head != null && head.arrivalNanos - now <= 0) {
+                    return take(bytes, offset, length, now);
+                }
+                if (head == null && writeShutdown) {
+                    return -1;
+                }
+                long waitNanos = head == null ? Long.MAX_VALUE : head.arrivalNanos - now;
+                if (timeoutMillis > 0) {
+                    long remaining = deadline - now;
+                    if (remaining <= 0) {
+                        throw new SocketTimeoutException("Read timed out");
+                    }
+                    waitNanos = Math.min(waitNanos, remaining);
+                }
+                if (waitNanos == Long.MAX_VALUE) {
+                    readable.await();
+                } else {
+                    readable.awaitNanos(waitNanos);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SocketException("Interrupted while reading");
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int available() {
+        lock.lock();
+        try {
+            long now = System.nanoTime();
+            int available = 0;
+            for (Chunk chunk : chunks) {
+                if (chunk.arrivalNanos - now > 0) {
+                    break;
+                }
+                available += chunk.data.length - chunk.position;
+            }
+            return available;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void shutdownWrite() {
+        lock.lock();
+        try {
+            writeShutdown = true;
+            readable.signalAll();
+            // A writer blocked on a full pipe fails like one on a socket closed under it
+            writable.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void shutdownRead() {
+        lock.lock();
+        try {
+            readShutdown = true;
+            discard();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void closeRead() {
+        lock.lock();
+        try {
+            readClosed = true;
+            discard();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private int take(byte[] bytes, int offset, int length, long now) {
+        int read = 0;
+        Chunk chunk;
+        while (read < length && (chunk = chunks.peek()) != null && chunk.arrivalNanos - now <= 0) {
+            int count = Math.min(length - read, chunk.data.length - chunk.position);
+            System.arraycopy(chunk.data, chunk.position, bytes, offset + read, count);
+            chunk.position += count;
+            read += count;
+            if (chunk.position == chunk.data.length) {
+                chunks.poll();
+            }
+        }
+        buffered -= read;
+        writable.signalAll();
+        return read;
+    }
+
+    private long arrivalNanos(int count) {
+        long now = System.nanoTime();
+        long start = transmittedNanos == Long.MIN_VALUE || transmittedNanos - now < 0 ? now : transmittedNanos;
+        transmittedNanos = bytesPerSecond > 0 ? start + count * TimeUnit.SECONDS.toNanos(1) / bytesPerSecond : start;
+        return transmittedNanos + latencyNanos;
+    }
+
+    private void discard() {
+        chunks.clear();
+        buffered = 0;
+        readable.signalAll();
+        writable.signalAll();
+    }
+
+    private static final class Chunk {
+
+        private final byte[] data;
+        private final long arrivalNanos;
+        private int position = 0;
+
+        private Chunk(byte[] data, long arrivalNanos) {
+            this.data = data;
+            this.arrivalNanos = arrivalNanos;
+        }
+    }
+}
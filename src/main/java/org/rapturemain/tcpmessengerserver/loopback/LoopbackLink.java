@@ -0,0 +1,22 @@
+package org.rapturemain.tcpmessengerserver.loopback;
+
+import lombok.Builder;
+import lombok.Value;
+
+import java.time.Duration;
+
+@Value
+@Builder
+public class LoopbackLink {
+
+    public static final LoopbackLink UNLIMITED = LoopbackLink.builder().build();
+
+    @Builder.Default
+    Duration latency = Duration.ZERO;
+    // 0 means bytes are transmitted instantly
+    @Builder.Default
+    long bytesPerSecond = 0;
+    // Unread bytes per direction before writes block, like socket send and receive buffers together
+    @Builder.Default
+    int bufferSize = 256 * 1024;
+}
@@ -0,0 +1,237 @@
+package org.rapturemain.tcpmessengerserver.loopback;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One end of an in-memory connection, served by the blocking transport like an accepted socket. Socket options are
+ * ignored, the {@link LoopbackLink} shapes the traffic instead.
+ */
+public final class LoopbackSocket extends Socket {
+
+    private static final AtomicInteger NEXT_PORT = new AtomicInteger(1 << 16);
+
+    private final BytePipe input;
+    private final BytePipe output;
+    private final int localPort;
+    private final int port;
+
+    private final InputStream inputStream = new PipeInputStream();
+    private final OutputStream outputStream = new PipeOutputStream();
+
+    private volatile int soTimeout = 0;
+    private volatile boolean inputShutdown = false;
+    private volatile boolean outputShutdown = false;
+    private volatile boolean closed = false;
+
+    private LoopbackSocket(BytePipe input, BytePipe output, int localPort, int port) {
+        this.input = input;
+        this.output = output;
+        this.localPort = localPort;
+        this.port = port;
+    }
+
+    // The client end first
+    public static LoopbackSocket @NotNull [] pair(@NotNull LoopbackLink link, int serverPort) {
+        BytePipe toServer = new BytePipe(link);
+        BytePipe toClient = new BytePipe(link);
+        int clientPort = NEXT_PORT.getAndIncrement();
+        return new LoopbackSocket[]{
+                new LoopbackSocket(toClient, toServer, clientPort, serverPort),
+                new LoopbackSocket(toServer, toClient, serverPort, clientPort)
+        };
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        if (closed) {
+            throw new SocketException("Socket is closed");
+        }
+        return inputStream;
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        if (closed) {
+            throw new SocketException("Socket is closed");
+        }
+        return outputStream;
+    }
+
+    @Override
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        input.closeRead();
+        output.shutdownWrite();
+    }
+
+    @Override
+    public void shutdownInput() throws IOException {
+        if (closed) {
+            throw new SocketException("Socket is closed");
+        }
+        inputShutdown = true;
+        input.shutdownRead();
+    }
+
+    @Override
+    public void shutdownOutput() throws IOException {
+        if (closed) {
+            throw new SocketException("Socket is closed");
+        }
+        outputShutdown = true;
+        output.shutdownWrite();
+    }
+
+    @Override
+    public boolean isConnected() {
+        return true;
+    }
+
+    @Override
+    public boolean isBound() {
+        return true;
+    }
+
+    @Override
+    public boolean isClosed() {
+        return closed;
+    }
+
+    @Override
+    public boolean isInputShutdown() {
+        return inputShutdown;
+    }
+
+    @Override
+    public boolean isOutputShutdown() {
+        return outputShutdown;
+    }
+
+    @Override
+    public InetAddress getInetAddress() {
+        return InetAddress.getLoopbackAddress();
+    }
+
+    @Override
+    public InetAddress getLocalAddress() {
+        return InetAddress.getLoopbackAddress();
+    }
+
+    @Override
+    public int getPort() {
+        return port;
+    }
+
+    @Override
+    public int getLocalPort() {
+        return localPort;
+    }
+
+    @Override
+    public SocketAddress getRemoteSocketAddress() {
+        return new InetSocketAddress(getInetAddress(), port);
+    }
+
+    @Override
+    public SocketAddress getLocalSocketAddress() {
+        return new InetSocketAddress(getLocalAddress(), localPort);
+    }
+
+    @Override
+    public void setSoTimeout(int timeout) {
+        this.soTimeout = timeout;
+    }
+
+    @Override
+    public int getSoTimeout() {
+        return soTimeout;
+    }
+
+    @Override
+    public void setTcpNoDelay(boolean on) {
+
+    }
+
+    @Override
+    public boolean getTcpNoDelay() {
+        return true;
+    }
+
+    @Override
+    public void setSendBufferSize(int size) {
+
+    }
+
+    @Override
+    public void setReceiveBufferSize(int size) {
+
+    }
+
+    @Override
+    public void setKeepAlive(boolean on) {
+
+    }
+
+    @Override
+    public String toString() {
+        return "LoopbackSocket[port=" + port + ",localport=" + localPort + "]";
+    }
+
+    private final class PipeInputStream extends InputStream {
+
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            return read(single, 0, 1) < 0 ? -1 : single[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte @NotNull [] bytes, int offset, int length) throws IOException {
+            return input.read(bytes, offset, length, soTimeout);
+        }
+
+        @Override
+        public int available() {
+            return input.available();
+        }
+
+        @Override
+        public void close() {
+            LoopbackSocket.this.close();
+        }
+    }
+
+    private final class PipeOutputStream extends OutputStream {
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte @NotNull [] bytes, int offset, int length) throws IOException {
+            if (closed) {
+                throw new SocketException("Socket is closed");
+            }
+            output.write(bytes, offset, length);
+        }
+
+        @Override
+        public void close() {
+            LoopbackSocket.this.close();
+        }
+    }
+}
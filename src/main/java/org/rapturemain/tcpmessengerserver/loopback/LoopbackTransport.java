@@ -0,0 +1,27 @@
+package org.rapturemain.tcpmessengerserver.loopback;
+
+import org.jetbrains.annotations.NotNull;
+import org.rapturemain.tcpmessengerserver.connection.ConnectionHandler;
+
+/**
+ * Connects in-process clients to a {@link ConnectionHandler} over {@link LoopbackSocket}s, blocking transport only.
+ */
+public final class LoopbackTransport {
+
+    private static final int SERVER_PORT = 25565;
+
+    private final ConnectionHandler connectionHandler;
+    private final LoopbackLink link;
+
+    public LoopbackTransport(@NotNull ConnectionHandler connectionHandler, @NotNull LoopbackLink link) {
+        this.connectionHandler = connectionHandler;
+        this.link = link;
+    }
+
+    @NotNull
+    public LoopbackSocket connect() {
+        LoopbackSocket[] ends = LoopbackSocket.pair(link, SERVER_PORT);
+        connectionHandler.handleConnection(ends[1]);
+        return ends[0];
+    }
+}
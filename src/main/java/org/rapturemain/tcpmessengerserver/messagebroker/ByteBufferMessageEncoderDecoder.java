@@ -0,0 +1,22 @@
+package org.rapturemain.tcpmessengerserver.messagebroker;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.rapturemain.tcpmessengermessageframework.message.MessageEncoderDecoder;
+import org.rapturemain.tcpmessengermessageframework.message.messages.Message;
+import org.rapturemain.tcpmessengerserver.utils.ByteBufferOutputStream;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+public interface ByteBufferMessageEncoderDecoder extends MessageEncoderDecoder {
+
+    // Largest frame accepted, length prefix included
+    int MAX_FRAME_SIZE = 1 << 20;
+
+    void encode(@NotNull Message<?> message, @NotNull ByteBufferOutputStream outputStream) throws IOException;
+
+    // Null if the buffer does not hold a complete frame yet, its position is left untouched then
+    @Nullable
+    Message<?> decode(@NotNull ByteBuffer buffer) throws IOException;
+}
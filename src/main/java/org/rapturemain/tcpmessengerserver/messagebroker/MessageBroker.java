@@ -16,4 +16,11 @@ public interface MessageBroker {
 
     @NotNull
     MessageSubscriber registerSubscriber();
+
+    // Gets no broadcasts until admitted, see MessagePublisher.admitSubscriber. Messages addressed to it arrive right away
+    @NotNull
+    MessageSubscriber registerHeldSubscriber();
+
+    // Publishes accepted but not yet fanned out
+    int getBacklog();
 }
@@ -4,21 +4,57 @@ import lombok.extern.slf4j.Slf4j;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import org.rapturemain.tcpmessengermessageframework.message.messages.Message;
+import org.rapturemain.tcpmessengermessageframework.message.messages.chat.ChatMessage;
+import org.rapturemain.tcpmessengerserver.messagebroker.PendingAdmissions.Admission;
+import org.rapturemain.tcpmessengerserver.metrics.MessengerMetrics;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.stereotype.Component;
 
 import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
+import java.util.List;
 import java.util.Set;
 import java.util.concurrent.*;
+import java.util.function.BiConsumer;
 
 @Component
+@ConditionalOnProperty(name = "messenger.broker", havingValue = "queue", matchIfMissing = true)
 @Slf4j
 public final class MessageBrokerImpl implements MessageBroker {
 
-    private final ExecutorService executor = Executors.newFixedThreadPool(1);
+    private final ThreadPoolExecutor executor = (ThreadPoolExecutor) Executors.newFixedThreadPool(1);
+
+    private final long parallelismThreshold;
+    private final ForkJoinPool fanOutPool;
+    private final int subscriberQueueCapacity;
+    private final SlowConsumerPolicy slowConsumerPolicy;
+    private final MessengerMetrics messengerMetrics;
+    private final RecentHistory recentHistory;
+    private final PayloadBufferPool payloadBufferPool;
 
     private final ConcurrentHashMap<MessagePublisher, Set<MessageSubscriber>> publishers = new ConcurrentHashMap<>();
-    private final ConcurrentHashMap<MessageSubscriber, ConcurrentLinkedDeque<Message<?>>> subscribers = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<MessageSubscriberImpl, SubscriberQueue> subscribers = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, ConcurrentHashMap<MessageSubscriberImpl, SubscriberQueue>> topics = new ConcurrentHashMap<>();
+    private final PendingAdmissions admissions = new PendingAdmissions();
+
+    @Autowired
+    public MessageBrokerImpl(@Value("${messenger.broker.parallelism-threshold:4096}") long parallelismThreshold,
+                             @Value("${messenger.broker.fan-out-threads:0}") int fanOutThreads,
+                             @Value("${messenger.broker.subscriber-queue-capacity:10000}") int subscriberQueueCapacity,
+                             SlowConsumerPolicy slowConsumerPolicy,
+                             MessengerMetrics messengerMetrics,
+                             RecentHistory recentHistory,
+                             PayloadBufferPool payloadBufferPool) {
+        this.parallelismThreshold = parallelismThreshold;
+        this.fanOutPool = new ForkJoinPool(fanOutThreads > 0 ? fanOutThreads : Runtime.getRuntime().availableProcessors());
+        this.subscriberQueueCapacity = subscriberQueueCapacity;
+        this.slowConsumerPolicy = slowConsumerPolicy;
+        this.messengerMetrics = messengerMetrics;
+        this.recentHistory = recentHistory;
+        this.payloadBufferPool = payloadBufferPool;
+    }
 
     @PostConstruct
     public void start() {
@@ -28,6 +64,7 @@ public final class MessageBrokerImpl implements MessageBroker {
     @PreDestroy
     public void stop() {
        executor.shutdown();
+       fanOutPool.shutdown();
     }
 
     @Override
@@ -44,8 +81,19 @@ public final class MessageBrokerImpl implements MessageBroker {
     @Override
     @NotNull
     public MessageSubscriber registerSubscriber() {
-        MessageSubscriber subscriber = new MessageSubscriberImpl();
-        ConcurrentLinkedDeque<Message<?>> messageQueue = new ConcurrentLinkedDeque<>();
+        return registerSubscriber(true);
+    }
+
+    @Override
+    @NotNull
+    public MessageSubscriber registerHeldSubscriber() {
+        return registerSubscriber(false);
+    }
+
+    @NotNull
+    private MessageSubscriber registerSubscriber(boolean admitted) {
+        MessageSubscriberImpl subscriber = new MessageSubscriberImpl(admitted);
+        SubscriberQueue messageQueue = new SubscriberQueue(subscriberQueueCapacity, slowConsumerPolicy);
         subscribers.put(subscriber, messageQueue);
 
         log.debug("Registered subscriber");
@@ -53,50 +101,214 @@ public final class MessageBrokerImpl implements MessageBroker {
         return subscriber;
     }
 
+    @Override
+    public int getBacklog() {
+        return executor.getQueue().size();
+    }
+
     private void unregisterPublisher(@NotNull MessagePublisher publisher) {
         publishers.remove(publisher);
         log.debug("Unregistered publisher");
     }
 
-    private void unregisterSubscriber(@NotNull MessageSubscriber subscriber) {
-        subscribers.remove(subscriber);
+    private void unregisterSubscriber(@NotNull MessageSubscriberImpl subscriber) {
+        SubscriberQueue queue = subscribers.remove(subscriber);
+        if (queue != null) {
+            queue.close();
+        }
+        for (String topic : subscriber.topics) {
+            leaveTopic(subscriber, topic);
+        }
         log.debug("Unregistered subscriber");
     }
 
-    private Future<?> publishMessageOfPublisher(@NotNull MessagePublisher publisher, @NotNull Message<?> message) {
-        if (!publishers.containsKey(publisher)) {
-            throw new PublisherNotRegisteredException();
+    private void joinTopic(@NotNull MessageSubscriberImpl subscriber, @NotNull String topic) {
+        SubscriberQueue queue = subscribers.get(subscriber);
+        if (queue == null) {
+            throw new SubscriberNotRegisteredException();
         }
-        if (executor.isShutdown()) {
+        subscriber.topics.add(topic);
+        topics.compute(topic, (t, members) -> {
+            if (members == null) {
+                members = new ConcurrentHashMap<>();
+            }
+            members.put(subscriber, queue);
+            return members;
+        });
+        if (!subscribers.containsKey(subscriber)) {
+            // Unregistered concurrently, its topics may already have been cleaned up
+            leaveTopic(subscriber, topic);
+            return;
+        }
+        log.debug("Subscriber joined topic {}", topic);
+    }
+
+    private void leaveTopic(@NotNull MessageSubscriberImpl subscriber, @NotNull String topic) {
+        subscriber.topics.remove(topic);
+        topics.computeIfPresent(topic, (t, members) -> {
+            members.remove(subscriber);
+            return members.isEmpty() ? null : members;
+        });
+        log.debug("Subscriber left topic {}", topic);
+    }
+
+    private boolean execute(@NotNull Runnable task) {
+        try {
+            executor.execute(task);
+            return true;
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+    }
+
+    @NotNull
+    private Future<?> submit(@NotNull Runnable task) {
+        try {
+            return executor.submit(task);
+        } catch (RejectedExecutionException e) {
             return CompletableFuture.completedFuture(null);
         }
+    }
+
+    private Future<?> publishMessageOfPublisher(@NotNull MessagePublisher publisher, @NotNull MessageEnvelope[] envelopes) {
+        Runnable task = broadcastTask(publisher, envelopes);
+        if (task == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+        try {
+            return executor.submit(task);
+        } catch (RejectedExecutionException e) {
+            MessageEnvelope.releaseAll(envelopes);
+            return CompletableFuture.completedFuture(null);
+        }
+    }
+
+    private void publishNoWait(@NotNull MessagePublisher publisher, @NotNull MessageEnvelope[] envelopes) {
+        Runnable task = broadcastTask(publisher, envelopes);
+        if (task != null && !execute(task)) {
+            MessageEnvelope.releaseAll(envelopes);
+        }
+    }
+
+    // Takes over the caller's references, the task gives them up once every queue holds its own
+    @Nullable
+    private Runnable broadcastTask(@NotNull MessagePublisher publisher, @NotNull MessageEnvelope[] envelopes) {
         Set<MessageSubscriber> ignoredSubscribers = publishers.get(publisher);
-        return executor.submit(() -> {
-            subscribers.forEach((subscriber, queue) -> {
+        if (ignoredSubscribers == null) {
+            MessageEnvelope.releaseAll(envelopes);
+            throw new PublisherNotRegisteredException();
+        }
+        if (envelopes.length == 0) {
+            MessageEnvelope.releaseAll(envelopes);
+            return null;
+        }
+        // forEach returns once every chunk is done, so messages still reach each subscriber in publishing order
+        return () -> {
+            long start = System.nanoTime();
+            fanOut(subscribers, (subscriber, queue) -> {
+                if (subscriber.admitted && !ignoredSubscribers.contains(subscriber)) {
+                    for (MessageEnvelope envelope : envelopes) {
+                        queue.offer(envelope);
+                    }
+                    subscriber.notifyUpdateListener();
+                }
+            });
+            messengerMetrics.recordFanOut(System.nanoTime() - start);
+            for (MessageEnvelope envelope : envelopes) {
+                if (envelope.getMessage() instanceof ChatMessage) {
+                    recentHistory.append(envelope);
+                }
+            }
+            MessageEnvelope.releaseAll(envelopes);
+            log.debug("{} messages published", envelopes.length);
+        };
+    }
+
+    // forEach runs its chunks in the pool of the calling worker thread, or in the common pool from any other thread
+    private void fanOut(@NotNull ConcurrentHashMap<MessageSubscriberImpl, SubscriberQueue> targets,
+                        @NotNull BiConsumer<MessageSubscriberImpl, SubscriberQueue> action) {
+        if (targets.mappingCount() <= parallelismThreshold) {
+            targets.forEach(action);
+        } else {
+            fanOutPool.invoke(ForkJoinTask.adapt(() -> targets.forEach(parallelismThreshold, action)));
+        }
+    }
+
+    private Future<?> publishMessageToTopic(@NotNull MessagePublisher publisher, @NotNull String topic, @NotNull Message<?> message) {
+        Set<MessageSubscriber> ignoredSubscribers = publishers.get(publisher);
+        if (ignoredSubscribers == null) {
+            throw new PublisherNotRegisteredException();
+        }
+        return submit(() -> {
+            ConcurrentHashMap<MessageSubscriberImpl, SubscriberQueue> members = topics.get(topic);
+            if (members == null) {
+                return;
+            }
+            MessageEnvelope envelope = payloadBufferPool.wrap(message);
+            long start = System.nanoTime();
+            fanOut(members, (subscriber, queue) -> {
                 if (!ignoredSubscribers.contains(subscriber)) {
-                    queue.add(message);
+                    queue.offer(envelope);
+                    subscriber.notifyUpdateListener();
                 }
             });
-            log.debug("Message published");
+            messengerMetrics.recordFanOut(System.nanoTime() - start);
+            envelope.release();
+            log.debug("Message published to topic {}", topic);
         });
     }
 
     private Future<?> publishMessageToSubscriber(@NotNull Message<?> message, MessageSubscriber subscriber) {
-        if (executor.isShutdown()) {
-            return CompletableFuture.completedFuture(null);
-        }
-        return executor.submit(() -> {
-            ConcurrentLinkedDeque<Message<?>> queue = subscribers.get(subscriber);
+        return submit(() -> {
+            SubscriberQueue queue = subscribers.get(subscriber);
             if (queue == null) {
                 throw new SubscriberNotRegisteredException();
             }
-            queue.add(message);
+            MessageEnvelope envelope = payloadBufferPool.wrap(message);
+            queue.offer(envelope);
+            envelope.release();
+            ((MessageSubscriberImpl) subscriber).notifyUpdateListener();
             log.debug("Message published privately");
         });
     }
 
+    private Future<?> admitSubscriber(@NotNull Message<?> message, @NotNull MessageSubscriber subscriber) {
+        Admission admission = new Admission(subscriber, payloadBufferPool.wrap(message));
+        if (admissions.add(admission) && !execute(this::admitPending)) {
+            admissions.discardAll();
+        }
+        return admission.getFuture();
+    }
+
+    // On the broker thread, between two broadcasts: the history holds every chat broadcast before, none after
+    private void admitPending() {
+        List<Admission> batch = admissions.takeAll();
+        if (batch.isEmpty()) {
+            return;
+        }
+        MessageEnvelope[] history = recentHistory.snapshot();
+        for (MessageEnvelope entry : history) {
+            entry.retain(batch.size());
+        }
+        for (Admission admission : batch) {
+            SubscriberQueue queue = subscribers.get(admission.getSubscriber());
+            if (queue == null) {
+                MessageEnvelope.releaseAll(history);
+                admission.reject();
+                continue;
+            }
+            queue.admit(admission.getEnvelope(), history);
+            MessageSubscriberImpl target = (MessageSubscriberImpl) admission.getSubscriber();
+            target.admitted = true;
+            target.notifyUpdateListener();
+            admission.getFuture().complete(null);
+        }
+        MessageEnvelope.releaseAll(history);
+        log.debug("{} subscribers admitted with {} history messages", batch.size(), history.length);
+    }
+
     @Nullable
-    private Message<?> peekMessageForSubscriber(@NotNull MessageSubscriber subscriber) {
+    private MessageEnvelope peekMessageForSubscriber(@NotNull MessageSubscriber subscriber) {
         if (!subscribers.containsKey(subscriber)) {
             throw new SubscriberNotRegisteredException();
         }
@@ -104,7 +316,7 @@ public final class MessageBrokerImpl implements MessageBroker {
     }
 
     @Nullable
-    private Message<?> pollMessageForSubscriber(@NotNull MessageSubscriber subscriber) {
+    private MessageEnvelope pollMessageForSubscriber(@NotNull MessageSubscriber subscriber) {
         if (!subscribers.containsKey(subscriber)) {
             throw new SubscriberNotRegisteredException();
         }
@@ -119,7 +331,22 @@ public final class MessageBrokerImpl implements MessageBroker {
 
         @Override
         public Future<?> publishMessage(@NotNull Message<?> message) {
-            return publishMessageOfPublisher(this, message);
+            return publishMessageOfPublisher(this, new MessageEnvelope[]{payloadBufferPool.wrap(message)});
+        }
+
+        @Override
+        public void publishMessageNoWait(@NotNull Message<?> message) {
+            publishNoWait(this, new MessageEnvelope[]{payloadBufferPool.wrap(message)});
+        }
+
+        @Override
+        public Future<?> publishMessages(@NotNull List<? extends Message<?>> messages) {
+            return publishMessageOfPublisher(this, payloadBufferPool.wrapAll(messages));
+        }
+
+        @Override
+        public void publishMessagesNoWait(@NotNull List<? extends Message<?>> messages) {
+            publishNoWait(this, payloadBufferPool.wrapAll(messages));
         }
 
         @Override
@@ -127,6 +354,16 @@ public final class MessageBrokerImpl implements MessageBroker {
             return publishMessageToSubscriber(message, subscriber);
         }
 
+        @Override
+        public Future<?> publishToTopic(@NotNull String topic, @NotNull Message<?> message) {
+            return publishMessageToTopic(this, topic, message);
+        }
+
+        @Override
+        public Future<?> admitSubscriber(@NotNull Message<?> message, @NotNull MessageSubscriber subscriber) {
+            return MessageBrokerImpl.this.admitSubscriber(message, subscriber);
+        }
+
         @Override
         public void unregister() {
             unregisterPublisher(this);
@@ -135,25 +372,70 @@ public final class MessageBrokerImpl implements MessageBroker {
 
     public final class MessageSubscriberImpl implements MessageSubscriber {
 
-        private MessageSubscriberImpl() {
+        private final Set<String> topics = ConcurrentHashMap.newKeySet();
+
+        private volatile Runnable updateListener;
+        private volatile boolean admitted;
 
+        private MessageSubscriberImpl(boolean admitted) {
+            this.admitted = admitted;
         }
 
         @Override
         @Nullable
         public Message<?> peekMessage() {
-            return peekMessageForSubscriber(this);
+            MessageEnvelope envelope = peekMessageForSubscriber(this);
+            return envelope == null ? null : envelope.getMessage();
         }
 
         @Override
         @Nullable
         public Message<?> pollMessage() {
+            MessageEnvelope envelope = pollMessageForSubscriber(this);
+            if (envelope == null) {
+                return null;
+            }
+            envelope.release();
+            return envelope.getMessage();
+        }
+
+        @Override
+        @Nullable
+        public MessageEnvelope pollEnvelope() {
             return pollMessageForSubscriber(this);
         }
 
+        @Override
+        public void setUpdateListener(@Nullable Runnable listener) {
+            this.updateListener = listener;
+        }
+
+        @Override
+        public int getQueueDepth() {
+            SubscriberQueue queue = subscribers.get(this);
+            return queue == null ? 0 : queue.size();
+        }
+
+        @Override
+        public void joinTopic(@NotNull String topic) {
+            MessageBrokerImpl.this.joinTopic(this, topic);
+        }
+
+        @Override
+        public void leaveTopic(@NotNull String topic) {
+            MessageBrokerImpl.this.leaveTopic(this, topic);
+        }
+
         @Override
         public void unregister() {
             unregisterSubscriber(this);
         }
+
+        private void notifyUpdateListener() {
+            Runnable listener = updateListener;
+            if (listener != null) {
+                listener.run();
+            }
+        }
     }
 }
@@ -2,21 +2,37 @@ package org.rapturemain.tcpmessengerserver.messagebroker;
 
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
-import org.rapturemain.tcpmessengermessageframework.message.MessageEncoderDecoder;
 import org.rapturemain.tcpmessengermessageframework.message.messages.Message;
+import org.rapturemain.tcpmessengerserver.metrics.MessengerMetrics;
+import org.rapturemain.tcpmessengerserver.utils.ByteBufferInputStream;
+import org.rapturemain.tcpmessengerserver.utils.ByteBufferOutputStream;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
 import javax.annotation.PostConstruct;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 @Component
-public class MessageEncoderDecoderImpl implements MessageEncoderDecoder {
+public class MessageEncoderDecoderImpl implements ByteBufferMessageEncoderDecoder {
+
+    private static final ByteBuffer EMPTY_BUFFER = ByteBuffer.allocate(0);
+    private static final int FRAME_LENGTH_SIZE = Integer.BYTES;
 
     private final org.rapturemain.tcpmessengermessageframework.message.MessageEncoderDecoderImpl encoderDecoder =
             new org.rapturemain.tcpmessengermessageframework.message.MessageEncoderDecoderImpl();
 
+    private final ThreadLocal<DecodeStreams> decodeStreams = ThreadLocal.withInitial(DecodeStreams::new);
+
+    private final MessengerMetrics messengerMetrics;
+
+    @Autowired
+    public MessageEncoderDecoderImpl(MessengerMetrics messengerMetrics) {
+        this.messengerMetrics = messengerMetrics;
+    }
+
     @PostConstruct
     public void start() {
         encoderDecoder.start();
@@ -24,11 +40,49 @@ public class MessageEncoderDecoderImpl implements MessageEncoderDecoder {
 
     @Override
     public void encode(@NotNull Message<?> message, @NotNull DataOutputStream dataOutputStream) throws IOException {
+        long start = System.nanoTime();
         encoderDecoder.encode(message, dataOutputStream);
+        messengerMetrics.recordEncode(System.nanoTime() - start);
+    }
+
+    @Override
+    public void encode(@NotNull Message<?> message, @NotNull ByteBufferOutputStream outputStream) throws IOException {
+        encode(message, outputStream.getDataOutputStream());
     }
 
     @Override
     public @Nullable Message<?> decode(@NotNull DataInputStream dataInputStream) throws IOException {
-        return encoderDecoder.decode(dataInputStream);
+        long start = System.nanoTime();
+        Message<?> message = encoderDecoder.decode(dataInputStream);
+        if (message != null) {
+            messengerMetrics.recordDecode(System.nanoTime() - start);
+        }
+        return message;
+    }
+
+    @Override
+    public @Nullable Message<?> decode(@NotNull ByteBuffer buffer) throws IOException {
+        if (buffer.remaining() < FRAME_LENGTH_SIZE) {
+            return null;
+        }
+        int length = buffer.getInt(buffer.position());
+        if (length < 0 || length > MAX_FRAME_SIZE - FRAME_LENGTH_SIZE) {
+            throw new IOException("Frame of " + length + " bytes exceeds " + MAX_FRAME_SIZE + " bytes");
+        }
+        if (buffer.remaining() - FRAME_LENGTH_SIZE < length) {
+            return null;
+        }
+        DecodeStreams streams = decodeStreams.get();
+        streams.inputStream.setBuffer(buffer);
+        try {
+            return decode(streams.dataInputStream);
+        } finally {
+            streams.inputStream.setBuffer(EMPTY_BUFFER);
+        }
+    }
+
+    private static final class DecodeStreams {
+        private final ByteBufferInputStream inputStream = new ByteBufferInputStream(EMPTY_BUFFER);
+        private final DataInputStream dataInputStream = new DataInputStream(inputStream);
     }
 }
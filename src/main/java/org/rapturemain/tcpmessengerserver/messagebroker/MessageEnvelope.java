@@ -0,0 +1,196 @@
+package org.rapturemain.tcpmessengerserver.messagebroker;
+
+import lombok.Getter;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.rapturemain.tcpmessengermessageframework.message.messages.Message;
+import org.rapturemain.tcpmessengermessageframework.message.messages.system.ConnectionResetMessage;
+import org.rapturemain.tcpmessengermessageframework.message.messages.system.PingRequest;
+import org.rapturemain.tcpmessengermessageframework.message.messages.system.PingResponse;
+import org.rapturemain.tcpmessengermessageframework.message.messages.system.RegistrationResponseMessage;
+import org.rapturemain.tcpmessengerserver.utils.ByteBufferOutputStream;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+/**
+ * Published message shared by all of its recipients and encoded once. Envelopes from a {@link PayloadBufferPool}
+ * are reference counted, whoever polls one owns a reference and releases it once the bytes are written.
+ */
+public final class MessageEnvelope {
+
+    private static final int ENCODE_BUFFER_SIZE = 512;
+    private static final ThreadLocal<ByteBufferOutputStream> ENCODE_BUFFERS = ThreadLocal.withInitial(() -> new ByteBufferOutputStream(ENCODE_BUFFER_SIZE));
+
+    private static final AtomicIntegerFieldUpdater<MessageEnvelope> REFERENCES = AtomicIntegerFieldUpdater.newUpdater(MessageEnvelope.class, "references");
+
+    @Getter
+    private final Message<?> message;
+
+    @Getter
+    private final boolean control;
+    @Getter
+    private final long publishedNanos;
+
+    @Nullable
+    private final PayloadBufferPool pool;
+    private volatile int references = 1;
+    @Nullable
+    private LeakRecord leakRecord;
+
+    private volatile byte[] encoded;
+    // Written before encoded, pooled arrays are longer than the payload
+    private volatile int encodedLength;
+
+    public MessageEnvelope(@NotNull Message<?> message) {
+        this(message, null);
+    }
+
+    MessageEnvelope(@NotNull Message<?> message, @Nullable PayloadBufferPool pool) {
+        this.message = message;
+        this.control = isControl(message);
+        this.publishedNanos = control ? System.nanoTime() : 0;
+        this.pool = pool;
+    }
+
+    public static boolean isControl(@NotNull Message<?> message) {
+        return message instanceof RegistrationResponseMessage
+                || message instanceof PingRequest
+                || message instanceof PingResponse
+                || message instanceof ConnectionResetMessage;
+    }
+
+    public static MessageEnvelope @NotNull [] wrapAll(@NotNull List<? extends Message<?>> messages) {
+        MessageEnvelope[] envelopes = new MessageEnvelope[messages.size()];
+        for (int i = 0; i < envelopes.length; i++) {
+            envelopes[i] = new MessageEnvelope(messages.get(i));
+        }
+        return envelopes;
+    }
+
+    public static void releaseAll(MessageEnvelope @NotNull [] envelopes) {
+        for (MessageEnvelope envelope : envelopes) {
+            envelope.release();
+        }
+    }
+
+    // Shared between recipients, longer than getEncodedLength() and only valid while a reference is held
+    public byte @NotNull [] getEncoded(@NotNull ByteBufferMessageEncoderDecoder encoder) throws IOException {
+        byte[] result = encoded;
+        if (result == null) {
+            synchronized (this) {
+                result = encoded;
+                if (result == null) {
+                    if (pool != null && references <= 0) {
+                        throw new IllegalStateException("Envelope is encoded after its last release");
+                    }
+                    ByteBufferOutputStream bytes = ENCODE_BUFFERS.get();
+                    bytes.getBuffer().clear();
+                    encoder.encode(message, bytes);
+                    ByteBuffer buffer = bytes.getBuffer();
+                    int length = buffer.position();
+                    result = pool != null ? pool.acquire(length) : new byte[length];
+                    System.arraycopy(buffer.array(), 0, result, 0, length);
+                    if (buffer.capacity() > PayloadBufferPool.MAX_POOLED_SIZE) {
+                        // One huge message should not pin its buffer to the thread
+                        ENCODE_BUFFERS.remove();
+                    }
+                    encodedLength = length;
+                    encoded = result;
+                }
+            }
+        }
+        return result;
+    }
+
+    public int getEncodedLength() {
+        return encodedLength;
+    }
+
+    @NotNull
+    public ByteBuffer wrapEncoded(@NotNull ByteBufferMessageEncoderDecoder encoder) throws IOException {
+        byte[] bytes = getEncoded(encoder);
+        return ByteBuffer.wrap(bytes, 0, encodedLength);
+    }
+
+    public void retain(int count) {
+        if (pool == null) {
+            return;
+        }
+        int current;
+        do {
+            current = references;
+            if (current <= 0) {
+                throw new IllegalStateException("Envelope is retained after its last release");
+            }
+        } while (!REFERENCES.compareAndSet(this, current, current + count));
+    }
+
+    // For readers of a shared structure that hold no reference, false once it has been released
+    public boolean tryRetain() {
+        if (pool == null) {
+            return true;
+        }
+        int current;
+        do {
+            current = references;
+            if (current <= 0) {
+                return false;
+            }
+        } while (!REFERENCES.compareAndSet(this, current, current + 1));
+        return true;
+    }
+
+    public void release() {
+        if (pool == null) {
+            return;
+        }
+        int remaining = REFERENCES.decrementAndGet(this);
+        if (remaining > 0) {
+            return;
+        }
+        if (remaining < 0) {
+            throw new IllegalStateException("Envelope is released more often than it was retained");
+        }
+        LeakRecord record = leakRecord;
+        if (record != null) {
+            record.released = true;
+        }
+        byte[] result = encoded;
+        if (result != null) {
+            encoded = null;
+            pool.recycle(result);
+        }
+    }
+
+    int getReferenceCount() {
+        return references;
+    }
+
+    @NotNull
+    LeakRecord trackLeaks() {
+        LeakRecord record = new LeakRecord(message.getClass().getSimpleName(), new Throwable("Envelope created here"));
+        this.leakRecord = record;
+        return record;
+    }
+
+    static final class LeakRecord {
+
+        @Getter
+        private final String messageType;
+        @Getter
+        private final Throwable createdAt;
+        private volatile boolean released = false;
+
+        private LeakRecord(String messageType, Throwable createdAt) {
+            this.messageType = messageType;
+            this.createdAt = createdAt;
+        }
+
+        boolean isReleased() {
+            return released;
+        }
+    }
+}
@@ -3,13 +3,26 @@ package org.rapturemain.tcpmessengerserver.messagebroker;
 import org.jetbrains.annotations.NotNull;
 import org.rapturemain.tcpmessengermessageframework.message.messages.Message;
 
+import java.util.List;
 import java.util.concurrent.Future;
 
 public interface MessagePublisher {
 
     Future<?> publishMessage(@NotNull Message<?> message);
 
+    void publishMessageNoWait(@NotNull Message<?> message);
+
+    // A single broker task, the list may be reused once the call returns
+    Future<?> publishMessages(@NotNull List<? extends Message<?>> messages);
+
+    void publishMessagesNoWait(@NotNull List<? extends Message<?>> messages);
+
     Future<?> publishToSubscriber(@NotNull Message<?> message, @NotNull MessageSubscriber subscriber);
 
+    Future<?> publishToTopic(@NotNull String topic, @NotNull Message<?> message);
+
+    // Queues the message followed by the recent history, each broadcast is either in the history or queued after it
+    Future<?> admitSubscriber(@NotNull Message<?> message, @NotNull MessageSubscriber subscriber);
+
     void unregister();
 }
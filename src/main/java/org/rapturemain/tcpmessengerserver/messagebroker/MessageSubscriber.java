@@ -1,5 +1,6 @@
 package org.rapturemain.tcpmessengerserver.messagebroker;
 
+import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import org.rapturemain.tcpmessengermessageframework.message.messages.Message;
 
@@ -11,5 +12,17 @@ public interface MessageSubscriber {
     @Nullable
     Message<?> pollMessage();
 
+    // The caller owns the envelope's reference and releases it once the bytes are written
+    @Nullable
+    MessageEnvelope pollEnvelope();
+
+    void setUpdateListener(@Nullable Runnable listener);
+
+    int getQueueDepth();
+
+    void joinTopic(@NotNull String topic);
+
+    void leaveTopic(@NotNull String topic);
+
     void unregister();
 }
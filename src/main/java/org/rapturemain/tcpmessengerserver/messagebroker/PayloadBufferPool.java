@@ -0,0 +1,102 @@
+package org.rapturemain.tcpmessengerserver.messagebroker;
+
+import lombok.extern.slf4j.Slf4j;
+import org.jetbrains.annotations.NotNull;
+import org.rapturemain.tcpmessengermessageframework.message.messages.Message;
+import org.rapturemain.tcpmessengerserver.utils.ConcurrentArrayQueue;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.lang.ref.Cleaner;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Recycles the buffers envelopes encode their payload into, once the last recipient released its envelope.
+ * Envelopes and messages are still allocated per publish.
+ */
+@Component
+@Slf4j
+public final class PayloadBufferPool {
+
+    private static final int MIN_SIZE_SHIFT = 7;
+    private static final int MAX_SIZE_SHIFT = 16;
+    static final int MAX_POOLED_SIZE = 1 << MAX_SIZE_SHIFT;
+
+    private final List<ConcurrentArrayQueue<byte[]>> buffers;
+    private final boolean enabled;
+    private final boolean leakDetection;
+
+    private final Cleaner cleaner;
+    private final LongAdder leaks = new LongAdder();
+
+    @Autowired
+    public PayloadBufferPool(@Value("${messenger.broker.payload-buffer-pool.max-bytes:16777216}") long maxBytes,
+                        @Value("${messenger.broker.payload-buffer-pool.leak-detection:false}") boolean leakDetection) {
+        this.enabled = maxBytes > 0;
+        this.leakDetection = enabled && leakDetection;
+        this.cleaner = this.leakDetection ? Cleaner.create() : null;
+        int sizes = MAX_SIZE_SHIFT - MIN_SIZE_SHIFT + 1;
+        this.buffers = new ArrayList<>(sizes);
+        for (int i = 0; i < sizes; i++) {
+            long perSize = maxBytes / sizes >> (MIN_SIZE_SHIFT + i);
+            buffers.add(new ConcurrentArrayQueue<>((int) Math.max(1, Math.min(perSize, 1 << 30))));
+        }
+    }
+
+    // The caller owns the only reference
+    @NotNull
+    public MessageEnvelope wrap(@NotNull Message<?> message) {
+        if (!enabled) {
+            return new MessageEnvelope(message);
+        }
+        MessageEnvelope envelope = new MessageEnvelope(message, this);
+        if (leakDetection) {
+            // The record must not reach the envelope, or it would never become unreachable
+            MessageEnvelope.LeakRecord record = envelope.trackLeaks();
+            cleaner.register(envelope, () -> {
+                if (!record.isReleased()) {
+                    leaks.increment();
+                    log.error("Envelope of {} was garbage collected without being released", record.getMessageType(), record.getCreatedAt());
+                }
+            });
+        }
+        return envelope;
+    }
+
+    public MessageEnvelope @NotNull [] wrapAll(@NotNull List<? extends Message<?>> messages) {
+        MessageEnvelope[] envelopes = new MessageEnvelope[messages.size()];
+        for (int i = 0; i < envelopes.length; i++) {
+            envelopes[i] = wrap(messages.get(i));
+        }
+        return envelopes;
+    }
+
+    public long getLeakCount() {
+        return leaks.sum();
+    }
+
+    byte @NotNull [] acquire(int length) {
+        if (length > MAX_POOLED_SIZE) {
+            return new byte[length];
+        }
+        int index = sizeIndex(length);
+        byte[] buffer = buffers.get(index).poll();
+        return buffer != null ? buffer : new byte[1 << (MIN_SIZE_SHIFT + index)];
+    }
+
+    void recycle(byte @NotNull [] buffer) {
+        int length = buffer.length;
+        if (length > MAX_POOLED_SIZE || Integer.bitCount(length) != 1 || length < 1 << MIN_SIZE_SHIFT) {
+            return;
+        }
+        buffers.get(Integer.numberOfTrailingZeros(length) - MIN_SIZE_SHIFT).offer(buffer);
+    }
+
+    private static int sizeIndex(int length) {
+        int shift = 32 - Integer.numberOfLeadingZeros(Math.max(length, 1) - 1);
+        return Math.max(shift, MIN_SIZE_SHIFT) - MIN_SIZE_SHIFT;
+    }
+}
@@ -0,0 +1,64 @@
+package org.rapturemain.tcpmessengerserver.messagebroker;
+
+import lombok.Getter;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Admissions waiting for the broker thread, which takes all of them at once and shares one history snapshot between them.
+ */
+final class PendingAdmissions {
+
+    private final ConcurrentLinkedQueue<Admission> pending = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+
+    // True if the caller has to schedule a batch
+    boolean add(@NotNull Admission admission) {
+        pending.add(admission);
+        return scheduled.compareAndSet(false, true);
+    }
+
+    // An admission added while the batch runs schedules the next one
+    @NotNull
+    List<Admission> takeAll() {
+        scheduled.set(false);
+        List<Admission> batch = new ArrayList<>();
+        Admission admission;
+        while ((admission = pending.poll()) != null) {
+            batch.add(admission);
+        }
+        return batch;
+    }
+
+    void discardAll() {
+        for (Admission admission : takeAll()) {
+            admission.getEnvelope().release();
+            admission.getFuture().complete(null);
+        }
+    }
+
+    static final class Admission {
+
+        @Getter
+        private final MessageSubscriber subscriber;
+        @Getter
+        private final MessageEnvelope envelope;
+        @Getter
+        private final CompletableFuture<Void> future = new CompletableFuture<>();
+
+        Admission(@NotNull MessageSubscriber subscriber, @NotNull MessageEnvelope envelope) {
+            this.subscriber = subscriber;
+            this.envelope = envelope;
+        }
+
+        void reject() {
+            envelope.release();
+            future.completeExceptionally(new SubscriberNotRegisteredException());
+        }
+    }
+}
@@ -0,0 +1,13 @@
+package org.rapturemain.tcpmessengerserver.messagebroker;
+
+import org.jetbrains.annotations.NotNull;
+
+public interface RecentHistory {
+
+    // Single writer, the broker thread. Keeps a reference of its own
+    void append(@NotNull MessageEnvelope envelope);
+
+    // Oldest first, the caller owns a reference to each envelope
+    @NotNull
+    MessageEnvelope[] snapshot();
+}
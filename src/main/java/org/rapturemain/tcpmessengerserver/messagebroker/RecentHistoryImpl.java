@@ -0,0 +1,90 @@
+package org.rapturemain.tcpmessengerserver.messagebroker;
+
+import org.jetbrains.annotations.NotNull;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+@Component
+public class RecentHistoryImpl implements RecentHistory {
+
+    private static final long NO_SEQUENCE = -1;
+    private static final MessageEnvelope[] EMPTY = new MessageEnvelope[0];
+
+    private final Slot[] slots;
+    private final long maxAgeMillis;
+
+    private long nextSequence = 0;
+    private volatile long publishedSequence = NO_SEQUENCE;
+
+    @Autowired
+    public RecentHistoryImpl(@Value("${messenger.history.size:50}") int size,
+                             @Value("${messenger.history.max-age-seconds:600}") long maxAgeSeconds) {
+        this.slots = new Slot[Math.max(0, size)];
+        for (int i = 0; i < slots.length; i++) {
+            slots[i] = new Slot();
+        }
+        this.maxAgeMillis = maxAgeSeconds <= 0 ? Long.MAX_VALUE : TimeUnit.SECONDS.toMillis(maxAgeSeconds);
+    }
+
+    @Override
+    public void append(@NotNull MessageEnvelope envelope) {
+        if (slots.length == 0) {
+            return;
+        }
+        long sequence = nextSequence++;
+        Slot slot = slots[(int) (sequence % slots.length)];
+        envelope.retain(1);
+        MessageEnvelope overwritten = slot.envelope;
+
+        // Same protocol as the ring broker, readers detect a slot overwritten while they read it
+        slot.sequence = NO_SEQUENCE;
+        slot.envelope = envelope;
+        slot.timestamp = System.currentTimeMillis();
+        slot.sequence = sequence;
+
+        publishedSequence = sequence;
+        if (overwritten != null) {
+            overwritten.release();
+        }
+    }
+
+    @Override
+    @NotNull
+    public MessageEnvelope[] snapshot() {
+        long published = publishedSequence;
+        if (published == NO_SEQUENCE) {
+            return EMPTY;
+        }
+        long oldestTimestamp = maxAgeMillis == Long.MAX_VALUE ? Long.MIN_VALUE : System.currentTimeMillis() - maxAgeMillis;
+        long first = Math.max(0, published - slots.length + 1);
+
+        MessageEnvelope[] result = new MessageEnvelope[(int) (published - first + 1)];
+        int count = 0;
+        for (long sequence = first; sequence <= published; sequence++) {
+            Slot slot = slots[(int) (sequence % slots.length)];
+            long before = slot.sequence;
+            MessageEnvelope envelope = slot.envelope;
+            long timestamp = slot.timestamp;
+            // The slot may have been overwritten and its envelope released meanwhile
+            if (before != sequence || timestamp < oldestTimestamp || !envelope.tryRetain()) {
+                continue;
+            }
+            if (slot.sequence != sequence) {
+                envelope.release();
+                continue;
+            }
+            result[count++] = envelope;
+        }
+        return count == result.length ? result : Arrays.copyOf(result, count);
+    }
+
+    private static final class Slot {
+        private volatile long sequence = NO_SEQUENCE;
+        private volatile MessageEnvelope envelope;
+        private volatile long timestamp;
+    }
+}
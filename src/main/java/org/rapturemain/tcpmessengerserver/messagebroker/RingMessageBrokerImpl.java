@@ -0,0 +1,505 @@
+package org.rapturemain.tcpmessengerserver.messagebroker;
+
+import lombok.extern.slf4j.Slf4j;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.rapturemain.tcpmessengermessageframework.message.messages.Message;
+import org.rapturemain.tcpmessengermessageframework.message.messages.chat.ChatMessage;
+import org.rapturemain.tcpmessengerserver.messagebroker.PendingAdmissions.Admission;
+import org.rapturemain.tcpmessengerserver.metrics.MessengerMetrics;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Broadcasts go into one shared ring that every subscriber reads with a cursor of its own, a single waker thread
+ * notifies the readers. Topic and private messages go to each recipient's {@link SubscriberQueue}, read ahead of the ring.
+ */
+@Component
+@ConditionalOnProperty(name = "messenger.broker", havingValue = "ring")
+@Slf4j
+public final class RingMessageBrokerImpl implements MessageBroker {
+
+    private static final long NO_SEQUENCE = -1;
+
+    // The only ring writer
+    private final ThreadPoolExecutor executor = (ThreadPoolExecutor) Executors.newFixedThreadPool(1);
+    private final Thread waker = new Thread(this::wakeReaders, "ring-waker");
+
+    private final RingSlot[] ring;
+    private final int mask;
+
+    private final int subscriberQueueCapacity;
+    private final SlowConsumerPolicy slowConsumerPolicy;
+    private final MessengerMetrics messengerMetrics;
+    private final RecentHistory recentHistory;
+
+    private long nextSequence = 0;
+    private volatile long publishedSequence = NO_SEQUENCE;
+
+    private final ConcurrentHashMap<MessagePublisher, Set<MessageSubscriber>> publishers = new ConcurrentHashMap<>();
+    private final Set<MessageSubscriberImpl> subscribers = ConcurrentHashMap.newKeySet();
+    private final ConcurrentHashMap<String, Set<MessageSubscriberImpl>> topics = new ConcurrentHashMap<>();
+    private final PendingAdmissions admissions = new PendingAdmissions();
+
+    private volatile boolean running = true;
+
+    @Autowired
+    public RingMessageBrokerImpl(@Value("${messenger.broker.ring-capacity:65536}") int capacity,
+                                 @Value("${messenger.broker.subscriber-queue-capacity:10000}") int subscriberQueueCapacity,
+                                 SlowConsumerPolicy slowConsumerPolicy,
+                                 MessengerMetrics messengerMetrics,
+                                 RecentHistory recentHistory) {
+        this.subscriberQueueCapacity = subscriberQueueCapacity;
+        this.slowConsumerPolicy = slowConsumerPolicy;
+        this.messengerMetrics = messengerMetrics;
+        this.recentHistory = recentHistory;
+        int size = 1;
+        while (size < capacity) {
+            size <<= 1;
+        }
+        this.ring = new RingSlot[size];
+        this.mask = size - 1;
+        for (int i = 0; i < size; i++) {
+            ring[i] = new RingSlot();
+        }
+    }
+
+    @PostConstruct
+    public void start() {
+        waker.setDaemon(true);
+        waker.start();
+    }
+
+    @PreDestroy
+    public void stop() {
+        executor.shutdown();
+        running = false;
+        LockSupport.unpark(waker);
+    }
+
+    @Override
+    @NotNull
+    public MessagePublisher registerPublisher(@NotNull Set<MessageSubscriber> ignoredSubscribers) {
+        MessagePublisher publisher = new MessagePublisherImpl();
+        publishers.put(publisher, ignoredSubscribers);
+
+        log.debug("Registered publisher");
+
+        return publisher;
+    }
+
+    @Override
+    @NotNull
+    public MessageSubscriber registerSubscriber() {
+        return registerSubscriber(true);
+    }
+
+    @Override
+    @NotNull
+    public MessageSubscriber registerHeldSubscriber() {
+        return registerSubscriber(false);
+    }
+
+    @NotNull
+    private MessageSubscriber registerSubscriber(boolean admitted) {
+        MessageSubscriberImpl subscriber = new MessageSubscriberImpl(publishedSequence + 1, admitted);
+        subscribers.add(subscriber);
+
+        log.debug("Registered subscriber");
+
+        return subscriber;
+    }
+
+    @Override
+    public int getBacklog() {
+        return executor.getQueue().size();
+    }
+
+    private void unregisterPublisher(@NotNull MessagePublisher publisher) {
+        publishers.remove(publisher);
+        log.debug("Unregistered publisher");
+    }
+
+    private void unregisterSubscriber(@NotNull MessageSubscriberImpl subscriber) {
+        subscribers.remove(subscriber);
+        subscriber.queue.close();
+        execute(() -> {
+            for (String topic : subscriber.topics) {
+                removeFromTopic(subscriber, topic);
+            }
+        });
+        log.debug("Unregistered subscriber");
+    }
+
+    private void joinTopic(@NotNull MessageSubscriberImpl subscriber, @NotNull String topic) {
+        if (!subscribers.contains(subscriber)) {
+            throw new SubscriberNotRegisteredException();
+        }
+        execute(() -> {
+            if (!subscribers.contains(subscriber) || !subscriber.topics.add(topic)) {
+                return;
+            }
+            topics.computeIfAbsent(topic, t -> ConcurrentHashMap.newKeySet()).add(subscriber);
+            log.debug("Subscriber joined topic {}", topic);
+        });
+    }
+
+    private void leaveTopic(@NotNull MessageSubscriberImpl subscriber, @NotNull String topic) {
+        execute(() -> {
+            if (!subscriber.topics.remove(topic)) {
+                return;
+            }
+            removeFromTopic(subscriber, topic);
+            log.debug("Subscriber left topic {}", topic);
+        });
+    }
+
+    private void removeFromTopic(@NotNull MessageSubscriberImpl subscriber, @NotNull String topic) {
+        topics.computeIfPresent(topic, (t, members) -> {
+            members.remove(subscriber);
+            return members.isEmpty() ? null : members;
+        });
+    }
+
+    private boolean execute(@NotNull Runnable task) {
+        try {
+            executor.execute(task);
+            return true;
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+    }
+
+    @NotNull
+    private Future<?> submit(@NotNull Runnable task) {
+        try {
+            return executor.submit(task);
+        } catch (RejectedExecutionException e) {
+            return CompletableFuture.completedFuture(null);
+        }
+    }
+
+    private Future<?> publishMessageOfPublisher(@NotNull MessagePublisher publisher, @NotNull MessageEnvelope[] envelopes) {
+        Runnable task = broadcastTask(publisher, envelopes);
+        if (task == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+        try {
+            return executor.submit(task);
+        } catch (RejectedExecutionException e) {
+            MessageEnvelope.releaseAll(envelopes);
+            return CompletableFuture.completedFuture(null);
+        }
+    }
+
+    private void publishNoWait(@NotNull MessagePublisher publisher, @NotNull MessageEnvelope[] envelopes) {
+        Runnable task = broadcastTask(publisher, envelopes);
+        if (task != null && !execute(task)) {
+            MessageEnvelope.releaseAll(envelopes);
+        }
+    }
+
+    @Nullable
+    private Runnable broadcastTask(@NotNull MessagePublisher publisher, @NotNull MessageEnvelope[] envelopes) {
+        Set<MessageSubscriber> ignoredSubscribers = publishers.get(publisher);
+        if (ignoredSubscribers == null) {
+            throw new PublisherNotRegisteredException();
+        }
+        if (envelopes.length == 0) {
+            return null;
+        }
+        return () -> {
+            long start = System.nanoTime();
+            for (MessageEnvelope envelope : envelopes) {
+                write(envelope, ignoredSubscribers);
+            }
+            LockSupport.unpark(waker);
+            messengerMetrics.recordFanOut(System.nanoTime() - start);
+            for (MessageEnvelope envelope : envelopes) {
+                if (envelope.getMessage() instanceof ChatMessage) {
+                    recentHistory.append(envelope);
+                }
+            }
+            log.debug("{} messages published", envelopes.length);
+        };
+    }
+
+    private Future<?> publishMessageToTopic(@NotNull MessagePublisher publisher, @NotNull String topic, @NotNull Message<?> message) {
+        Set<MessageSubscriber> ignoredSubscribers = publishers.get(publisher);
+        if (ignoredSubscribers == null) {
+            throw new PublisherNotRegisteredException();
+        }
+        return submit(() -> {
+            Set<MessageSubscriberImpl> members = topics.get(topic);
+            if (members == null) {
+                return;
+            }
+            long start = System.nanoTime();
+            MessageEnvelope envelope = new MessageEnvelope(message);
+            for (MessageSubscriberImpl subscriber : members) {
+                if (!ignoredSubscribers.contains(subscriber)) {
+                    subscriber.queue.offer(envelope);
+                    subscriber.notifyUpdateListener();
+                }
+            }
+            messengerMetrics.recordFanOut(System.nanoTime() - start);
+            log.debug("Message published to topic {}", topic);
+        });
+    }
+
+    private Future<?> publishMessageToSubscriber(@NotNull Message<?> message, MessageSubscriber subscriber) {
+        return submit(() -> {
+            if (!subscribers.contains(subscriber)) {
+                throw new SubscriberNotRegisteredException();
+            }
+            MessageSubscriberImpl target = (MessageSubscriberImpl) subscriber;
+            target.queue.offer(new MessageEnvelope(message));
+            target.notifyUpdateListener();
+            log.debug("Message published privately");
+        });
+    }
+
+    private Future<?> admitSubscriber(@NotNull Message<?> message, @NotNull MessageSubscriber subscriber) {
+        Admission admission = new Admission(subscriber, new MessageEnvelope(message));
+        if (admissions.add(admission) && !execute(this::admitPending)) {
+            admissions.discardAll();
+        }
+        return admission.getFuture();
+    }
+
+    // The history holds the broadcasts before the next slot, admitted subscribers read the ring from that slot on
+    private void admitPending() {
+        List<Admission> batch = admissions.takeAll();
+        if (batch.isEmpty()) {
+            return;
+        }
+        MessageEnvelope[] history = recentHistory.snapshot();
+        for (Admission admission : batch) {
+            if (!subscribers.contains(admission.getSubscriber())) {
+                admission.reject();
+                continue;
+            }
+            MessageSubscriberImpl target = (MessageSubscriberImpl) admission.getSubscriber();
+            target.queue.admit(admission.getEnvelope(), history);
+            target.cursor = nextSequence;
+            target.admitted = true;
+            target.notifyUpdateListener();
+            admission.getFuture().complete(null);
+        }
+        log.debug("{} subscribers admitted with {} history messages", batch.size(), history.length);
+    }
+
+    private void write(@NotNull MessageEnvelope envelope, @NotNull Set<MessageSubscriber> ignoredSubscribers) {
+        long sequence = nextSequence++;
+        RingSlot slot = ring[(int) (sequence & mask)];
+
+        // Readers compare the sequence before and after reading the fields to detect a concurrent overwrite
+        slot.sequence = NO_SEQUENCE;
+        slot.envelope = envelope;
+        slot.ignoredSubscribers = ignoredSubscribers;
+        slot.sequence = sequence;
+
+        publishedSequence = sequence;
+    }
+
+    private void wakeReaders() {
+        long woken = NO_SEQUENCE;
+        while (running) {
+            long published = publishedSequence;
+            if (published == woken) {
+                // A publish after the read above leaves a permit, the park returns right away
+                LockSupport.park(this);
+                continue;
+            }
+            woken = published;
+            for (MessageSubscriberImpl subscriber : subscribers) {
+                try {
+                    subscriber.wakeUpTo(published);
+                } catch (RuntimeException e) {
+                    log.error("Subscriber update listener failed", e);
+                }
+            }
+        }
+    }
+
+    @Nullable
+    private MessageEnvelope readMessageForSubscriber(@NotNull MessageSubscriberImpl subscriber, boolean advance) {
+        if (!subscribers.contains(subscriber)) {
+            throw new SubscriberNotRegisteredException();
+        }
+        MessageEnvelope queued = advance ? subscriber.queue.poll() : subscriber.queue.peek();
+        if (queued != null || !subscriber.admitted) {
+            return queued;
+        }
+
+        long published = publishedSequence;
+        long sequence = subscriber.cursor;
+        while (sequence <= published) {
+            if (published - sequence >= ring.length) {
+                long skipTo = published - ring.length + 1;
+                log.warn("Subscriber lagged behind, skipped {} messages", skipTo - sequence);
+                sequence = skipTo;
+            }
+
+            RingSlot slot = ring[(int) (sequence & mask)];
+            long before = slot.sequence;
+            MessageEnvelope envelope = slot.envelope;
+            Set<MessageSubscriber> ignoredSubscribers = slot.ignoredSubscribers;
+            long after = slot.sequence;
+
+            if (before != sequence || after != sequence) {
+                published = publishedSequence;
+                continue;
+            }
+
+            if (!ignoredSubscribers.contains(subscriber)) {
+                subscriber.cursor = advance ? sequence + 1 : sequence;
+                return envelope;
+            }
+            sequence++;
+        }
+        subscriber.cursor = sequence;
+        return null;
+    }
+
+    private static final class RingSlot {
+        private volatile long sequence = NO_SEQUENCE;
+        private volatile MessageEnvelope envelope;
+        private volatile Set<MessageSubscriber> ignoredSubscribers;
+    }
+
+    public final class MessagePublisherImpl implements MessagePublisher {
+
+        private MessagePublisherImpl() {
+
+        }
+
+        @Override
+        public Future<?> publishMessage(@NotNull Message<?> message) {
+            return publishMessageOfPublisher(this, new MessageEnvelope[]{new MessageEnvelope(message)});
+        }
+
+        @Override
+        public void publishMessageNoWait(@NotNull Message<?> message) {
+            publishNoWait(this, new MessageEnvelope[]{new MessageEnvelope(message)});
+        }
+
+        @Override
+        public Future<?> publishMessages(@NotNull List<? extends Message<?>> messages) {
+            return publishMessageOfPublisher(this, MessageEnvelope.wrapAll(messages));
+        }
+
+        @Override
+        public void publishMessagesNoWait(@NotNull List<? extends Message<?>> messages) {
+            publishNoWait(this, MessageEnvelope.wrapAll(messages));
+        }
+
+        @Override
+        public Future<?> publishToSubscriber(@NotNull Message<?> message, @NotNull MessageSubscriber subscriber) {
+            return publishMessageToSubscriber(message, subscriber);
+        }
+
+        @Override
+        public Future<?> publishToTopic(@NotNull String topic, @NotNull Message<?> message) {
+            return publishMessageToTopic(this, topic, message);
+        }
+
+        @Override
+        public Future<?> admitSubscriber(@NotNull Message<?> message, @NotNull MessageSubscriber subscriber) {
+            return RingMessageBrokerImpl.this.admitSubscriber(message, subscriber);
+        }
+
+        @Override
+        public void unregister() {
+            unregisterPublisher(this);
+        }
+    }
+
+    public final class MessageSubscriberImpl implements MessageSubscriber {
+
+        private final Set<String> topics = ConcurrentHashMap.newKeySet();
+        private final SubscriberQueue queue = new SubscriberQueue(subscriberQueueCapacity, slowConsumerPolicy);
+
+        private volatile long cursor;
+        // Set on the broker thread after the cursor, a reader that sees it reads the ring from the admission on
+        private volatile boolean admitted;
+        private volatile Runnable updateListener;
+        // Owned by the waker thread
+        private long wokenSequence = NO_SEQUENCE;
+
+        private MessageSubscriberImpl(long cursor, boolean admitted) {
+            this.cursor = cursor;
+            this.admitted = admitted;
+        }
+
+        @Override
+        @Nullable
+        public Message<?> peekMessage() {
+            MessageEnvelope envelope = readMessageForSubscriber(this, false);
+            return envelope == null ? null : envelope.getMessage();
+        }
+
+        @Override
+        @Nullable
+        public Message<?> pollMessage() {
+            MessageEnvelope envelope = readMessageForSubscriber(this, true);
+            return envelope == null ? null : envelope.getMessage();
+        }
+
+        @Override
+        @Nullable
+        public MessageEnvelope pollEnvelope() {
+            return readMessageForSubscriber(this, true);
+        }
+
+        @Override
+        public void setUpdateListener(@Nullable Runnable listener) {
+            this.updateListener = listener;
+        }
+
+        @Override
+        public int getQueueDepth() {
+            int ringDepth = admitted ? (int) Math.min(ring.length, Math.max(0, publishedSequence - cursor + 1)) : 0;
+            return ringDepth + queue.size();
+        }
+
+        @Override
+        public void joinTopic(@NotNull String topic) {
+            RingMessageBrokerImpl.this.joinTopic(this, topic);
+        }
+
+        @Override
+        public void leaveTopic(@NotNull String topic) {
+            RingMessageBrokerImpl.this.leaveTopic(this, topic);
+        }
+
+        @Override
+        public void unregister() {
+            unregisterSubscriber(this);
+        }
+
+        private void wakeUpTo(long published) {
+            if (wokenSequence >= published || cursor > published) {
+                return;
+            }
+            wokenSequence = published;
+            notifyUpdateListener();
+        }
+
+        private void notifyUpdateListener() {
+            Runnable listener = updateListener;
+            if (listener != null) {
+                listener.run();
+            }
+        }
+    }
+}
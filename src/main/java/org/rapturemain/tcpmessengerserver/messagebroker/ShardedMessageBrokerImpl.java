@@ -0,0 +1,570 @@
+package org.rapturemain.tcpmessengerserver.messagebroker;
+
+import lombok.extern.slf4j.Slf4j;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.rapturemain.tcpmessengermessageframework.message.messages.Message;
+import org.rapturemain.tcpmessengermessageframework.message.messages.chat.ChatMessage;
+import org.rapturemain.tcpmessengerserver.messagebroker.PendingAdmissions.Admission;
+import org.rapturemain.tcpmessengerserver.metrics.MessengerMetrics;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+@Component
+@ConditionalOnProperty(name = "messenger.broker", havingValue = "sharded")
+@Slf4j
+public final class ShardedMessageBrokerImpl implements MessageBroker {
+
+    // Sequences every publish, which makes it the only producer of each shard inbox
+    private final ThreadPoolExecutor executor = (ThreadPoolExecutor) Executors.newFixedThreadPool(1);
+
+    private final Shard[] shards;
+    private final ExecutorService shardExecutor;
+
+    private final AtomicInteger nextShard = new AtomicInteger();
+
+    private final ConcurrentHashMap<MessagePublisher, Set<MessageSubscriber>> publishers = new ConcurrentHashMap<>();
+    private final PendingAdmissions admissions = new PendingAdmissions();
+
+    private final int subscriberQueueCapacity;
+    private final SlowConsumerPolicy slowConsumerPolicy;
+    private final MessengerMetrics messengerMetrics;
+    private final RecentHistory recentHistory;
+    private final PayloadBufferPool payloadBufferPool;
+
+    @Autowired
+    public ShardedMessageBrokerImpl(@Value("${messenger.broker.shards:0}") int shardCount,
+                                    @Value("${messenger.broker.subscriber-queue-capacity:10000}") int subscriberQueueCapacity,
+                                    SlowConsumerPolicy slowConsumerPolicy,
+                                    MessengerMetrics messengerMetrics,
+                                    RecentHistory recentHistory,
+                                    PayloadBufferPool payloadBufferPool) {
+        this.subscriberQueueCapacity = subscriberQueueCapacity;
+        this.slowConsumerPolicy = slowConsumerPolicy;
+        this.messengerMetrics = messengerMetrics;
+        this.recentHistory = recentHistory;
+        this.payloadBufferPool = payloadBufferPool;
+        if (shardCount <= 0) {
+            shardCount = Runtime.getRuntime().availableProcessors();
+        }
+        this.shards = new Shard[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            shards[i] = new Shard();
+        }
+        this.shardExecutor = Executors.newFixedThreadPool(shardCount);
+    }
+
+    @PostConstruct
+    public void start() {
+        for (Shard shard : shards) {
+            shardExecutor.execute(shard);
+        }
+        log.info("Started {} broker shards", shards.length);
+    }
+
+    @PreDestroy
+    public void stop() {
+        executor.shutdown();
+        for (Shard shard : shards) {
+            shard.stop();
+        }
+        shardExecutor.shutdown();
+    }
+
+    @Override
+    @NotNull
+    public MessagePublisher registerPublisher(@NotNull Set<MessageSubscriber> ignoredSubscribers) {
+        MessagePublisher publisher = new MessagePublisherImpl();
+        publishers.put(publisher, ignoredSubscribers);
+
+        log.debug("Registered publisher");
+
+        return publisher;
+    }
+
+    @Override
+    @NotNull
+    public MessageSubscriber registerSubscriber() {
+        return registerSubscriber(true);
+    }
+
+    @Override
+    @NotNull
+    public MessageSubscriber registerHeldSubscriber() {
+        return registerSubscriber(false);
+    }
+
+    @NotNull
+    private MessageSubscriber registerSubscriber(boolean admitted) {
+        Shard shard = shards[Math.floorMod(nextShard.getAndIncrement(), shards.length)];
+        MessageSubscriberImpl subscriber = new MessageSubscriberImpl(shard, admitted);
+        execute(() -> shard.offer(s -> s.add(subscriber)));
+
+        log.debug("Registered subscriber");
+
+        return subscriber;
+    }
+
+    @Override
+    public int getBacklog() {
+        int backlog = executor.getQueue().size();
+        for (Shard shard : shards) {
+            backlog += shard.inbox.size();
+        }
+        return backlog;
+    }
+
+    private void unregisterPublisher(@NotNull MessagePublisher publisher) {
+        publishers.remove(publisher);
+        log.debug("Unregistered publisher");
+    }
+
+    private void unregisterSubscriber(@NotNull MessageSubscriberImpl subscriber) {
+        subscriber.registered = false;
+        subscriber.queue.close();
+        execute(() -> subscriber.shard.offer(s -> s.remove(subscriber)));
+        log.debug("Unregistered subscriber");
+    }
+
+    private boolean execute(@NotNull Runnable task) {
+        try {
+            executor.execute(task);
+            return true;
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+    }
+
+    @NotNull
+    private Future<?> submit(@NotNull Runnable task) {
+        try {
+            return executor.submit(task);
+        } catch (RejectedExecutionException e) {
+            return CompletableFuture.completedFuture(null);
+        }
+    }
+
+    private Future<?> publishMessageOfPublisher(@NotNull MessagePublisher publisher, @NotNull MessageEnvelope[] envelopes) {
+        Runnable task = broadcastTask(publisher, envelopes);
+        if (task == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+        try {
+            return executor.submit(task);
+        } catch (RejectedExecutionException e) {
+            MessageEnvelope.releaseAll(envelopes);
+            return CompletableFuture.completedFuture(null);
+        }
+    }
+
+    private void publishNoWait(@NotNull MessagePublisher publisher, @NotNull MessageEnvelope[] envelopes) {
+        Runnable task = broadcastTask(publisher, envelopes);
+        if (task != null && !execute(task)) {
+            MessageEnvelope.releaseAll(envelopes);
+        }
+    }
+
+    // Takes over the caller's references, every shard is handed one of its own
+    @Nullable
+    private Runnable broadcastTask(@NotNull MessagePublisher publisher, @NotNull MessageEnvelope[] envelopes) {
+        Set<MessageSubscriber> ignoredSubscribers = publishers.get(publisher);
+        if (ignoredSubscribers == null) {
+            MessageEnvelope.releaseAll(envelopes);
+            throw new PublisherNotRegisteredException();
+        }
+        if (envelopes.length == 0) {
+            MessageEnvelope.releaseAll(envelopes);
+            return null;
+        }
+        Consumer<Shard> task = shard -> {
+            shard.broadcast(envelopes, ignoredSubscribers);
+            MessageEnvelope.releaseAll(envelopes);
+        };
+        return () -> {
+            for (MessageEnvelope envelope : envelopes) {
+                envelope.retain(shards.length);
+            }
+            for (Shard shard : shards) {
+                shard.offer(task);
+            }
+            for (MessageEnvelope envelope : envelopes) {
+                if (envelope.getMessage() instanceof ChatMessage) {
+                    recentHistory.append(envelope);
+                }
+            }
+            MessageEnvelope.releaseAll(envelopes);
+            log.debug("{} messages published", envelopes.length);
+        };
+    }
+
+    private Future<?> publishMessageToTopic(@NotNull MessagePublisher publisher, @NotNull String topic, @NotNull Message<?> message) {
+        Set<MessageSubscriber> ignoredSubscribers = publishers.get(publisher);
+        if (ignoredSubscribers == null) {
+            throw new PublisherNotRegisteredException();
+        }
+        MessageEnvelope envelope = payloadBufferPool.wrap(message);
+        Consumer<Shard> task = shard -> {
+            shard.broadcastToTopic(topic, envelope, ignoredSubscribers);
+            envelope.release();
+        };
+        try {
+            return executor.submit(() -> {
+                envelope.retain(shards.length);
+                for (Shard shard : shards) {
+                    shard.offer(task);
+                }
+                envelope.release();
+                log.debug("Message published to topic {}", topic);
+            });
+        } catch (RejectedExecutionException e) {
+            envelope.release();
+            return CompletableFuture.completedFuture(null);
+        }
+    }
+
+    private void joinTopic(@NotNull MessageSubscriberImpl subscriber, @NotNull String topic) {
+        if (!subscriber.registered) {
+            throw new SubscriberNotRegisteredException();
+        }
+        // Sequenced with publishes, so the subscriber gets every topic message published after the join
+        execute(() -> subscriber.shard.offer(s -> s.join(subscriber, topic)));
+    }
+
+    private void leaveTopic(@NotNull MessageSubscriberImpl subscriber, @NotNull String topic) {
+        execute(() -> subscriber.shard.offer(s -> s.leave(subscriber, topic)));
+    }
+
+    private Future<?> publishMessageToSubscriber(@NotNull Message<?> message, MessageSubscriber subscriber) {
+        return submit(() -> {
+            if (!(subscriber instanceof MessageSubscriberImpl) || !((MessageSubscriberImpl) subscriber).registered) {
+                throw new SubscriberNotRegisteredException();
+            }
+            MessageSubscriberImpl target = (MessageSubscriberImpl) subscriber;
+            MessageEnvelope envelope = payloadBufferPool.wrap(message);
+            target.shard.offer(s -> {
+                s.deliver(target, envelope);
+                envelope.release();
+            });
+            log.debug("Message published privately");
+        });
+    }
+
+    private Future<?> admitSubscriber(@NotNull Message<?> message, @NotNull MessageSubscriber subscriber) {
+        Admission admission = new Admission(subscriber, payloadBufferPool.wrap(message));
+        if (admissions.add(admission) && !execute(this::admitPending)) {
+            admissions.discardAll();
+        }
+        return admission.getFuture();
+    }
+
+    // Taken on the sequencing thread, so the history holds every broadcast the shard skipped for the subscriber
+    private void admitPending() {
+        List<Admission> batch = admissions.takeAll();
+        if (batch.isEmpty()) {
+            return;
+        }
+        MessageEnvelope[] history = recentHistory.snapshot();
+        for (MessageEnvelope entry : history) {
+            entry.retain(batch.size());
+        }
+        for (Admission admission : batch) {
+            MessageSubscriber subscriber = admission.getSubscriber();
+            if (!(subscriber instanceof MessageSubscriberImpl) || !((MessageSubscriberImpl) subscriber).registered) {
+                MessageEnvelope.releaseAll(history);
+                admission.reject();
+                continue;
+            }
+            MessageSubscriberImpl target = (MessageSubscriberImpl) subscriber;
+            target.shard.offer(s -> s.admit(target, admission.getEnvelope(), history));
+            admission.getFuture().complete(null);
+        }
+        MessageEnvelope.releaseAll(history);
+        log.debug("{} subscribers admitted with {} history messages", batch.size(), history.length);
+    }
+
+    private final class Shard implements Runnable {
+
+        private final ConcurrentLinkedQueue<Consumer<Shard>> inbox = new ConcurrentLinkedQueue<>();
+
+        private final ArrayList<MessageSubscriberImpl> subscribers = new ArrayList<>();
+        private final HashMap<String, ArrayList<MessageSubscriberImpl>> topics = new HashMap<>();
+
+        private volatile Thread thread;
+        private volatile boolean parked = false;
+        private volatile boolean stopped = false;
+
+        @Override
+        public void run() {
+            thread = Thread.currentThread();
+            while (!stopped) {
+                Consumer<Shard> task = inbox.poll();
+                if (task != null) {
+                    task.accept(this);
+                    continue;
+                }
+                parked = true;
+                // Re-check after announcing the park, an offer in between would otherwise be missed
+                if (inbox.isEmpty() && !stopped) {
+                    LockSupport.park(this);
+                }
+                parked = false;
+            }
+        }
+
+        private void offer(Consumer<Shard> task) {
+            inbox.add(task);
+            if (parked) {
+                LockSupport.unpark(thread);
+            }
+        }
+
+        private void stop() {
+            stopped = true;
+            Thread t = thread;
+            if (t != null) {
+                LockSupport.unpark(t);
+            }
+        }
+
+        private void add(MessageSubscriberImpl subscriber) {
+            if (!subscriber.registered || subscriber.index >= 0) {
+                return;
+            }
+            subscriber.index = subscribers.size();
+            subscribers.add(subscriber);
+        }
+
+        private void remove(MessageSubscriberImpl subscriber) {
+            int index = subscriber.index;
+            if (index < 0) {
+                return;
+            }
+            MessageSubscriberImpl last = subscribers.remove(subscribers.size() - 1);
+            if (last != subscriber) {
+                subscribers.set(index, last);
+                last.index = index;
+            }
+            subscriber.index = -1;
+            for (String topic : subscriber.topics) {
+                removeFromTopic(subscriber, topic);
+            }
+            subscriber.topics.clear();
+        }
+
+        private void join(MessageSubscriberImpl subscriber, String topic) {
+            if (subscriber.index < 0 || !subscriber.topics.add(topic)) {
+                return;
+            }
+            topics.computeIfAbsent(topic, t -> new ArrayList<>()).add(subscriber);
+            log.debug("Subscriber joined topic {}", topic);
+        }
+
+        private void leave(MessageSubscriberImpl subscriber, String topic) {
+            if (!subscriber.topics.remove(topic)) {
+                return;
+            }
+            removeFromTopic(subscriber, topic);
+            log.debug("Subscriber left topic {}", topic);
+        }
+
+        private void removeFromTopic(MessageSubscriberImpl subscriber, String topic) {
+            ArrayList<MessageSubscriberImpl> members = topics.get(topic);
+            if (members == null) {
+                return;
+            }
+            members.remove(subscriber);
+            if (members.isEmpty()) {
+                topics.remove(topic);
+            }
+        }
+
+        private void admit(MessageSubscriberImpl subscriber, MessageEnvelope envelope, MessageEnvelope[] history) {
+            subscriber.queue.admit(envelope, history);
+            if (!subscriber.registered) {
+                return;
+            }
+            // A batch scheduled before the subscriber registered can get here ahead of its add
+            add(subscriber);
+            subscriber.admitted = true;
+            subscriber.notifyUpdateListener();
+        }
+
+        private void broadcast(MessageEnvelope[] envelopes, Set<MessageSubscriber> ignoredSubscribers) {
+            long start = System.nanoTime();
+            for (int i = 0; i < subscribers.size(); i++) {
+                MessageSubscriberImpl subscriber = subscribers.get(i);
+                if (!subscriber.registered || !subscriber.admitted || ignoredSubscribers.contains(subscriber)) {
+                    continue;
+                }
+                for (MessageEnvelope envelope : envelopes) {
+                    subscriber.queue.offer(envelope);
+                }
+                subscriber.notifyUpdateListener();
+            }
+            messengerMetrics.recordFanOut(System.nanoTime() - start);
+        }
+
+        private void broadcastToTopic(String topic, MessageEnvelope envelope, Set<MessageSubscriber> ignoredSubscribers) {
+            ArrayList<MessageSubscriberImpl> members = topics.get(topic);
+            if (members == null) {
+                return;
+            }
+            long start = System.nanoTime();
+            for (int i = 0; i < members.size(); i++) {
+                MessageSubscriberImpl subscriber = members.get(i);
+                if (!ignoredSubscribers.contains(subscriber)) {
+                    deliver(subscriber, envelope);
+                }
+            }
+            messengerMetrics.recordFanOut(System.nanoTime() - start);
+        }
+
+        private void deliver(MessageSubscriberImpl subscriber, MessageEnvelope envelope) {
+            if (!subscriber.registered) {
+                return;
+            }
+            subscriber.queue.offer(envelope);
+            subscriber.notifyUpdateListener();
+        }
+    }
+
+    public final class MessagePublisherImpl implements MessagePublisher {
+
+        private MessagePublisherImpl() {
+
+        }
+
+        @Override
+        public Future<?> publishMessage(@NotNull Message<?> message) {
+            return publishMessageOfPublisher(this, new MessageEnvelope[]{payloadBufferPool.wrap(message)});
+        }
+
+        @Override
+        public void publishMessageNoWait(@NotNull Message<?> message) {
+            publishNoWait(this, new MessageEnvelope[]{payloadBufferPool.wrap(message)});
+        }
+
+        @Override
+        public Future<?> publishMessages(@NotNull List<? extends Message<?>> messages) {
+            return publishMessageOfPublisher(this, payloadBufferPool.wrapAll(messages));
+        }
+
+        @Override
+        public void publishMessagesNoWait(@NotNull List<? extends Message<?>> messages) {
+            publishNoWait(this, payloadBufferPool.wrapAll(messages));
+        }
+
+        @Override
+        public Future<?> publishToSubscriber(@NotNull Message<?> message, @NotNull MessageSubscriber subscriber) {
+            return publishMessageToSubscriber(message, subscriber);
+        }
+
+        @Override
+        public Future<?> publishToTopic(@NotNull String topic, @NotNull Message<?> message) {
+            return publishMessageToTopic(this, topic, message);
+        }
+
+        @Override
+        public Future<?> admitSubscriber(@NotNull Message<?> message, @NotNull MessageSubscriber subscriber) {
+            return ShardedMessageBrokerImpl.this.admitSubscriber(message, subscriber);
+        }
+
+        @Override
+        public void unregister() {
+            unregisterPublisher(this);
+        }
+    }
+
+    public final class MessageSubscriberImpl implements MessageSubscriber {
+
+        private final Shard shard;
+        private final SubscriberQueue queue = new SubscriberQueue(subscriberQueueCapacity, slowConsumerPolicy);
+
+        private volatile boolean registered = true;
+        private volatile Runnable updateListener;
+        private int index = -1;
+        private final HashSet<String> topics = new HashSet<>();
+        private boolean admitted;
+
+        private MessageSubscriberImpl(Shard shard, boolean admitted) {
+            this.shard = shard;
+            this.admitted = admitted;
+        }
+
+        @Override
+        @Nullable
+        public Message<?> peekMessage() {
+            if (!registered) {
+                throw new SubscriberNotRegisteredException();
+            }
+            MessageEnvelope envelope = queue.peek();
+            return envelope == null ? null : envelope.getMessage();
+        }
+
+        @Override
+        @Nullable
+        public Message<?> pollMessage() {
+            MessageEnvelope envelope = pollEnvelope();
+            if (envelope == null) {
+                return null;
+            }
+            envelope.release();
+            return envelope.getMessage();
+        }
+
+        @Override
+        @Nullable
+        public MessageEnvelope pollEnvelope() {
+            if (!registered) {
+                throw new SubscriberNotRegisteredException();
+            }
+            return queue.poll();
+        }
+
+        @Override
+        public void setUpdateListener(@Nullable Runnable listener) {
+            this.updateListener = listener;
+        }
+
+        @Override
+        public int getQueueDepth() {
+            return queue.size();
+        }
+
+        @Override
+        public void joinTopic(@NotNull String topic) {
+            ShardedMessageBrokerImpl.this.joinTopic(this, topic);
+        }
+
+        @Override
+        public void leaveTopic(@NotNull String topic) {
+            ShardedMessageBrokerImpl.this.leaveTopic(this, topic);
+        }
+
+        @Override
+        public void unregister() {
+            unregisterSubscriber(this);
+        }
+
+        private void notifyUpdateListener() {
+            Runnable listener = updateListener;
+            if (listener != null) {
+                listener.run();
+            }
+        }
+    }
+}
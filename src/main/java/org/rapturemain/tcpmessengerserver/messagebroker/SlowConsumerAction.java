@@ -0,0 +1,23 @@
+package org.rapturemain.tcpmessengerserver.messagebroker;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Locale;
+
+public enum SlowConsumerAction {
+    DROP_OLDEST,
+    DROP_NEWEST,
+    COALESCE,
+    DISCONNECT;
+
+    @NotNull
+    public static SlowConsumerAction fromName(@NotNull String name) {
+        return valueOf(name.trim().replace('-', '_').toUpperCase(Locale.ROOT));
+    }
+
+    // As configured, e.g. "drop-oldest"
+    @NotNull
+    public String toName() {
+        return name().replace('_', '-').toLowerCase(Locale.ROOT);
+    }
+}
@@ -0,0 +1,11 @@
+package org.rapturemain.tcpmessengerserver.messagebroker;
+
+import org.jetbrains.annotations.NotNull;
+
+public interface SlowConsumerPolicy {
+
+    void onOverflow(@NotNull SubscriberQueue queue, @NotNull MessageEnvelope envelope);
+
+    // Counted only, the transport closes a connection past its write deadline under every policy
+    void onStalled();
+}
@@ -0,0 +1,65 @@
+package org.rapturemain.tcpmessengerserver.messagebroker;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.jetbrains.annotations.NotNull;
+import org.rapturemain.tcpmessengermessageframework.message.messages.system.ConnectionResetMessage;
+import org.rapturemain.tcpmessengermessageframework.message.messages.system.SystemMessage;
+import org.rapturemain.tcpmessengerserver.metrics.MessengerMetrics;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+@Component
+@Slf4j
+public class SlowConsumerPolicyImpl implements SlowConsumerPolicy {
+
+    @Getter
+    private final SlowConsumerAction action;
+
+    private final MessengerMetrics messengerMetrics;
+
+    @Autowired
+    public SlowConsumerPolicyImpl(@Value("${messenger.broker.slow-consumer-policy:drop-oldest}") String action,
+                                  MessengerMetrics messengerMetrics) {
+        this.action = SlowConsumerAction.fromName(action);
+        this.messengerMetrics = messengerMetrics;
+    }
+
+    @Override
+    public void onOverflow(@NotNull SubscriberQueue queue, @NotNull MessageEnvelope envelope) {
+        switch (action) {
+            case DROP_OLDEST:
+                dropOldest(queue, envelope);
+                break;
+            case DROP_NEWEST:
+                messengerMetrics.slowConsumerPolicyFired(SlowConsumerAction.DROP_NEWEST);
+                break;
+            case COALESCE:
+                // A system message of the same type already waiting carries the same information
+                if (envelope.getMessage() instanceof SystemMessage
+                        && queue.containsSystemMessageOf(envelope.getMessage().getClass())) {
+                    messengerMetrics.slowConsumerPolicyFired(SlowConsumerAction.COALESCE);
+                } else {
+                    dropOldest(queue, envelope);
+                }
+                break;
+            case DISCONNECT:
+                messengerMetrics.slowConsumerPolicyFired(SlowConsumerAction.DISCONNECT);
+                log.info("Subscriber queue exceeded {} messages, disconnecting subscriber", queue.getCapacity());
+                queue.disconnect(new MessageEnvelope(new ConnectionResetMessage()));
+                break;
+        }
+    }
+
+    @Override
+    public void onStalled() {
+        messengerMetrics.slowConsumerPolicyFired(SlowConsumerAction.DISCONNECT);
+    }
+
+    private void dropOldest(SubscriberQueue queue, MessageEnvelope envelope) {
+        messengerMetrics.slowConsumerPolicyFired(SlowConsumerAction.DROP_OLDEST);
+        queue.dropOldest();
+        queue.add(envelope);
+    }
+}
@@ -0,0 +1,187 @@
+package org.rapturemain.tcpmessengerserver.messagebroker;
+
+import lombok.Getter;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.rapturemain.tcpmessengermessageframework.message.messages.system.SystemMessage;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Control messages are polled before any queued chat and never dropped, the capacity and the slow consumer policy
+ * only apply to chat. The queue owns a reference to every envelope in it.
+ */
+public final class SubscriberQueue {
+
+    private static final MessageEnvelope[] NO_HISTORY = new MessageEnvelope[0];
+
+    private final ConcurrentLinkedQueue<MessageEnvelope> control = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedDeque<MessageEnvelope> queue = new ConcurrentLinkedDeque<>();
+    private final AtomicInteger size = new AtomicInteger();
+    private final AtomicInteger controlSize = new AtomicInteger();
+    private final ConcurrentHashMap<Class<?>, AtomicInteger> systemMessageCounts = new ConcurrentHashMap<>();
+
+    private final AtomicReference<MessageEnvelope> admission = new AtomicReference<>();
+    private volatile MessageEnvelope[] history = NO_HISTORY;
+    private final AtomicInteger historyRead = new AtomicInteger();
+
+    @Getter
+    private final int capacity;
+    private final SlowConsumerPolicy slowConsumerPolicy;
+
+    private volatile boolean disconnected = false;
+    private volatile boolean closed = false;
+
+    public SubscriberQueue(int capacity, @NotNull SlowConsumerPolicy slowConsumerPolicy) {
+        this.capacity = capacity;
+        this.slowConsumerPolicy = slowConsumerPolicy;
+    }
+
+    public void offer(@NotNull MessageEnvelope envelope) {
+        if (disconnected) {
+            return;
+        }
+        if (envelope.isControl()) {
+            add(envelope);
+            return;
+        }
+        if (capacity > 0 && size.get() >= capacity) {
+            slowConsumerPolicy.onOverflow(this, envelope);
+            return;
+        }
+        add(envelope);
+    }
+
+    public void add(@NotNull MessageEnvelope envelope) {
+        if (closed) {
+            return;
+        }
+        envelope.retain(1);
+        countSystemMessage(envelope, 1);
+        if (envelope.isControl()) {
+            control.add(envelope);
+            controlSize.incrementAndGet();
+        } else {
+            queue.add(envelope);
+            size.incrementAndGet();
+        }
+        if (closed) {
+            discardQueued();
+        }
+    }
+
+    // Takes over the caller's references, the history array may be shared with other queues and is never modified
+    public void admit(@NotNull MessageEnvelope envelope, MessageEnvelope @NotNull [] history) {
+        if (disconnected || closed) {
+            envelope.release();
+            MessageEnvelope.releaseAll(history);
+            return;
+        }
+        if (envelope.isControl()) {
+            add(envelope);
+            envelope.release();
+        } else {
+            admission.set(envelope);
+        }
+        this.history = history;
+        if (closed) {
+            discardQueued();
+        }
+    }
+
+    @Nullable
+    public MessageEnvelope peek() {
+        MessageEnvelope envelope = control.peek();
+        if (envelope != null) {
+            return envelope;
+        }
+        envelope = admission.get();
+        if (envelope != null) {
+            return envelope;
+        }
+        MessageEnvelope[] entries = history;
+        int index = historyRead.get();
+        return index < entries.length ? entries[index] : queue.peek();
+    }
+
+    @Nullable
+    public MessageEnvelope poll() {
+        MessageEnvelope envelope = control.poll();
+        if (envelope != null) {
+            controlSize.decrementAndGet();
+            countSystemMessage(envelope, -1);
+            return envelope;
+        }
+        envelope = admission.getAndSet(null);
+        if (envelope != null) {
+            return envelope;
+        }
+        envelope = pollHistory();
+        return envelope != null ? envelope : pollOldest();
+    }
+
+    @Nullable
+    private MessageEnvelope pollHistory() {
+        MessageEnvelope[] entries = history;
+        if (historyRead.get() >= entries.length) {
+            return null;
+        }
+        int index = historyRead.getAndIncrement();
+        return index < entries.length ? entries[index] : null;
+    }
+
+    @Nullable
+    private MessageEnvelope pollOldest() {
+        MessageEnvelope envelope = queue.poll();
+        if (envelope != null) {
+            size.decrementAndGet();
+            countSystemMessage(envelope, -1);
+        }
+        return envelope;
+    }
+
+    public void dropOldest() {
+        MessageEnvelope envelope = pollOldest();
+        if (envelope != null) {
+            envelope.release();
+        }
+    }
+
+    public boolean containsSystemMessageOf(@NotNull Class<?> type) {
+        AtomicInteger count = systemMessageCounts.get(type);
+        return count != null && count.get() > 0;
+    }
+
+    public void disconnect(@NotNull MessageEnvelope lastEnvelope) {
+        disconnected = true;
+        discardQueued();
+        add(lastEnvelope);
+    }
+
+    public void close() {
+        closed = true;
+        discardQueued();
+    }
+
+    public int size() {
+        int pendingHistory = Math.max(0, history.length - historyRead.get());
+        return size.get() + controlSize.get() + pendingHistory + (admission.get() != null ? 1 : 0);
+    }
+
+    private void countSystemMessage(@NotNull MessageEnvelope envelope, int delta) {
+        if (envelope.getMessage() instanceof SystemMessage) {
+            systemMessageCounts.computeIfAbsent(envelope.getMessage().getClass(), type -> new AtomicInteger()).addAndGet(delta);
+        }
+    }
+
+    private void discardQueued() {
+        MessageEnvelope envelope;
+        while ((envelope = poll()) != null) {
+            envelope.release();
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package org.rapturemain.tcpmessengerserver.metrics;
+
+import lombok.Builder;
+import lombok.Value;
+
+import java.beans.ConstructorProperties;
+
+@Value
+public class HistogramSnapshot {
+
+    public static final HistogramSnapshot EMPTY = new HistogramSnapshot(0, 0, 0, 0, 0);
+
+    long count;
+    long p50;
+    long p99;
+    long p999;
+    long max;
+
+    // Lets JMX rebuild snapshots from composite data
+    @Builder
+    @ConstructorProperties({"count", "p50", "p99", "p999", "max"})
+    public HistogramSnapshot(long count, long p50, long p99, long p999, long max) {
+        this.count = count;
+        this.p50 = p50;
+        this.p99 = p99;
+        this.p999 = p999;
+        this.max = max;
+    }
+}
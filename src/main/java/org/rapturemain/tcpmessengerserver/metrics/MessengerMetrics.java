@@ -0,0 +1,34 @@
+package org.rapturemain.tcpmessengerserver.metrics;
+
+import org.jetbrains.annotations.NotNull;
+import org.rapturemain.tcpmessengerserver.messagebroker.MessageSubscriber;
+import org.rapturemain.tcpmessengerserver.messagebroker.SlowConsumerAction;
+
+public interface MessengerMetrics {
+
+    void connectionOpened(@NotNull MessageSubscriber subscriber, @NotNull String description);
+
+    void connectionClosed(@NotNull MessageSubscriber subscriber);
+
+    void messageReceived();
+
+    void messagesSent(int count);
+
+    // One write or gathering write call on a client socket, however many frames it carried
+    void socketWritten();
+
+    void recordFanOut(long nanos);
+
+    void recordEncode(long nanos);
+
+    void recordDecode(long nanos);
+
+    void recordNotifierLag(long nanos);
+
+    void recordControlDelay(long nanos);
+
+    void slowConsumerPolicyFired(@NotNull SlowConsumerAction action);
+
+    // Resets the histograms
+    void collect(@NotNull MetricsSnapshot.MetricsSnapshotBuilder snapshot, int deepestQueues);
+}
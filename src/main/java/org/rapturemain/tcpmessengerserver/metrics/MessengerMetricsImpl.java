@@ -0,0 +1,136 @@
+package org.rapturemain.tcpmessengerserver.metrics;
+
+import org.jetbrains.annotations.NotNull;
+import org.rapturemain.tcpmessengerserver.messagebroker.MessageSubscriber;
+import org.rapturemain.tcpmessengerserver.messagebroker.SlowConsumerAction;
+import org.springframework.stereotype.Component;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+@Component
+public class MessengerMetricsImpl implements MessengerMetrics {
+
+    private static final long MICROS = TimeUnit.MICROSECONDS.toNanos(1);
+
+    private final ConcurrentHashMap<MessageSubscriber, String> connections = new ConcurrentHashMap<>();
+
+    private final LongAdder messagesIn = new LongAdder();
+    private final LongAdder messagesOut = new LongAdder();
+    private final LongAdder socketWrites = new LongAdder();
+    private final EnumMap<SlowConsumerAction, LongAdder> slowConsumerFired = new EnumMap<>(SlowConsumerAction.class);
+
+    private final StripedHistogram fanOut = new StripedHistogram();
+    private final StripedHistogram encode = new StripedHistogram();
+    private final StripedHistogram decode = new StripedHistogram();
+    private final StripedHistogram notifierLag = new StripedHistogram();
+    private final StripedHistogram controlDelay = new StripedHistogram();
+
+    public MessengerMetricsImpl() {
+        for (SlowConsumerAction action : SlowConsumerAction.values()) {
+            slowConsumerFired.put(action, new LongAdder());
+        }
+    }
+
+    @Override
+    public void connectionOpened(@NotNull MessageSubscriber subscriber, @NotNull String description) {
+        connections.put(subscriber, description);
+    }
+
+    @Override
+    public void connectionClosed(@NotNull MessageSubscriber subscriber) {
+        connections.remove(subscriber);
+    }
+
+    @Override
+    public void messageReceived() {
+        messagesIn.increment();
+    }
+
+    @Override
+    public void messagesSent(int count) {
+        messagesOut.add(count);
+    }
+
+    @Override
+    public void socketWritten() {
+        socketWrites.increment();
+    }
+
+    @Override
+    public void recordFanOut(long nanos) {
+        fanOut.record(nanos);
+    }
+
+    @Override
+    public void recordEncode(long nanos) {
+        encode.record(nanos);
+    }
+
+    @Override
+    public void recordDecode(long nanos) {
+        decode.record(nanos);
+    }
+
+    @Override
+    public void recordNotifierLag(long nanos) {
+        notifierLag.record(nanos);
+    }
+
+    @Override
+    public void recordControlDelay(long nanos) {
+        controlDelay.record(nanos);
+    }
+
+    @Override
+    public void slowConsumerPolicyFired(@NotNull SlowConsumerAction action) {
+        slowConsumerFired.get(action).increment();
+    }
+
+    public long getSlowConsumerFiredCount(@NotNull SlowConsumerAction action) {
+        return slowConsumerFired.get(action).sum();
+    }
+
+    @Override
+    public void collect(@NotNull MetricsSnapshot.MetricsSnapshotBuilder snapshot, int deepestQueues) {
+        StripedHistogram queueDepth = new StripedHistogram();
+        PriorityQueue<Map.Entry<String, Integer>> deepest = new PriorityQueue<>(Map.Entry.comparingByValue());
+        int liveConnections = 0;
+        for (Map.Entry<MessageSubscriber, String> connection : connections.entrySet()) {
+            int depth = connection.getKey().getQueueDepth();
+            liveConnections++;
+            queueDepth.record(depth);
+            if (deepestQueues > 0) {
+                deepest.add(Map.entry(connection.getValue(), depth));
+                if (deepest.size() > deepestQueues) {
+                    deepest.poll();
+                }
+            }
+        }
+        List<String> deepestDescriptions = new ArrayList<>(deepest.size());
+        while (!deepest.isEmpty()) {
+            Map.Entry<String, Integer> entry = deepest.poll();
+            deepestDescriptions.add(entry.getKey() + "=" + entry.getValue());
+        }
+        Collections.reverse(deepestDescriptions);
+        Map<String, Long> fired = new LinkedHashMap<>();
+        for (Map.Entry<SlowConsumerAction, LongAdder> entry : slowConsumerFired.entrySet()) {
+            fired.put(entry.getKey().toName(), entry.getValue().sum());
+        }
+
+        snapshot.liveConnections(liveConnections)
+                .messagesIn(messagesIn.sum())
+                .messagesOut(messagesOut.sum())
+                .socketWrites(socketWrites.sum())
+                .queueDepth(queueDepth.snapshotAndReset(1))
+                .deepestQueues(deepestDescriptions)
+                .slowConsumerFired(fired)
+                .fanOutMicros(fanOut.snapshotAndReset(MICROS))
+                .encodeMicros(encode.snapshotAndReset(MICROS))
+                .decodeMicros(decode.snapshotAndReset(MICROS))
+                .notifierLagMicros(notifierLag.snapshotAndReset(MICROS))
+                .controlDelayMicros(controlDelay.snapshotAndReset(MICROS));
+    }
+}
@@ -0,0 +1,9 @@
+package org.rapturemain.tcpmessengerserver.metrics;
+
+import org.jetbrains.annotations.NotNull;
+
+public interface MetricsCollector {
+
+    @NotNull
+    MetricsSnapshot getSnapshot();
+}
@@ -0,0 +1,185 @@
+package org.rapturemain.tcpmessengerserver.metrics;
+
+import lombok.extern.slf4j.Slf4j;
+import org.jetbrains.annotations.NotNull;
+import org.rapturemain.tcpmessengerserver.connection.SocketRegistrationService;
+import org.rapturemain.tcpmessengerserver.messagebroker.MessageBroker;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+@Component
+@Slf4j
+public class MetricsCollectorImpl implements MetricsCollector, MetricsMXBean {
+
+    private static final String OBJECT_NAME = "org.rapturemain.tcpmessengerserver:type=Metrics";
+    private static final long SAMPLE_RATE_MILLIS = TimeUnit.SECONDS.toMillis(1);
+
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+
+    private final MessengerMetrics messengerMetrics;
+    private final MessageBroker messageBroker;
+    private final SocketRegistrationService socketRegistrationService;
+    private final int deepestQueues;
+
+    private volatile MetricsSnapshot snapshot = MetricsSnapshot.EMPTY;
+    private long lastSampleTime = System.nanoTime();
+
+    @Autowired
+    public MetricsCollectorImpl(MessengerMetrics messengerMetrics,
+                                MessageBroker messageBroker,
+                                SocketRegistrationService socketRegistrationService,
+                                @Value("${messenger.metrics.deepest-queues:10}") int deepestQueues) {
+        this.messengerMetrics = messengerMetrics;
+        this.messageBroker = messageBroker;
+        this.socketRegistrationService = socketRegistrationService;
+        this.deepestQueues = deepestQueues;
+    }
+
+    @PostConstruct
+    public void start() {
+        executor.scheduleAtFixedRate(this::sample, SAMPLE_RATE_MILLIS, SAMPLE_RATE_MILLIS, TimeUnit.MILLISECONDS);
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            server.registerMBean(this, new ObjectName(OBJECT_NAME));
+        } catch (JMException e) {
+            log.error("Could not register metrics MBean", e);
+        }
+    }
+
+    @PreDestroy
+    public void stop() {
+        executor.shutdown();
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(new ObjectName(OBJECT_NAME));
+        } catch (JMException e) {
+            // do nothing
+        }
+    }
+
+    private void sample() {
+        try {
+            MetricsSnapshot.MetricsSnapshotBuilder builder = MetricsSnapshot.builder()
+                    .registeredUsers(socketRegistrationService.getRegisteredCount())
+                    .brokerBacklog(messageBroker.getBacklog());
+            messengerMetrics.collect(builder, deepestQueues);
+            MetricsSnapshot sampled = builder.build();
+
+            long now = System.nanoTime();
+            double seconds = Math.max(1, now - lastSampleTime) / (double) TimeUnit.SECONDS.toNanos(1);
+            MetricsSnapshot previous = snapshot;
+            long messagesOut = sampled.getMessagesOut() - previous.getMessagesOut();
+            snapshot = sampled.toBuilder()
+                    .messagesInPerSecond((sampled.getMessagesIn() - previous.getMessagesIn()) / seconds)
+                    .messagesOutPerSecond(messagesOut / seconds)
+                    .socketWritesPerMessage(messagesOut == 0 ? 0 : (sampled.getSocketWrites() - previous.getSocketWrites()) / (double) messagesOut)
+                    .build();
+            lastSampleTime = now;
+        } catch (RuntimeException e) {
+            log.error("Could not sample metrics", e);
+        }
+    }
+
+    @Override
+    @NotNull
+    public MetricsSnapshot getSnapshot() {
+        return snapshot;
+    }
+
+    @Override
+    public long getLiveConnections() {
+        return snapshot.getLiveConnections();
+    }
+
+    @Override
+    public long getRegisteredUsers() {
+        return snapshot.getRegisteredUsers();
+    }
+
+    @Override
+    public long getMessagesIn() {
+        return snapshot.getMessagesIn();
+    }
+
+    @Override
+    public long getMessagesOut() {
+        return snapshot.getMessagesOut();
+    }
+
+    @Override
+    public double getMessagesInPerSecond() {
+        return snapshot.getMessagesInPerSecond();
+    }
+
+    @Override
+    public double getMessagesOutPerSecond() {
+        return snapshot.getMessagesOutPerSecond();
+    }
+
+    @Override
+    public long getSocketWrites() {
+        return snapshot.getSocketWrites();
+    }
+
+    @Override
+    public double getSocketWritesPerMessage() {
+        return snapshot.getSocketWritesPerMessage();
+    }
+
+    @Override
+    public long getBrokerBacklog() {
+        return snapshot.getBrokerBacklog();
+    }
+
+    @Override
+    public HistogramSnapshot getQueueDepth() {
+        return snapshot.getQueueDepth();
+    }
+
+    @Override
+    public List<String> getDeepestQueues() {
+        return snapshot.getDeepestQueues();
+    }
+
+    @Override
+    public Map<String, Long> getSlowConsumerFired() {
+        return snapshot.getSlowConsumerFired();
+    }
+
+    @Override
+    public HistogramSnapshot getFanOutMicros() {
+        return snapshot.getFanOutMicros();
+    }
+
+    @Override
+    public HistogramSnapshot getEncodeMicros() {
+        return snapshot.getEncodeMicros();
+    }
+
+    @Override
+    public HistogramSnapshot getDecodeMicros() {
+        return snapshot.getDecodeMicros();
+    }
+
+    @Override
+    public HistogramSnapshot getNotifierLagMicros() {
+        return snapshot.getNotifierLagMicros();
+    }
+
+    @Override
+    public HistogramSnapshot getControlDelayMicros() {
+        return snapshot.getControlDelayMicros();
+    }
+}
@@ -0,0 +1,123 @@
+package org.rapturemain.tcpmessengerserver.metrics;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+@Component
+@Slf4j
+public class MetricsEndpoint {
+
+    private final MetricsCollector metricsCollector;
+    private final int port;
+
+    private HttpServer server;
+
+    @Autowired
+    public MetricsEndpoint(MetricsCollector metricsCollector, @Value("${messenger.metrics.port:0}") int port) {
+        this.metricsCollector = metricsCollector;
+        this.port = port;
+    }
+
+    @PostConstruct
+    public void start() {
+        if (port <= 0) {
+            return;
+        }
+        try {
+            server = HttpServer.create(new InetSocketAddress(port), 0);
+        } catch (IOException e) {
+            log.error("Cannot bind metrics endpoint to port {}", port, e);
+            return;
+        }
+        server.createContext("/metrics", this::handle);
+        server.start();
+        log.info("Metrics endpoint started on port {}", port);
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (server != null) {
+            server.stop(0);
+        }
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        byte[] body = render(metricsCollector.getSnapshot()).getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream outputStream = exchange.getResponseBody()) {
+            outputStream.write(body);
+        }
+    }
+
+    static String render(MetricsSnapshot snapshot) {
+        StringBuilder text = new StringBuilder();
+        line(text, "messenger_connections", snapshot.getLiveConnections());
+        line(text, "messenger_registered_users", snapshot.getRegisteredUsers());
+        line(text, "messenger_messages_in_total", snapshot.getMessagesIn());
+        line(text, "messenger_messages_out_total", snapshot.getMessagesOut());
+        line(text, "messenger_messages_in_per_second", snapshot.getMessagesInPerSecond());
+        line(text, "messenger_messages_out_per_second", snapshot.getMessagesOutPerSecond());
+        line(text, "messenger_socket_writes_total", snapshot.getSocketWrites());
+        line(text, "messenger_socket_writes_per_message", snapshot.getSocketWritesPerMessage());
+        line(text, "messenger_broker_backlog", snapshot.getBrokerBacklog());
+        histogram(text, "messenger_subscriber_queue_depth", snapshot.getQueueDepth());
+        for (String queue : snapshot.getDeepestQueues()) {
+            int separator = queue.lastIndexOf('=');
+            line(text, "messenger_deepest_subscriber_queue{connection=\"" + escapeLabelValue(queue.substring(0, separator)) + "\"}", queue.substring(separator + 1));
+        }
+        for (Map.Entry<String, Long> fired : snapshot.getSlowConsumerFired().entrySet()) {
+            line(text, "messenger_slow_consumer_fired_total{action=\"" + escapeLabelValue(fired.getKey()) + "\"}", fired.getValue());
+        }
+        histogram(text, "messenger_fan_out_micros", snapshot.getFanOutMicros());
+        histogram(text, "messenger_encode_micros", snapshot.getEncodeMicros());
+        histogram(text, "messenger_decode_micros", snapshot.getDecodeMicros());
+        histogram(text, "messenger_notifier_lag_micros", snapshot.getNotifierLagMicros());
+        histogram(text, "messenger_control_delay_micros", snapshot.getControlDelayMicros());
+        return text.toString();
+    }
+
+    private static void histogram(StringBuilder text, String name, HistogramSnapshot histogram) {
+        line(text, name + "{quantile=\"0.5\"}", histogram.getP50());
+        line(text, name + "{quantile=\"0.99\"}", histogram.getP99());
+        line(text, name + "{quantile=\"0.999\"}", histogram.getP999());
+        line(text, name + "_max", histogram.getMax());
+        line(text, name + "_count", histogram.getCount());
+    }
+
+    // A quote, backslash or line break would end the value or the line
+    static String escapeLabelValue(String value) {
+        StringBuilder escaped = null;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            String replacement = c == '\\' ? "\\\\" : c == '"' ? "\\\"" : c == '\n' ? "\\n" : null;
+            if (replacement == null) {
+                if (escaped != null) {
+                    escaped.append(c);
+                }
+                continue;
+            }
+            if (escaped == null) {
+                escaped = new StringBuilder(value.length() + 8).append(value, 0, i);
+            }
+            escaped.append(replacement);
+        }
+        return escaped == null ? value : escaped.toString();
+    }
+
+    private static void line(StringBuilder text, String name, Object value) {
+        text.append(name).append(' ').append(value).append('\n');
+    }
+}
@@ -0,0 +1,41 @@
+package org.rapturemain.tcpmessengerserver.metrics;
+
+import java.util.List;
+import java.util.Map;
+
+public interface MetricsMXBean {
+
+    long getLiveConnections();
+
+    long getRegisteredUsers();
+
+    long getMessagesIn();
+
+    long getMessagesOut();
+
+    double getMessagesInPerSecond();
+
+    double getMessagesOutPerSecond();
+
+    long getSocketWrites();
+
+    double getSocketWritesPerMessage();
+
+    long getBrokerBacklog();
+
+    HistogramSnapshot getQueueDepth();
+
+    List<String> getDeepestQueues();
+
+    Map<String, Long> getSlowConsumerFired();
+
+    HistogramSnapshot getFanOutMicros();
+
+    HistogramSnapshot getEncodeMicros();
+
+    HistogramSnapshot getDecodeMicros();
+
+    HistogramSnapshot getNotifierLagMicros();
+
+    HistogramSnapshot getControlDelayMicros();
+}
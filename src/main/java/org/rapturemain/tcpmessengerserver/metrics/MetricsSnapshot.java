@@ -0,0 +1,47 @@
+package org.rapturemain.tcpmessengerserver.metrics;
+
+import lombok.Builder;
+import lombok.Value;
+
+import java.util.List;
+import java.util.Map;
+
+@Value
+@Builder(toBuilder = true)
+public class MetricsSnapshot {
+
+    public static final MetricsSnapshot EMPTY = MetricsSnapshot.builder()
+            .queueDepth(HistogramSnapshot.EMPTY)
+            .deepestQueues(List.of())
+            .slowConsumerFired(Map.of())
+            .fanOutMicros(HistogramSnapshot.EMPTY)
+            .encodeMicros(HistogramSnapshot.EMPTY)
+            .decodeMicros(HistogramSnapshot.EMPTY)
+            .notifierLagMicros(HistogramSnapshot.EMPTY)
+            .controlDelayMicros(HistogramSnapshot.EMPTY)
+            .build();
+
+    long liveConnections;
+    long registeredUsers;
+
+    long messagesIn;
+    long messagesOut;
+    double messagesInPerSecond;
+    double messagesOutPerSecond;
+
+    long socketWrites;
+    // Over the last sample interval, 1 means every delivered message took a syscall of its own
+    double socketWritesPerMessage;
+
+    long brokerBacklog;
+
+    HistogramSnapshot queueDepth;
+    List<String> deepestQueues;
+    Map<String, Long> slowConsumerFired;
+
+    HistogramSnapshot fanOutMicros;
+    HistogramSnapshot encodeMicros;
+    HistogramSnapshot decodeMicros;
+    HistogramSnapshot notifierLagMicros;
+    HistogramSnapshot controlDelayMicros;
+}
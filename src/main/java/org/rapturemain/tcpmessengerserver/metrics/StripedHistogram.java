@@ -0,0 +1,59 @@
+package org.rapturemain.tcpmessengerserver.metrics;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Power of two buckets over striped counters, percentiles are bucket upper bounds and accurate to within a factor of two.
+ */
+public final class StripedHistogram {
+
+    private static final int BUCKETS = Long.SIZE;
+
+    private final LongAdder[] buckets = new LongAdder[BUCKETS];
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    public StripedHistogram() {
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    public void record(long value) {
+        value = Math.max(0, value);
+        buckets[BUCKETS - Long.numberOfLeadingZeros(value)].increment();
+        max.accumulate(value);
+    }
+
+    @NotNull
+    public HistogramSnapshot snapshotAndReset(long unit) {
+        long[] counts = new long[BUCKETS];
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = buckets[i].sumThenReset();
+            count += counts[i];
+        }
+        long maxValue = max.getThenReset();
+        return HistogramSnapshot.builder()
+                .count(count)
+                .p50(Math.min(percentile(counts, count, 0.5), maxValue) / unit)
+                .p99(Math.min(percentile(counts, count, 0.99), maxValue) / unit)
+                .p999(Math.min(percentile(counts, count, 0.999), maxValue) / unit)
+                .max(maxValue / unit)
+                .build();
+    }
+
+    private static long percentile(long[] counts, long count, double percentile) {
+        long rank = (long) Math.ceil(count * percentile);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank && seen > 0) {
+                return (1L << i) - 1;
+            }
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,85 @@
+package org.rapturemain.tcpmessengerserver.server;
+
+import lombok.extern.slf4j.Slf4j;
+import org.rapturemain.tcpmessengerserver.connection.ChannelConnectionHandler;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+@Component
+@ConditionalOnProperty(name = "messenger.transport", havingValue = "reactor")
+@Slf4j
+public class ReactorServer {
+
+    private final int port;
+    private final ChannelConnectionHandler channelConnectionHandler;
+
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    private volatile boolean stopped = false;
+    private volatile ServerSocketChannel serverChannel;
+
+    @Autowired
+    public ReactorServer(@Value("${messenger.port:25565}") int port, ChannelConnectionHandler channelConnectionHandler) {
+        this.port = port;
+        this.channelConnectionHandler = channelConnectionHandler;
+    }
+
+    @PostConstruct
+    public void start() {
+        executor.execute(this::startInner);
+    }
+
+    @PreDestroy
+    public void stop() {
+        stopped = true;
+        if (serverChannel != null) {
+            try {
+                serverChannel.close();
+            } catch (IOException e) {
+                log.error("Could not close server channel", e);
+            }
+        }
+        executor.shutdown();
+    }
+
+    private void startInner() {
+        try {
+            serverChannel = ServerSocketChannel.open();
+        } catch (IOException e) {
+            log.error("Cannot create server socket channel", e);
+            System.exit(1);
+        }
+
+        try {
+            serverChannel.bind(new InetSocketAddress(port));
+            log.info("Running reactor server on port {}", serverChannel.socket().getLocalPort());
+        } catch (IOException e) {
+            log.error("Cannot bind server socket channel to the port {}", port, e);
+            System.exit(1);
+        }
+
+        while (!stopped) {
+            SocketChannel channel;
+            try {
+                channel = serverChannel.accept();
+            } catch (ClosedChannelException e) {
+                break;
+            } catch (IOException e) {
+                log.error("Error while accepting connection", e);
+                continue;
+            }
+            channelConnectionHandler.handleConnection(channel);
+        }
+    }
+}
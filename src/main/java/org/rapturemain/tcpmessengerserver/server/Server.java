@@ -3,6 +3,8 @@ package org.rapturemain.tcpmessengerserver.server;
 import lombok.extern.slf4j.Slf4j;
 import org.rapturemain.tcpmessengerserver.connection.ConnectionHandler;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.stereotype.Component;
 
 import javax.annotation.PostConstruct;
@@ -15,18 +17,19 @@ import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
 @Component
+@ConditionalOnProperty(name = "messenger.transport", havingValue = "blocking", matchIfMissing = true)
 @Slf4j
 public class Server {
 
-    private static final int SERVER_PORT = 25565;
-
+    private final int port;
     private final ConnectionHandler connectionHandler;
 
     private final ExecutorService executor = Executors.newSingleThreadExecutor();
     private boolean stopped = false;
 
     @Autowired
-    public Server(ConnectionHandler connectionHandler) {
+    public Server(@Value("${messenger.port:25565}") int port, ConnectionHandler connectionHandler) {
+        this.port = port;
         this.connectionHandler = connectionHandler;
     }
 
@@ -50,10 +53,10 @@ public class Server {
         }
 
         try {
-            serverSocket.bind(new InetSocketAddress(SERVER_PORT));
+            serverSocket.bind(new InetSocketAddress(port));
             log.info("Running server on port {}", serverSocket.getLocalPort());
         } catch (IOException e) {
-            log.error("Cannot bing server socket to the port {}", SERVER_PORT, e);
+            log.error("Cannot bing server socket to the port {}", port, e);
             System.exit(1);
         }
 
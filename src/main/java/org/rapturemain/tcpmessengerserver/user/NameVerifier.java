@@ -1,8 +1,22 @@
 package org.rapturemain.tcpmessengerserver.user;
 
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+
 public interface NameVerifier {
 
-    void registerName(Name name) throws NameUnavailableException;
+    // May complete on another thread when another node owns the name
+    @NotNull
+    CompletableFuture<Boolean> registerName(Name name);
 
     void unregisterName(Name name);
+
+    // Taken by every node of a cluster on startup, so it is never claimed from another node
+    void reserveName(Name name) throws NameUnavailableException;
+
+    // Called when a registered name went to a user of another node
+    void setNameLostListener(@Nullable Consumer<Name> listener);
 }
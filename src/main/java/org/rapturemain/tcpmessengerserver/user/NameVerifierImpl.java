@@ -1,21 +1,44 @@
 package org.rapturemain.tcpmessengerserver.user;
 
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.stereotype.Component;
 
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+
 @Component
+@ConditionalOnProperty(name = "messenger.cluster.enabled", havingValue = "false", matchIfMissing = true)
 public class NameVerifierImpl extends Verifier<Name> implements NameVerifier {
 
     @Override
-    public void registerName(Name name) throws NameUnavailableException {
+    @NotNull
+    public CompletableFuture<Boolean> registerName(Name name) {
         try {
             register(name);
         } catch (UniqueConstraintException e) {
-            throw new NameUnavailableException(name.getName());
+            return CompletableFuture.completedFuture(false);
         }
+        return CompletableFuture.completedFuture(true);
     }
 
     @Override
     public void unregisterName(Name name) {
         unregister(name);
     }
+
+    @Override
+    public void reserveName(Name name) throws NameUnavailableException {
+        try {
+            register(name);
+        } catch (UniqueConstraintException e) {
+            throw new NameUnavailableException(name.getName());
+        }
+    }
+
+    @Override
+    public void setNameLostListener(@Nullable Consumer<Name> listener) {
+        // Nobody else hands out names, a registered one is never lost
+    }
 }
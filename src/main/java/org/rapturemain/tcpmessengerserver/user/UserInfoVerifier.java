@@ -1,7 +1,17 @@
 package org.rapturemain.tcpmessengerserver.user;
 
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+
 public interface UserInfoVerifier {
-    void registerUser(User user) throws NameUnavailableException;
+    // Completes with false if the user's name is taken, see NameVerifier.registerName
+    @NotNull
+    CompletableFuture<Boolean> registerUser(User user);
 
     void unregisterUser(User user);
+
+    void setNameLostListener(@Nullable Consumer<Name> listener);
 }
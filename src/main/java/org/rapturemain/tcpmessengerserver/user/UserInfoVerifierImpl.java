@@ -1,10 +1,14 @@
 package org.rapturemain.tcpmessengerserver.user;
 
 import lombok.SneakyThrows;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
 import javax.annotation.PostConstruct;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
 
 @Component
 public class UserInfoVerifierImpl extends Verifier<User> implements UserInfoVerifier {
@@ -23,16 +27,22 @@ public class UserInfoVerifierImpl extends Verifier<User> implements UserInfoVeri
     @PostConstruct
     @SneakyThrows
     public void start() {
-        registerUser(SERVER);
+        nameVerifier.reserveName(SERVER.getName());
     }
 
     @Override
-    public void registerUser(User user) throws NameUnavailableException {
-        nameVerifier.registerName(user.getName());
+    @NotNull
+    public CompletableFuture<Boolean> registerUser(User user) {
+        return nameVerifier.registerName(user.getName());
     }
 
     @Override
     public void unregisterUser(User user) {
         nameVerifier.unregisterName(user.getName());
     }
+
+    @Override
+    public void setNameLostListener(@Nullable Consumer<Name> listener) {
+        nameVerifier.setNameLostListener(listener);
+    }
 }
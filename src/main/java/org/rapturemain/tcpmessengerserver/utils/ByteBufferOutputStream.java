@@ -0,0 +1,54 @@
+package org.rapturemain.tcpmessengerserver.utils;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.DataOutputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+public class ByteBufferOutputStream extends OutputStream {
+
+    private ByteBuffer buffer;
+    // Created once per stream, encoding into it should not allocate a wrapper per message
+    private DataOutputStream dataOutputStream;
+
+    public ByteBufferOutputStream(int initialCapacity) {
+        this.buffer = ByteBuffer.allocate(initialCapacity);
+    }
+
+    @NotNull
+    public ByteBuffer getBuffer() {
+        return buffer;
+    }
+
+    @NotNull
+    public DataOutputStream getDataOutputStream() {
+        if (dataOutputStream == null) {
+            dataOutputStream = new DataOutputStream(this);
+        }
+        return dataOutputStream;
+    }
+
+    @Override
+    public void write(int b) {
+        ensureRemaining(1);
+        buffer.put((byte) b);
+    }
+
+    @Override
+    public void write(byte @NotNull [] b, int off, int len) {
+        ensureRemaining(len);
+        buffer.put(b, off, len);
+    }
+
+    private void ensureRemaining(int required) {
+        if (buffer.remaining() >= required) {
+            return;
+        }
+        int capacity = Math.max(buffer.capacity() * 2, buffer.position() + required);
+        ByteBuffer grown = ByteBuffer.allocate(capacity);
+        buffer.flip();
+        grown.put(buffer);
+        buffer = grown;
+    }
+}
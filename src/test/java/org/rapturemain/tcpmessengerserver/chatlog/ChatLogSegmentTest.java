@@ -0,0 +1,142 @@
+package org.rapturemain.tcpmessengerserver.chatlog;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ChatLogSegmentTest {
+
+    private static final int SEGMENT_SIZE = 4096;
+    private static final int FRAME_SIZE = 40;
+    private static final int RECORD_SIZE = ChatLogSegment.RECORD_HEADER_SIZE + FRAME_SIZE;
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void reopenedSegmentKeepsEveryRecord() throws IOException {
+        ChatLogSegment segment = createWith(10);
+        segment.close();
+
+        ChatLogSegment reopened = ChatLogSegment.open(segment.getPath());
+
+        assertEquals(9, reopened.getLastSequence());
+        assertEquals(10 * RECORD_SIZE, reopened.getWritePosition());
+        assertEquals(sequences(0, 10), readAll(reopened));
+        reopened.close();
+    }
+
+    @Test
+    void tornLastRecordIsDropped() throws IOException {
+        ChatLogSegment segment = createWith(5);
+        segment.close();
+        // Header of a sixth record whose frame and checksum never made it
+        write(segment.getPath(), 5 * RECORD_SIZE, ByteBuffer.allocate(16).putInt(FRAME_SIZE).putInt(0).putLong(5).flip());
+
+        ChatLogSegment reopened = ChatLogSegment.open(segment.getPath());
+        assertEquals(4, reopened.getLastSequence());
+        assertTrue(reopened.append(5, 5, frame(5)));
+        reopened.close();
+
+        ChatLogSegment again = ChatLogSegment.open(segment.getPath());
+        assertEquals(sequences(0, 6), readAll(again));
+        again.close();
+    }
+
+    @Test
+    void damagedRecordCutsOffEverythingAfterIt() throws IOException {
+        ChatLogSegment segment = createWith(5);
+        segment.close();
+        write(segment.getPath(), 2 * RECORD_SIZE + ChatLogSegment.RECORD_HEADER_SIZE, ByteBuffer.wrap(new byte[]{-1}));
+
+        ChatLogSegment reopened = ChatLogSegment.open(segment.getPath());
+        assertEquals(1, reopened.getLastSequence());
+        // Shorter than the old records, must not line up with what is left of them
+        assertTrue(reopened.append(2, 2, ByteBuffer.allocate(FRAME_SIZE / 2)));
+        reopened.close();
+
+        ChatLogSegment again = ChatLogSegment.open(segment.getPath());
+        assertEquals(sequences(0, 3), readAll(again));
+        again.close();
+    }
+
+    @Test
+    void truncatedFileKeepsTheRecordsItStillHolds() throws IOException {
+        ChatLogSegment segment = createWith(5);
+        segment.close();
+        try (FileChannel channel = FileChannel.open(segment.getPath(), StandardOpenOption.WRITE)) {
+            channel.truncate(4 * RECORD_SIZE + RECORD_SIZE / 2);
+        }
+
+        ChatLogSegment reopened = ChatLogSegment.open(segment.getPath());
+
+        assertEquals(sequences(0, 4), readAll(reopened));
+        // No room left for the next record, the log rolls over to a new segment
+        assertFalse(reopened.append(4, 4, frame(4)));
+        reopened.close();
+    }
+
+    @Test
+    void readerNoticesRecordsDamagedAfterWriting() throws IOException {
+        ChatLogSegment segment = createWith(3);
+        write(segment.getPath(), RECORD_SIZE + ChatLogSegment.RECORD_HEADER_SIZE, ByteBuffer.wrap(new byte[]{-1}));
+
+        ChatLogSegment.Reader reader = segment.reader(0);
+        assertTrue(reader.isIntact());
+        reader.advance();
+        assertFalse(reader.isIntact());
+        reader.advance();
+        assertTrue(reader.isIntact());
+        segment.close();
+    }
+
+    private ChatLogSegment createWith(int records) throws IOException {
+        ChatLogSegment segment = ChatLogSegment.create(directory, 0, SEGMENT_SIZE);
+        for (int i = 0; i < records; i++) {
+            assertTrue(segment.append(i, i, frame(i)));
+        }
+        return segment;
+    }
+
+    private static ByteBuffer frame(int fill) {
+        ByteBuffer frame = ByteBuffer.allocate(FRAME_SIZE);
+        while (frame.hasRemaining()) {
+            frame.put((byte) fill);
+        }
+        return frame.flip();
+    }
+
+    private static void write(Path path, long position, ByteBuffer bytes) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+            channel.write(bytes, position);
+        }
+    }
+
+    private static List<Long> readAll(ChatLogSegment segment) {
+        List<Long> sequences = new ArrayList<>();
+        ChatLogSegment.Reader reader = segment.reader(0);
+        while (reader.hasNext()) {
+            assertTrue(reader.isIntact());
+            sequences.add(reader.sequence());
+            reader.advance();
+        }
+        return sequences;
+    }
+
+    private static List<Long> sequences(long from, long to) {
+        List<Long> sequences = new ArrayList<>();
+        for (long sequence = from; sequence < to; sequence++) {
+            sequences.add(sequence);
+        }
+        return sequences;
+    }
+}
@@ -0,0 +1,154 @@
+package org.rapturemain.tcpmessengerserver.chatlog;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.rapturemain.tcpmessengermessageframework.message.base.StringEntry;
+import org.rapturemain.tcpmessengermessageframework.message.base.TimestampEntry;
+import org.rapturemain.tcpmessengermessageframework.message.messages.Message;
+import org.rapturemain.tcpmessengermessageframework.message.messages.chat.SimpleChatMessage;
+import org.rapturemain.tcpmessengerserver.messagebroker.*;
+import org.rapturemain.tcpmessengerserver.metrics.MessengerMetricsImpl;
+
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MappedChatLogImplTest {
+
+    // A few records each, so that a hundred messages roll over many times
+    private static final int SEGMENT_SIZE = 512;
+    private static final int RETAINED_SEGMENTS = 4;
+
+    private final MessengerMetricsImpl messengerMetrics = new MessengerMetricsImpl();
+    private final MessageEncoderDecoderImpl messageEncoderDecoder = new MessageEncoderDecoderImpl(messengerMetrics);
+    private final MessageBrokerImpl broker = new MessageBrokerImpl(4096, 1, 10000, new SlowConsumerPolicyImpl("drop-oldest", messengerMetrics),
+            messengerMetrics, new RecentHistoryImpl(0, 0), new PayloadBufferPool(0, false));
+
+    @TempDir
+    Path directory;
+
+    private MappedChatLogImpl chatLog;
+
+    @BeforeEach
+    void setUp() {
+        messageEncoderDecoder.start();
+        broker.start();
+    }
+
+    @AfterEach
+    void tearDown() throws InterruptedException {
+        if (chatLog != null) {
+            chatLog.stop();
+        }
+        broker.stop();
+    }
+
+    @Test
+    void rollsOverAndDropsSegmentsPastRetention() throws Exception {
+        chatLog = start();
+        appendAndAwait(0, 100);
+
+        assertEquals(RETAINED_SEGMENTS, segmentFiles().size());
+        long first = chatLog.getFirstSequence();
+        assertTrue(first > 0);
+        assertEquals(99, chatLog.getLastSequence());
+
+        // Starts at the oldest retained message and runs on across every segment boundary
+        assertEquals(texts(first, 100), replay(0));
+        assertEquals(texts(first + 1, 100), replay(first + 1));
+    }
+
+    @Test
+    void restartDropsTheTornTailAndContinuesFromIt() throws Exception {
+        chatLog = start();
+        appendAndAwait(0, 3);
+        chatLog.stop();
+        Path segment = segmentFiles().get(0);
+        // Cuts the last record in half, as if the machine went down while it was written
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+            channel.truncate(lastRecordEnd(segment) - 4);
+        }
+
+        chatLog = start();
+        assertEquals(1, chatLog.getLastSequence());
+        appendAndAwait(3, 4);
+
+        assertEquals(2, chatLog.getLastSequence());
+        assertEquals(List.of("message 0", "message 1", "message 3"), replay(0));
+    }
+
+    private MappedChatLogImpl start() throws Exception {
+        MappedChatLogImpl started = new MappedChatLogImpl(directory.toString(), SEGMENT_SIZE, RETAINED_SEGMENTS, 1, 1024, messageEncoderDecoder);
+        started.start();
+        return started;
+    }
+
+    private void appendAndAwait(int from, int to) throws InterruptedException {
+        long expectedLast = chatLog.getLastSequence() + (to - from);
+        for (int i = from; i < to; i++) {
+            chatLog.append(chat(i));
+        }
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(20);
+        while (chatLog.getLastSequence() != expectedLast) {
+            assertTrue(System.nanoTime() - deadline < 0, "Chat log never caught up");
+            Thread.sleep(5);
+        }
+    }
+
+    private List<String> replay(long fromSequence) throws Exception {
+        MessageSubscriber subscriber = broker.registerSubscriber();
+        try {
+            int replayed = chatLog.replay(fromSequence, Integer.MAX_VALUE, broker.registerPublisher(), subscriber).get();
+            List<String> texts = new ArrayList<>();
+            Message<?> message;
+            while ((message = subscriber.pollMessage()) != null) {
+                texts.add(((SimpleChatMessage) message).getMessage().getString());
+            }
+            assertEquals(replayed, texts.size());
+            return texts;
+        } finally {
+            subscriber.unregister();
+        }
+    }
+
+    // End of the last complete record, as recovery finds it
+    private static long lastRecordEnd(Path path) throws Exception {
+        ChatLogSegment segment = ChatLogSegment.open(path);
+        try {
+            return segment.getWritePosition();
+        } finally {
+            segment.close();
+        }
+    }
+
+    private List<Path> segmentFiles() throws Exception {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(ChatLogSegment::isSegmentFile).sorted().collect(Collectors.toList());
+        }
+    }
+
+    private static List<String> texts(long from, long to) {
+        List<String> texts = new ArrayList<>();
+        for (long i = from; i < to; i++) {
+            texts.add("message " + i);
+        }
+        return texts;
+    }
+
+    private static SimpleChatMessage chat(int id) {
+        SimpleChatMessage message = new SimpleChatMessage();
+        message.setTimestamp(new TimestampEntry(id));
+        message.setMessage(new StringEntry("message " + id));
+        return message;
+    }
+}
@@ -0,0 +1,148 @@
+package org.rapturemain.tcpmessengerserver.cluster;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.rapturemain.tcpmessengerserver.user.Name;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ClusterNameVerifierImplTest {
+
+    private static final int LOCAL_NODE = 1;
+    // Owns every name
+    private static final int OWNER_NODE = 2;
+
+    private final ScriptedBridge bridge = new ScriptedBridge();
+    private final ClusterNameVerifierImpl verifier = new ClusterNameVerifierImpl(bridge);
+    private final List<Name> lost = new ArrayList<>();
+
+    @BeforeEach
+    void setUp() {
+        verifier.start();
+        verifier.setNameLostListener(lost::add);
+    }
+
+    @Test
+    void registrationWaitsForTheOwnerWithoutBlocking() {
+        CompletableFuture<NameClaimResult> claim = bridge.answerLater();
+
+        CompletableFuture<Boolean> registered = verifier.registerName(new Name("bob"));
+        assertFalse(registered.isDone());
+        // Taken locally meanwhile
+        assertFalse(verifier.registerName(new Name("bob")).join());
+
+        claim.complete(NameClaimResult.GRANTED);
+        assertTrue(registered.join());
+    }
+
+    @Test
+    void refusedNameIsFreedLocally() {
+        bridge.answer(NameClaimResult.REFUSED);
+        assertFalse(verifier.registerName(new Name("bob")).join());
+
+        bridge.answer(NameClaimResult.GRANTED);
+        assertTrue(verifier.registerName(new Name("bob")).join());
+    }
+
+    @Test
+    void nameOfAnUnreachableOwnerIsConfirmedOnceItIsBack() {
+        bridge.answer(NameClaimResult.UNREACHABLE);
+        assertTrue(verifier.registerName(new Name("bob")).join());
+
+        bridge.reachable = true;
+        bridge.answer(NameClaimResult.GRANTED);
+        verifier.onOwnerReachable(OWNER_NODE);
+
+        assertEquals(List.of("bob", "bob"), bridge.claims);
+        assertTrue(lost.isEmpty());
+        verifier.unregisterName(new Name("bob"));
+        assertEquals(List.of("bob"), bridge.releases);
+    }
+
+    @Test
+    void nameGivenAwayWhileTheOwnerWasUnreachableIsLost() {
+        bridge.answer(NameClaimResult.UNREACHABLE);
+        assertTrue(verifier.registerName(new Name("bob")).join());
+
+        bridge.reachable = true;
+        bridge.answer(NameClaimResult.REFUSED);
+        verifier.onOwnerReachable(OWNER_NODE);
+
+        assertEquals(List.of(new Name("bob")), lost);
+        // The owner's holder keeps it, leaving must not release it there
+        verifier.unregisterName(new Name("bob"));
+        assertTrue(bridge.releases.isEmpty());
+        bridge.answer(NameClaimResult.GRANTED);
+        assertTrue(verifier.registerName(new Name("bob")).join());
+    }
+
+    @Test
+    void ownerBackBeforeTheNameWasTakenIsAskedRightAway() {
+        // Claimed while the link was down, answered after it came back and after the names were claimed again
+        CompletableFuture<NameClaimResult> claim = bridge.answerLater();
+        CompletableFuture<Boolean> registered = verifier.registerName(new Name("bob"));
+        bridge.reachable = true;
+        verifier.onOwnerReachable(OWNER_NODE);
+        bridge.answer(NameClaimResult.REFUSED);
+        claim.complete(NameClaimResult.UNREACHABLE);
+
+        assertTrue(registered.join());
+        assertEquals(List.of(new Name("bob")), lost);
+    }
+
+    private static final class ScriptedBridge implements ClusterBridge {
+
+        private final ArrayDeque<CompletableFuture<NameClaimResult>> answers = new ArrayDeque<>();
+        private final List<String> claims = new ArrayList<>();
+        private final List<String> releases = new ArrayList<>();
+        private boolean reachable;
+
+        void answer(NameClaimResult result) {
+            answers.add(CompletableFuture.completedFuture(result));
+        }
+
+        CompletableFuture<NameClaimResult> answerLater() {
+            CompletableFuture<NameClaimResult> answer = new CompletableFuture<>();
+            answers.add(answer);
+            return answer;
+        }
+
+        @Override
+        public int getNodeId() {
+            return LOCAL_NODE;
+        }
+
+        @Override
+        public int ownerOf(@NotNull String name) {
+            return OWNER_NODE;
+        }
+
+        @Override
+        @NotNull
+        public CompletableFuture<NameClaimResult> claimName(int ownerNode, @NotNull String name) {
+            claims.add(name);
+            return answers.remove();
+        }
+
+        @Override
+        public boolean isReachable(int node) {
+            return reachable;
+        }
+
+        @Override
+        public void releaseName(int ownerNode, @NotNull String name) {
+            releases.add(name);
+        }
+
+        @Override
+        public void setNameClaimListener(@Nullable NameClaimListener listener) {
+        }
+    }
+}
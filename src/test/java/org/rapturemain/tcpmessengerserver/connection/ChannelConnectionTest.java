@@ -0,0 +1,128 @@
+package org.rapturemain.tcpmessengerserver.connection;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+import org.rapturemain.tcpmessengermessageframework.message.base.TimestampEntry;
+import org.rapturemain.tcpmessengermessageframework.message.messages.Message;
+import org.rapturemain.tcpmessengermessageframework.message.messages.chat.SimpleChatMessage;
+import org.rapturemain.tcpmessengerserver.messagebroker.ByteBufferMessageEncoderDecoder;
+import org.rapturemain.tcpmessengerserver.messagebroker.MessageEncoderDecoderImpl;
+import org.rapturemain.tcpmessengerserver.messagebroker.MessageEnvelope;
+import org.rapturemain.tcpmessengerserver.messagebroker.PayloadBufferPool;
+import org.rapturemain.tcpmessengerserver.metrics.MessengerMetricsImpl;
+import org.rapturemain.tcpmessengerserver.utils.ByteBufferOutputStream;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ChannelConnectionTest {
+
+    private final PayloadBufferPool payloadBufferPool = new PayloadBufferPool(1 << 20, false);
+    private final MessageEncoderDecoderImpl messageEncoderDecoder = createEncoderDecoder();
+
+    @Test
+    void writtenFramesReleaseTheirEnvelopes() throws Exception {
+        try (SocketChannel channel = SocketChannel.open()) {
+            ChannelConnection connection = new ChannelConnection(channel, null, null);
+            MessageEnvelope written = payloadBufferPool.wrap(chat(1));
+            MessageEnvelope pending = payloadBufferPool.wrap(chat(2));
+            connection.addPendingWrite(written, messageEncoderDecoder);
+            connection.addPendingWrite(pending, messageEncoderDecoder);
+
+            // As if the channel had taken the whole first frame
+            ByteBuffer head = connection.getPendingWrites().peekFirst();
+            head.position(head.limit());
+            assertEquals(1, connection.removeWrittenBuffers());
+
+            assertFalse(written.tryRetain());
+            assertTrue(pending.tryRetain());
+            pending.release();
+            connection.discardPendingWrites();
+        }
+    }
+
+    @Test
+    void discardedPendingWritesReleaseTheirEnvelopes() throws Exception {
+        try (SocketChannel channel = SocketChannel.open()) {
+            ChannelConnection connection = new ChannelConnection(channel, null, null);
+            MessageEnvelope head = payloadBufferPool.wrap(chat(1));
+            MessageEnvelope tail = payloadBufferPool.wrap(chat(2));
+            MessageEnvelope control = payloadBufferPool.wrap(chat(3));
+            connection.addPendingWrite(head, messageEncoderDecoder);
+            connection.addPendingWrite(tail, messageEncoderDecoder);
+            connection.addPendingWritesAfterHead(List.of(control), messageEncoderDecoder);
+
+            connection.discardPendingWrites();
+
+            assertTrue(connection.getPendingWrites().isEmpty());
+            assertFalse(head.tryRetain());
+            assertFalse(tail.tryRetain());
+            assertFalse(control.tryRetain());
+        }
+    }
+
+    @Test
+    void envelopesThatFailToEncodeAheadOfTheQueueAreAllReleased() throws Exception {
+        try (SocketChannel channel = SocketChannel.open()) {
+            ChannelConnection connection = new ChannelConnection(channel, null, null);
+            MessageEnvelope head = payloadBufferPool.wrap(chat(1));
+            connection.addPendingWrite(head, messageEncoderDecoder);
+            List<MessageEnvelope> control = List.of(payloadBufferPool.wrap(chat(2)), payloadBufferPool.wrap(chat(3)), payloadBufferPool.wrap(chat(4)));
+
+            assertThrows(IOException.class, () -> connection.addPendingWritesAfterHead(control, failingAt(3)));
+
+            for (MessageEnvelope envelope : control) {
+                assertFalse(envelope.tryRetain());
+            }
+            assertEquals(1, connection.getPendingWrites().size());
+            connection.discardPendingWrites();
+            assertFalse(head.tryRetain());
+        }
+    }
+
+    // Encodes like the real one, except for the message with the timestamp
+    private ByteBufferMessageEncoderDecoder failingAt(long id) {
+        return new ByteBufferMessageEncoderDecoder() {
+            @Override
+            public void encode(@NotNull Message<?> message, @NotNull ByteBufferOutputStream outputStream) throws IOException {
+                if (((SimpleChatMessage) message).getTimestamp().getValue() == id) {
+                    throw new IOException("Cannot encode message " + id);
+                }
+                messageEncoderDecoder.encode(message, outputStream);
+            }
+
+            @Override
+            public Message<?> decode(@NotNull ByteBuffer buffer) throws IOException {
+                return messageEncoderDecoder.decode(buffer);
+            }
+
+            @Override
+            public void encode(@NotNull Message<?> message, @NotNull DataOutputStream dataOutputStream) throws IOException {
+                messageEncoderDecoder.encode(message, dataOutputStream);
+            }
+
+            @Override
+            public Message<?> decode(@NotNull DataInputStream dataInputStream) throws IOException {
+                return messageEncoderDecoder.decode(dataInputStream);
+            }
+        };
+    }
+
+    private static SimpleChatMessage chat(long id) {
+        SimpleChatMessage message = new SimpleChatMessage();
+        message.setTimestamp(new TimestampEntry(id));
+        return message;
+    }
+
+    private static MessageEncoderDecoderImpl createEncoderDecoder() {
+        MessageEncoderDecoderImpl encoderDecoder = new MessageEncoderDecoderImpl(new MessengerMetricsImpl());
+        encoderDecoder.start();
+        return encoderDecoder;
+    }
+}
@@ -0,0 +1,158 @@
+package org.rapturemain.tcpmessengerserver.connection;
+
+import org.junit.jupiter.api.Test;
+import org.rapturemain.tcpmessengermessageframework.message.messages.chat.SimpleChatMessage;
+import org.rapturemain.tcpmessengermessageframework.message.messages.system.RegistrationResponseMessage;
+import org.rapturemain.tcpmessengerserver.loopback.LoopbackClient;
+import org.rapturemain.tcpmessengerserver.loopback.LoopbackLink;
+import org.rapturemain.tcpmessengerserver.loopback.LoopbackServer;
+import org.rapturemain.tcpmessengerserver.messagebroker.SlowConsumerAction;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ConnectionHandlerImplTest {
+
+    // Small enough for a few messages to fill the link of a client that does not read
+    private static final LoopbackLink SMALL_BUFFER_LINK = LoopbackLink.builder()
+            .bufferSize(1024)
+            .build();
+    // A few milliseconds away and a modest line, so frames arrive split and late
+    private static final LoopbackLink SLOW_LINK = LoopbackLink.builder()
+            .latency(Duration.ofMillis(5))
+            .bytesPerSecond(1 << 20)
+            .build();
+    private static final int MESSAGES = 500;
+    private static final Duration TIMEOUT = Duration.ofSeconds(20);
+
+    @Test
+    void registeredClientsGetEveryBroadcastOverASlowLink() throws Exception {
+        for (String broker : List.of("queue", "ring", "sharded")) {
+            LoopbackServer.Options options = LoopbackServer.Options.builder()
+                    .broker(broker)
+                    .link(SLOW_LINK)
+                    .build();
+            try (LoopbackServer server = new LoopbackServer(options)) {
+                LoopbackClient alice = server.connect();
+                alice.register("alice");
+                LoopbackClient bob = server.connect();
+                bob.register("bob");
+
+                LoopbackClient impostor = server.connect();
+                impostor.startReading();
+                impostor.sendRegistration("alice");
+                RegistrationResponseMessage refused = impostor.awaitMessages(RegistrationResponseMessage.class, 1, TIMEOUT).get(0);
+                assertFalse(refused.getSuccess().getValue(), broker);
+                awaitRegistered(server, 2);
+
+                alice.send(LoopbackClient.chat("hello"));
+                bob.awaitMessages(SimpleChatMessage.class, 1, TIMEOUT);
+                bob.send(LoopbackClient.chat("hi"));
+
+                // The sender gets its own message back, stamped with the registered name
+                for (LoopbackClient client : List.of(alice, bob)) {
+                    List<SimpleChatMessage> received = client.awaitMessages(SimpleChatMessage.class, 2, TIMEOUT);
+                    assertEquals(List.of("alice: hello", "bob: hi"), describe(received), broker);
+                }
+                assertTrue(impostor.getMessages(SimpleChatMessage.class).isEmpty(), broker);
+            }
+        }
+    }
+
+    @Test
+    void clientsThatNeverReadHoldUpOthersOnlyUntilTheWriteDeadline() throws Exception {
+        LoopbackServer.Options options = LoopbackServer.Options.builder()
+                .link(SMALL_BUFFER_LINK)
+                .outputThreads(2)
+                .writeTimeoutMillis(300)
+                .build();
+        try (LoopbackServer server = new LoopbackServer(options)) {
+            List<LoopbackClient> readers = connectReaders(server, 3);
+            // Enough stalled writes to take every output thread
+            List<LoopbackClient> stalled = connectStalled(server, 4);
+            awaitRegistered(server, readers.size() + stalled.size());
+
+            LoopbackClient sender = readers.get(0);
+            for (int i = 0; i < MESSAGES; i++) {
+                sender.send(LoopbackClient.chat());
+            }
+
+            for (LoopbackClient reader : readers) {
+                assertEquals(MESSAGES, reader.awaitMessages(SimpleChatMessage.class, MESSAGES, TIMEOUT).size());
+            }
+            awaitRegistered(server, readers.size());
+        }
+    }
+
+    @Test
+    void connectionsPastTheWriteDeadlineAreClosedUnderEveryPolicy() throws Exception {
+        for (String policy : List.of("drop-oldest", "drop-newest", "coalesce", "disconnect")) {
+            LoopbackServer.Options options = LoopbackServer.Options.builder()
+                    .link(SMALL_BUFFER_LINK)
+                    .slowConsumerPolicy(policy)
+                    .writeTimeoutMillis(200)
+                    .build();
+            try (LoopbackServer server = new LoopbackServer(options)) {
+                List<LoopbackClient> readers = connectReaders(server, 2);
+                List<LoopbackClient> stalled = connectStalled(server, 2);
+                awaitRegistered(server, readers.size() + stalled.size());
+
+                LoopbackClient sender = readers.get(0);
+                for (int i = 0; i < MESSAGES; i++) {
+                    sender.send(LoopbackClient.chat());
+                }
+
+                for (LoopbackClient reader : readers) {
+                    assertEquals(MESSAGES, reader.awaitMessages(SimpleChatMessage.class, MESSAGES, TIMEOUT).size(), policy);
+                }
+                awaitRegistered(server, readers.size());
+                assertTrue(server.getMessengerMetrics().getSlowConsumerFiredCount(SlowConsumerAction.DISCONNECT) >= stalled.size(), policy);
+                for (LoopbackClient client : stalled) {
+                    client.startReading();
+                    client.awaitEnd(TIMEOUT);
+                }
+            }
+        }
+    }
+
+    private static List<LoopbackClient> connectReaders(LoopbackServer server, int count) throws Exception {
+        List<LoopbackClient> clients = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            LoopbackClient client = server.connect();
+            client.register("reader-" + i);
+            clients.add(client);
+        }
+        return clients;
+    }
+
+    private static List<LoopbackClient> connectStalled(LoopbackServer server, int count) throws Exception {
+        List<LoopbackClient> clients = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            LoopbackClient client = server.connect();
+            client.sendRegistration("stalled-" + i);
+            clients.add(client);
+        }
+        return clients;
+    }
+
+    private static List<String> describe(List<SimpleChatMessage> messages) {
+        List<String> described = new ArrayList<>();
+        for (SimpleChatMessage message : messages) {
+            described.add(message.getSenderName().getString() + ": " + message.getMessage().getString());
+        }
+        return described;
+    }
+
+    private static void awaitRegistered(LoopbackServer server, int count) throws InterruptedException {
+        long deadline = System.nanoTime() + TIMEOUT.toNanos();
+        while (server.getSocketRegistrationService().getRegisteredCount() != count) {
+            if (System.nanoTime() - deadline > 0) {
+                throw new AssertionError("Registered " + server.getSocketRegistrationService().getRegisteredCount() + " instead of " + count);
+            }
+            Thread.sleep(5);
+        }
+    }
+}
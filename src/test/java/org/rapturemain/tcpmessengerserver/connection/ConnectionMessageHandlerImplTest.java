@@ -0,0 +1,155 @@
+package org.rapturemain.tcpmessengerserver.connection;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.rapturemain.tcpmessengermessageframework.message.messages.chat.SimpleChatMessage;
+import org.rapturemain.tcpmessengerserver.loopback.LoopbackClient;
+import org.rapturemain.tcpmessengerserver.loopback.LoopbackServer;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class ConnectionMessageHandlerImplTest {
+
+    private static final Duration TIMEOUT = Duration.ofSeconds(20);
+
+    @Test
+    void roomMessagesReachOnlyMembers() throws Exception {
+        try (LoopbackServer server = new LoopbackServer()) {
+            LoopbackClient first = server.connect();
+            first.register("first");
+            LoopbackClient second = server.connect();
+            second.register("second");
+            LoopbackClient outsider = server.connect();
+            outsider.register("outsider");
+
+            first.send(LoopbackClient.chat("/join room"));
+            second.send(LoopbackClient.chat("/join  room "));
+            awaitRoomJoined(first, second);
+
+            second.send(LoopbackClient.chat("to the room"));
+            awaitText(first, "to the room");
+
+            // Published after every room message from first, so the outsider would have seen those before it
+            first.send(LoopbackClient.chat("/leave"));
+            first.send(LoopbackClient.chat("to everyone"));
+            assertEquals(List.of("to everyone"), texts(outsider.awaitMessages(SimpleChatMessage.class, 1, TIMEOUT)));
+            awaitText(second, "to everyone");
+        }
+    }
+
+    @Test
+    void directMessagesReachOnlyTheRecipient() throws Exception {
+        try (LoopbackServer server = new LoopbackServer()) {
+            LoopbackClient sender = server.connect();
+            sender.register("sender");
+            LoopbackClient recipient = server.connect();
+            recipient.register("recipient");
+            LoopbackClient outsider = server.connect();
+            outsider.register("outsider");
+
+            sender.send(LoopbackClient.chat("/msg recipient just  for you"));
+            sender.send(LoopbackClient.chat("/msg nobody lost"));
+            sender.send(LoopbackClient.chat("/msg recipient"));
+            // Published after the private ones, the outsider would have seen those before it
+            sender.send(LoopbackClient.chat("to everyone"));
+
+            assertEquals(List.of("to everyone"), texts(outsider.awaitMessages(SimpleChatMessage.class, 1, TIMEOUT)));
+            List<SimpleChatMessage> received = recipient.awaitMessages(SimpleChatMessage.class, 2, TIMEOUT);
+            assertEquals(List.of("just  for you", "to everyone"), texts(received));
+            assertEquals("sender", received.get(0).getSenderName().getString());
+            assertEquals(List.of("to everyone"), texts(sender.awaitMessages(SimpleChatMessage.class, 1, TIMEOUT)));
+        }
+    }
+
+    @Test
+    void unknownCommandsAreSentAsText() throws Exception {
+        try (LoopbackServer server = new LoopbackServer()) {
+            LoopbackClient sender = server.connect();
+            sender.register("sender");
+            LoopbackClient reader = server.connect();
+            reader.register("reader");
+
+            sender.send(LoopbackClient.chat("/shrug"));
+            sender.send(LoopbackClient.chat("/join"));
+            sender.send(LoopbackClient.chat("after"));
+
+            // A join without a room is dropped and changes nothing
+            assertEquals(List.of("/shrug", "after"), texts(reader.awaitMessages(SimpleChatMessage.class, 2, TIMEOUT)));
+        }
+    }
+
+    @Test
+    void replayedBroadcastsReachOnlyTheConnectionAskingForThem(@TempDir Path chatLogDirectory) throws Exception {
+        LoopbackServer.Options options = LoopbackServer.Options.builder()
+                .historySize(0)
+                .chatLogDirectory(chatLogDirectory)
+                .build();
+        try (LoopbackServer server = new LoopbackServer(options)) {
+            LoopbackClient sender = server.connect();
+            sender.register("sender");
+            LoopbackClient reader = server.connect();
+            reader.register("reader");
+
+            sender.send(LoopbackClient.chat("/join room"));
+            sender.send(LoopbackClient.chat("in the room"));
+            sender.send(LoopbackClient.chat("/leave"));
+            sender.send(LoopbackClient.chat("/msg reader just for you"));
+            sender.send(LoopbackClient.chat("first"));
+            sender.send(LoopbackClient.chat("second"));
+            assertEquals(List.of("just for you", "first", "second"), texts(reader.awaitMessages(SimpleChatMessage.class, 3, TIMEOUT)));
+            awaitLogged(server, 2);
+
+            LoopbackClient late = server.connect();
+            late.register("late");
+            late.send(LoopbackClient.chat("/replay 10"));
+
+            // Room and direct chat are not logged
+            assertEquals(List.of("first", "second"), texts(late.awaitMessages(SimpleChatMessage.class, 2, TIMEOUT)));
+            assertEquals(3, reader.getMessages(SimpleChatMessage.class).size());
+        }
+    }
+
+    private static void awaitLogged(LoopbackServer server, int count) throws InterruptedException {
+        long deadline = System.nanoTime() + TIMEOUT.toNanos();
+        while (server.getChatLog().getLastSequence() + 1 < count) {
+            if (System.nanoTime() - deadline > 0) {
+                throw new AssertionError("Never logged " + count + " messages");
+            }
+            Thread.sleep(5);
+        }
+    }
+
+    // Joins are handled on each connection's own thread, first keeps talking to the room until second hears it
+    private static void awaitRoomJoined(LoopbackClient first, LoopbackClient second) throws Exception {
+        long deadline = System.nanoTime() + TIMEOUT.toNanos();
+        while (second.getMessages(SimpleChatMessage.class).isEmpty()) {
+            if (System.nanoTime() - deadline > 0) {
+                throw new AssertionError("Room message never arrived");
+            }
+            first.send(LoopbackClient.chat("probe"));
+            Thread.sleep(50);
+        }
+    }
+
+    // Room members get the room's messages back as well, probes included
+    private static void awaitText(LoopbackClient client, String text) throws InterruptedException {
+        long deadline = System.nanoTime() + TIMEOUT.toNanos();
+        while (!texts(client.getMessages(SimpleChatMessage.class)).contains(text)) {
+            if (System.nanoTime() - deadline > 0) {
+                throw new AssertionError("Never received [" + text + "]");
+            }
+            Thread.sleep(5);
+        }
+    }
+
+    private static List<String> texts(List<SimpleChatMessage> messages) {
+        return messages.stream()
+                .map(message -> message.getMessage().getString())
+                .collect(Collectors.toList());
+    }
+}
@@ -0,0 +1,127 @@
+package org.rapturemain.tcpmessengerserver.connection;
+
+import org.junit.jupiter.api.Test;
+import org.rapturemain.tcpmessengermessageframework.message.base.StringEntry;
+import org.rapturemain.tcpmessengermessageframework.message.base.TimestampEntry;
+import org.rapturemain.tcpmessengermessageframework.message.messages.Message;
+import org.rapturemain.tcpmessengermessageframework.message.messages.chat.SimpleChatMessage;
+import org.rapturemain.tcpmessengerserver.messagebroker.ByteBufferMessageEncoderDecoder;
+import org.rapturemain.tcpmessengerserver.messagebroker.MessageEncoderDecoderImpl;
+import org.rapturemain.tcpmessengerserver.metrics.MessengerMetricsImpl;
+import org.rapturemain.tcpmessengerserver.utils.ByteBufferOutputStream;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FrameBufferTest {
+
+    private final MessageEncoderDecoderImpl messageEncoderDecoder = createEncoderDecoder();
+    private final FrameBuffer frameBuffer = new FrameBuffer();
+    private final List<Long> decoded = new ArrayList<>();
+
+    @Test
+    void frameSplitAcrossReadsIsDecodedOnceComplete() throws IOException {
+        byte[] frame = encode(chat(1, "split"));
+
+        for (int i = 0; i < frame.length; i++) {
+            read(Arrays.copyOfRange(frame, i, i + 1));
+            if (i < frame.length - 1) {
+                assertTrue(decoded.isEmpty(), "Decoded after " + (i + 1) + " of " + frame.length + " bytes");
+            }
+        }
+
+        assertEquals(List.of(1L), decoded);
+    }
+
+    @Test
+    void severalFramesInOneReadAreAllDecoded() throws IOException {
+        byte[] first = encode(chat(1, "one"));
+        byte[] second = encode(chat(2, "two"));
+        byte[] third = encode(chat(3, "three"));
+        byte[] bytes = new byte[first.length + second.length + third.length];
+        System.arraycopy(first, 0, bytes, 0, first.length);
+        System.arraycopy(second, 0, bytes, first.length, second.length);
+        System.arraycopy(third, 0, bytes, first.length + second.length, third.length);
+
+        // The third frame stays partial until the next read
+        read(Arrays.copyOf(bytes, bytes.length - 2));
+        assertEquals(List.of(1L, 2L), decoded);
+        read(Arrays.copyOfRange(bytes, bytes.length - 2, bytes.length));
+        assertEquals(List.of(1L, 2L, 3L), decoded);
+    }
+
+    @Test
+    void frameLargerThanTheBufferGrowsItAndGivesTheGrownOneBack() throws IOException {
+        byte[] frame = encode(chat(1, "x".repeat(3 * FrameBuffer.INITIAL_SIZE)));
+        int pooledBefore = FrameBuffer.pooledCount(4 * FrameBuffer.INITIAL_SIZE);
+
+        for (int offset = 0; offset < frame.length; offset += FrameBuffer.INITIAL_SIZE / 2) {
+            read(Arrays.copyOfRange(frame, offset, Math.min(frame.length, offset + FrameBuffer.INITIAL_SIZE / 2)));
+        }
+
+        assertEquals(List.of(1L), decoded);
+        assertEquals(pooledBefore + 1, FrameBuffer.pooledCount(4 * FrameBuffer.INITIAL_SIZE));
+        // Back to the initial size for the next frame
+        assertEquals(FrameBuffer.INITIAL_SIZE, frameBuffer.getBuffer().capacity());
+    }
+
+    @Test
+    void oversizedFrameIsRefusedFromItsLengthPrefix() {
+        ByteBuffer prefix = ByteBuffer.allocate(Integer.BYTES).putInt(ByteBufferMessageEncoderDecoder.MAX_FRAME_SIZE);
+
+        assertThrows(IOException.class, () -> read(prefix.array()));
+    }
+
+    @Test
+    void malformedCompleteFrameIsNotMistakenForAPartialOne() {
+        // The length covers the payload, but the payload is not a message
+        ByteBuffer frame = ByteBuffer.allocate(Integer.BYTES + 2).putInt(2).put((byte) 0).put((byte) 5);
+
+        assertThrows(IOException.class, () -> read(frame.array()));
+    }
+
+    // What the transports do with bytes read from a socket
+    private void read(byte[] bytes) throws IOException {
+        ByteBuffer buffer = frameBuffer.getBuffer();
+        int offset = 0;
+        while (offset < bytes.length) {
+            int length = Math.min(buffer.remaining(), bytes.length - offset);
+            buffer.put(bytes, offset, length);
+            offset += length;
+            ByteBuffer flipped = frameBuffer.flip();
+            try {
+                Message<?> message;
+                while ((message = messageEncoderDecoder.decode(flipped)) != null) {
+                    decoded.add(((SimpleChatMessage) message).getTimestamp().getValue());
+                }
+            } finally {
+                frameBuffer.compact();
+            }
+            buffer = frameBuffer.getBuffer();
+        }
+    }
+
+    private byte[] encode(Message<?> message) throws IOException {
+        ByteBufferOutputStream outputStream = new ByteBufferOutputStream(64);
+        messageEncoderDecoder.encode(message, outputStream);
+        return Arrays.copyOf(outputStream.getBuffer().array(), outputStream.getBuffer().position());
+    }
+
+    private static SimpleChatMessage chat(long id, String text) {
+        SimpleChatMessage message = new SimpleChatMessage();
+        message.setTimestamp(new TimestampEntry(id));
+        message.setMessage(new StringEntry(text));
+        return message;
+    }
+
+    private static MessageEncoderDecoderImpl createEncoderDecoder() {
+        MessageEncoderDecoderImpl messageEncoderDecoder = new MessageEncoderDecoderImpl(new MessengerMetricsImpl());
+        messageEncoderDecoder.start();
+        return messageEncoderDecoder;
+    }
+}
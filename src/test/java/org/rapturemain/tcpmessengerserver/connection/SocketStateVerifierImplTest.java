@@ -0,0 +1,148 @@
+package org.rapturemain.tcpmessengerserver.connection;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.rapturemain.tcpmessengermessageframework.message.messages.Message;
+import org.rapturemain.tcpmessengermessageframework.message.messages.system.PingRequest;
+import org.rapturemain.tcpmessengermessageframework.message.messages.system.PingResponse;
+import org.rapturemain.tcpmessengerserver.messagebroker.*;
+import org.rapturemain.tcpmessengerserver.metrics.MessengerMetricsImpl;
+
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class SocketStateVerifierImplTest {
+
+    private static final long IDLE_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final long TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(2);
+    private static final long TICK_NANOS = SocketStateVerifierImpl.TICK_NANOS;
+
+    private final MessageBrokerImpl broker = createBroker();
+    private final MessageSubscriber subscriber = broker.registerSubscriber();
+    private final ConnectionSession session = new ConnectionSession(new Socket(), broker.registerPublisher(), subscriber);
+    private final AtomicInteger closed = new AtomicInteger();
+
+    private long now = TimeUnit.HOURS.toNanos(1);
+
+    @AfterEach
+    void tearDown() {
+        broker.stop();
+    }
+
+    @Test
+    void idleConnectionIsPingedAndThenClosed() throws Exception {
+        SocketStateVerifierImpl verifier = createVerifier(IDLE_NANOS);
+        verifier.track(session, closed::incrementAndGet);
+
+        advance(verifier, IDLE_NANOS - TICK_NANOS);
+        assertEquals(0, takePings());
+        advance(verifier, TICK_NANOS);
+        assertEquals(1, takePings());
+
+        advance(verifier, TIMEOUT_NANOS - TICK_NANOS);
+        assertEquals(0, closed.get());
+        advance(verifier, TICK_NANOS);
+        assertEquals(1, closed.get());
+
+        // Dropped from the wheel once closed
+        advance(verifier, 10 * IDLE_NANOS);
+        assertEquals(1, closed.get());
+        assertEquals(0, takePings());
+    }
+
+    @Test
+    void activityPostponesThePing() throws Exception {
+        SocketStateVerifierImpl verifier = createVerifier(IDLE_NANOS);
+        IdleTracker tracker = verifier.track(session, closed::incrementAndGet);
+
+        advance(verifier, IDLE_NANOS / 2);
+        tracker.onActivity();
+        advance(verifier, IDLE_NANOS / 2);
+        assertEquals(0, takePings());
+
+        // Rescheduled one idle period after the activity
+        advance(verifier, IDLE_NANOS / 2);
+        assertEquals(1, takePings());
+        assertEquals(0, closed.get());
+    }
+
+    @Test
+    void answeredPingKeepsTheConnection() throws Exception {
+        SocketStateVerifierImpl verifier = createVerifier(IDLE_NANOS);
+        IdleTracker tracker = verifier.track(session, closed::incrementAndGet);
+
+        advance(verifier, IDLE_NANOS);
+        assertEquals(1, takePings());
+        advance(verifier, TICK_NANOS);
+        tracker.onActivity();
+
+        advance(verifier, TIMEOUT_NANOS);
+        assertEquals(0, closed.get());
+        // Idle again from the answer on, so pinged again
+        assertEquals(1, takePings());
+    }
+
+    @Test
+    void delaysLongerThanOneTurnWaitForMoreTurns() throws Exception {
+        long turnNanos = SocketStateVerifierImpl.WHEEL_SIZE * TICK_NANOS;
+        // Lands two and a half turns later, past its slot twice
+        long idleNanos = 2 * turnNanos + turnNanos / 2;
+        SocketStateVerifierImpl verifier = createVerifier(idleNanos);
+        verifier.track(session, closed::incrementAndGet);
+
+        advance(verifier, turnNanos);
+        advance(verifier, turnNanos);
+        advance(verifier, turnNanos / 2 - TICK_NANOS);
+        assertEquals(0, takePings());
+        advance(verifier, TICK_NANOS);
+        assertEquals(1, takePings());
+    }
+
+    @Test
+    void cancelledTrackerIsNeverPinged() throws Exception {
+        SocketStateVerifierImpl verifier = createVerifier(IDLE_NANOS);
+        verifier.track(session, closed::incrementAndGet).cancel();
+
+        advance(verifier, 10 * IDLE_NANOS);
+        assertEquals(0, takePings());
+        assertEquals(0, closed.get());
+    }
+
+    private SocketStateVerifierImpl createVerifier(long idleNanos) {
+        return new SocketStateVerifierImpl(idleNanos, TIMEOUT_NANOS, () -> now);
+    }
+
+    // One tick at a time, the way the scheduled task runs
+    private void advance(SocketStateVerifierImpl verifier, long nanos) {
+        long end = now + nanos;
+        verifier.tick();
+        while (now < end) {
+            now = Math.min(end, now + TICK_NANOS);
+            verifier.tick();
+        }
+    }
+
+    private int takePings() throws Exception {
+        // Published after every ping the wheel has sent so far, the broker delivers in order
+        broker.registerPublisher().publishToSubscriber(new PingResponse(), subscriber).get();
+        int pings = 0;
+        Message<?> message;
+        while ((message = subscriber.pollMessage()) != null) {
+            if (message instanceof PingRequest) {
+                pings++;
+            }
+        }
+        return pings;
+    }
+
+    private static MessageBrokerImpl createBroker() {
+        MessengerMetricsImpl messengerMetrics = new MessengerMetricsImpl();
+        MessageBrokerImpl broker = new MessageBrokerImpl(4096, 1, 100, new SlowConsumerPolicyImpl("drop-oldest", messengerMetrics),
+                messengerMetrics, new RecentHistoryImpl(0, 0), new PayloadBufferPool(0, false));
+        broker.start();
+        return broker;
+    }
+}
@@ -0,0 +1,198 @@
+package org.rapturemain.tcpmessengerserver.loopback;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BytePipeTest {
+
+    private static final int NO_TIMEOUT = 0;
+    private static final long JOIN_MILLIS = TimeUnit.SECONDS.toMillis(10);
+
+    @Test
+    void bytesArriveOnlyAfterTheLatency() throws IOException {
+        BytePipe pipe = new BytePipe(LoopbackLink.builder().latency(Duration.ofMillis(100)).build());
+        long start = System.nanoTime();
+        pipe.write(bytes(10), 0, 10);
+        assertEquals(0, pipe.available());
+
+        byte[] read = new byte[10];
+        assertEquals(10, pipe.read(read, 0, read.length, NO_TIMEOUT));
+
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(100));
+        assertArrayEquals(bytes(10), read);
+    }
+
+    @Test
+    void bandwidthPacesBackToBackWrites() throws IOException {
+        // A hundred milliseconds per write
+        BytePipe pipe = new BytePipe(LoopbackLink.builder().bytesPerSecond(10_000).build());
+        long start = System.nanoTime();
+        pipe.write(bytes(1000), 0, 1000);
+        pipe.write(bytes(1000), 0, 1000);
+
+        readFully(pipe, 1000);
+        long first = System.nanoTime() - start;
+        readFully(pipe, 1000);
+        long second = System.nanoTime() - start;
+
+        assertTrue(first >= TimeUnit.MILLISECONDS.toNanos(100), "first write arrived after " + first);
+        // Transmitted after the first one, not alongside it
+        assertTrue(second >= TimeUnit.MILLISECONDS.toNanos(200), "second write arrived after " + second);
+    }
+
+    @Test
+    void writerBlocksOnAFullBufferUntilBytesAreRead() throws Exception {
+        BytePipe pipe = new BytePipe(LoopbackLink.builder().bufferSize(16).build());
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread writer = start(() -> pipe.write(bytes(40), 0, 40), failure);
+        awaitBlocked(writer);
+        assertEquals(16, pipe.available());
+
+        byte[] read = readFully(pipe, 40);
+
+        writer.join(JOIN_MILLIS);
+        assertFalse(writer.isAlive());
+        assertNull(failure.get());
+        assertArrayEquals(bytes(40), read);
+    }
+
+    @Test
+    void readTimesOutAndStaysUsable() throws IOException {
+        BytePipe pipe = new BytePipe(LoopbackLink.UNLIMITED);
+        long start = System.nanoTime();
+        assertThrows(SocketTimeoutException.class, () -> pipe.read(new byte[1], 0, 1, 50));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(50));
+
+        pipe.write(bytes(1), 0, 1);
+        assertEquals(1, pipe.read(new byte[1], 0, 1, 50));
+    }
+
+    @Test
+    void bytesStillInFlightWhenTheReadTimesOutArriveLater() throws IOException {
+        BytePipe pipe = new BytePipe(LoopbackLink.builder().latency(Duration.ofMillis(200)).build());
+        pipe.write(bytes(1), 0, 1);
+
+        assertThrows(SocketTimeoutException.class, () -> pipe.read(new byte[1], 0, 1, 20));
+        assertEquals(1, pipe.read(new byte[1], 0, 1, NO_TIMEOUT));
+    }
+
+    @Test
+    void shutdownWriteEndsTheStreamAfterWhatIsLeft() throws IOException {
+        BytePipe pipe = new BytePipe(LoopbackLink.UNLIMITED);
+        pipe.write(bytes(3), 0, 3);
+        pipe.shutdownWrite();
+
+        assertEquals(3, pipe.read(new byte[8], 0, 8, NO_TIMEOUT));
+        assertEquals(-1, pipe.read(new byte[8], 0, 8, NO_TIMEOUT));
+        assertThrows(SocketException.class, () -> pipe.write(bytes(1), 0, 1));
+    }
+
+    @Test
+    void shutdownWriteFailsAWriterBlockedOnAFullBuffer() throws Exception {
+        BytePipe pipe = new BytePipe(LoopbackLink.builder().bufferSize(16).build());
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread writer = start(() -> pipe.write(bytes(40), 0, 40), failure);
+        awaitBlocked(writer);
+
+        pipe.shutdownWrite();
+
+        writer.join(JOIN_MILLIS);
+        assertTrue(failure.get() instanceof SocketException, () -> "failed with " + failure.get());
+    }
+
+    @Test
+    void shutdownReadDropsWhatIsWritten() throws IOException {
+        BytePipe pipe = new BytePipe(LoopbackLink.builder().bufferSize(16).build());
+        pipe.write(bytes(16), 0, 16);
+        pipe.shutdownRead();
+
+        // Would block on a full buffer if the bytes were kept
+        pipe.write(bytes(40), 0, 40);
+        assertEquals(0, pipe.available());
+        assertEquals(-1, pipe.read(new byte[8], 0, 8, NO_TIMEOUT));
+    }
+
+    @Test
+    void closeReadWakesTheReaderAndResetsTheWriter() throws Exception {
+        BytePipe pipe = new BytePipe(LoopbackLink.UNLIMITED);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread reader = start(() -> pipe.read(new byte[1], 0, 1, NO_TIMEOUT), failure);
+        awaitBlocked(reader);
+
+        pipe.closeRead();
+
+        reader.join(JOIN_MILLIS);
+        assertTrue(failure.get() instanceof SocketException, () -> "failed with " + failure.get());
+        SocketException reset = assertThrows(SocketException.class, () -> pipe.write(bytes(1), 0, 1));
+        assertEquals("Connection reset", reset.getMessage());
+    }
+
+    @Test
+    void socketReadsHonourSoTimeout() throws IOException {
+        LoopbackSocket[] ends = LoopbackSocket.pair(LoopbackLink.UNLIMITED, 25565);
+        ends[0].setSoTimeout(50);
+
+        assertThrows(SocketTimeoutException.class, () -> ends[0].getInputStream().read());
+        ends[1].getOutputStream().write(7);
+        assertEquals(7, ends[0].getInputStream().read());
+
+        // Closing one end ends the other's stream
+        ends[1].close();
+        assertEquals(-1, ends[0].getInputStream().read());
+        assertThrows(SocketException.class, () -> ends[1].getOutputStream());
+    }
+
+    private static byte[] readFully(BytePipe pipe, int length) throws IOException {
+        byte[] bytes = new byte[length];
+        int read = 0;
+        while (read < length) {
+            int count = pipe.read(bytes, read, length - read, NO_TIMEOUT);
+            assertTrue(count > 0);
+            read += count;
+        }
+        return bytes;
+    }
+
+    private static byte[] bytes(int length) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = (byte) i;
+        }
+        return bytes;
+    }
+
+    private static Thread start(PipeAction action, AtomicReference<Throwable> failure) {
+        Thread thread = new Thread(() -> {
+            try {
+                action.run();
+            } catch (Throwable e) {
+                failure.set(e);
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    // Parked on one of the pipe's conditions
+    private static void awaitBlocked(Thread thread) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(JOIN_MILLIS);
+        while (thread.getState() != Thread.State.WAITING) {
+            assertTrue(thread.isAlive(), "finished instead of blocking");
+            assertTrue(System.nanoTime() - deadline < 0, "never blocked");
+            Thread.sleep(5);
+        }
+    }
+
+    private interface PipeAction {
+        void run() throws IOException;
+    }
+}
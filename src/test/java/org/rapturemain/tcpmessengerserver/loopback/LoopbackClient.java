@@ -0,0 +1,173 @@
+package org.rapturemain.tcpmessengerserver.loopback;
+
+import org.rapturemain.tcpmessengermessageframework.message.base.StringEntry;
+import org.rapturemain.tcpmessengermessageframework.message.base.TimestampEntry;
+import org.rapturemain.tcpmessengermessageframework.message.messages.Message;
+import org.rapturemain.tcpmessengermessageframework.message.messages.chat.SimpleChatMessage;
+import org.rapturemain.tcpmessengermessageframework.message.messages.system.RegistrationRequestMessage;
+import org.rapturemain.tcpmessengermessageframework.message.messages.system.RegistrationResponseMessage;
+import org.rapturemain.tcpmessengerserver.messagebroker.ByteBufferMessageEncoderDecoder;
+import org.rapturemain.tcpmessengerserver.utils.ByteBufferOutputStream;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A client on the other end of a loopback connection. Nothing is read until {@link #startReading()},
+ * so a client can also play one that never reads.
+ */
+public final class LoopbackClient implements AutoCloseable {
+
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    private static final long POLL_MILLIS = 5;
+
+    private final LoopbackSocket socket;
+    private final ByteBufferMessageEncoderDecoder messageEncoderDecoder;
+
+    // Guarded by itself
+    private final List<Message<?>> messages = new ArrayList<>();
+    private volatile boolean ended = false;
+    private Thread reader;
+
+    LoopbackClient(LoopbackSocket socket, ByteBufferMessageEncoderDecoder messageEncoderDecoder) {
+        this.socket = socket;
+        this.messageEncoderDecoder = messageEncoderDecoder;
+    }
+
+    public static SimpleChatMessage chat() {
+        SimpleChatMessage message = new SimpleChatMessage();
+        message.setTimestamp(new TimestampEntry(System.currentTimeMillis()));
+        return message;
+    }
+
+    public static SimpleChatMessage chat(String text) {
+        SimpleChatMessage message = chat();
+        message.setMessage(new StringEntry(text));
+        return message;
+    }
+
+    public LoopbackSocket getSocket() {
+        return socket;
+    }
+
+    public void send(Message<?> message) throws IOException {
+        ByteBufferOutputStream outputStream = new ByteBufferOutputStream(512);
+        messageEncoderDecoder.encode(message, outputStream);
+        ByteBuffer buffer = outputStream.getBuffer();
+        socket.getOutputStream().write(buffer.array(), 0, buffer.position());
+    }
+
+    public void sendRegistration(String name) throws IOException {
+        send(RegistrationRequestMessage.builder()
+                .name(new StringEntry(name))
+                .build());
+    }
+
+    // Registers and waits for the server to confirm
+    public void register(String name) throws IOException {
+        startReading();
+        sendRegistration(name);
+        RegistrationResponseMessage response = awaitMessages(RegistrationResponseMessage.class, 1, Duration.ofSeconds(10)).get(0);
+        if (response.getSuccess() == null || !response.getSuccess().getValue()) {
+            throw new IllegalStateException("Registration of " + name + " failed");
+        }
+    }
+
+    public synchronized void startReading() {
+        if (reader != null) {
+            return;
+        }
+        reader = new Thread(this::read, "loopback-client-" + socket.getLocalPort());
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    public List<Message<?>> getMessages() {
+        synchronized (messages) {
+            return new ArrayList<>(messages);
+        }
+    }
+
+    public <T> List<T> getMessages(Class<T> type) {
+        List<T> matching = new ArrayList<>();
+        for (Message<?> message : getMessages()) {
+            if (type.isInstance(message)) {
+                matching.add(type.cast(message));
+            }
+        }
+        return matching;
+    }
+
+    /**
+     * @return every message of the type received so far, once there are at least {@code count} of them
+     */
+    public <T> List<T> awaitMessages(Class<T> type, int count, Duration timeout) {
+        long deadline = System.nanoTime() + timeout.toNanos();
+        while (true) {
+            List<T> matching = getMessages(type);
+            if (matching.size() >= count) {
+                return matching;
+            }
+            if (System.nanoTime() - deadline > 0) {
+                throw new AssertionError("Received " + matching.size() + " of " + count + " " + type.getSimpleName() + " messages in " + timeout);
+            }
+            sleep();
+        }
+    }
+
+    // Waits until the server closes the connection, the client must be reading
+    public void awaitEnd(Duration timeout) {
+        long deadline = System.nanoTime() + timeout.toNanos();
+        while (!ended) {
+            if (System.nanoTime() - deadline > 0) {
+                throw new AssertionError("Connection still open after " + timeout);
+            }
+            sleep();
+        }
+    }
+
+    public boolean isEnded() {
+        return ended;
+    }
+
+    @Override
+    public void close() {
+        socket.close();
+    }
+
+    private void read() {
+        ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        try {
+            InputStream in = socket.getInputStream();
+            int read;
+            while ((read = in.read(buffer.array(), buffer.position(), buffer.remaining())) >= 0) {
+                buffer.position(buffer.position() + read);
+                buffer.flip();
+                Message<?> message;
+                while ((message = messageEncoderDecoder.decode(buffer)) != null) {
+                    synchronized (messages) {
+                        messages.add(message);
+                    }
+                }
+                buffer.compact();
+            }
+        } catch (IOException e) {
+            // Reset or closed
+        } finally {
+            ended = true;
+        }
+    }
+
+    private static void sleep() {
+        try {
+            Thread.sleep(POLL_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new AssertionError("Interrupted");
+        }
+    }
+}
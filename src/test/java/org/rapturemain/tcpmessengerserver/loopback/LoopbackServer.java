@@ -0,0 +1,165 @@
+package org.rapturemain.tcpmessengerserver.loopback;
+
+import lombok.Builder;
+import lombok.Getter;
+import lombok.Value;
+import org.rapturemain.tcpmessengerserver.chatlog.ChatLog;
+import org.rapturemain.tcpmessengerserver.chatlog.DisabledChatLogImpl;
+import org.rapturemain.tcpmessengerserver.chatlog.MappedChatLogImpl;
+import org.rapturemain.tcpmessengerserver.connection.*;
+import org.rapturemain.tcpmessengerserver.messagebroker.*;
+import org.rapturemain.tcpmessengerserver.metrics.MessengerMetrics;
+import org.rapturemain.tcpmessengerserver.metrics.MessengerMetricsImpl;
+import org.rapturemain.tcpmessengerserver.user.NameVerifierImpl;
+import org.rapturemain.tcpmessengerserver.user.UserInfoVerifierImpl;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+
+/**
+ * The blocking transport with everything behind it, wired the way Spring would, reached over loopback connections.
+ */
+public final class LoopbackServer implements AutoCloseable {
+
+    @Value
+    @Builder
+    public static class Options {
+        @Builder.Default
+        String broker = "queue";
+        @Builder.Default
+        LoopbackLink link = LoopbackLink.UNLIMITED;
+        @Builder.Default
+        int subscriberQueueCapacity = 10000;
+        @Builder.Default
+        String slowConsumerPolicy = "drop-oldest";
+        @Builder.Default
+        long writeTimeoutMillis = 10000;
+        @Builder.Default
+        int outputThreads = 0;
+        @Builder.Default
+        int historySize = 50;
+        // A mapped chat log in the directory, none if null
+        @Builder.Default
+        Path chatLogDirectory = null;
+    }
+
+    private static final long KEEPALIVE_SECONDS = 15;
+    private static final long HISTORY_MAX_AGE_SECONDS = 600;
+    private static final int RING_CAPACITY = 65536;
+    private static final long PARALLELISM_THRESHOLD = 4096;
+    private static final long PAYLOAD_BUFFER_POOL_MAX_BYTES = 1 << 20;
+    private static final int CHAT_LOG_SEGMENT_SIZE = 1 << 20;
+    private static final int CHAT_LOG_RETAINED_SEGMENTS = 4;
+    private static final int CHAT_LOG_QUEUE_CAPACITY = 65536;
+
+    @Getter
+    private final MessageBroker messageBroker;
+    @Getter
+    private final SocketRegistrationService socketRegistrationService;
+    @Getter
+    private final MessageEncoderDecoderImpl messageEncoderDecoder;
+    @Getter
+    private final SlowConsumerPolicyImpl slowConsumerPolicy;
+    @Getter
+    private final MessengerMetricsImpl messengerMetrics = new MessengerMetricsImpl();
+    @Getter
+    private final LoopbackTransport transport;
+    @Getter
+    private final ChatLog chatLog;
+
+    private final AsyncUpdateNotifierImpl asyncUpdateNotifier;
+    private final SocketStateVerifierImpl socketStateVerifier;
+    private final ConnectionHandlerImpl connectionHandler;
+
+    public LoopbackServer() {
+        this(Options.builder().build());
+    }
+
+    public LoopbackServer(Options options) {
+        RecentHistory recentHistory = new RecentHistoryImpl(options.getHistorySize(), HISTORY_MAX_AGE_SECONDS);
+        slowConsumerPolicy = new SlowConsumerPolicyImpl(options.getSlowConsumerPolicy(), messengerMetrics);
+        messageBroker = createBroker(options, messengerMetrics, recentHistory, slowConsumerPolicy);
+
+        UserInfoVerifierImpl userInfoVerifier = new UserInfoVerifierImpl(new NameVerifierImpl());
+        userInfoVerifier.start();
+        socketRegistrationService = new SocketRegistrationServiceImpl(userInfoVerifier, messageBroker);
+
+        messageEncoderDecoder = new MessageEncoderDecoderImpl(messengerMetrics);
+        messageEncoderDecoder.start();
+        chatLog = createChatLog(options, messageEncoderDecoder);
+        asyncUpdateNotifier = new AsyncUpdateNotifierImpl(messengerMetrics, "platform", options.getOutputThreads());
+        socketStateVerifier = new SocketStateVerifierImpl(KEEPALIVE_SECONDS, KEEPALIVE_SECONDS);
+        socketStateVerifier.start();
+
+        connectionHandler = new ConnectionHandlerImpl(asyncUpdateNotifier, messageBroker, messageEncoderDecoder,
+                new ConnectionMessageHandlerImpl(socketRegistrationService, messengerMetrics, chatLog),
+                new SocketConfigurerImpl(true, 0), socketStateVerifier, messengerMetrics, slowConsumerPolicy,
+                "platform", options.getWriteTimeoutMillis());
+        connectionHandler.start();
+        transport = new LoopbackTransport(connectionHandler, options.getLink());
+    }
+
+    public LoopbackClient connect() {
+        return new LoopbackClient(transport.connect(), messageEncoderDecoder);
+    }
+
+    @Override
+    public void close() {
+        connectionHandler.stop();
+        socketStateVerifier.stop();
+        asyncUpdateNotifier.stop();
+        if (messageBroker instanceof MessageBrokerImpl) {
+            ((MessageBrokerImpl) messageBroker).stop();
+        } else if (messageBroker instanceof RingMessageBrokerImpl) {
+            ((RingMessageBrokerImpl) messageBroker).stop();
+        } else if (messageBroker instanceof ShardedMessageBrokerImpl) {
+            ((ShardedMessageBrokerImpl) messageBroker).stop();
+        }
+        if (chatLog instanceof MappedChatLogImpl) {
+            try {
+                ((MappedChatLogImpl) chatLog).stop();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static ChatLog createChatLog(Options options, MessageEncoderDecoderImpl messageEncoderDecoder) {
+        if (options.getChatLogDirectory() == null) {
+            return new DisabledChatLogImpl();
+        }
+        MappedChatLogImpl chatLog = new MappedChatLogImpl(options.getChatLogDirectory().toString(), CHAT_LOG_SEGMENT_SIZE,
+                CHAT_LOG_RETAINED_SEGMENTS, 0, CHAT_LOG_QUEUE_CAPACITY, messageEncoderDecoder);
+        try {
+            chatLog.start();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return chatLog;
+    }
+
+    private static MessageBroker createBroker(Options options, MessengerMetrics messengerMetrics, RecentHistory recentHistory,
+                                              SlowConsumerPolicy slowConsumerPolicy) {
+        PayloadBufferPool payloadBufferPool = new PayloadBufferPool(PAYLOAD_BUFFER_POOL_MAX_BYTES, false);
+        switch (options.getBroker()) {
+            case "queue":
+                MessageBrokerImpl queueBroker = new MessageBrokerImpl(PARALLELISM_THRESHOLD, 0, options.getSubscriberQueueCapacity(),
+                        slowConsumerPolicy, messengerMetrics, recentHistory, payloadBufferPool);
+                queueBroker.start();
+                return queueBroker;
+            case "ring":
+                RingMessageBrokerImpl ringBroker = new RingMessageBrokerImpl(RING_CAPACITY, options.getSubscriberQueueCapacity(),
+                        slowConsumerPolicy, messengerMetrics, recentHistory);
+                ringBroker.start();
+                return ringBroker;
+            case "sharded":
+                ShardedMessageBrokerImpl shardedBroker = new ShardedMessageBrokerImpl(0, options.getSubscriberQueueCapacity(),
+                        slowConsumerPolicy, messengerMetrics, recentHistory, payloadBufferPool);
+                shardedBroker.start();
+                return shardedBroker;
+            default:
+                throw new IllegalArgumentException("Unknown broker [" + options.getBroker() + "]");
+        }
+    }
+}
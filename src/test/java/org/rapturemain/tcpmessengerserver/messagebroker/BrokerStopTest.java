@@ -0,0 +1,144 @@
+package org.rapturemain.tcpmessengerserver.messagebroker;
+
+import org.junit.jupiter.api.Test;
+import org.rapturemain.tcpmessengermessageframework.message.base.TimestampEntry;
+import org.rapturemain.tcpmessengermessageframework.message.messages.Message;
+import org.rapturemain.tcpmessengermessageframework.message.messages.chat.SimpleChatMessage;
+import org.rapturemain.tcpmessengerserver.metrics.MessengerMetricsImpl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BrokerStopTest {
+
+    private static final int PUBLISHERS = 4;
+
+    @Test
+    void publishingWhileStoppingNeverThrows() throws Exception {
+        for (String broker : List.of("queue", "ring", "sharded")) {
+            for (int round = 0; round < 20; round++) {
+                publishWhileStopping(broker, createBroker(broker, new PayloadBufferPool(1 << 20, false)));
+            }
+        }
+    }
+
+    @Test
+    void publishesRefusedAfterStopReleaseTheirEnvelopes() throws Exception {
+        for (String broker : List.of("queue", "sharded")) {
+            PayloadBufferPool payloadBufferPool = new PayloadBufferPool(1 << 20, true);
+            MessageBroker messageBroker = createBroker(broker, payloadBufferPool);
+            MessageSubscriber subscriber = messageBroker.registerSubscriber();
+            MessagePublisher publisher = messageBroker.registerPublisher();
+            subscriber.joinTopic("room");
+            stop(messageBroker);
+
+            for (int i = 0; i < 100; i++) {
+                assertTrue(publisher.publishMessage(chat(i)).isDone());
+                publisher.publishMessageNoWait(chat(i));
+                publisher.publishMessagesNoWait(List.of(chat(i), chat(i)));
+                assertTrue(publisher.publishToTopic("room", chat(i)).isDone());
+            }
+
+            // Leaked on purpose, once the cleaner has reported it the refused envelopes have been looked at as well
+            payloadBufferPool.wrap(chat(-1));
+            awaitLeaks(payloadBufferPool, broker);
+            assertEquals(1, payloadBufferPool.getLeakCount(), broker);
+        }
+    }
+
+    private static void publishWhileStopping(String broker, MessageBroker messageBroker) throws Exception {
+        MessageSubscriber subscriber = messageBroker.registerSubscriber();
+        CountDownLatch started = new CountDownLatch(PUBLISHERS);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < PUBLISHERS; t++) {
+            MessagePublisher publisher = messageBroker.registerPublisher();
+            int kind = t;
+            threads.add(new Thread(() -> {
+                started.countDown();
+                try {
+                    for (int i = 0; i < 2000; i++) {
+                        switch (kind) {
+                            case 0:
+                                publisher.publishMessage(chat(i));
+                                break;
+                            case 1:
+                                publisher.publishMessageNoWait(chat(i));
+                                break;
+                            case 2:
+                                publisher.publishToSubscriber(chat(i), subscriber);
+                                break;
+                            default:
+                                publisher.publishToTopic("room", chat(i));
+                                break;
+                        }
+                    }
+                } catch (Throwable e) {
+                    failure.compareAndSet(null, e);
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        started.await();
+        stop(messageBroker);
+        for (Thread thread : threads) {
+            thread.join(TimeUnit.SECONDS.toMillis(30));
+        }
+        assertNull(failure.get(), () -> broker + " threw " + failure.get());
+    }
+
+    private static void awaitLeaks(PayloadBufferPool payloadBufferPool, String broker) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+        while (payloadBufferPool.getLeakCount() == 0) {
+            assertTrue(System.nanoTime() - deadline < 0, broker + ": leaked envelope was never collected");
+            System.gc();
+            Thread.sleep(20);
+        }
+        // The cleaner may still be going through envelopes collected together with it
+        System.gc();
+        Thread.sleep(200);
+    }
+
+    private static MessageBroker createBroker(String broker, PayloadBufferPool payloadBufferPool) {
+        MessengerMetricsImpl messengerMetrics = new MessengerMetricsImpl();
+        SlowConsumerPolicy slowConsumerPolicy = new SlowConsumerPolicyImpl("drop-oldest", messengerMetrics);
+        RecentHistory recentHistory = new RecentHistoryImpl(0, 0);
+        switch (broker) {
+            case "queue":
+                MessageBrokerImpl queueBroker = new MessageBrokerImpl(4096, 1, 100, slowConsumerPolicy, messengerMetrics, recentHistory, payloadBufferPool);
+                queueBroker.start();
+                return queueBroker;
+            case "ring":
+                RingMessageBrokerImpl ringBroker = new RingMessageBrokerImpl(1024, 100, slowConsumerPolicy, messengerMetrics, recentHistory);
+                ringBroker.start();
+                return ringBroker;
+            default:
+                ShardedMessageBrokerImpl shardedBroker = new ShardedMessageBrokerImpl(2, 100, slowConsumerPolicy, messengerMetrics, recentHistory, payloadBufferPool);
+                shardedBroker.start();
+                return shardedBroker;
+        }
+    }
+
+    private static void stop(MessageBroker broker) {
+        if (broker instanceof MessageBrokerImpl) {
+            ((MessageBrokerImpl) broker).stop();
+        } else if (broker instanceof RingMessageBrokerImpl) {
+            ((RingMessageBrokerImpl) broker).stop();
+        } else {
+            ((ShardedMessageBrokerImpl) broker).stop();
+        }
+    }
+
+    private static Message<?> chat(long id) {
+        SimpleChatMessage message = new SimpleChatMessage();
+        message.setTimestamp(new TimestampEntry(id));
+        return message;
+    }
+}
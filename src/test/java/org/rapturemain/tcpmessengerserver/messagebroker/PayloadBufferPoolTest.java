@@ -0,0 +1,134 @@
+package org.rapturemain.tcpmessengerserver.messagebroker;
+
+import org.junit.jupiter.api.Test;
+import org.rapturemain.tcpmessengermessageframework.message.base.StringEntry;
+import org.rapturemain.tcpmessengermessageframework.message.base.TimestampEntry;
+import org.rapturemain.tcpmessengermessageframework.message.messages.chat.SimpleChatMessage;
+import org.rapturemain.tcpmessengerserver.metrics.MessengerMetricsImpl;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PayloadBufferPoolTest {
+
+    private final MessengerMetricsImpl messengerMetrics = new MessengerMetricsImpl();
+    private final MessageEncoderDecoderImpl messageEncoderDecoder = createEncoderDecoder();
+
+    @Test
+    void lastReleaseRecyclesTheEncodedBuffer() throws Exception {
+        PayloadBufferPool payloadBufferPool = new PayloadBufferPool(1 << 20, false);
+        MessageEnvelope envelope = payloadBufferPool.wrap(chat(1));
+        byte[] encoded = envelope.getEncoded(messageEncoderDecoder);
+        envelope.retain(2);
+
+        envelope.release();
+        envelope.release();
+        assertEquals(1, envelope.getReferenceCount());
+        envelope.release();
+
+        assertEquals(0, envelope.getReferenceCount());
+        assertFalse(envelope.tryRetain());
+        assertThrows(IllegalStateException.class, () -> envelope.retain(1));
+        assertThrows(IllegalStateException.class, envelope::release);
+        // Handed out again for the next payload of that size
+        assertSame(encoded, payloadBufferPool.acquire(envelope.getEncodedLength()));
+    }
+
+    @Test
+    void fanOutHoldsOneReferencePerQueue() throws Exception {
+        PayloadBufferPool payloadBufferPool = new PayloadBufferPool(1 << 20, false);
+        MessageBrokerImpl broker = new MessageBrokerImpl(4096, 1, 100, new SlowConsumerPolicyImpl("drop-oldest", messengerMetrics),
+                messengerMetrics, new RecentHistoryImpl(0, 0), payloadBufferPool);
+        broker.start();
+        try {
+            List<MessageSubscriber> subscribers = List.of(broker.registerSubscriber(), broker.registerSubscriber(), broker.registerSubscriber());
+            MessageSubscriber ignored = broker.registerSubscriber();
+            broker.registerPublisher(ignored).publishMessage(chat(1)).get();
+
+            assertNull(ignored.pollEnvelope());
+            MessageEnvelope envelope = subscribers.get(0).pollEnvelope();
+            assertEquals(3, envelope.getReferenceCount());
+            envelope.getEncoded(messageEncoderDecoder);
+            envelope.release();
+
+            assertSame(envelope, subscribers.get(1).pollEnvelope());
+            envelope.release();
+            // Unregistering drops what the queue still holds
+            subscribers.get(2).unregister();
+
+            assertEquals(0, envelope.getReferenceCount());
+        } finally {
+            broker.stop();
+        }
+    }
+
+    @Test
+    void historyGivesUpOverwrittenEnvelopes() {
+        PayloadBufferPool payloadBufferPool = new PayloadBufferPool(1 << 20, false);
+        RecentHistoryImpl history = new RecentHistoryImpl(2, 0);
+        MessageEnvelope first = payloadBufferPool.wrap(chat(1));
+        MessageEnvelope second = payloadBufferPool.wrap(chat(2));
+        MessageEnvelope third = payloadBufferPool.wrap(chat(3));
+
+        for (MessageEnvelope envelope : List.of(first, second, third)) {
+            history.append(envelope);
+            // The publisher's own reference
+            envelope.release();
+        }
+
+        assertEquals(0, first.getReferenceCount());
+        assertEquals(1, second.getReferenceCount());
+        assertEquals(1, third.getReferenceCount());
+
+        MessageEnvelope[] snapshot = history.snapshot();
+        assertArrayEquals(new MessageEnvelope[]{second, third}, snapshot);
+        assertEquals(2, second.getReferenceCount());
+        MessageEnvelope.releaseAll(snapshot);
+        assertEquals(1, second.getReferenceCount());
+    }
+
+    @Test
+    void leakDetectionReportsOnlyEnvelopesNeverReleased() throws InterruptedException {
+        PayloadBufferPool payloadBufferPool = new PayloadBufferPool(1 << 20, true);
+        for (int i = 0; i < 100; i++) {
+            payloadBufferPool.wrap(chat(i)).release();
+        }
+        payloadBufferPool.wrap(chat(-1));
+
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+        while (payloadBufferPool.getLeakCount() == 0) {
+            assertTrue(System.nanoTime() - deadline < 0, "Leaked envelope was never reported");
+            System.gc();
+            Thread.sleep(20);
+        }
+        System.gc();
+        Thread.sleep(200);
+        assertEquals(1, payloadBufferPool.getLeakCount());
+    }
+
+    @Test
+    void disabledPoolHandsOutPlainEnvelopes() throws Exception {
+        MessageEnvelope envelope = new PayloadBufferPool(0, true).wrap(chat(1));
+        envelope.release();
+        envelope.release();
+
+        // Plain envelopes ignore the counting and stay usable
+        assertTrue(envelope.tryRetain());
+        assertTrue(envelope.getEncoded(messageEncoderDecoder).length > 0);
+    }
+
+    private static SimpleChatMessage chat(long id) {
+        SimpleChatMessage message = new SimpleChatMessage();
+        message.setTimestamp(new TimestampEntry(id));
+        message.setMessage(new StringEntry("message " + id));
+        return message;
+    }
+
+    private MessageEncoderDecoderImpl createEncoderDecoder() {
+        MessageEncoderDecoderImpl encoderDecoder = new MessageEncoderDecoderImpl(messengerMetrics);
+        encoderDecoder.start();
+        return encoderDecoder;
+    }
+}
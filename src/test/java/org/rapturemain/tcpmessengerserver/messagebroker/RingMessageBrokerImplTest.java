@@ -0,0 +1,245 @@
+package org.rapturemain.tcpmessengerserver.messagebroker;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.rapturemain.tcpmessengermessageframework.message.base.TimestampEntry;
+import org.rapturemain.tcpmessengermessageframework.message.messages.Message;
+import org.rapturemain.tcpmessengermessageframework.message.messages.chat.ChatMessage;
+import org.rapturemain.tcpmessengermessageframework.message.messages.chat.SimpleChatMessage;
+import org.rapturemain.tcpmessengermessageframework.message.messages.system.ConnectionResetMessage;
+import org.rapturemain.tcpmessengermessageframework.message.messages.system.PingRequest;
+import org.rapturemain.tcpmessengerserver.metrics.MessengerMetricsImpl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RingMessageBrokerImplTest {
+
+    private static final int QUEUE_CAPACITY = 100;
+
+    private final MessengerMetricsImpl messengerMetrics = new MessengerMetricsImpl();
+    private RingMessageBrokerImpl broker;
+
+    @AfterEach
+    void tearDown() {
+        if (broker != null) {
+            broker.stop();
+        }
+    }
+
+    @Test
+    void readsBroadcastsInPublishOrder() throws Exception {
+        broker = createBroker(8);
+        MessageSubscriber subscriber = broker.registerSubscriber();
+        MessagePublisher publisher = broker.registerPublisher();
+
+        for (int i = 0; i < 5; i++) {
+            publisher.publishMessage(chat(i)).get();
+        }
+
+        assertEquals(List.of(0L, 1L, 2L, 3L, 4L), drain(subscriber));
+        assertNull(subscriber.pollMessage());
+    }
+
+    @Test
+    void readerMoreThanCapacityBehindSkipsToOldestRetainedSlot() throws Exception {
+        broker = createBroker(4);
+        MessageSubscriber subscriber = broker.registerSubscriber();
+        MessagePublisher publisher = broker.registerPublisher();
+
+        for (int i = 0; i < 10; i++) {
+            publisher.publishMessage(chat(i)).get();
+        }
+
+        assertEquals(4, subscriber.getQueueDepth());
+        assertEquals(List.of(6L, 7L, 8L, 9L), drain(subscriber));
+    }
+
+    @Test
+    void readerLappedMidwayResumesAtOldestRetainedSlot() throws Exception {
+        broker = createBroker(4);
+        MessageSubscriber subscriber = broker.registerSubscriber();
+        MessagePublisher publisher = broker.registerPublisher();
+
+        for (int i = 0; i < 4; i++) {
+            publisher.publishMessage(chat(i)).get();
+        }
+        assertEquals(0L, id(subscriber.pollMessage()));
+        assertEquals(1L, id(subscriber.pollMessage()));
+        // Peeking does not advance the cursor
+        assertEquals(2L, id(subscriber.peekMessage()));
+
+        for (int i = 4; i < 4 + 4 * 25; i++) {
+            publisher.publishMessage(chat(i)).get();
+        }
+
+        assertEquals(List.of(100L, 101L, 102L, 103L), drain(subscriber));
+    }
+
+    @Test
+    void concurrentOverwritesNeverYieldStaleOrTornSlots() throws Exception {
+        broker = createBroker(16);
+        MessageSubscriber subscriber = broker.registerSubscriber();
+        // Every other slot ignores the subscriber, a torn read would pair one slot's message with another's ignored set
+        MessagePublisher ignoring = broker.registerPublisher(subscriber);
+        MessagePublisher publisher = broker.registerPublisher();
+        int messages = 100_000;
+
+        AtomicReference<String> failure = new AtomicReference<>();
+        AtomicInteger read = new AtomicInteger();
+        Thread reader = new Thread(() -> {
+            long last = -1;
+            while (last < messages - 1 && failure.get() == null) {
+                Message<?> message = subscriber.pollMessage();
+                if (message == null) {
+                    Thread.onSpinWait();
+                    continue;
+                }
+                long id = id(message);
+                if (id % 2 == 1) {
+                    failure.set("Read " + id + ", which was published ignoring the subscriber");
+                } else if (id <= last) {
+                    failure.set("Read " + id + " after " + last);
+                }
+                last = id;
+                read.incrementAndGet();
+            }
+        });
+        reader.start();
+
+        for (int i = 0; i < messages; i++) {
+            (i % 2 == 0 ? publisher : ignoring).publishMessageNoWait(chat(i));
+        }
+        publisher.publishMessage(chat(messages)).get();
+        reader.join(TimeUnit.SECONDS.toMillis(30));
+
+        assertFalse(reader.isAlive(), "Reader did not reach the last message");
+        assertNull(failure.get(), failure.get());
+        assertTrue(read.get() > 0);
+    }
+
+    @Test
+    void broadcastWakesEverySubscriber() throws Exception {
+        broker = createBroker(64);
+        List<AtomicInteger> wakeUps = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            AtomicInteger count = new AtomicInteger();
+            broker.registerSubscriber().setUpdateListener(count::incrementAndGet);
+            wakeUps.add(count);
+        }
+
+        broker.registerPublisher().publishMessages(List.of(chat(0), chat(1), chat(2))).get();
+
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        for (AtomicInteger count : wakeUps) {
+            while (count.get() == 0) {
+                assertTrue(System.nanoTime() - deadline < 0, "Subscriber was not woken up");
+                Thread.sleep(1);
+            }
+        }
+    }
+
+    @Test
+    void topicAndPrivateMessagesStayOffTheRing() throws Exception {
+        broker = createBroker(4);
+        MessageSubscriber member = broker.registerSubscriber();
+        MessageSubscriber outsider = broker.registerSubscriber();
+        MessagePublisher publisher = broker.registerPublisher();
+        member.joinTopic("room");
+
+        // More than the ring holds, none of it may push broadcasts out
+        publisher.publishMessage(chat(0)).get();
+        for (int i = 1; i <= 10; i++) {
+            publisher.publishToTopic("room", chat(i)).get();
+        }
+        publisher.publishToSubscriber(chat(11), member).get();
+
+        assertEquals(1, outsider.getQueueDepth());
+        assertEquals(List.of(0L), drain(outsider));
+
+        // Queued messages come ahead of the ring
+        List<Long> memberIds = drain(member);
+        assertEquals(List.of(1L, 2L, 3L, 4L, 5L, 6L, 7L, 8L, 9L, 10L, 11L, 0L), memberIds);
+    }
+
+    @Test
+    void roomTrafficPastTheQueueCapacityDropsTheOldest() throws Exception {
+        broker = createBroker(4, 4, "drop-oldest");
+        MessageSubscriber member = broker.registerSubscriber();
+        MessagePublisher publisher = broker.registerPublisher();
+        member.joinTopic("room");
+
+        for (int i = 0; i < 10; i++) {
+            publisher.publishToTopic("room", chat(i)).get();
+        }
+
+        assertEquals(4, member.getQueueDepth());
+        assertEquals(6, messengerMetrics.getSlowConsumerFiredCount(SlowConsumerAction.DROP_OLDEST));
+        assertEquals(List.of(6L, 7L, 8L, 9L), drain(member));
+    }
+
+    @Test
+    void roomTrafficPastTheQueueCapacityDisconnects() throws Exception {
+        broker = createBroker(4, 4, "disconnect");
+        MessageSubscriber member = broker.registerSubscriber();
+        MessagePublisher publisher = broker.registerPublisher();
+        member.joinTopic("room");
+
+        for (int i = 0; i < 10; i++) {
+            publisher.publishToTopic("room", chat(i)).get();
+        }
+
+        assertEquals(1, member.getQueueDepth());
+        assertTrue(member.pollMessage() instanceof ConnectionResetMessage);
+        assertNull(member.pollMessage());
+    }
+
+    @Test
+    void controlMessagesComeFirst() throws Exception {
+        broker = createBroker(8);
+        MessageSubscriber subscriber = broker.registerSubscriber();
+        MessagePublisher publisher = broker.registerPublisher();
+
+        publisher.publishMessage(chat(0)).get();
+        publisher.publishToSubscriber(chat(1), subscriber).get();
+        publisher.publishToSubscriber(new PingRequest(), subscriber).get();
+
+        assertTrue(subscriber.pollMessage() instanceof PingRequest);
+        assertEquals(List.of(1L, 0L), drain(subscriber));
+    }
+
+    private RingMessageBrokerImpl createBroker(int capacity) {
+        return createBroker(capacity, QUEUE_CAPACITY, "drop-oldest");
+    }
+
+    private RingMessageBrokerImpl createBroker(int capacity, int queueCapacity, String slowConsumerPolicy) {
+        RingMessageBrokerImpl broker = new RingMessageBrokerImpl(capacity, queueCapacity,
+                new SlowConsumerPolicyImpl(slowConsumerPolicy, messengerMetrics), messengerMetrics, new RecentHistoryImpl(0, 0));
+        broker.start();
+        return broker;
+    }
+
+    private static Message<?> chat(long id) {
+        SimpleChatMessage message = new SimpleChatMessage();
+        message.setTimestamp(new TimestampEntry(id));
+        return message;
+    }
+
+    private static long id(Message<?> message) {
+        return ((ChatMessage<?>) message).getTimestamp().getValue();
+    }
+
+    private static List<Long> drain(MessageSubscriber subscriber) {
+        List<Long> ids = new ArrayList<>();
+        Message<?> message;
+        while ((message = subscriber.pollMessage()) != null) {
+            ids.add(id(message));
+        }
+        return ids;
+    }
+}
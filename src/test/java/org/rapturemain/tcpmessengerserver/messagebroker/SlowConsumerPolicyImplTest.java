@@ -0,0 +1,114 @@
+package org.rapturemain.tcpmessengerserver.messagebroker;
+
+import org.junit.jupiter.api.Test;
+import org.rapturemain.tcpmessengermessageframework.message.base.TimestampEntry;
+import org.rapturemain.tcpmessengermessageframework.message.messages.Message;
+import org.rapturemain.tcpmessengermessageframework.message.messages.chat.ChatMessage;
+import org.rapturemain.tcpmessengermessageframework.message.messages.chat.SimpleChatMessage;
+import org.rapturemain.tcpmessengermessageframework.message.messages.system.ConnectionResetMessage;
+import org.rapturemain.tcpmessengermessageframework.message.messages.system.UserConnectedMessage;
+import org.rapturemain.tcpmessengerserver.metrics.MessengerMetricsImpl;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SlowConsumerPolicyImplTest {
+
+    private final MessengerMetricsImpl messengerMetrics = new MessengerMetricsImpl();
+
+    @Test
+    void dropOldestKeepsTheNewestMessages() {
+        SubscriberQueue queue = createQueue("drop-oldest", 3);
+        for (int i = 0; i < 5; i++) {
+            queue.offer(chat(i));
+        }
+
+        assertEquals(List.of(2L, 3L, 4L), drain(queue));
+        assertEquals(2, messengerMetrics.getSlowConsumerFiredCount(SlowConsumerAction.DROP_OLDEST));
+    }
+
+    @Test
+    void dropNewestKeepsTheOldestMessages() {
+        SubscriberQueue queue = createQueue("drop-newest", 3);
+        for (int i = 0; i < 5; i++) {
+            queue.offer(chat(i));
+        }
+
+        assertEquals(List.of(0L, 1L, 2L), drain(queue));
+        assertEquals(2, messengerMetrics.getSlowConsumerFiredCount(SlowConsumerAction.DROP_NEWEST));
+    }
+
+    @Test
+    void coalesceDropsSystemMessagesOfAWaitingTypeAndOtherwiseTheOldest() {
+        SubscriberQueue queue = createQueue("coalesce", 2);
+        queue.offer(userConnected(0));
+        queue.offer(chat(1));
+        assertTrue(queue.containsSystemMessageOf(UserConnectedMessage.class));
+
+        // One of the same type is already waiting
+        queue.offer(userConnected(2));
+        assertEquals(1, messengerMetrics.getSlowConsumerFiredCount(SlowConsumerAction.COALESCE));
+
+        // Not a system message, the oldest goes and takes the only waiting UserConnectedMessage with it
+        queue.offer(chat(3));
+        assertEquals(1, messengerMetrics.getSlowConsumerFiredCount(SlowConsumerAction.DROP_OLDEST));
+        assertFalse(queue.containsSystemMessageOf(UserConnectedMessage.class));
+
+        queue.offer(userConnected(4));
+        assertEquals(2, messengerMetrics.getSlowConsumerFiredCount(SlowConsumerAction.DROP_OLDEST));
+        assertEquals(List.of(3L, 4L), drain(queue));
+        assertFalse(queue.containsSystemMessageOf(UserConnectedMessage.class));
+    }
+
+    @Test
+    void disconnectLeavesOnlyTheConnectionReset() {
+        SlowConsumerPolicyImpl policy = new SlowConsumerPolicyImpl("disconnect", messengerMetrics);
+        SubscriberQueue queue = new SubscriberQueue(2, policy);
+        for (int i = 0; i < 3; i++) {
+            queue.offer(chat(i));
+        }
+        queue.offer(chat(3));
+
+        assertEquals(1, queue.size());
+        assertTrue(queue.poll().getMessage() instanceof ConnectionResetMessage);
+        assertNull(queue.poll());
+        assertEquals(1, messengerMetrics.getSlowConsumerFiredCount(SlowConsumerAction.DISCONNECT));
+
+    }
+
+    @Test
+    void stalledConnectionsCountAsDisconnectsUnderEveryPolicy() {
+        for (String action : List.of("drop-oldest", "drop-newest", "coalesce", "disconnect")) {
+            new SlowConsumerPolicyImpl(action, messengerMetrics).onStalled();
+        }
+        assertEquals(4, messengerMetrics.getSlowConsumerFiredCount(SlowConsumerAction.DISCONNECT));
+    }
+
+    private SubscriberQueue createQueue(String action, int capacity) {
+        return new SubscriberQueue(capacity, new SlowConsumerPolicyImpl(action, messengerMetrics));
+    }
+
+    private static MessageEnvelope chat(long id) {
+        SimpleChatMessage message = new SimpleChatMessage();
+        message.setTimestamp(new TimestampEntry(id));
+        return new MessageEnvelope(message);
+    }
+
+    private static MessageEnvelope userConnected(long id) {
+        return new MessageEnvelope(UserConnectedMessage.builder().timestamp(new TimestampEntry(id)).build());
+    }
+
+    private static List<Long> drain(SubscriberQueue queue) {
+        List<Long> ids = new ArrayList<>();
+        MessageEnvelope envelope;
+        while ((envelope = queue.poll()) != null) {
+            Message<?> message = envelope.getMessage();
+            ids.add(message instanceof ChatMessage
+                    ? ((ChatMessage<?>) message).getTimestamp().getValue()
+                    : ((UserConnectedMessage) message).getTimestamp().getValue());
+        }
+        return ids;
+    }
+}
@@ -0,0 +1,252 @@
+package org.rapturemain.tcpmessengerserver.messagebroker;
+
+import org.junit.jupiter.api.Test;
+import org.rapturemain.tcpmessengermessageframework.message.base.StringEntry;
+import org.rapturemain.tcpmessengermessageframework.message.base.TimestampEntry;
+import org.rapturemain.tcpmessengermessageframework.message.messages.Message;
+import org.rapturemain.tcpmessengermessageframework.message.messages.chat.SimpleChatMessage;
+import org.rapturemain.tcpmessengerserver.metrics.MessengerMetricsImpl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SubscriberAdmissionTest {
+
+    private static final int MESSAGES = 3000;
+    private static final int SUBSCRIBERS = 20;
+    private static final int HISTORY_SIZE = 16;
+    private static final String GREETING = "greeting";
+
+    @Test
+    void subscribersAdmittedDuringPublishingSeeEveryMessageOnce() throws Exception {
+        for (String broker : List.of("queue", "ring", "sharded")) {
+            MessageBroker messageBroker = createBroker(broker);
+            try {
+                admitWhilePublishing(broker, messageBroker);
+            } finally {
+                stop(messageBroker);
+            }
+        }
+    }
+
+    @Test
+    void heldSubscriberGetsOnlyDirectMessagesUntilAdmitted() throws Exception {
+        for (String broker : List.of("queue", "ring", "sharded")) {
+            MessageBroker messageBroker = createBroker(broker);
+            try {
+                MessagePublisher publisher = messageBroker.registerPublisher();
+                MessageSubscriber subscriber = messageBroker.registerHeldSubscriber();
+                publisher.publishMessage(chat("0")).get();
+                publisher.publishToSubscriber(chat("direct"), subscriber).get();
+                publisher.publishMessage(chat("1")).get();
+                // Broadcasts it got while held would turn up again after the history
+                assertEquals(List.of("direct"), awaitTexts(broker, subscriber, 1), broker);
+
+                publisher.admitSubscriber(chat(GREETING), subscriber).get();
+                publisher.publishMessage(chat("2")).get();
+                assertEquals(List.of(GREETING, "0", "1", "2"), awaitTexts(broker, subscriber, 4), broker);
+            } finally {
+                stop(messageBroker);
+            }
+        }
+    }
+
+    @Test
+    void subscribersAdmittedTogetherShareOneHistorySnapshot() throws Exception {
+        for (String broker : List.of("queue", "ring", "sharded")) {
+            GatedHistory recentHistory = new GatedHistory();
+            MessageBroker messageBroker = createBroker(broker, recentHistory);
+            try {
+                MessagePublisher publisher = messageBroker.registerPublisher();
+                for (int i = 0; i < HISTORY_SIZE; i++) {
+                    publisher.publishMessage(chat(String.valueOf(i))).get();
+                }
+
+                List<MessageSubscriber> subscribers = new ArrayList<>();
+                List<Future<?>> admitted = new ArrayList<>();
+                for (int i = 0; i < 1000; i++) {
+                    MessageSubscriber subscriber = messageBroker.registerHeldSubscriber();
+                    subscribers.add(subscriber);
+                    admitted.add(publisher.admitSubscriber(chat(GREETING), subscriber));
+                    if (i == 0) {
+                        // Holds the broker thread in the first snapshot while the rest line up behind it
+                        assertTrue(recentHistory.entered.await(10, TimeUnit.SECONDS), broker);
+                    }
+                }
+                recentHistory.gate.countDown();
+                for (Future<?> future : admitted) {
+                    future.get(30, TimeUnit.SECONDS);
+                }
+
+                assertEquals(2, recentHistory.snapshots.get(), broker);
+                List<String> expected = new ArrayList<>(List.of(GREETING));
+                for (int i = 0; i < HISTORY_SIZE; i++) {
+                    expected.add(String.valueOf(i));
+                }
+                for (MessageSubscriber subscriber : subscribers) {
+                    assertEquals(expected, awaitTexts(broker, subscriber, expected.size(), 0), broker);
+                }
+            } finally {
+                stop(messageBroker);
+            }
+        }
+    }
+
+    private static void admitWhilePublishing(String broker, MessageBroker messageBroker) throws Exception {
+        MessagePublisher publisher = messageBroker.registerPublisher();
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread publishing = new Thread(() -> {
+            try {
+                for (int i = 0; i < MESSAGES; i++) {
+                    publisher.publishMessageNoWait(chat(String.valueOf(i)));
+                    if (i % 50 == 0) {
+                        Thread.sleep(1);
+                    }
+                }
+            } catch (Throwable e) {
+                failure.compareAndSet(null, e);
+            }
+        });
+        publishing.start();
+
+        List<MessageSubscriber> subscribers = new ArrayList<>();
+        for (int i = 0; i < SUBSCRIBERS; i++) {
+            MessageSubscriber subscriber = messageBroker.registerHeldSubscriber();
+            publisher.admitSubscriber(chat(GREETING), subscriber);
+            subscribers.add(subscriber);
+            Thread.sleep(2);
+        }
+        publishing.join(TimeUnit.SECONDS.toMillis(30));
+        assertNull(failure.get(), () -> broker + " threw " + failure.get());
+
+        for (MessageSubscriber subscriber : subscribers) {
+            List<String> received = awaitLast(broker, subscriber);
+            assertEquals(GREETING, received.get(0), broker);
+            // The history and the live messages meet without a gap or an overlap
+            int first = Integer.parseInt(received.get(1));
+            for (int i = 1; i < received.size(); i++) {
+                assertEquals(String.valueOf(first + i - 1), received.get(i), broker);
+            }
+        }
+    }
+
+    private static List<String> awaitLast(String broker, MessageSubscriber subscriber) throws InterruptedException {
+        String last = String.valueOf(MESSAGES - 1);
+        List<String> received = new ArrayList<>();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+        while (received.isEmpty() || !received.get(received.size() - 1).equals(last)) {
+            assertTrue(System.nanoTime() - deadline < 0, broker + ": last message never arrived, got " + received.size());
+            List<String> drained = drain(subscriber);
+            if (drained.isEmpty()) {
+                Thread.sleep(5);
+            }
+            received.addAll(drained);
+        }
+        return received;
+    }
+
+    private static List<String> awaitTexts(String broker, MessageSubscriber subscriber, int count) throws InterruptedException {
+        return awaitTexts(broker, subscriber, count, 50);
+    }
+
+    // The sharded broker hands messages to its shards after the publish future completes
+    private static List<String> awaitTexts(String broker, MessageSubscriber subscriber, int count, long settleMillis) throws InterruptedException {
+        List<String> received = new ArrayList<>();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+        while (received.size() < count) {
+            assertTrue(System.nanoTime() - deadline < 0, broker + ": got only " + received);
+            received.addAll(drain(subscriber));
+            if (received.size() < count) {
+                Thread.sleep(5);
+            }
+        }
+        Thread.sleep(settleMillis);
+        received.addAll(drain(subscriber));
+        return received;
+    }
+
+    private static List<String> drain(MessageSubscriber subscriber) {
+        List<String> texts = new ArrayList<>();
+        Message<?> message;
+        while ((message = subscriber.pollMessage()) != null) {
+            texts.add(((SimpleChatMessage) message).getMessage().getString());
+        }
+        return texts;
+    }
+
+    private static MessageBroker createBroker(String broker) {
+        return createBroker(broker, new RecentHistoryImpl(HISTORY_SIZE, 0));
+    }
+
+    private static MessageBroker createBroker(String broker, RecentHistory recentHistory) {
+        MessengerMetricsImpl messengerMetrics = new MessengerMetricsImpl();
+        SlowConsumerPolicy slowConsumerPolicy = new SlowConsumerPolicyImpl("drop-oldest", messengerMetrics);
+        PayloadBufferPool payloadBufferPool = new PayloadBufferPool(1 << 20, false);
+        // Room for every message, nothing is dropped while the subscribers wait to be drained
+        switch (broker) {
+            case "queue":
+                MessageBrokerImpl queueBroker = new MessageBrokerImpl(4, 1, MESSAGES * 2, slowConsumerPolicy, messengerMetrics, recentHistory, payloadBufferPool);
+                queueBroker.start();
+                return queueBroker;
+            case "ring":
+                RingMessageBrokerImpl ringBroker = new RingMessageBrokerImpl(4096, MESSAGES * 2, slowConsumerPolicy, messengerMetrics, recentHistory);
+                ringBroker.start();
+                return ringBroker;
+            default:
+                ShardedMessageBrokerImpl shardedBroker = new ShardedMessageBrokerImpl(2, MESSAGES * 2, slowConsumerPolicy, messengerMetrics, recentHistory, payloadBufferPool);
+                shardedBroker.start();
+                return shardedBroker;
+        }
+    }
+
+    private static void stop(MessageBroker broker) {
+        if (broker instanceof MessageBrokerImpl) {
+            ((MessageBrokerImpl) broker).stop();
+        } else if (broker instanceof RingMessageBrokerImpl) {
+            ((RingMessageBrokerImpl) broker).stop();
+        } else {
+            ((ShardedMessageBrokerImpl) broker).stop();
+        }
+    }
+
+    // Counts snapshots, the first one waits for the gate
+    private static final class GatedHistory implements RecentHistory {
+
+        private final RecentHistoryImpl history = new RecentHistoryImpl(HISTORY_SIZE, 0);
+        private final AtomicInteger snapshots = new AtomicInteger();
+        private final CountDownLatch entered = new CountDownLatch(1);
+        private final CountDownLatch gate = new CountDownLatch(1);
+
+        @Override
+        public void append(MessageEnvelope envelope) {
+            history.append(envelope);
+        }
+
+        @Override
+        public MessageEnvelope[] snapshot() {
+            if (snapshots.getAndIncrement() == 0) {
+                entered.countDown();
+                try {
+                    gate.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return history.snapshot();
+        }
+    }
+
+    private static Message<?> chat(String text) {
+        SimpleChatMessage message = new SimpleChatMessage();
+        message.setTimestamp(new TimestampEntry(System.currentTimeMillis()));
+        message.setMessage(new StringEntry(text));
+        return message;
+    }
+}
@@ -0,0 +1,119 @@
+package org.rapturemain.tcpmessengerserver.messagebroker;
+
+import org.junit.jupiter.api.Test;
+import org.rapturemain.tcpmessengermessageframework.message.base.TimestampEntry;
+import org.rapturemain.tcpmessengermessageframework.message.messages.chat.ChatMessage;
+import org.rapturemain.tcpmessengermessageframework.message.messages.chat.SimpleChatMessage;
+import org.rapturemain.tcpmessengermessageframework.message.messages.system.PingRequest;
+import org.rapturemain.tcpmessengermessageframework.message.messages.system.PingResponse;
+import org.rapturemain.tcpmessengermessageframework.message.messages.system.RegistrationResponseMessage;
+import org.rapturemain.tcpmessengerserver.metrics.MessengerMetricsImpl;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SubscriberQueueTest {
+
+    private final MessengerMetricsImpl messengerMetrics = new MessengerMetricsImpl();
+
+    @Test
+    void controlMessagesOvertakeQueuedChatInTheirOwnOrder() {
+        SubscriberQueue queue = new SubscriberQueue(3, new SlowConsumerPolicyImpl("drop-newest", messengerMetrics));
+        queue.offer(chat(0));
+        queue.offer(chat(1));
+        queue.offer(new MessageEnvelope(new PingRequest()));
+        queue.offer(chat(2));
+        queue.offer(new MessageEnvelope(new RegistrationResponseMessage()));
+        queue.offer(new MessageEnvelope(new PingResponse()));
+
+        assertTrue(queue.peek().getMessage() instanceof PingRequest);
+        assertTrue(queue.poll().getMessage() instanceof PingRequest);
+        assertTrue(queue.poll().getMessage() instanceof RegistrationResponseMessage);
+        assertTrue(queue.poll().getMessage() instanceof PingResponse);
+        assertEquals(0L, id(queue.poll()));
+        assertEquals(1L, id(queue.poll()));
+        assertEquals(2L, id(queue.poll()));
+        assertNull(queue.poll());
+    }
+
+    @Test
+    void controlMessagesAreNeitherCappedNorDropped() {
+        SubscriberQueue queue = new SubscriberQueue(2, new SlowConsumerPolicyImpl("drop-oldest", messengerMetrics));
+        for (int i = 0; i < 4; i++) {
+            queue.offer(chat(i));
+        }
+        for (int i = 0; i < 5; i++) {
+            queue.offer(new MessageEnvelope(new PingRequest()));
+        }
+
+        assertEquals(7, queue.size());
+        assertEquals(2, messengerMetrics.getSlowConsumerFiredCount(SlowConsumerAction.DROP_OLDEST));
+        for (int i = 0; i < 5; i++) {
+            assertTrue(queue.poll().getMessage() instanceof PingRequest);
+        }
+        assertEquals(2L, id(queue.poll()));
+        assertEquals(3L, id(queue.poll()));
+    }
+
+    @Test
+    void closedQueueAcceptsNothing() {
+        SubscriberQueue queue = new SubscriberQueue(0, new SlowConsumerPolicyImpl("drop-oldest", messengerMetrics));
+        queue.offer(chat(0));
+        queue.offer(new MessageEnvelope(new PingRequest()));
+        queue.close();
+        queue.offer(chat(1));
+        queue.offer(new MessageEnvelope(new PingRequest()));
+
+        assertEquals(0, queue.size());
+        assertNull(queue.poll());
+    }
+
+    @Test
+    void admissionComesAheadOfQueuedChatFollowedByTheSharedHistory() {
+        PayloadBufferPool pool = new PayloadBufferPool(1 << 20, false);
+        MessageEnvelope[] history = {pool.wrap(chatMessage(10)), pool.wrap(chatMessage(11))};
+        // One reference per queue, like the broker hands out for a batch, the test keeps its own
+        for (MessageEnvelope entry : history) {
+            entry.retain(2);
+        }
+        SubscriberQueue first = new SubscriberQueue(10, new SlowConsumerPolicyImpl("drop-oldest", messengerMetrics));
+        SubscriberQueue second = new SubscriberQueue(10, new SlowConsumerPolicyImpl("drop-oldest", messengerMetrics));
+        first.offer(chat(0));
+        first.admit(chat(1), history);
+        second.admit(new MessageEnvelope(new RegistrationResponseMessage()), history);
+
+        assertEquals(4, first.size());
+        assertEquals(1L, id(first.peek()));
+        assertEquals(1L, id(first.poll()));
+        MessageEnvelope read = first.poll();
+        assertEquals(10L, id(read));
+        read.release();
+        assertEquals(11L, id(first.peek()));
+        assertEquals(3, history[1].getReferenceCount());
+        read = first.poll();
+        assertEquals(11L, id(read));
+        read.release();
+        assertEquals(0L, id(first.poll()));
+        first.close();
+
+        assertTrue(second.poll().getMessage() instanceof RegistrationResponseMessage);
+        second.close();
+        assertEquals(1, history[0].getReferenceCount());
+        assertEquals(1, history[1].getReferenceCount());
+    }
+
+    private static SimpleChatMessage chatMessage(long id) {
+        SimpleChatMessage message = new SimpleChatMessage();
+        message.setTimestamp(new TimestampEntry(id));
+        return message;
+    }
+
+    private static MessageEnvelope chat(long id) {
+        SimpleChatMessage message = new SimpleChatMessage();
+        message.setTimestamp(new TimestampEntry(id));
+        return new MessageEnvelope(message);
+    }
+
+    private static long id(MessageEnvelope envelope) {
+        return ((ChatMessage<?>) envelope.getMessage()).getTimestamp().getValue();
+    }
+}
@@ -0,0 +1,32 @@
+package org.rapturemain.tcpmessengerserver.metrics;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MetricsEndpointTest {
+
+    @Test
+    void escapesQuotesBackslashesAndLineBreaksInLabelValues() {
+        assertEquals("/127.0.0.1:4000", MetricsEndpoint.escapeLabelValue("/127.0.0.1:4000"));
+        assertEquals("a\\\"b", MetricsEndpoint.escapeLabelValue("a\"b"));
+        assertEquals("a\\\\b", MetricsEndpoint.escapeLabelValue("a\\b"));
+        assertEquals("a\\nb", MetricsEndpoint.escapeLabelValue("a\nb"));
+        assertEquals("\\\\\\\"\\n", MetricsEndpoint.escapeLabelValue("\\\"\n"));
+    }
+
+    @Test
+    void labelValueCannotBreakTheLine() {
+        MetricsSnapshot snapshot = MetricsSnapshot.EMPTY.toBuilder()
+                .deepestQueues(List.of("evil\"}\nmessenger_connections 1000=5"))
+                .build();
+
+        String text = MetricsEndpoint.render(snapshot);
+
+        assertTrue(text.contains("messenger_deepest_subscriber_queue{connection=\"evil\\\"}\\nmessenger_connections 1000\"} 5\n"), text);
+        assertEquals(1, text.lines().filter(line -> line.startsWith("messenger_connections ")).count());
+    }
+}
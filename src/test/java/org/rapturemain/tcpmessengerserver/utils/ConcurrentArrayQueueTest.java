@@ -0,0 +1,89 @@
+package org.rapturemain.tcpmessengerserver.utils;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ConcurrentArrayQueueTest {
+
+    @Test
+    void pollsInOfferOrderAndRefusesWhenFull() {
+        ConcurrentArrayQueue<Integer> queue = new ConcurrentArrayQueue<>(3);
+        assertEquals(4, queue.capacity());
+        assertNull(queue.poll());
+
+        for (int i = 0; i < 4; i++) {
+            assertTrue(queue.offer(i));
+        }
+        assertFalse(queue.offer(4));
+        assertEquals(4, queue.size());
+
+        assertEquals(0, queue.poll());
+        assertTrue(queue.offer(4));
+        for (int i = 1; i <= 4; i++) {
+            assertEquals(i, queue.poll());
+        }
+        assertNull(queue.poll());
+        assertEquals(0, queue.size());
+    }
+
+    @Test
+    void wrapsAroundManyTimes() {
+        ConcurrentArrayQueue<Integer> queue = new ConcurrentArrayQueue<>(2);
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(queue.offer(i));
+            assertEquals(i, queue.poll());
+        }
+    }
+
+    @Test
+    void concurrentProducersAndConsumersNeitherLoseNorDuplicate() throws InterruptedException {
+        int threads = 4;
+        int perProducer = 100_000;
+        ConcurrentArrayQueue<Integer> queue = new ConcurrentArrayQueue<>(64);
+        ConcurrentHashMap<Integer, Boolean> taken = new ConcurrentHashMap<>();
+        AtomicInteger duplicates = new AtomicInteger();
+        CountDownLatch producersDone = new CountDownLatch(threads);
+        List<Thread> workers = new ArrayList<>();
+
+        for (int t = 0; t < threads; t++) {
+            int base = t * perProducer;
+            workers.add(new Thread(() -> {
+                for (int i = 0; i < perProducer; i++) {
+                    while (!queue.offer(base + i)) {
+                        Thread.yield();
+                    }
+                }
+                producersDone.countDown();
+            }));
+            workers.add(new Thread(() -> {
+                while (true) {
+                    Integer value = queue.poll();
+                    if (value == null) {
+                        if (producersDone.getCount() == 0 && queue.size() == 0) {
+                            return;
+                        }
+                        Thread.yield();
+                    } else if (taken.put(value, true) != null) {
+                        duplicates.incrementAndGet();
+                    }
+                }
+            }));
+        }
+        for (Thread worker : workers) {
+            worker.start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+
+        assertEquals(0, duplicates.get());
+        assertEquals(threads * perProducer, taken.size());
+    }
+}